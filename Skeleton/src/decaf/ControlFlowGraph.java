@@ -0,0 +1,482 @@
+/**
+ * Control flow graph of a method body
+ *
+ * The block of a method_decl is lowered into basic blocks: straight-line runs
+ * of variable declarations, assignments and method calls, each ended by one
+ * terminator that transfers control to its successors. IF, FOR, BREAK,
+ * CONTINUE and RETURN are the terminators; falling off the end of the body
+ * goes to the exit block like a RETURN without a value. A FOR loop becomes
+ * three blocks' terminators: FOR_INIT evaluates the bounds and sets the loop
+ * variable, FOR_TEST compares it to the end value, and FOR_STEP increments
+ * it, which is where CONTINUE goes.
+ *
+ * Blocks are numbered from 0, ENTRY being 0 and EXIT 1, with successors and
+ * predecessors held as int arrays. The graph is built once per method by the
+ * ScopeListener and cached there, so return checking, unreachable code
+ * detection and any later analysis all share it, never walking the statements
+ * of the parse tree again.
+ *
+ * @author Miles Schofield
+ */
+package decaf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+public class ControlFlowGraph {
+
+	public static final int ENTRY = 0;
+	public static final int EXIT = 1;
+
+	// Terminator kinds, and the successors each has
+	/** Unconditional jump to successor 0, for BREAK, CONTINUE and joins */
+	public static final int GOTO = 0;
+	/** IF: successor 0 when the condition is true, successor 1 when false */
+	public static final int BRANCH = 1;
+	/** FOR loop entry: evaluates the bounds, sets the loop variable, then goes to the test */
+	public static final int FOR_INIT = 2;
+	/** FOR loop test: successor 0 is the body, successor 1 the statement after the loop */
+	public static final int FOR_TEST = 3;
+	/** FOR loop increment, going back to the test */
+	public static final int FOR_STEP = 4;
+	/** RETURN, going to EXIT */
+	public static final int RETURN = 5;
+	/** Terminator of EXIT itself, which has no successors */
+	public static final int END = 6;
+
+	private static final String[] KIND_NAMES = { "goto", "branch", "for_init", "for_test", "for_step", "return", "end" };
+	private static final int[] NONE = new int[0];
+
+	private final DecafParser.Method_declContext method;
+	private int size;
+	/** The var_decls and statements in each block, in order */
+	private final List<List<ParserRuleContext>> contents = new ArrayList<List<ParserRuleContext>>();
+	private int[] kinds = new int[16];
+	/** The IF, FOR or RETURN statement each block's terminator belongs to, null for GOTO and END */
+	private DecafParser.StatementContext[] terminators = new DecafParser.StatementContext[16];
+	private int[][] successors = new int[16][];
+	private int[][] predecessors;
+	private boolean[] reachable;
+	/** The first statement of each stretch of code control can never reach */
+	private final List<DecafParser.StatementContext> unreachable = new ArrayList<DecafParser.StatementContext>();
+	/** BREAK and CONTINUE statements that are not inside a FOR loop */
+	private final List<DecafParser.StatementContext> strayJumps = new ArrayList<DecafParser.StatementContext>();
+
+	private ControlFlowGraph(DecafParser.Method_declContext method) {
+		this.method = method;
+	}
+
+	/**
+	 * Builds the control flow graph of a method body
+	 *
+	 * @param method Method_declContext of the method
+	 * @return ControlFlowGraph of its block
+	 */
+	public static ControlFlowGraph build(DecafParser.Method_declContext method) {
+		ControlFlowGraph cfg = new ControlFlowGraph(method);
+		new Builder(cfg).build(method.block());
+		return cfg;
+	}
+
+	public DecafParser.Method_declContext getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return int the number of blocks
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param block int block number
+	 * @return List the Var_declContexts and StatementContexts of the block, in order
+	 */
+	public List<ParserRuleContext> contents(int block) {
+		return Collections.unmodifiableList(contents.get(block));
+	}
+
+	/**
+	 * @param block int block number
+	 * @return int the kind of terminator ending the block, GOTO to END
+	 */
+	public int kind(int block) {
+		return kinds[block];
+	}
+
+	/**
+	 * @param block int block number
+	 * @return StatementContext the IF, FOR or RETURN statement ending the block, or null
+	 */
+	public DecafParser.StatementContext terminator(int block) {
+		return terminators[block];
+	}
+
+	/**
+	 * @param block int block number
+	 * @return int[] the blocks control goes to from the block, in the order given by its kind. Not to be modified
+	 */
+	public int[] successors(int block) {
+		return successors[block];
+	}
+
+	/**
+	 * @param block int block number
+	 * @return int[] the blocks control comes to the block from. Not to be modified
+	 */
+	public int[] predecessors(int block) {
+		return predecessors[block];
+	}
+
+	/**
+	 * @param block int block number
+	 * @return boolean True if control can reach the block from ENTRY
+	 */
+	public boolean isReachable(int block) {
+		return reachable[block];
+	}
+
+	/**
+	 * @return boolean True if every path through the method that reaches its end does so by a RETURN
+	 */
+	public boolean returnsOnAllPaths() {
+		for (int pred : predecessors[EXIT]) {
+			if (reachable[pred] && kinds[pred] != RETURN) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return List the first statement of each stretch of code that can never be reached
+	 */
+	public List<DecafParser.StatementContext> getUnreachable() {
+		return Collections.unmodifiableList(unreachable);
+	}
+
+	/**
+	 * @return List the BREAK and CONTINUE statements found outside of any FOR loop
+	 */
+	public List<DecafParser.StatementContext> getStrayJumps() {
+		return Collections.unmodifiableList(strayJumps);
+	}
+
+	/**
+	 * @return int[] the reachable blocks in reverse postorder, the order forward dataflow analyses converge fastest in
+	 */
+	public int[] reversePostorder() {
+		int[] order = new int[size];
+		int count = 0;
+		boolean[] seen = new boolean[size];
+		// Iterative depth first search. next[i] is the next successor of stack[i] to visit
+		int[] stack = new int[size];
+		int[] next = new int[size];
+		int depth = 0;
+		stack[depth++] = ENTRY;
+		seen[ENTRY] = true;
+		while (depth > 0) {
+			int block = stack[depth - 1];
+			if (next[depth - 1] < successors[block].length) {
+				int succ = successors[block][next[depth - 1]++];
+				if (!seen[succ]) {
+					seen[succ] = true;
+					stack[depth] = succ;
+					next[depth++] = 0;
+				}
+			} else {
+				order[count++] = block;
+				depth--;
+			}
+		}
+		int[] reversed = new int[count];
+		for (int i = 0; i < count; i++) reversed[i] = order[count - 1 - i];
+		return reversed;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (int block = 0; block < size; block++) {
+			text.append('B').append(block);
+			if (!reachable[block]) text.append(" (unreachable)");
+			text.append(": ").append(contents.get(block).size()).append(" item(s), ").append(KIND_NAMES[kinds[block]]);
+			if (terminators[block] != null) text.append(" line ").append(terminators[block].getStart().getLine());
+			text.append(" ->");
+			for (int succ : successors[block]) text.append(" B").append(succ);
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	private int newBlock() {
+		if (size == kinds.length) {
+			kinds = Arrays.copyOf(kinds, size * 2);
+			terminators = Arrays.copyOf(terminators, size * 2);
+			successors = Arrays.copyOf(successors, size * 2);
+		}
+		contents.add(new ArrayList<ParserRuleContext>());
+		successors[size] = null;
+		return size++;
+	}
+
+	private void terminate(int block, int kind, DecafParser.StatementContext terminator, int... succ) {
+		kinds[block] = kind;
+		terminators[block] = terminator;
+		successors[block] = succ;
+	}
+
+	/**
+	 * Works out the predecessors and which blocks are reachable once every
+	 * block has been terminated
+	 */
+	private void finish() {
+		int[] counts = new int[size];
+		for (int block = 0; block < size; block++) {
+			for (int succ : successors[block]) counts[succ]++;
+		}
+		predecessors = new int[size][];
+		for (int block = 0; block < size; block++) predecessors[block] = counts[block] == 0 ? NONE : new int[counts[block]];
+		Arrays.fill(counts, 0);
+		for (int block = 0; block < size; block++) {
+			for (int succ : successors[block]) predecessors[succ][counts[succ]++] = block;
+		}
+		reachable = new boolean[size];
+		for (int block : reversePostorder()) reachable[block] = true;
+	}
+
+	/**
+	 * Lowers the statements of a method body into the blocks of a graph
+	 *
+	 * The blocks, IFs and FORs the builder is inside are kept on an explicit
+	 * stack rather than recursed on, as a method body may be checked on a
+	 * thread with a smaller stack than the one it was parsed on, such as a
+	 * worker checking methods in parallel.
+	 */
+	private static class Builder {
+		/** Stands for the current block when control cannot reach the next statement */
+		private static final int DEAD = -1;
+
+		private final ControlFlowGraph cfg;
+		/** The FOR_STEP block and the block after the loop, for each FOR loop the builder is in */
+		private int[] continues = new int[8];
+		private int[] breaks = new int[8];
+		private int loops = 0;
+		/** The block the last statement was placed in or ended */
+		private int last = ENTRY;
+		/** The statements that start dead code, and the block last was in when each was found */
+		private final List<DecafParser.StatementContext> deadStarts = new ArrayList<DecafParser.StatementContext>();
+		private final List<Integer> deadCauses = new ArrayList<Integer>();
+		/** The blocks, IFs and FORs being built, innermost last */
+		private final List<Frame> frames = new ArrayList<Frame>();
+
+		/**
+		 * A block whose statements are being placed, or an IF or FOR
+		 * statement waiting for the end of the block it is building
+		 */
+		private static final class Frame {
+			/** The IF or FOR statement, or null for a block */
+			final DecafParser.StatementContext statement;
+			/** The statements of a block, empty for an IF or FOR */
+			final List<DecafParser.StatementContext> statements;
+			/** The next statement of a block to place, or for an IF, 1 once its first block is built */
+			int index;
+			/** For a block the block control is in, for an IF the one its condition ends, for a FOR its FOR_STEP */
+			int current;
+			/** For an IF the start of its second block, for a FOR the block after the loop */
+			int other;
+			/** For an IF the block control is in after its first block */
+			int end;
+			/** True for a block while a statement in it is being built */
+			boolean waiting;
+
+			Frame(DecafParser.StatementContext statement, List<DecafParser.StatementContext> statements, int current,
+					int other) {
+				this.statement = statement;
+				this.statements = statements;
+				this.current = current;
+				this.other = other;
+			}
+		}
+
+		Builder(ControlFlowGraph cfg) {
+			this.cfg = cfg;
+		}
+
+		void build(DecafParser.BlockContext body) {
+			int entry = cfg.newBlock();
+			int exit = cfg.newBlock();
+			cfg.terminate(exit, END, null);
+			int end = block(body, entry);
+			// Falling off the end of the method
+			if (end != DEAD) cfg.terminate(end, GOTO, null, exit);
+			cfg.finish();
+			// Only report dead code that follows live code, not every
+			// statement within a stretch that is already dead
+			for (int i = 0; i < deadStarts.size(); i++) {
+				if (cfg.reachable[deadCauses.get(i)]) cfg.unreachable.add(deadStarts.get(i));
+			}
+		}
+
+		/**
+		 * @return int the block control is in after the block, or DEAD
+		 */
+		private int block(DecafParser.BlockContext body, int current) {
+			open(body, current);
+			int end = current;
+			while (!frames.isEmpty()) {
+				Frame frame = frames.get(frames.size() - 1);
+				if (frame.statement == null) end = resumeBlock(frame, end);
+				else if (frame.statement.IF() != null) end = resumeIf(frame, end);
+				else end = resumeFor(frame, end);
+			}
+			return end;
+		}
+
+		/**
+		 * Starts a block, which may be missing, in the current block
+		 */
+		private void open(DecafParser.BlockContext block, int current) {
+			List<DecafParser.StatementContext> statements = Collections.emptyList();
+			if (block != null) {
+				for (DecafParser.Var_declContext var : block.var_decl()) {
+					cfg.contents.get(current).add(var);
+					last = current;
+				}
+				statements = block.statement();
+			}
+			frames.add(new Frame(null, statements, current, 0));
+		}
+
+		/**
+		 * Places the statements of a block from where it left off, until one
+		 * starts a block of its own or the block ends
+		 *
+		 * @param end int the block control is in after the statement the block was waiting for
+		 * @return int the block control is in after the block, once it ends
+		 */
+		private int resumeBlock(Frame frame, int end) {
+			if (frame.waiting) {
+				frame.current = end;
+				frame.waiting = false;
+			}
+			while (frame.index < frame.statements.size()) {
+				DecafParser.StatementContext statement = frame.statements.get(frame.index++);
+				if (frame.current == DEAD) {
+					deadStarts.add(statement);
+					deadCauses.add(last);
+					frame.current = cfg.newBlock();
+				}
+				if (statement.IF() != null || statement.FOR() != null || statement.block(0) != null) {
+					frame.waiting = true;
+					enter(statement, frame.current);
+					return end;
+				}
+				frame.current = statement(statement, frame.current);
+			}
+			frames.remove(frames.size() - 1);
+			return frame.current;
+		}
+
+		/**
+		 * Starts an IF, a FOR or a nested block in the current block
+		 */
+		private void enter(DecafParser.StatementContext statement, int current) {
+			if (statement.IF() != null) {
+				int then = cfg.newBlock();
+				int otherwise = cfg.newBlock();
+				cfg.terminate(current, BRANCH, statement, then, otherwise);
+				last = current;
+				frames.add(new Frame(statement, Collections.<DecafParser.StatementContext>emptyList(), current, otherwise));
+				open(statement.block(0), then);
+				return;
+			}
+			if (statement.FOR() != null) {
+				int test = cfg.newBlock();
+				int body = cfg.newBlock();
+				int step = cfg.newBlock();
+				int after = cfg.newBlock();
+				cfg.terminate(current, FOR_INIT, statement, test);
+				cfg.terminate(test, FOR_TEST, statement, body, after);
+				cfg.terminate(step, FOR_STEP, statement, test);
+				last = current;
+				if (loops == continues.length) {
+					continues = Arrays.copyOf(continues, loops * 2);
+					breaks = Arrays.copyOf(breaks, loops * 2);
+				}
+				continues[loops] = step;
+				breaks[loops++] = after;
+				frames.add(new Frame(statement, Collections.<DecafParser.StatementContext>emptyList(), step, after));
+				open(statement.block(0), body);
+				return;
+			}
+			open(statement.block(0), current);
+		}
+
+		/**
+		 * Builds the second block of an IF once the first is built, and joins
+		 * the two once both are
+		 *
+		 * @return int the block control is in after the IF, once both blocks are built
+		 */
+		private int resumeIf(Frame frame, int end) {
+			if (frame.index == 0) {
+				frame.index = 1;
+				frame.end = end;
+				open(frame.statement.block(1), frame.other);
+				return end;
+			}
+			frames.remove(frames.size() - 1);
+			int thenEnd = frame.end;
+			int otherwiseEnd = end;
+			if (thenEnd == DEAD && otherwiseEnd == DEAD) {
+				last = frame.current;
+				return DEAD;
+			}
+			int join = cfg.newBlock();
+			if (thenEnd != DEAD) cfg.terminate(thenEnd, GOTO, null, join);
+			if (otherwiseEnd != DEAD) cfg.terminate(otherwiseEnd, GOTO, null, join);
+			return join;
+		}
+
+		/**
+		 * Closes a FOR loop once its body is built
+		 *
+		 * @return int the block after the loop
+		 */
+		private int resumeFor(Frame frame, int bodyEnd) {
+			frames.remove(frames.size() - 1);
+			loops--;
+			if (bodyEnd != DEAD) cfg.terminate(bodyEnd, GOTO, null, frame.current);
+			return frame.other;
+		}
+
+		/**
+		 * Places a statement that does not start a block of its own
+		 *
+		 * @return int the block control is in after the statement, or DEAD
+		 */
+		private int statement(DecafParser.StatementContext statement, int current) {
+			if (statement.RETURN() != null) {
+				cfg.terminate(current, RETURN, statement, EXIT);
+				last = current;
+				return DEAD;
+			}
+			if (statement.BREAK() != null || statement.CONTINUE() != null) {
+				if (loops == 0) {
+					cfg.strayJumps.add(statement);
+					return current;
+				}
+				cfg.terminate(current, GOTO, null, statement.BREAK() != null ? breaks[loops - 1] : continues[loops - 1]);
+				last = current;
+				return DEAD;
+			}
+			// Assignment or method call
+			cfg.contents.get(current).add(statement);
+			last = current;
+			return current;
+		}
+	}
+}
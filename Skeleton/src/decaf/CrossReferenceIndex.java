@@ -0,0 +1,701 @@
+/**
+ * Persistent cross-reference index over a corpus of Decaf programs
+ *
+ * Records where every field, variable, parameter and method is declared and
+ * where every location and method call uses one, with each use linked to the
+ * declaration the ScopeListener resolved it to. The index is a single binary
+ * file which is memory-mapped for queries, so answering where a name is
+ * declared and used only takes a binary search over the sorted symbols and a
+ * read of that symbol's postings, never the sources themselves.
+ *
+ * The file is a list of segments, each laid out as a small index of its own.
+ * Updating the index only re-parses the files given whose contents have
+ * changed since they were last indexed, found by comparing a hash of each
+ * file, and appends one segment holding just those files' postings, along
+ * with an entry marking each indexed file that no longer exists as removed.
+ * A file's entry in a later segment hides every earlier one, so its old
+ * postings drop out of queries without the rest of the index being touched.
+ * The segment is written past the end of the last one and only counts once
+ * the header's count of segments is raised, so a query never sees it partly
+ * written. Once there are MAX_SEGMENTS, the next update merges the files
+ * still indexed into a single segment, which drops the hidden postings for
+ * good, writing it alongside and renaming it over the old index.
+ *
+ * Layout, all ints big-endian:
+ * header    magic, version, segments
+ * then each segment:
+ * header    files, symbols, postings, pool size
+ * files     hash (long), path offset, path length, state (indexed or removed)
+ * symbols   name offset, name length, first posting, posting count; sorted by name
+ * postings  file, kind, line, column, declaration line, declaration column; by symbol, file, position
+ * pool      the UTF-8 bytes of every path and name
+ *
+ * @author Miles Schofield
+ */
+package decaf;
+
+import decaf.ir.IntList;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+public class CrossReferenceIndex {
+
+	// Posting kinds. Declarations first, then uses
+	public static final int FIELD = 0;
+	public static final int VARIABLE = 1;
+	public static final int PARAMETER = 2;
+	public static final int METHOD = 3;
+	/** A location naming a variable */
+	public static final int USE = 4;
+	/** A method_name in a method call */
+	public static final int CALL = 5;
+
+	private static final String[] KIND_NAMES = { "field", "variable", "parameter", "method", "use", "call" };
+	private static final int MAGIC = 0x44435852; // "DCXR"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 12;
+	/** Offset of the count of segments in the header */
+	private static final int SEGMENTS_AT = 8;
+	private static final int SEGMENT_HEADER_SIZE = 16;
+	private static final int FILE_SIZE = 20;
+	private static final int SYMBOL_SIZE = 16;
+	/** Ints in a posting */
+	private static final int POSTING_INTS = 6;
+	/** The most segments an index grows to before an update merges them into one */
+	private static final int MAX_SEGMENTS = 8;
+
+	// File states
+	private static final int REMOVED = 0;
+	private static final int INDEXED = 1;
+
+	/**
+	 * A declaration or use of a name
+	 */
+	public static class Posting {
+		private final String file;
+		private final int kind;
+		private final int line;
+		private final int column;
+		private final int declarationLine;
+		private final int declarationColumn;
+
+		Posting(String file, int kind, int line, int column, int declarationLine, int declarationColumn) {
+			this.file = file;
+			this.kind = kind;
+			this.line = line;
+			this.column = column;
+			this.declarationLine = declarationLine;
+			this.declarationColumn = declarationColumn;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public int getKind() {
+			return kind;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		public int getColumn() {
+			return column;
+		}
+
+		/**
+		 * @return int line of the declaration a use resolved to, the posting's own line for a declaration, or -1 if the use is undeclared
+		 */
+		public int getDeclarationLine() {
+			return declarationLine;
+		}
+
+		public int getDeclarationColumn() {
+			return declarationColumn;
+		}
+
+		@Override
+		public String toString() {
+			String text = file + ":" + line + ":" + column + " " + KIND_NAMES[kind];
+			if (kind < USE) return text;
+			if (declarationLine < 0) return text + " (undeclared)";
+			return text + " of " + declarationLine + ":" + declarationColumn;
+		}
+	}
+
+	/**
+	 * The files, symbols and postings one update added, read in place
+	 */
+	private static class Segment {
+		private final ByteBuffer buffer;
+		private final int files;
+		private final int symbols;
+		private final int filesAt;
+		private final int symbolsAt;
+		private final int postingsAt;
+		private final int poolAt;
+		/** Offset just past the segment */
+		private final int end;
+		/** True for each file indexed here and not by a later segment, nor removed by one */
+		private final boolean[] live;
+
+		Segment(ByteBuffer buffer, int at) throws IOException {
+			this.buffer = buffer;
+			if (at + SEGMENT_HEADER_SIZE > buffer.capacity()) throw new IOException("cross-reference index is truncated");
+			files = buffer.getInt(at);
+			symbols = buffer.getInt(at + 4);
+			int postings = buffer.getInt(at + 8);
+			filesAt = at + SEGMENT_HEADER_SIZE;
+			symbolsAt = filesAt + files * FILE_SIZE;
+			postingsAt = symbolsAt + symbols * SYMBOL_SIZE;
+			poolAt = postingsAt + postings * POSTING_INTS * 4;
+			end = poolAt + buffer.getInt(at + 12);
+			if (end > buffer.capacity()) throw new IOException("cross-reference index is truncated");
+			live = new boolean[files];
+		}
+
+		String fileName(int file) {
+			int at = filesAt + file * FILE_SIZE;
+			return string(buffer.getInt(at + 8), buffer.getInt(at + 12));
+		}
+
+		long fileHash(int file) {
+			return buffer.getLong(filesAt + file * FILE_SIZE);
+		}
+
+		boolean isIndexed(int file) {
+			return buffer.getInt(filesAt + file * FILE_SIZE + 16) == INDEXED;
+		}
+
+		/**
+		 * Binary search of the symbols, comparing the UTF-8 bytes of the names
+		 * in place. Identifiers are ASCII, so this is the order they were sorted in.
+		 *
+		 * @return int the symbol number of name, or -1 if it is not in this segment
+		 */
+		int find(byte[] name) {
+			int low = 0;
+			int high = symbols - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int at = symbolsAt + middle * SYMBOL_SIZE;
+				int compare = compare(buffer.getInt(at), buffer.getInt(at + 4), name);
+				if (compare < 0) low = middle + 1;
+				else if (compare > 0) high = middle - 1;
+				else return middle;
+			}
+			return -1;
+		}
+
+		private int compare(int offset, int length, byte[] name) {
+			int common = Math.min(length, name.length);
+			for (int i = 0; i < common; i++) {
+				int difference = (buffer.get(poolAt + offset + i) & 0xff) - (name[i] & 0xff);
+				if (difference != 0) return difference;
+			}
+			return length - name.length;
+		}
+
+		String string(int offset, int length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) bytes[i] = buffer.get(poolAt + offset + i);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return Posting the posting at index i, if its file is live, else null
+		 */
+		Posting posting(int i) {
+			int posting = postingsAt + i * POSTING_INTS * 4;
+			int file = buffer.getInt(posting);
+			if (!live[file]) return null;
+			return new Posting(fileName(file), buffer.getInt(posting + 4), buffer.getInt(posting + 8),
+					buffer.getInt(posting + 12), buffer.getInt(posting + 16), buffer.getInt(posting + 20));
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	/** The files indexed, as pairs of segment and file number, oldest segment first */
+	private final IntList files = new IntList();
+	/** Offset just past the last segment */
+	private final int end;
+
+	private CrossReferenceIndex(ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("not a cross-reference index");
+		}
+		int at = HEADER_SIZE;
+		for (int i = buffer.getInt(SEGMENTS_AT); i > 0; i--) {
+			Segment segment = new Segment(buffer, at);
+			segments.add(segment);
+			at = segment.end;
+		}
+		end = at;
+		// Only the latest entry for a path counts
+		Set<String> seen = new HashSet<String>();
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment segment = segments.get(i);
+			for (int file = 0; file < segment.files; file++) {
+				segment.live[file] = seen.add(segment.fileName(file)) && segment.isIndexed(file);
+			}
+		}
+		for (int i = 0; i < segments.size(); i++) {
+			for (int file = 0; file < segments.get(i).files; file++) {
+				if (!segments.get(i).live[file]) continue;
+				files.add(i);
+				files.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Maps an index file for querying
+	 *
+	 * @param index File the index was written to
+	 * @return CrossReferenceIndex reading from the mapped file
+	 * @throws IOException if it cannot be read or is not an index
+	 */
+	public static CrossReferenceIndex open(File index) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(index, "r");
+		try {
+			// The mapping stays valid once the file is closed
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			return new CrossReferenceIndex(buffer);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return int the number of files indexed
+	 */
+	public int fileCount() {
+		return files.size() / 2;
+	}
+
+	/**
+	 * @param file int file number
+	 * @return String the path of the file
+	 */
+	public String fileName(int file) {
+		return segments.get(files.get(2 * file)).fileName(files.get(2 * file + 1));
+	}
+
+	/**
+	 * @param file int file number
+	 * @return long the hash of the file's contents when it was indexed
+	 */
+	public long fileHash(int file) {
+		return segments.get(files.get(2 * file)).fileHash(files.get(2 * file + 1));
+	}
+
+	/**
+	 * Finds every declaration and use of a name across the corpus
+	 *
+	 * @param name String identifier
+	 * @return List of its postings, by file then position
+	 */
+	public List<Posting> lookup(String name) {
+		List<Posting> found = new ArrayList<Posting>();
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		for (Segment segment : segments) {
+			int symbol = segment.find(bytes);
+			if (symbol < 0) continue;
+			int at = segment.symbolsAt + symbol * SYMBOL_SIZE;
+			int first = segment.buffer.getInt(at + 8);
+			int count = segment.buffer.getInt(at + 12);
+			for (int i = first; i < first + count; i++) {
+				Posting posting = segment.posting(i);
+				if (posting != null) found.add(posting);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Prints every declaration and use of a name, one per line
+	 *
+	 * @param name String identifier
+	 * @param out PrintStream to print to
+	 */
+	public void query(String name, PrintStream out) {
+		for (Posting posting : lookup(name)) out.println(posting);
+	}
+
+	/**
+	 * Brings an index up to date with a set of source files, creating it if
+	 * it does not exist. Files whose contents have not changed since they were
+	 * indexed are not parsed again, and indexed files that no longer exist are
+	 * removed from it.
+	 *
+	 * @param index File the index is kept in
+	 * @param sources List of the paths of the source files to index
+	 * @return int the number of files parsed
+	 * @throws IOException if a source cannot be read or the index written
+	 */
+	public static int update(File index, List<String> sources) throws IOException {
+		CrossReferenceIndex old = index.exists() ? open(index) : null;
+		LinkedHashMap<String, Long> indexed = new LinkedHashMap<String, Long>();
+		if (old != null) {
+			for (int file = 0; file < old.fileCount(); file++) indexed.put(old.fileName(file), old.fileHash(file));
+		}
+
+		// Postings for each file parsed, by path, as symbol -> runs of POSTING_INTS ints
+		// with the file field unused until the segment is written
+		LinkedHashMap<String, Map<String, IntList>> changed = new LinkedHashMap<String, Map<String, IntList>>();
+		HashMap<String, Long> hashes = new HashMap<String, Long>();
+		for (String source : sources) {
+			String path = new File(source).getCanonicalPath();
+			byte[] contents = Files.readAllBytes(new File(path).toPath());
+			long hash = hash(contents);
+			Long known = indexed.get(path);
+			if ((known != null && known == hash) || changed.containsKey(path)) continue;
+			changed.put(path, collect(contents));
+			hashes.put(path, hash);
+		}
+		List<String> removed = new ArrayList<String>();
+		for (String path : indexed.keySet()) {
+			if (!new File(path).exists()) removed.add(path);
+		}
+
+		if (old == null) {
+			write(index, changed, hashes);
+		} else if (changed.isEmpty() && removed.isEmpty()) {
+			return 0;
+		} else if (old.segments.size() >= MAX_SEGMENTS) {
+			// Merge what is still indexed into one segment
+			LinkedHashMap<String, Map<String, IntList>> corpus = new LinkedHashMap<String, Map<String, IntList>>();
+			for (Map.Entry<String, Long> file : indexed.entrySet()) {
+				if (changed.containsKey(file.getKey()) || removed.contains(file.getKey())) continue;
+				corpus.put(file.getKey(), new HashMap<String, IntList>());
+				hashes.put(file.getKey(), file.getValue());
+			}
+			old.readInto(corpus);
+			corpus.putAll(changed);
+			write(index, corpus, hashes);
+		} else {
+			old.append(index, changed, hashes, removed);
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Adds the postings of the live files of this index to the files in the
+	 * corpus they belong to
+	 */
+	private void readInto(Map<String, Map<String, IntList>> corpus) {
+		for (Segment segment : segments) {
+			List<Map<String, IntList>> targets = new ArrayList<Map<String, IntList>>();
+			for (int file = 0; file < segment.files; file++) {
+				targets.add(segment.live[file] ? corpus.get(segment.fileName(file)) : null);
+			}
+			for (int symbol = 0; symbol < segment.symbols; symbol++) {
+				int at = segment.symbolsAt + symbol * SYMBOL_SIZE;
+				String name = segment.string(segment.buffer.getInt(at), segment.buffer.getInt(at + 4));
+				int first = segment.buffer.getInt(at + 8);
+				int count = segment.buffer.getInt(at + 12);
+				for (int i = first; i < first + count; i++) {
+					int posting = segment.postingsAt + i * POSTING_INTS * 4;
+					Map<String, IntList> target = targets.get(segment.buffer.getInt(posting));
+					if (target == null) continue;
+					IntList list = postingsOf(target, name);
+					for (int field = 0; field < POSTING_INTS; field++) list.add(segment.buffer.getInt(posting + field * 4));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses and checks one program, collecting its declarations and uses
+	 */
+	private static Map<String, IntList> collect(byte[] contents) throws IOException {
+		DecafLexer lexer = new DecafLexer(new ANTLRInputStream(new ByteArrayInputStream(contents)));
+		lexer.removeErrorListeners();
+		DecafParser parser = new DecafParser(new CommonTokenStream(lexer));
+		parser.removeErrorListeners();
+		ParseTree tree = parser.program();
+		ScopeListener resolver = new ScopeListener(new Diagnostics());
+		try {
+			IterativeParseTreeWalker.DEFAULT.walk(resolver, tree);
+		} catch (RuntimeException e) {
+			// Whatever was resolved before the checker failed is still indexed
+		}
+		Collector collector = new Collector(resolver);
+		IterativeParseTreeWalker.DEFAULT.walk(collector, tree);
+		return collector.postings;
+	}
+
+	/**
+	 * Walks a checked tree, turning the declarations the ScopeListener
+	 * recorded into postings. Every declaration is walked before any use of
+	 * it, so each use can be given the position of its declaration.
+	 */
+	private static class Collector extends DecafParserBaseListener {
+		private final ScopeListener resolver;
+		private final Map<String, IntList> postings = new HashMap<String, IntList>();
+		/** Position of each declaration seen, as line and column */
+		private final IdentityHashMap<ScopeElement, int[]> declared = new IdentityHashMap<ScopeElement, int[]>();
+
+		Collector(ScopeListener resolver) {
+			this.resolver = resolver;
+		}
+
+		@Override
+		public void enterField_name(DecafParser.Field_nameContext ctx) {
+			declare(FIELD, resolver.declarationOf(ctx), ctx.ID());
+		}
+
+		@Override
+		public void enterMethod_decl(DecafParser.Method_declContext ctx) {
+			declare(METHOD, resolver.declarationOf(ctx), ctx.ID());
+		}
+
+		@Override
+		public void enterMethod_params(DecafParser.Method_paramsContext ctx) {
+			for (TerminalNode param : ctx.ID()) declare(PARAMETER, resolver.declarationOf(param), param);
+		}
+
+		@Override
+		public void enterVar_decl(DecafParser.Var_declContext ctx) {
+			for (TerminalNode variable : ctx.ID()) declare(VARIABLE, resolver.declarationOf(variable), variable);
+		}
+
+		@Override
+		public void enterStatement(DecafParser.StatementContext ctx) {
+			if (ctx.FOR() == null || ctx.ID() == null) return;
+			// The loop declares its variable unless one was already visible
+			ScopeElement element = resolver.declarationOf(ctx);
+			if (element != null && !declared.containsKey(element)) declare(VARIABLE, element, ctx.ID());
+			else use(USE, element, ctx.ID());
+		}
+
+		@Override
+		public void enterLocation(DecafParser.LocationContext ctx) {
+			use(USE, resolver.declarationOf(ctx), ctx.ID());
+		}
+
+		@Override
+		public void enterMethod_name(DecafParser.Method_nameContext ctx) {
+			use(CALL, resolver.declarationOf(ctx), ctx.ID());
+		}
+
+		private void declare(int kind, ScopeElement element, TerminalNode id) {
+			// Repeated declarations were not declared, and are not indexed
+			if (element == null || id == null) return;
+			Token token = id.getSymbol();
+			declared.put(element, new int[] { token.getLine(), token.getCharPositionInLine() });
+			add(id.getText(), kind, token, token.getLine(), token.getCharPositionInLine());
+		}
+
+		private void use(int kind, ScopeElement element, TerminalNode id) {
+			if (id == null) return;
+			int[] declaration = element == null ? null : declared.get(element);
+			if (declaration == null) add(id.getText(), kind, id.getSymbol(), -1, -1);
+			else add(id.getText(), kind, id.getSymbol(), declaration[0], declaration[1]);
+		}
+
+		private void add(String name, int kind, Token token, int declarationLine, int declarationColumn) {
+			IntList list = postingsOf(postings, name);
+			list.add(0);
+			list.add(kind);
+			list.add(token.getLine());
+			list.add(token.getCharPositionInLine());
+			list.add(declarationLine);
+			list.add(declarationColumn);
+		}
+	}
+
+	private static IntList postingsOf(Map<String, IntList> postings, String name) {
+		IntList list = postings.get(name);
+		if (list == null) {
+			list = new IntList(POSTING_INTS * 4);
+			postings.put(name, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Writes a new index of one segment beside the old one and renames it
+	 * over it, so a query never sees a partly written index
+	 */
+	private static void write(File index, LinkedHashMap<String, Map<String, IntList>> corpus, Map<String, Long> hashes)
+			throws IOException {
+		File temp = new File(index.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(1);
+			writeSegment(out, corpus, hashes, new ArrayList<String>());
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Adds a segment after the last one in the index file. Anything past the
+	 * last segment was left by an update that did not finish, and is written
+	 * over. The segment is flushed to disk before the header counts it.
+	 */
+	private void append(File index, LinkedHashMap<String, Map<String, IntList>> changed, Map<String, Long> hashes,
+			List<String> removed) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeSegment(out, changed, hashes, removed);
+		out.close();
+		RandomAccessFile file = new RandomAccessFile(index, "rw");
+		try {
+			file.setLength(end);
+			file.seek(end);
+			file.write(bytes.toByteArray());
+			file.getChannel().force(false);
+			file.seek(SEGMENTS_AT);
+			file.writeInt(segments.size() + 1);
+			file.getChannel().force(false);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes the files of a corpus and their postings as a segment, followed
+	 * in its file table by the paths removed
+	 */
+	private static void writeSegment(DataOutputStream out, LinkedHashMap<String, Map<String, IntList>> corpus,
+			Map<String, Long> hashes, List<String> removed) throws IOException {
+		// Every symbol, in order, with the postings of each file it occurs in by file number
+		TreeMap<String, List<int[]>> bySymbol = new TreeMap<String, List<int[]>>();
+		List<String> paths = new ArrayList<String>(corpus.keySet());
+		for (int file = 0; file < paths.size(); file++) {
+			for (Map.Entry<String, IntList> symbol : corpus.get(paths.get(file)).entrySet()) {
+				List<int[]> runs = bySymbol.get(symbol.getKey());
+				if (runs == null) {
+					runs = new ArrayList<int[]>();
+					bySymbol.put(symbol.getKey(), runs);
+				}
+				int[] run = symbol.getValue().toArray();
+				for (int i = 0; i < run.length; i += POSTING_INTS) run[i] = file;
+				runs.add(run);
+			}
+		}
+
+		ByteArrayPool pool = new ByteArrayPool();
+		int postings = 0;
+		for (List<int[]> runs : bySymbol.values()) {
+			for (int[] run : runs) postings += run.length / POSTING_INTS;
+		}
+
+		int files = paths.size() + removed.size();
+		int[] pathAt = new int[files];
+		int[] pathLength = new int[files];
+		for (int file = 0; file < files; file++) {
+			pathAt[file] = pool.size();
+			pathLength[file] = pool.add(file < paths.size() ? paths.get(file) : removed.get(file - paths.size()));
+		}
+		int[] nameAt = new int[bySymbol.size()];
+		int[] nameLength = new int[bySymbol.size()];
+		int symbol = 0;
+		for (String name : bySymbol.keySet()) {
+			nameAt[symbol] = pool.size();
+			nameLength[symbol++] = pool.add(name);
+		}
+
+		out.writeInt(files);
+		out.writeInt(bySymbol.size());
+		out.writeInt(postings);
+		out.writeInt(pool.size());
+		for (int file = 0; file < files; file++) {
+			boolean indexed = file < paths.size();
+			out.writeLong(indexed ? hashes.get(paths.get(file)) : 0);
+			out.writeInt(pathAt[file]);
+			out.writeInt(pathLength[file]);
+			out.writeInt(indexed ? INDEXED : REMOVED);
+		}
+		int first = 0;
+		symbol = 0;
+		for (List<int[]> runs : bySymbol.values()) {
+			int count = 0;
+			for (int[] run : runs) count += run.length / POSTING_INTS;
+			out.writeInt(nameAt[symbol]);
+			out.writeInt(nameLength[symbol++]);
+			out.writeInt(first);
+			out.writeInt(count);
+			first += count;
+		}
+		// Runs were added by file number, and each is in source order
+		for (List<int[]> runs : bySymbol.values()) {
+			for (int[] run : runs) {
+				for (int value : run) out.writeInt(value);
+			}
+		}
+		out.write(pool.bytes, 0, pool.size());
+	}
+
+	/**
+	 * @return long the first 8 bytes of the SHA-256 digest of contents
+	 */
+	private static long hash(byte[] contents) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+			return ByteBuffer.wrap(digest).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The string pool being written: UTF-8 bytes appended end to end
+	 */
+	private static class ByteArrayPool {
+		private byte[] bytes = new byte[1024];
+		private int size = 0;
+
+		/**
+		 * @return int the number of bytes added
+		 */
+		int add(String text) {
+			byte[] added = text.getBytes(StandardCharsets.UTF_8);
+			while (size + added.length > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			System.arraycopy(added, 0, bytes, size, added.length);
+			size += added.length;
+			return added.length;
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * Collector for the errors found while compiling
+ *
+ * Errors are recorded as structured entries - an ErrorCode, the line, column
+ * and token range they refer to, and the values that go into the message -
+ * and nothing is rendered until they are emitted. Checks that pass therefore
+ * cost nothing, and the text of an operand is only gathered from the tree for
+ * an error that is actually shown. With a limit of maxErrors, repeats are
+ * dropped as they are recorded and nothing more is kept once the limit is
+ * reached, the errors past it only being counted, so a file with a great
+ * many errors is not held in memory to show a few of them. The errors kept
+ * are therefore the first recorded rather than the first in the source. On
+ * emitting, the entries are sorted into source order, repeats of the same
+ * error are dropped, and they are written either as text or as JSON.
+ *
+ * @author Miles Schofield
+ */
+package decaf;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+public class Diagnostics {
+
+	/**
+	 * A single error. Arguments are kept as they were given, parse trees
+	 * included, and only turned into text by render.
+	 */
+	public static class Diagnostic {
+		private final ErrorCode code;
+		private final int line;
+		private final int column;
+		private final int startToken;
+		private final int stopToken;
+		private final Object[] args;
+		private final int order;
+
+		Diagnostic(ErrorCode code, int line, int column, int startToken, int stopToken, Object[] args, int order) {
+			this.code = code;
+			this.line = line;
+			this.column = column;
+			this.startToken = startToken;
+			this.stopToken = stopToken;
+			this.args = args;
+			this.order = order;
+		}
+
+		public ErrorCode getCode() {
+			return code;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		public int getColumn() {
+			return column;
+		}
+
+		public int getStartToken() {
+			return startToken;
+		}
+
+		public int getStopToken() {
+			return stopToken;
+		}
+
+		/**
+		 * @return String the message for this error
+		 */
+		public String render() {
+			Object[] values = new Object[args.length + 2];
+			values[0] = line;
+			values[1] = column;
+			for (int i = 0; i < args.length; i++) values[i + 2] = text(args[i]);
+			return String.format(code.getFormat(), values);
+		}
+
+		/**
+		 * Errors are repeats of each other if they have the same code, line,
+		 * column and arguments. Two uses of an undeclared name in one statement
+		 * are two errors, each at its own column.
+		 */
+		String key() {
+			StringBuilder key = new StringBuilder(code.name()).append(':').append(line).append(':').append(column);
+			for (Object arg : args) key.append('\u0000').append(text(arg));
+			return key.toString();
+		}
+	}
+
+	private final List<Diagnostic> entries = new ArrayList<Diagnostic>();
+	/** The keys of the errors kept, when there is a limit */
+	private final Set<String> keys = new HashSet<String>();
+	/** The errors recorded once the limit was reached, repeats included */
+	private int dropped = 0;
+	/** True once anything other than a warning has been recorded, kept or not */
+	private boolean errors = false;
+	private int maxErrors = 0;
+	private boolean json = false;
+
+	/**
+	 * @param maxErrors int the most errors to keep and emit, or 0 for no limit
+	 */
+	public void setMaxErrors(int maxErrors) {
+		this.maxErrors = maxErrors;
+	}
+
+	/**
+	 * @param json boolean True to emit JSON rather than text
+	 */
+	public void setJson(boolean json) {
+		this.json = json;
+	}
+
+	/**
+	 * Records an error at the start of a rule.
+	 *
+	 * @param code ErrorCode of the error
+	 * @param ctx Context the error was found in
+	 * @param args Values for the message
+	 */
+	public void report(ErrorCode code, ParserRuleContext ctx, Object... args) {
+		report(code, ctx.getStart(), ctx, args);
+	}
+
+	/**
+	 * Records an error at a given token within a rule.
+	 *
+	 * @param code ErrorCode of the error
+	 * @param at Token whose position the error is reported at
+	 * @param ctx Context the error was found in, giving its token range
+	 * @param args Values for the message
+	 */
+	public void report(ErrorCode code, Token at, ParserRuleContext ctx, Object... args) {
+		int start = ctx.getStart() == null ? -1 : ctx.getStart().getTokenIndex();
+		int stop = ctx.getStop() == null ? start : ctx.getStop().getTokenIndex();
+		add(new Diagnostic(code, at.getLine(), at.getCharPositionInLine(), start, stop, args, entries.size()));
+	}
+
+	/**
+	 * Keeps an error, unless there is a limit and it repeats one kept or the
+	 * limit has been reached.
+	 */
+	private void add(Diagnostic diagnostic) {
+		if (!diagnostic.code.isWarning()) errors = true;
+		if (maxErrors > 0) {
+			if (entries.size() >= maxErrors) {
+				dropped++;
+				return;
+			}
+			if (!keys.add(diagnostic.key())) return;
+		}
+		entries.add(diagnostic);
+	}
+
+	/**
+	 * Adds errors recorded by another collector after those already here,
+	 * keeping the order they were recorded in.
+	 *
+	 * @param other Diagnostics to take the errors from
+	 * @param from int index of the first error to take
+	 * @param to int index after the last error to take
+	 */
+	public void append(Diagnostics other, int from, int to) {
+		for (int i = from; i < to; i++) {
+			Diagnostic diagnostic = other.entries.get(i);
+			add(new Diagnostic(diagnostic.code, diagnostic.line, diagnostic.column, diagnostic.startToken,
+					diagnostic.stopToken, diagnostic.args, entries.size()));
+		}
+	}
+
+	/**
+	 * @return BaseErrorListener which records the lexer's and parser's syntax errors here
+	 */
+	public BaseErrorListener syntaxListener() {
+		return new BaseErrorListener() {
+			@Override
+			public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+					int charPositionInLine, String msg, RecognitionException e) {
+				int token = offendingSymbol instanceof Token ? ((Token) offendingSymbol).getTokenIndex() : -1;
+				add(new Diagnostic(ErrorCode.SYNTAX, line, charPositionInLine, token, token,
+						new Object[] { msg }, entries.size()));
+			}
+		};
+	}
+
+	/**
+	 * @return int the number of errors kept, which with no limit is every one recorded
+	 */
+	public int count() {
+		return entries.size();
+	}
+
+	/**
+	 * @return boolean True if anything other than warnings has been recorded
+	 */
+	public boolean hasErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return List the errors to emit: those kept, sorted into source order and without repeats
+	 */
+	public List<Diagnostic> sorted() {
+		List<Diagnostic> sorted = new ArrayList<Diagnostic>(entries);
+		Collections.sort(sorted, new Comparator<Diagnostic>() {
+			@Override
+			public int compare(Diagnostic a, Diagnostic b) {
+				if (a.line != b.line) return Integer.compare(a.line, b.line);
+				if (a.column != b.column) return Integer.compare(a.column, b.column);
+				return Integer.compare(a.order, b.order);
+			}
+		});
+		Set<String> seen = new HashSet<String>();
+		List<Diagnostic> unique = new ArrayList<Diagnostic>();
+		for (Diagnostic diagnostic : sorted) {
+			if (seen.add(diagnostic.key())) unique.add(diagnostic);
+		}
+		return unique;
+	}
+
+	/**
+	 * Renders and writes every error to emit.
+	 *
+	 * @param out PrintStream to write to
+	 */
+	public void emit(PrintStream out) {
+		List<Diagnostic> unique = sorted();
+		int shown = unique.size();
+		StringBuilder text = new StringBuilder();
+		if (json) {
+			text.append("{\"errors\":[");
+			for (int i = 0; i < shown; i++) {
+				Diagnostic diagnostic = unique.get(i);
+				if (i > 0) text.append(',');
+				text.append("\n{\"code\":\"").append(diagnostic.code.name())
+					.append("\",\"severity\":\"").append(diagnostic.code.isWarning() ? "warning" : "error")
+					.append("\",\"line\":").append(diagnostic.line)
+					.append(",\"column\":").append(diagnostic.column)
+					.append(",\"startToken\":").append(diagnostic.startToken)
+					.append(",\"stopToken\":").append(diagnostic.stopToken)
+					.append(",\"message\":\"").append(escape(diagnostic.render())).append("\"}");
+			}
+			text.append("],\n\"total\":").append(shown + dropped).append(",\"shown\":").append(shown).append("}\n");
+		} else {
+			for (int i = 0; i < shown; i++) text.append(unique.get(i).render()).append('\n');
+			if (dropped > 0) text.append(dropped).append(" more error(s) not shown\n");
+		}
+		out.print(text);
+		out.flush();
+	}
+
+	/**
+	 * The text of a message argument. Parse trees give the same text as
+	 * ParseTree.getText, gathered without recursion.
+	 */
+	private static String text(Object arg) {
+		if (!(arg instanceof ParseTree)) return String.valueOf(arg);
+		StringBuilder text = new StringBuilder();
+		List<ParseTree> pending = new ArrayList<ParseTree>(Arrays.asList((ParseTree) arg));
+		while (!pending.isEmpty()) {
+			ParseTree node = pending.remove(pending.size() - 1);
+			if (node instanceof TerminalNode) text.append(node.getText());
+			else for (int i = node.getChildCount() - 1; i >= 0; i--) pending.add(node.getChild(i));
+		}
+		return text.toString();
+	}
+
+	private static String escape(String text) {
+		StringBuilder escaped = new StringBuilder();
+		for (char c : text.toCharArray()) {
+			switch (c) {
+			case '"': escaped.append("\\\""); break;
+			case '\\': escaped.append("\\\\"); break;
+			case '\n': escaped.append("\\n"); break;
+			case '\r': escaped.append("\\r"); break;
+			case '\t': escaped.append("\\t"); break;
+			default:
+				if (c < 0x20) escaped.append(String.format("\\u%04x", (int) c));
+				else escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+}
@@ -0,0 +1,64 @@
+package decaf;
+
+/**
+ * The errors the compiler reports
+ *
+ * Each code carries the format its message is rendered with. Argument 1 is
+ * always the line and argument 2 the column of the error; any further
+ * arguments are those given when the error was reported. Arguments the
+ * format does not use still tell apart otherwise identical errors when
+ * duplicates are removed. Warnings are reported like errors, but do not stop
+ * a program from being compiled.
+ *
+ * @author Miles Schofield
+ */
+public enum ErrorCode {
+	SYNTAX("line %1$d:%2$d %3$s"),
+	FIELD_EXISTS("Error line: %1$d. Variable already exists%3$s(%4$s)"),
+	ARRAY_SIZE("Error line: %1$d. Invalid array size on array named: %3$s"),
+	VARIABLE_EXISTS("Error line: %1$d. Cannot create %3$s(%4$s). Variable already exists"),
+	METHOD_EXISTS("Error line: %1$d. Method name already in use"),
+	UNDECLARED_VARIABLE("Error line: %1$d. Variable used and not declared"),
+	UNDECLARED_METHOD("Error line: %1$d. Method used and not declared"),
+	NOT_A_METHOD("Error line: %1$d. %3$s is a variable, not a method"),
+	NOT_A_VARIABLE("Error line: %1$d. %3$s is a method, not a variable"),
+	ASSIGN_MISMATCH("Error line: %1$d. Type mismatch, cannot perform operation on types %3$s and %4$s"),
+	COMPOUND_ASSIGN("Error line: %1$d. Both operands of += and -= are required to be type int"),
+	ARRAY_INDEX("Error line: %1$d. Array index must be type int"),
+	ARRAY_NEST("Error line: %1$d. Attempted array nest. Array position can only hold a basic type"),
+	RETURN_FROM_VOID("Error line: %1$d. RETURN cannot be called for method: \"%3$s\". Return type is VOID"),
+	RETURN_TYPE("Error line: %1$d. RETURN must return the same type as method type"),
+	MISSING_RETURN("Error line: %1$d. Method name: \"%3$s\" must have a return statement"),
+	IF_CONDITION("Error line: %1$d. If statement must have an expression evaluating to true or false (boolean)"),
+	FOR_BOUNDS("Error line: %1$d. For loop parameters must be type int"),
+	NOT_OPERAND("Error line: %1$d. Operand of ! must be type boolean"),
+	MINUS_OPERAND("Error line: %1$d. Operand of unary minus must be type int"),
+	OPERANDS_INT("Error line %1$d. Type mismatch, cannot perform operation on variables %3$s(%4$s) and %5$s(%6$s). Must both be int"),
+	OPERANDS_BOOLEAN("Error line %1$d. Type mismatch, cannot perform operation on variables %3$s(%4$s) and %5$s(%6$s). Must both be boolean"),
+	OPERANDS_SAME("Error line %1$d. Type mismatch, cannot perform operation on variables %3$s(%4$s) and %5$s(%6$s). Must both be same type"),
+	PARAMETER_COUNT("Error line: %1$d. Incorrect number of parameters in method call"),
+	PARAMETER_TYPES("Error line: %1$d. Parameter types given do not match expected types"),
+	NO_MAIN("Error line: %1$d. No Main Method"),
+	JUMP_OUTSIDE_LOOP("Error line: %1$d. BREAK and CONTINUE can only be used within a FOR loop"),
+	UNREACHABLE_CODE("Warning line: %1$d. Unreachable code", true);
+
+	private final String format;
+	private final boolean warning;
+
+	private ErrorCode(String format) {
+		this(format, false);
+	}
+
+	private ErrorCode(String format, boolean warning) {
+		this.format = format;
+		this.warning = warning;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public boolean isWarning() {
+		return warning;
+	}
+}
@@ -0,0 +1,43 @@
+package decaf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the class scope
+ *
+ * Holds the fields and methods declared in the class, and the position of
+ * each method among the method_decls. It is only read once built, so every
+ * thread checking a method body can share it. A method can call itself and
+ * the methods declared before it, but not those declared after, so names
+ * are looked up on behalf of a method position.
+ *
+ * @author Miles Schofield
+ */
+public final class GlobalScope {
+
+	private final HashMap<String, ScopeElement> elements;
+	/** Position of each method's declaration. Fields have none, being visible to every method */
+	private final HashMap<String, Integer> methods;
+
+	/**
+	 * @param elements Map of each field and method name to its declaration
+	 * @param methods Map of each method name to the position of its method_decl
+	 */
+	public GlobalScope(Map<String, ScopeElement> elements, Map<String, Integer> methods) {
+		this.elements = new HashMap<String, ScopeElement>(elements);
+		this.methods = new HashMap<String, Integer>(methods);
+	}
+
+	/**
+	 * @param name String identifier
+	 * @param method int position of the method the name is used in
+	 * @return ScopeElement the field or method name refers to in that method, or null
+	 */
+	public ScopeElement lookup(String name, int method) {
+		ScopeElement element = elements.get(name);
+		if (element == null) return null;
+		Integer declaredAt = methods.get(name);
+		return declaredAt == null || declaredAt <= method ? element : null;
+	}
+}
@@ -0,0 +1,67 @@
+package decaf;
+
+import java.util.Arrays;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.RuleNode;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * A ParseTreeWalker that keeps its own stack
+ *
+ * ParseTreeWalker.walk recurses once per level of the tree, so machine
+ * generated programs with thousands of chained operators or nested blocks
+ * overflow the Java stack. This walker fires exactly the same enter, exit and
+ * visit events in the same order, but tracks its position in the tree with an
+ * explicit stack of nodes and child indexes, so the depth of the tree only
+ * costs heap.
+ *
+ * @author Miles Schofield
+ */
+public class IterativeParseTreeWalker extends ParseTreeWalker {
+
+	public static final IterativeParseTreeWalker DEFAULT = new IterativeParseTreeWalker();
+
+	@Override
+	public void walk(ParseTreeListener listener, ParseTree t) {
+		if (!(t instanceof RuleNode)) {
+			visit(listener, t);
+			return;
+		}
+
+		// nodes[top] is the rule being walked, next[top] the index of its next child
+		RuleNode[] nodes = new RuleNode[64];
+		int[] next = new int[64];
+		int top = 0;
+		nodes[0] = (RuleNode) t;
+		enterRule(listener, nodes[0]);
+
+		while (top >= 0) {
+			RuleNode node = nodes[top];
+			if (next[top] == node.getChildCount()) {
+				exitRule(listener, node);
+				nodes[top--] = null;
+				continue;
+			}
+			ParseTree child = node.getChild(next[top]++);
+			if (!(child instanceof RuleNode)) {
+				visit(listener, child);
+				continue;
+			}
+			if (++top == nodes.length) {
+				nodes = Arrays.copyOf(nodes, top * 2);
+				next = Arrays.copyOf(next, top * 2);
+			}
+			nodes[top] = (RuleNode) child;
+			next[top] = 0;
+			enterRule(listener, nodes[top]);
+		}
+	}
+
+	private void visit(ParseTreeListener listener, ParseTree t) {
+		if (t instanceof ErrorNode) listener.visitErrorNode((ErrorNode) t);
+		else if (t instanceof TerminalNode) listener.visitTerminal((TerminalNode) t);
+	}
+}
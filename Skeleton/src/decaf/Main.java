@@ -4,10 +4,36 @@
 package decaf;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.*;
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import decaf.codegen.CodeGenerator;
+import decaf.codegen.GraphColoring;
+import decaf.codegen.LinearScan;
+import decaf.codegen.Peephole;
+import decaf.codegen.RegisterAllocator;
+import decaf.ir.BoundsCheckElimination;
+import decaf.ir.ConstantPropagation;
+import decaf.ir.DeadCodeElimination;
+import decaf.ir.DeadStoreElimination;
+import decaf.ir.GlobalValueNumbering;
+import decaf.ir.InductionVariables;
+import decaf.ir.Inliner;
+import decaf.ir.IrBinary;
+import decaf.ir.IrProgram;
+import decaf.ir.IrText;
+import decaf.ir.LoopInvariantCodeMotion;
+import decaf.ir.Lowering;
+import decaf.ir.PassManager;
+import decaf.ir.Ssa;
+import decaf.ir.TailCalls;
 import java6G6Z1010.tools.CLI.*;
 
 /**
@@ -18,20 +44,135 @@ import java6G6Z1010.tools.CLI.*;
  */
 public class Main {
 
+	/** The optimizations -opt can name, in the order they run */
+	private static final String[] OPTIMIZATIONS = { "tailcall", "inline", "sccp", "gvn", "licm", "bce", "iv", "dce", "dse", "peephole" };
+	private static final int TAILCALL = 0;
+	private static final int INLINE = 1;
+	private static final int SCCP = 2;
+	private static final int GVN = 3;
+	private static final int LICM = 4;
+	private static final int BCE = 5;
+	private static final int IV = 6;
+	private static final int DCE = 7;
+	private static final int DSE = 8;
+	private static final int PEEPHOLE = 9;
+	/** The optimizations which are passes over the IR, rather than the assembly */
+	private static final int[] IR_PASSES = { TAILCALL, INLINE, SCCP, GVN, LICM, BCE, IV, DCE, DSE };
+	/** The -O level from which each optimization is on unless -opt says otherwise */
+	private static final int[] LEVELS = { 2, 2, 1, 1, 2, 2, 2, 1, 1, 1 };
+	/** The most rounds the passes over SSA form are run for, but at -O1, which runs one */
+	private static final int ROUNDS = 4;
+	/**
+	 * The stack the compiler runs on. The generated parser recurses on every
+	 * level of nested blocks and parentheses, using under 1 KB a level, so
+	 * this takes nesting tens of thousands deep
+	 */
+	private static final long STACK_SIZE = 64L << 20;
+
+	/**
+	 * Compiles on a thread of its own, with a stack of STACK_SIZE, so deeply
+	 * nested programs parse without raising -Xss for every thread the JVM
+	 * starts. An error the compiler does not catch is rethrown here.
+	 *
+	 * @param args - command line arguments
+	 */
+	public static void main(final String[] args) {
+		final Error[] failure = new Error[1];
+		Thread compiler = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compile(args);
+				} catch (Error e) {
+					failure[0] = e;
+				}
+			}
+		}, "decaf", STACK_SIZE);
+		compiler.start();
+		try {
+			compiler.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure[0] != null) throw failure[0];
+	}
+
 	/**
 	 * @param args - command line arguments
 	 */
-	public static void main(String[] args) {
-		// TODO Auto-generated method stub
+	private static void compile(String[] args) {
 		try {
-            CLI.parse (args, new String[0]);
+            CLI.parse (args, OPTIMIZATIONS);
+            for (int i = 0; i < OPTIMIZATIONS.length; i++)
+            {
+                if (!CLI.optsNamed[i])
+                    CLI.opts[i] = CLI.level >= LEVELS[i];
+            }
+
+            // Allows for keeping a cross-reference index of a corpus of programs
+            if (CLI.index != null)
+            {
+                if (CLI.query != null)
+                    CrossReferenceIndex.open(new File(CLI.index)).query(CLI.query, System.out);
+                else
+                {
+                    List<String> sources = new ArrayList<String>();
+                    if (CLI.infile != null)
+                        sources.add(CLI.infile);
+                    for (String extra : CLI.extras)
+                    {
+                        if (!extra.startsWith("-"))
+                            sources.add(extra);
+                    }
+                    int parsed = CrossReferenceIndex.update(new File(CLI.index), sources);
+                    System.out.println(parsed + " of " + sources.size() + " file(s) indexed");
+                }
+                return;
+            }
+
+            // An IR file read back for the IR target would otherwise be written over by its own output
+            if (CLI.infile != null && CLI.outfile != null
+                    && new File(CLI.outfile).getCanonicalFile().equals(new File(CLI.infile).getCanonicalFile()))
+                throw new IOException("output " + CLI.outfile + " is the input file; give another with -o");
+
+            // A program already lowered to the IR is read back rather than compiled again
+            if (CLI.infile != null && (CLI.infile.endsWith(".ir") || CLI.infile.endsWith(".irb")))
+            {
+                IrProgram program = CLI.infile.endsWith(".irb") ?
+                        IrBinary.read(new File(CLI.infile)) : IrText.read(new File(CLI.infile));
+                if (CLI.target == CLI.INTER)
+                {
+                    optimize(program);
+                    writeIr(program);
+                }
+                else if (CLI.target == CLI.ASSEMBLY)
+                {
+                    optimize(program);
+                    writeAssembly(program);
+                }
+                return;
+            }
             
             InputStream inputStream = args.length == 0 ?
                     System.in : new java.io.FileInputStream(CLI.infile);
-            ANTLRInputStream antlrIOS = new ANTLRInputStream(inputStream);
+            // The streaming checker reads its input as it goes, rather than all at once
+            CharStream antlrIOS = (CLI.stream && CLI.target == CLI.INTER) ?
+                    new UnbufferedCharStream(inputStream) : new ANTLRInputStream(inputStream);
 
+            // Allows for profiling the parser's decisions over one or more files
+            if (CLI.profileParser)
+            {
+                ParserProfiler profiler = new ParserProfiler();
+                profile(profiler, antlrIOS);
+                for (String extra : CLI.extras)
+                {
+                    if (!extra.startsWith("-"))
+                        profile(profiler, new ANTLRInputStream(new FileInputStream(extra)));
+                }
+                profiler.report(System.out);
+            }
             // Allows for checking assignment of lexer tokens 
-            if (CLI.target == CLI.SCAN || CLI.target == CLI.DEFAULT)
+            else if (CLI.target == CLI.SCAN || CLI.target == CLI.DEFAULT)
             {
                 DecafLexer lexer = new DecafLexer(antlrIOS);
                 Token token;
@@ -84,20 +225,52 @@ public class Main {
                 ParseTree tree = parser.program();
               //  if (CLI.debug) {
                     TreePrinterListener listener = new TreePrinterListener(parser);
-	                ParseTreeWalker.DEFAULT.walk(listener, tree);
+	                IterativeParseTreeWalker.DEFAULT.walk(listener, tree);
 	                String formatted = listener.toString();
 	                System.out.println(formatted);
               //  }
             }
             // Allows for semantic checking 
-             else if (CLI.target == CLI.INTER)
+             else if (CLI.target == CLI.INTER && CLI.stream)
              {
+                 // Check each declaration as soon as it is parsed, never holding the whole tree
+                 Diagnostics diagnostics = diagnostics();
+                 DecafLexer lexer = new DecafLexer(antlrIOS);
+                 lexer.setTokenFactory(StreamingChecker.TOKEN_FACTORY);
+                 ReleasingTokenStream tokens = new ReleasingTokenStream(lexer);
+                 DecafParser parser = new DecafParser (tokens);
+                 report(lexer, parser, diagnostics);
+                 StreamingChecker checker = new StreamingChecker(tokens, diagnostics);
+                 parser.addParseListener(checker);
+                 parser.program();
+                 checker.finish();
+             }
+             else if (CLI.target == CLI.INTER || CLI.target == CLI.ASSEMBLY)
+             {
+                 Diagnostics diagnostics = diagnostics();
                  DecafLexer lexer = new DecafLexer(antlrIOS);
                  CommonTokenStream tokens = new CommonTokenStream(lexer);
                  DecafParser parser = new DecafParser (tokens);
-                 ScopeListener listener = new ScopeListener();
-                 ParseTree tree = parser.program();
-                 ParseTreeWalker.DEFAULT.walk(listener, tree);
+                 report(lexer, parser, diagnostics);
+                 DecafParser.ProgramContext tree = parser.program();
+                 ParallelChecker checker = new ParallelChecker(diagnostics);
+                 ScopeListener listener = new ScopeListener(diagnostics);
+                 try {
+                     if (CLI.parallel) checker.check(tree);
+                     else IterativeParseTreeWalker.DEFAULT.walk(listener, tree);
+                 } finally {
+                     // Errors found before any failure are still reported
+                     diagnostics.emit(System.err);
+                 }
+                 // Only a program without errors is lowered to the IR
+                 if (!diagnostics.hasErrors()) {
+                     IrProgram program = CLI.parallel
+                             ? Lowering.lower(tree, checker.getClassScope(), checker.getListeners())
+                             : Lowering.lower(tree, listener);
+                     optimize(program);
+                     if (CLI.target == CLI.ASSEMBLY) writeAssembly(program);
+                     else writeIr(program);
+                 }
                  if (CLI.debug) {
     	             
                  }
@@ -108,4 +281,207 @@ public class Main {
             System.out.println(CLI.infile+" "+e);
         }
     }
+
+	/**
+	 * Runs the optimizations asked for with -opt or the -O level, which
+	 * work on SSA form but for tail calls and inlining, which rework whole
+	 * methods before it is built, and dead store elimination, which runs
+	 * last and finds the most once the program is out of it. The passes
+	 * over SSA form are run until they change nothing more, for at most
+	 * ROUNDS rounds, or one at -O1. The program is left in SSA form only if
+	 * -ssa was also given, and never for code generation.
+	 */
+	private static void optimize(IrProgram program) {
+		boolean ssa = CLI.ssa && CLI.target == CLI.INTER;
+		final PrintStream report = CLI.debug ? System.err : null;
+		boolean any = false;
+		for (int pass : IR_PASSES) any |= CLI.opts[pass];
+		if (!any) {
+			if (ssa) Ssa.construct(program);
+			return;
+		}
+		PassManager before = new PassManager(report);
+		if (CLI.opts[TAILCALL]) {
+			before.add(new PassManager.Pass("tailcall", "call(s) made loops") {
+				public int run(IrProgram program) {
+					return TailCalls.run(program, report);
+				}
+			});
+		}
+		final boolean[] inlinedInto = new boolean[program.methodCount()];
+		if (CLI.opts[INLINE]) {
+			before.add(new PassManager.Pass("inline", "call(s) inlined") {
+				public int run(IrProgram program) {
+					return Inliner.run(program, inlinedInto, report);
+				}
+			});
+		}
+		before.run(program, 1);
+		Ssa.construct(program);
+		// Inlining leaves constants to fold and code to remove in the callers,
+		// cleaned up here unless the passes are to run over everything anyway
+		for (int i = 0; i < program.methodCount(); i++) {
+			if (!inlinedInto[i]) continue;
+			if (!CLI.opts[SCCP]) ConstantPropagation.run(program.method(i));
+			if (!CLI.opts[DCE]) DeadCodeElimination.run(program.method(i));
+		}
+		PassManager passes = new PassManager(report);
+		if (CLI.opts[SCCP]) {
+			passes.add(new PassManager.Pass("sccp", "instruction(s) folded or removed") {
+				public int run(IrProgram program) {
+					int folded = 0;
+					for (int i = 0; i < program.methodCount(); i++) folded += ConstantPropagation.run(program.method(i));
+					return folded;
+				}
+			});
+		}
+		if (CLI.opts[GVN]) {
+			passes.add(new PassManager.Pass("gvn", "redundant instruction(s) removed") {
+				public int run(IrProgram program) {
+					return GlobalValueNumbering.run(program);
+				}
+			});
+		}
+		if (CLI.opts[LICM]) {
+			passes.add(new PassManager.Pass("licm", "instruction(s) moved out of loops") {
+				public int run(IrProgram program) {
+					return LoopInvariantCodeMotion.run(program, report);
+				}
+			});
+		}
+		if (CLI.opts[BCE]) {
+			passes.add(new PassManager.Pass("bce", "bounds check(s) removed") {
+				private int checks;
+
+				public int run(IrProgram program) {
+					checks = BoundsCheckElimination.count(program);
+					return BoundsCheckElimination.run(program, report);
+				}
+
+				protected String describe(int removed) {
+					return removed + " of " + checks + " bounds check(s) removed ("
+							+ (checks == 0 ? 0 : 100 * removed / checks) + "%)";
+				}
+			});
+		}
+		if (CLI.opts[IV]) {
+			passes.add(new PassManager.Pass("iv", "induction variable(s) reduced or removed") {
+				public int run(IrProgram program) {
+					return InductionVariables.run(program, report);
+				}
+			});
+		}
+		if (CLI.opts[DCE]) {
+			passes.add(new PassManager.Pass("dce", "instruction(s) removed") {
+				public int run(IrProgram program) {
+					return DeadCodeElimination.run(program);
+				}
+			});
+		}
+		passes.run(program, CLI.level == 1 ? 1 : ROUNDS);
+		if (!ssa) Ssa.destruct(program);
+		PassManager after = new PassManager(report);
+		if (CLI.opts[DSE]) {
+			after.add(new PassManager.Pass("dse", "instruction(s) removed") {
+				public int run(IrProgram program) {
+					return DeadStoreElimination.run(program);
+				}
+			});
+		}
+		after.run(program, 1);
+	}
+
+	/**
+	 * Writes output to the -o file, or the console if there is none
+	 */
+	private static void write(String output) throws IOException {
+		if (CLI.outfile == null) {
+			System.out.print(output);
+			return;
+		}
+		Writer out = new BufferedWriter(new FileWriter(CLI.outfile));
+		try {
+			out.write(output);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the program as x86-64 assembly to the -o file, or the console
+	 * if there is none, reporting the register allocation under -debug.
+	 * Registers are allocated by linear scan, or from -O2 by graph coloring.
+	 * With -opt peephole the assembly is rewritten a few lines at a time
+	 * before it is written.
+	 */
+	private static void writeAssembly(IrProgram program) throws IOException {
+		RegisterAllocator allocator = CLI.level >= 2 ? new GraphColoring() : new LinearScan();
+		CodeGenerator generator = new CodeGenerator(program, allocator, CLI.opts[TAILCALL], CLI.opts[IV]);
+		String assembly = generator.generate(CLI.debug ? System.err : null);
+		if (CLI.opts[PEEPHOLE]) {
+			long start = System.nanoTime();
+			Peephole peephole = new Peephole(assembly);
+			assembly = peephole.run();
+			if (CLI.debug) {
+				peephole.report(System.err);
+				System.err.println("peephole: " + peephole.rewrites() + " rewrite(s) ("
+						+ PassManager.millis(System.nanoTime() - start) + ")");
+			}
+		}
+		write(assembly);
+	}
+
+	/**
+	 * Writes the IR to the -o file, or the console if there is none, as
+	 * text or in the binary form if -ir binary was given
+	 */
+	private static void writeIr(IrProgram program) throws IOException {
+		if (!CLI.binaryIr) {
+			write(program.toString());
+			return;
+		}
+		OutputStream out = CLI.outfile == null ? System.out : new BufferedOutputStream(new FileOutputStream(CLI.outfile));
+		try {
+			IrBinary.write(program, out);
+		} finally {
+			if (out == System.out) out.flush();
+			else out.close();
+		}
+	}
+
+	/**
+	 * @return Diagnostics set up from the -max-errors and -diagnostics options
+	 */
+	private static Diagnostics diagnostics() {
+		Diagnostics diagnostics = new Diagnostics();
+		diagnostics.setMaxErrors(CLI.maxErrors);
+		diagnostics.setJson(CLI.jsonDiagnostics);
+		return diagnostics;
+	}
+
+	/**
+	 * Sends the lexer's and parser's syntax errors to the diagnostics in
+	 * place of printing them straight to the console
+	 */
+	private static void report(Lexer lexer, Parser parser, Diagnostics diagnostics) {
+		lexer.removeErrorListeners();
+		lexer.addErrorListener(diagnostics.syntaxListener());
+		parser.removeErrorListeners();
+		parser.addErrorListener(diagnostics.syntaxListener());
+	}
+
+	/**
+	 * Parses one input with profiling switched on, adding its decision
+	 * statistics to the profiler
+	 *
+	 * @param profiler ParserProfiler collecting the statistics
+	 * @param input CharStream to parse
+	 */
+	private static void profile(ParserProfiler profiler, CharStream input) {
+		DecafLexer lexer = new DecafLexer(input);
+		DecafParser parser = new DecafParser(new CommonTokenStream(lexer));
+		parser.setProfile(true);
+		parser.program();
+		profiler.add(parser);
+	}
 }
@@ -0,0 +1,166 @@
+/**
+ * Two phase semantic checking, with method bodies checked in parallel
+ *
+ * The first phase walks the field_decls and declares each method's signature
+ * in order, as the ScopeListener does, then freezes the class scope into a
+ * GlobalScope. Once that is known every method body can be checked on its
+ * own, so the second phase checks them as tasks on a ForkJoinPool, each with
+ * its own ScopeListener holding only the method's local scopes.
+ *
+ * The errors of both phases are merged in the order a single sequential walk
+ * would find them, so the output is the same as walking the whole tree with
+ * one ScopeListener, even when the checker fails part way through.
+ *
+ * @author Miles Schofield
+ */
+package decaf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+public class ParallelChecker {
+
+	private final Diagnostics diagnostics;
+	private final ForkJoinPool pool;
+
+	// State of the program being checked
+	private List<DecafParser.Method_declContext> methods;
+	private GlobalScope globals;
+	private ScopeListener classScope;
+	/** The listener that checked each method body */
+	private ScopeListener[] listeners;
+	/** The errors found in each method body */
+	private Diagnostics[] bodies;
+	/** The exception each method body's check failed with, if any */
+	private RuntimeException[] failures;
+	/** Fewest method bodies a task checks before it is split */
+	private int grain;
+
+	public ParallelChecker(Diagnostics diagnostics) {
+		this(diagnostics, ForkJoinPool.commonPool());
+	}
+
+	public ParallelChecker(Diagnostics diagnostics, ForkJoinPool pool) {
+		this.diagnostics = diagnostics;
+		this.pool = pool;
+	}
+
+	/**
+	 * Checks a program, recording its errors in the diagnostics. Any
+	 * exception the checker fails with is rethrown once the errors found
+	 * before it have been recorded.
+	 *
+	 * @param program ProgramContext of the parsed program
+	 */
+	public void check(DecafParser.ProgramContext program) {
+		// Phase 1: the class scope
+		Diagnostics signatures = new Diagnostics();
+		classScope = new ScopeListener(signatures);
+		HashMap<String, ScopeElement> elements = new HashMap<String, ScopeElement>();
+		HashMap<String, Integer> positions = new HashMap<String, Integer>();
+		methods = new ArrayList<DecafParser.Method_declContext>();
+		// The number of signature errors once each method has been declared
+		List<Integer> declared = new ArrayList<Integer>();
+		RuntimeException failure = null;
+		try {
+			for (int i = 0; i < program.getChildCount(); i++) {
+				ParseTree child = program.getChild(i);
+				if (child instanceof DecafParser.Field_declContext) {
+					DecafParser.Field_declContext field = (DecafParser.Field_declContext) child;
+					IterativeParseTreeWalker.DEFAULT.walk(classScope, field);
+					for (DecafParser.Field_nameContext name : field.field_name()) {
+						ScopeElement element = classScope.declarationOf(name);
+						if (element != null) elements.put(element.getVarName(), element);
+					}
+				} else if (child instanceof DecafParser.Method_declContext) {
+					DecafParser.Method_declContext method = (DecafParser.Method_declContext) child;
+					classScope.declareMethod(method);
+					ScopeElement element = classScope.declarationOf(method);
+					if (element != null) {
+						elements.put(element.getVarName(), element);
+						positions.put(element.getVarName(), methods.size());
+					}
+					methods.add(method);
+					declared.add(signatures.count());
+				}
+			}
+		} catch (RuntimeException e) {
+			// The sequential walk would still have checked the bodies before this
+			failure = e;
+		}
+		globals = new GlobalScope(elements, positions);
+
+		// Phase 2: the method bodies
+		bodies = new Diagnostics[methods.size()];
+		failures = new RuntimeException[methods.size()];
+		listeners = new ScopeListener[methods.size()];
+		grain = Math.max(1, methods.size() / (pool.getParallelism() * 8));
+		if (!methods.isEmpty()) pool.invoke(new Bodies(0, methods.size()));
+
+		// Merge, each method's signature errors ahead of its body's
+		int merged = 0;
+		for (int i = 0; i < methods.size(); i++) {
+			diagnostics.append(signatures, merged, declared.get(i));
+			merged = declared.get(i);
+			diagnostics.append(bodies[i], 0, bodies[i].count());
+			if (failures[i] != null) throw failures[i];
+		}
+		diagnostics.append(signatures, merged, signatures.count());
+		if (failure != null) throw failure;
+
+		int before = signatures.count();
+		classScope.exitProgram(program);
+		diagnostics.append(signatures, before, signatures.count());
+	}
+
+	/**
+	 * @return ScopeListener the listener that declared the fields and methods
+	 */
+	public ScopeListener getClassScope() {
+		return classScope;
+	}
+
+	/**
+	 * @return ScopeListener[] the listener that checked each method body, in order
+	 */
+	public ScopeListener[] getListeners() {
+		return listeners;
+	}
+
+	/**
+	 * Checks the method bodies from position from up to to, splitting
+	 * the range in two while it is larger than the grain
+	 */
+	private class Bodies extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		Bodies(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > grain) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Bodies(from, middle), new Bodies(middle, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				bodies[i] = new Diagnostics();
+				try {
+					listeners[i] = new ScopeListener(bodies[i], globals, i);
+					IterativeParseTreeWalker.DEFAULT.walk(listeners[i], methods.get(i));
+				} catch (RuntimeException e) {
+					failures[i] = e;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Profiling of the parser's prediction decisions
+ *
+ * Collects the ANTLR ParseInfo of profiled DecafParsers (Parser.setProfile)
+ * over one file or a whole batch, and reports for every decision in
+ * DecafParser.g4 how often it was made, how far it had to look ahead, how often
+ * it fell back from SLL to full LL prediction and how long it took. Decisions
+ * are reported most expensive first, showing where the grammar needs
+ * restructuring to parse faster.
+ *
+ * @author Miles Schofield
+ */
+package decaf;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.ParseInfo;
+
+public class ParserProfiler {
+
+	/**
+	 * Totals for a single decision, summed over every parse added.
+	 */
+	private static class DecisionTotals {
+		final int decision;
+		final String rule;
+		long invocations;
+		long timeInPrediction;
+		long sllTotalLook;
+		long sllMaxLook;
+		long llTotalLook;
+		long llMaxLook;
+		long llFallback;
+		long ambiguities;
+		long contextSensitivities;
+		long errors;
+
+		DecisionTotals(int decision, String rule) {
+			this.decision = decision;
+			this.rule = rule;
+		}
+	}
+
+	private DecisionTotals[] totals;
+	private int files = 0;
+
+	/**
+	 * Adds the profile of a parser which has finished parsing a file.
+	 *
+	 * @param parser Parser that had setProfile(true) called before parsing
+	 */
+	public void add(Parser parser) {
+		ParseInfo info = parser.getParseInfo();
+		if (info == null) throw new IllegalStateException("parser was not profiled");
+		if (totals == null) {
+			ATN atn = parser.getATN();
+			String[] ruleNames = parser.getRuleNames();
+			totals = new DecisionTotals[atn.getNumberOfDecisions()];
+			for (int d = 0; d < totals.length; d++) {
+				totals[d] = new DecisionTotals(d, ruleNames[atn.getDecisionState(d).ruleIndex]);
+			}
+		}
+		for (DecisionInfo decision : info.getDecisionInfo()) {
+			DecisionTotals total = totals[decision.decision];
+			total.invocations += decision.invocations;
+			total.timeInPrediction += decision.timeInPrediction;
+			total.sllTotalLook += decision.SLL_TotalLook;
+			total.sllMaxLook = Math.max(total.sllMaxLook, decision.SLL_MaxLook);
+			total.llTotalLook += decision.LL_TotalLook;
+			total.llMaxLook = Math.max(total.llMaxLook, decision.LL_MaxLook);
+			total.llFallback += decision.LL_Fallback;
+			total.ambiguities += decision.ambiguities.size();
+			total.contextSensitivities += decision.contextSensitivities.size();
+			total.errors += decision.errors.size();
+		}
+		files++;
+	}
+
+	/**
+	 * Prints one line per decision that was invoked, most expensive first.
+	 * Cost is the time spent predicting, then the total lookahead used.
+	 *
+	 * @param out PrintStream to write the report to
+	 */
+	public void report(PrintStream out) {
+		out.println("Parser decision profile for " + files + " file(s)");
+		if (totals == null) return;
+
+		List<DecisionTotals> used = new ArrayList<DecisionTotals>();
+		long totalTime = 0;
+		for (DecisionTotals total : totals) {
+			if (total.invocations == 0) continue;
+			used.add(total);
+			totalTime += total.timeInPrediction;
+		}
+		Collections.sort(used, new Comparator<DecisionTotals>() {
+			@Override
+			public int compare(DecisionTotals a, DecisionTotals b) {
+				if (a.timeInPrediction != b.timeInPrediction) return Long.compare(b.timeInPrediction, a.timeInPrediction);
+				return Long.compare(b.sllTotalLook + b.llTotalLook, a.sllTotalLook + a.llTotalLook);
+			}
+		});
+
+		out.println(String.format("%-8s %-18s %10s %12s %7s %12s %7s %9s %6s %6s %6s %10s %6s",
+				"decision", "rule", "invocations", "SLL-look", "SLL-max", "LL-look", "LL-max",
+				"fallbacks", "ambig", "ctxsen", "errors", "time(ms)", "time%"));
+		for (DecisionTotals total : used) {
+			out.println(String.format("%-8d %-18s %10d %12d %7d %12d %7d %9d %6d %6d %6d %10.3f %5.1f%%",
+					total.decision, total.rule, total.invocations,
+					total.sllTotalLook, total.sllMaxLook, total.llTotalLook, total.llMaxLook,
+					total.llFallback, total.ambiguities, total.contextSensitivities, total.errors,
+					total.timeInPrediction / 1e6,
+					totalTime == 0 ? 0.0 : 100.0 * total.timeInPrediction / totalTime));
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package decaf;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+
+/**
+ * A CommonTokenStream whose buffer can be trimmed from the front.
+ *
+ * BufferedTokenStream keeps every token it has ever fetched, so the buffer
+ * grows with the size of the file. This stream swaps in a windowed list that
+ * keeps token indexes unchanged but lets tokens the parser has finished with
+ * be released. Used by the StreamingChecker to drop each method's tokens once
+ * the method has been checked.
+ *
+ * @author Miles Schofield
+ */
+public class ReleasingTokenStream extends CommonTokenStream {
+
+	public ReleasingTokenStream(TokenSource tokenSource) {
+		super(tokenSource);
+		tokens = new TokenWindow();
+	}
+
+	/**
+	 * Release every buffered token with an index below upTo.
+	 *
+	 * The parser must never look back past upTo afterwards; the caller
+	 * is responsible for keeping LT(-1) (the last consumed token) buffered.
+	 *
+	 * @param upTo int index of the first token to keep
+	 */
+	public void releaseBefore(int upTo) {
+		((TokenWindow) tokens).releaseBefore(upTo);
+	}
+
+	/**
+	 * @return int the number of tokens currently held in memory
+	 */
+	public int buffered() {
+		return ((TokenWindow) tokens).window.size();
+	}
+
+	/**
+	 * List of tokens indexed from zero, of which only the tokens from
+	 * base onwards are still held.
+	 */
+	private static class TokenWindow extends AbstractList<Token> {
+		private final List<Token> window = new ArrayList<Token>(100);
+		private int base = 0;
+
+		@Override
+		public Token get(int index) {
+			if (index < base) {
+				throw new IndexOutOfBoundsException("token " + index + " has been released");
+			}
+			return window.get(index - base);
+		}
+
+		@Override
+		public int size() {
+			return base + window.size();
+		}
+
+		@Override
+		public boolean add(Token token) {
+			return window.add(token);
+		}
+
+		@Override
+		public void clear() {
+			window.clear();
+			base = 0;
+		}
+
+		void releaseBefore(int upTo) {
+			int count = Math.min(upTo - base, window.size());
+			if (count <= 0) return;
+			window.subList(0, count).clear();
+			base += count;
+		}
+	}
+}
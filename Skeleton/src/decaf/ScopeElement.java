@@ -1,31 +1,39 @@
 package decaf;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * ScopeElement class declaration
  * 
- * Creates the objects to store in the hashtable Scope
- * storing the varName, varType and a list of parameters 
+ * Creates the objects to store in the SymbolTable
+ * storing the varName, varType and an array of parameters 
  * in the case of methods
  * 
+ * Kept compact, as one is created for every declaration: plain variables
+ * have no parameter array at all. 
+ * 
  * @author Miles Schofield
  */
 public class ScopeElement {
-	// Although not utilised, varName is retained for writer's understanding
-	// and is completely superfluous with ScopeElements existing in a hash table structure
 	private String varName;
-	private String varType;
-	// List structure to store parameters. Used to ensure parameters on call occur in 
-	// both same POSITION as same types 
-	private List<ScopeElement> mParams = new ArrayList<ScopeElement>();
+	private Type varType;
+	// Array to store parameters. Used to ensure parameters on call occur in 
+	// both same POSITION as same types. Null until the first parameter is added 
+	private ScopeElement[] mParams;
+	// True for a method, which can be called but not used as a variable 
+	private boolean method;
+	// The declaration of the same name this one hides, and the depth of the 
+	// scope it was declared in. Maintained by the SymbolTable 
+	ScopeElement shadowed;
+	int depth;
 	
 	public ScopeElement() {
 		super();
 	}
 
-	public ScopeElement(String varName, String varType) {
+	public ScopeElement(String varName, Type varType) {
 		super();
 		this.varName = varName;
 		this.varType = varType;
@@ -35,23 +43,32 @@ public class ScopeElement {
 		return varName;
 	}
 
-	public void setVarName(String varName) {
-		this.varName = varName;
-	}
-
-	public String getVarType() {
+	public Type getVarType() {
 		return varType;
 	}
 
-	public void setVarType(String varType) {
+	public void setVarType(Type varType) {
 		this.varType = varType;
 	}
 	
 	public List<ScopeElement> getParams() {
-		return mParams; 
+		if (mParams == null) return Collections.emptyList();
+		return Arrays.asList(mParams); 
 	}
 	
 	public void setParams(ScopeElement param) {
-			mParams.add(param);
+		if (mParams == null) mParams = new ScopeElement[] { param };
+		else {
+			mParams = Arrays.copyOf(mParams, mParams.length + 1);
+			mParams[mParams.length - 1] = param;
+		}
+	}
+
+	public boolean isMethod() {
+		return method;
+	}
+
+	public void setMethod(boolean method) {
+		this.method = method;
 	}
 }
\ No newline at end of file
@@ -1,507 +1,606 @@
 /**
  * Semantic Checking for a Compiler
- * 
- * Contains the semantic checks specified in the Decaf Language Reference 
- * to ensure correct semantic structure of code given 
+ *
+ * Contains the semantic checks specified in the Decaf Language Reference
+ * to ensure correct semantic structure of code given
  * (Norling, 2017. Decaf Language Reference. Available on Moodle. Last accessed: 30/03/2017)
+ *
+ * Types are attributed bottom-up as the walk exits each location, literal,
+ * method call and expression, and recorded once in a side table. Every check
+ * reads types from that table, so no expression is ever typed twice.
  * 
+ * Errors are recorded in a Diagnostics collector. An expression whose type 
+ * is UNKNOWN has already been reported, so it never causes a second error. 
+ *
  * @author Miles Schofield
  */
 package decaf;
 
-import java.util.Hashtable;
 import org.antlr.v4.runtime.tree.*;
-import decaf.DecafParser.Method_declContext;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Stack;
 
 public class ScopeListener extends DecafParserBaseListener {
 
-	/** 
-	 * The stack used to store variables and parameters in 
-	 * a particular scope.
+	/**
+	 * The symbol table used to store variables, parameters and
+	 * methods in the scopes currently open.
+	 */
+	private final SymbolTable symbols;
+	/**
+	 * The type of every location, literal, method call and expression
+	 * checked so far.
+	 */
+	private ParseTreeProperty<Type> types = new ParseTreeProperty<Type>();
+	/**
+	 * The declaration each field name, method, variable and parameter ID
+	 * declares, and each location, method name and FOR loop variable
+	 * resolved to.
 	 */
-	private Stack<Scope> scopes;
+	private ParseTreeProperty<ScopeElement> declarations = new ParseTreeProperty<ScopeElement>();
 	/**
-	 * Boolean to determine if a MAIN method is found within Program. 
-	 * Set to True once a main is discovered. 
+	 * Boolean to determine if a MAIN method is found within Program.
+	 * Set to True once a main is discovered.
 	 */
 	private boolean foundMain = false;
 	/**
-	 * Boolean to determine if a method returns 
-	 * Set to true once a method has a return statement 
+	 * The method whose body is being checked
+	 */
+	private DecafParser.Method_declContext enclosingMethod;
+	/**
+	 * The control flow graph of each method checked so far
+	 */
+	private ParseTreeProperty<ControlFlowGraph> graphs = new ParseTreeProperty<ControlFlowGraph>();
+	/**
+	 * Where semantic errors are recorded, to be emitted once checking is done.
+	 */
+	private final Diagnostics diagnostics;
+	/**
+	 * False when checking a single method body against a GlobalScope,
+	 * where the method has already been declared.
 	 */
-	private boolean doesReturn; 
+	private final boolean declaresMethods;
 
 	public ScopeListener() {
-		scopes = new Stack<Scope>();
-		scopes.push(new Scope(null));
+		this(new Diagnostics());
+	}
+
+	public ScopeListener(Diagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+		this.symbols = new SymbolTable();
+		this.declaresMethods = true;
+	}
+
+	/**
+	 * A listener for checking one method body on its own, with the fields
+	 * and methods of the class taken from globals
+	 *
+	 * @param diagnostics Diagnostics to record errors in
+	 * @param globals GlobalScope the class scope
+	 * @param method int position of the method among the method_decls
+	 */
+	public ScopeListener(Diagnostics diagnostics, GlobalScope globals, int method) {
+		this.diagnostics = diagnostics;
+		this.symbols = new SymbolTable(globals, method);
+		this.declaresMethods = false;
+	}
+
+	public Diagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * The type attributed to a location, literal, method call or expression
+	 *
+	 * @param node The parse tree node, which must already have been walked
+	 * @return Type The type of node, or null if it has not been typed
+	 */
+	public Type typeOf(ParseTree node) {
+		return types.get(node);
+	}
+
+	/**
+	 * The declaration a location, method name or FOR loop statement resolved
+	 * to, or a field name, method_decl, or variable or parameter ID declares
+	 *
+	 * @param node The parse tree node, which must already have been walked
+	 * @return ScopeElement The declaration, or null if it was not resolved
+	 */
+	public ScopeElement declarationOf(ParseTree node) {
+		return declarations.get(node);
+	}
+
+	/**
+	 * The control flow graph of a method, built when its body was checked
+	 *
+	 * @param method The method_decl, which must already have been walked
+	 * @return ControlFlowGraph The graph of its body, or null if it has not been checked
+	 */
+	public ControlFlowGraph cfgOf(DecafParser.Method_declContext method) {
+		return graphs.get(method);
+	}
+
+	/**
+	 * Forgets the types, declarations and control flow graphs recorded so
+	 * far, which hold on to the subtrees they were recorded for. Checking a
+	 * declaration never reads back what was recorded for another, so a walk
+	 * that does not lower the program can call this once each declaration
+	 * is checked, and the subtrees can be garbage collected.
+	 */
+	public void forget() {
+		types = new ParseTreeProperty<Type>();
+		declarations = new ParseTreeProperty<ScopeElement>();
+		graphs = new ParseTreeProperty<ControlFlowGraph>();
 	}
 
 	/**
 	 * Code for entering the Field_Decl parse rule
-	 * 
-	 * Stores any IDs that are discovered into 
-	 * scope stack of variables
-	 * 
+	 *
+	 * Stores any IDs that are discovered into
+	 * symbol table of variables
+	 *
 	 * Checks IDs are not duplicates
-	 * 
+	 *
 	 * @param ctx Context for all information given in the field_decl parse rule
 	 */
 	@Override
 	public void enterField_decl(DecafParser.Field_declContext ctx) {
-		// The use of DecafParser.Field_nameContext is required due to the 
+		// The use of DecafParser.Field_nameContext is required due to the
 		// separation of Field_name and Field_decl in the DecafParser, lines 19 and 20 respectively
 		// Information within field_name is not available via the Field_declContext parameter
-		List<DecafParser.Field_nameContext> fields = ctx.field_name(); 
-		Scope scope = scopes.peek();
+		List<DecafParser.Field_nameContext> fields = ctx.field_name();
 
 		for (DecafParser.Field_nameContext field : fields) {
-			ScopeElement var = new ScopeElement(field.ID().getText(), ctx.type().getText()); 
+			ScopeElement var = new ScopeElement(field.ID().getText(), Type.of(ctx.type().getText()));
 			/**
 			 * Checks existence of variable already to determine if needs to store or error
-			 * Example of handling semantic Rule #1 
-			 * 
-			 *  @see varInScope 
+			 * Example of handling semantic Rule #1
+			 *
+			 *  @see varInScope
 			 */
-			if(varInScope(var.getVarName())) System.err.println("Error line: " + ctx.getStart().getLine() + ". Variable already exists" + var.getVarName() + "(" +  var.getVarType() + ")");
-			else scope.put(var.getVarName(), var);
+			if(varInScope(var.getVarName())) diagnostics.report(ErrorCode.FIELD_EXISTS, ctx, var.getVarName(), var.getVarType());
+			else {
+				symbols.declare(var.getVarName(), var);
+				declarations.put(field, var);
+			}
 
-			int varArraySize; 
+			int varArraySize;
 
-			// Bad array size declaration. Checks for an array to be greater than size 0 (non-existant, or minus sizes are not allowed) 
+			// Bad array size declaration. Checks for an array to be greater than size 0 (non-existant, or minus sizes are not allowed)
 			if(field.INT_LITERAL() != null) {
-				if(field.INT_LITERAL().getText().contains("0x")) varArraySize = Integer.decode((field.INT_LITERAL().getText())); 
-				else varArraySize = Integer.parseInt((field.INT_LITERAL().getText())); 
+				if(field.INT_LITERAL().getText().contains("0x")) varArraySize = Integer.decode((field.INT_LITERAL().getText()));
+				else varArraySize = Integer.parseInt((field.INT_LITERAL().getText()));
 
-				// example of semantic rule #4. 
-				if(varArraySize <= 0) System.err.println("Error line: " + ctx.getStart().getLine() + ". Invalid array size on array named: " + field.ID().getText()); 
-				else scope.get(var.getVarName()).setVarType("intArray");
+				// example of semantic rule #4.
+				if(varArraySize <= 0) diagnostics.report(ErrorCode.ARRAY_SIZE, ctx, field.ID().getText());
+				else symbols.lookup(var.getVarName()).setVarType(var.getVarType().arrayOf());
 			}
 		}
 	}
 	/**
 	 * Entering the Var_decl rule
-	 * 
-	 * Checking Variable Declarations are not duplicates 
-	 * 
+	 *
+	 * Checking Variable Declarations are not duplicates
+	 *
 	 * @param ctx Context for all information given in the var_decl parse rule
 	 */
 	@Override
 	public void enterVar_decl(DecafParser.Var_declContext ctx) {
-		Scope scope = scopes.peek();
-
-		// Iterate the list of IDs that occur in var_decl 
+		// Iterate the list of IDs that occur in var_decl
 		List<TerminalNode> variables = ctx.ID();
 		for(TerminalNode variable : variables) {
-			ScopeElement var = new ScopeElement(variable.getText(), ctx.type().getText()); 
+			ScopeElement var = new ScopeElement(variable.getText(), Type.of(ctx.type().getText()));
 
 			if(varInScope(var.getVarName())) {
-				System.err.println("Error line: " + ctx.getStart().getLine() + ". Cannot create " + var.getVarName() + "(" + var.getVarType() + ")" + ". Variable already exists");
-			} else scope.put(var.getVarName(), var);
+				diagnostics.report(ErrorCode.VARIABLE_EXISTS, ctx, var.getVarName(), var.getVarType());
+			} else {
+				symbols.declare(var.getVarName(), var);
+				declarations.put(variable, var);
+			}
 		}
 	}
 
 	/**
-	 * Entering the Statement rule
-	 * 
-	 * Checking that variables are declared before use
-	 * 
-	 * In the case where Statement contains expression, checks for type equivalence 
-	 * 
+	 * Exiting the Statement rule
+	 *
+	 * Every location and expression within the statement has been typed
+	 * by now, so the checks on the statement as a whole can be made
+	 *
+	 * In the case where Statement contains expression, checks for type equivalence
+	 *
 	 * @param ctx Context for all information given in the statement parse rule
 	 */
 	@Override
-	public void enterStatement(DecafParser.StatementContext ctx) {
-		Scope scope = scopes.peek();
-		// Similarly to field_name, expr's context cannot be seen within StatementContext (ctx) 
-		// and requires calling separately. 
+	public void exitStatement(DecafParser.StatementContext ctx) {
+		// Similarly to field_name, expr's context cannot be seen within StatementContext (ctx)
+		// and requires calling separately.
 		if(ctx.location() != null) {
-			TerminalNode variable = ctx.location().ID(); 
-			if (!(varInScope(variable.getText()))) {
-				// example semantic rule #2
-				System.err.println("Error line: " + ctx.getStart().getLine() + ". Variable used and not declared");
-			} else {
-				// ELSE: Variable has been declared - determine type of LHS, and then type of RHS if exists 
-				String LHS_Type = type(ctx.location()); 
-
-				if(ctx.expr() != null) { 
-					DecafParser.ExprContext expr = ctx.expr(0); 
-					String RHS_Type = type(expr);
-					if(!(LHS_Type.equals(RHS_Type))){ // are LHS and RHS the same type? 
-						System.err.println("Error line: " + ctx.getStart().getLine() + ". Type mismatch, cannot perform operation on types " + LHS_Type + " and " + RHS_Type); 
-					}
-					if(ctx.assign_op() != null) {
-						if(ctx.assign_op().ARITHPLUS() != null || ctx.assign_op().ARITHMINUS() != null) {
-							if(!(LHS_Type.equals("int") && RHS_Type.equals("int"))) {
-								System.err.print("Error line: " + ctx.getStart().getLine() + ". Both operands of += and -= are required to be type int"); 
-							}
+			// Variables used and not declared have been reported by exitLocation
+			Type LHS_Type = typeOf(ctx.location());
+			if(LHS_Type != Type.UNKNOWN && ctx.expr(0) != null) {
+				// Variable has been declared - compare type of LHS with type of RHS
+				Type RHS_Type = typeOf(ctx.expr(0));
+				if(RHS_Type != Type.UNKNOWN && LHS_Type != RHS_Type){ // are LHS and RHS the same type?
+					diagnostics.report(ErrorCode.ASSIGN_MISMATCH, ctx, LHS_Type, RHS_Type);
+				}
+				if(ctx.assign_op() != null && RHS_Type != Type.UNKNOWN) {
+					if(ctx.assign_op().ARITHPLUS() != null || ctx.assign_op().ARITHMINUS() != null) {
+						if(!(LHS_Type == Type.INT && RHS_Type == Type.INT)) {
+							diagnostics.report(ErrorCode.COMPOUND_ASSIGN, ctx);
 						}
 					}
 				}
 			}
 			// Checking type for an array
 			if(ctx.location().expr() != null) {
-				DecafParser.ExprContext expr = ctx.location().expr(); 
-				if(!(type(expr).equals("int"))) System.err.println("Error line: " + ctx.getStart().getLine() + ". Array index must be type int"); 
-				if(ctx.assign_op() != null) {
-					expr = ctx.expr(0);
-					if(type(expr).equals("intArray")) System.err.println("Error line: " + ctx.getStart().getLine() + ". Attempted array nest. Array position can only hold a basic type");
+				if(known(typeOf(ctx.location().expr())) && typeOf(ctx.location().expr()) != Type.INT) diagnostics.report(ErrorCode.ARRAY_INDEX, ctx);
+				if(ctx.assign_op() != null && ctx.expr(0) != null) {
+					if(typeOf(ctx.expr(0)).isArray()) diagnostics.report(ErrorCode.ARRAY_NEST, ctx);
 				}
 			}
 		}
-		// Checking return types of methods 
-		// example of semantic rule 7 and 8. 
+		// Checking return types of methods
+		// example of semantic rule 7 and 8.
 		if(ctx.RETURN() != null) {
-			doesReturn = true; 
-			if(ctx.getParent().getParent() != null) {
-				DecafParser.Method_declContext M_declContext = (Method_declContext) ctx.getParent().getParent();
-				if(ctx.expr() != null) {
-					DecafParser.ExprContext expr = ctx.expr(0); 
+			DecafParser.Method_declContext M_declContext = enclosingMethod;
+			if(M_declContext != null) {
+				if(ctx.expr(0) != null) {
 					if(M_declContext.VOID() != null ) {
-						System.err.println("Error line: " + ctx.getStart().getLine() + ". RETURN cannot be called for method: \""+ M_declContext.ID().getText() + "\". Return type is VOID"); 
-					} else { 
-						if(!(type(expr).equals(M_declContext.type().getText()))) {
-							System.err.println("Error line: " + ctx.getStart().getLine() + ". RETURN must return the same type as method type");
+						diagnostics.report(ErrorCode.RETURN_FROM_VOID, ctx, M_declContext.ID().getText());
+					} else {
+						if(known(typeOf(ctx.expr(0))) && typeOf(ctx.expr(0)) != Type.of(M_declContext.type().getText())) {
+							diagnostics.report(ErrorCode.RETURN_TYPE, ctx);
 						}
 					}
-				} 
-			}  
-		}  
-		// IF statement must have a condition that can evaluate as a boolean 
+				}
+			}
+		}
+		// IF statement must have a condition that can evaluate as a boolean
 		if(ctx.IF() != null) {
-			if(ctx.expr() != null) {
-				DecafParser.ExprContext expr = ctx.expr(0); 
-				if(!(type(expr)).equals("boolean")) {
-					System.err.println("Error line: " + ctx.getStart().getLine() + ". If statement must have an expression evaluating to true or false (boolean)");
+			if(ctx.expr(0) != null) {
+				if(known(typeOf(ctx.expr(0))) && typeOf(ctx.expr(0)) != Type.BOOLEAN) {
+					diagnostics.report(ErrorCode.IF_CONDITION, ctx);
 				}
 			}
 		}
-		// Handling FOR loops 
-		// Ensures parameters of FOR are ints (therefore countable) 
+		// Handling FOR loops
+		// Ensures parameters of FOR are ints (therefore countable)
 		if(ctx.FOR() != null) {
-			DecafParser.ExprContext expr = ctx.expr(0); 
-			DecafParser.ExprContext expr1 = ctx.expr(1); 
-			if(!(type(expr)).equals("int") && (type(expr1)).equals("int")) {
-				System.err.println("Error line: " + ctx.getStart().getLine() + ". For loop parameters must be type int");
+			if(known(typeOf(ctx.expr(0))) && known(typeOf(ctx.expr(1))) && !(typeOf(ctx.expr(0)) == Type.INT && typeOf(ctx.expr(1)) == Type.INT)) {
+				diagnostics.report(ErrorCode.FOR_BOUNDS, ctx);
 			}
 		}
 	}
 
 	/**
 	 * Type checking for expressions
-	 * 
-	 * Takes an expression context and determines types of individual components
-	 * recursively. Based on Psuedocode from textbook given 
-	 * Torben gidius Mogensen, Basics of Compiler Design. 2010, Pp 136-138. Last Accessed: 30/03/2017 
-	 * Utilises other type methods below 
-	 * 
-	 * @param expr Context for all information given in the expression parse rule
-	 * @return type String The type of the expression - Bool or Int 
-	 */ 
-	public String type(DecafParser.ExprContext expr) {
-		DecafParser.ExprContext l_expr = null;
-		DecafParser.ExprContext r_expr = null;
-		DecafParser.LocationContext location = expr.location();
-		DecafParser.LiteralContext literal = expr.literal(); 
-		DecafParser.Method_callContext Method_call = expr.method_call(); 
-
-		if (location != null) return type(location);
-		if (literal != null) return type(literal);
-		if (Method_call != null) return type(Method_call);
-
-		// Anything beyond here involves at least one subexpression
-		if (expr.expr().size() == 1) {
+	 *
+	 * Exiting an expression, all of its subexpressions have already been typed,
+	 * so its type is determined from theirs. Based on Psuedocode from textbook given
+	 * Torben gidius Mogensen, Basics of Compiler Design. 2010, Pp 136-138. Last Accessed: 30/03/2017
+	 *
+	 * @param ctx Context for all information given in the expression parse rule
+	 */
+	@Override
+	public void exitExpr(DecafParser.ExprContext ctx) {
+		Type type;
+		if (ctx.location() != null) type = typeOf(ctx.location());
+		else if (ctx.literal() != null) type = typeOf(ctx.literal());
+		else if (ctx.method_call() != null) type = typeOf(ctx.method_call());
+		else if (ctx.expr().size() == 1) {
 			// IF Unary Expression:
-			l_expr = expr.expr(0);
-			if(l_expr.EXCLMRK() != null) return "boolean"; // Boolean NOT
-			else if(l_expr.ARITHMINUS() != null) return "int"; // Unary Minus 
-			else return type(l_expr);
-		} else { 
-			// IF Binary Expression: 
-			l_expr = expr.expr(0);
-			r_expr = expr.expr(1);
-
-			// Note that all areas return the expected type, even after errors, in order to 
-			// allow the compiler to continue, returning as many errors as possible in one pass 
-
-			String l_expr_type = type(l_expr);
-			String r_expr_type = type(r_expr); 
-			String typeMismatch = ("Error line " + expr.getStart().getLine() + ". Type mismatch, cannot perform operation on variables " + 
-					l_expr.getText() + "(" + l_expr_type + ")" + " and " + r_expr.getText() + "(" + r_expr_type + ")"); 
-
-			// If contains Strong ops (*/%) - Check both types are INT. 
-			// example of semantic rule 12. 
-			if(expr.strong_arith_op() != null) {
-				if (!(l_expr_type.equals("int") && r_expr_type.equals("int"))) {
-					System.err.println(typeMismatch + ". Must both be int"); 
-				}
-				return "int"; 
-			} 
-			// If contains Weak ops (+-) - Check both types are INT. 
-			if(expr.weak_arith_op() != null) {
-				if (!(l_expr_type.equals("int") && r_expr_type.equals("int"))) {
-					System.err.println(typeMismatch + ". Must both be int"); 
-				}
-				return "int"; 
+			Type operand = typeOf(ctx.expr(0));
+			if(ctx.EXCLMRK() != null) { // Boolean NOT
+				// example of semantic rule #14
+				if(known(operand) && operand != Type.BOOLEAN) diagnostics.report(ErrorCode.NOT_OPERAND, ctx);
+				type = Type.BOOLEAN;
+			} else if(ctx.ARITHMINUS() != null) { // Unary Minus
+				// example of semantic rule #12
+				if(known(operand) && operand != Type.INT) diagnostics.report(ErrorCode.MINUS_OPERAND, ctx);
+				type = Type.INT;
+			} else type = operand; // Parentheses
+		} else {
+			// IF Binary Expression:
+			type = binaryType(ctx, typeOf(ctx.expr(0)), typeOf(ctx.expr(1)));
+		}
+		types.put(ctx, type);
+	}
+
+	/**
+	 * Type checking for binary expressions
+	 *
+	 * Checks the operand types suit the operator of a binary expression
+	 *
+	 * @param expr Context of the binary expression
+	 * @param l_expr_type Type of the left operand
+	 * @param r_expr_type Type of the right operand
+	 * @return type Type The type of the expression - Bool or Int
+	 */
+	private Type binaryType(DecafParser.ExprContext expr, Type l_expr_type, Type r_expr_type) {
+		// Note that all areas return the expected type, even after errors, in order to
+		// allow the compiler to continue, returning as many errors as possible in one pass
+
+		// If contains Strong ops (*/%) - Check both types are INT.
+		// example of semantic rule 12.
+		if(expr.strong_arith_op() != null) {
+			if (!(l_expr_type == Type.INT && r_expr_type == Type.INT)) {
+				typeMismatch(ErrorCode.OPERANDS_INT, expr, l_expr_type, r_expr_type);
 			}
-			if(expr.bin_op() != null) { 
-				// If contains Rel Ops (>=<=) - Check both types are INT. 
-				if(expr.bin_op().rel_op() != null) {
-					if (!(l_expr_type.equals("int") && r_expr_type.equals("int"))) {
-						System.err.println(typeMismatch + ". Must both be int"); 
-					}
-					return "boolean"; 
+			return Type.INT;
+		}
+		// If contains Weak ops (+-) - Check both types are INT.
+		if(expr.weak_arith_op() != null) {
+			if (!(l_expr_type == Type.INT && r_expr_type == Type.INT)) {
+				typeMismatch(ErrorCode.OPERANDS_INT, expr, l_expr_type, r_expr_type);
+			}
+			return Type.INT;
+		}
+		if(expr.bin_op() != null) {
+			// If contains Rel Ops (>=<=) - Check both types are INT.
+			if(expr.bin_op().rel_op() != null) {
+				if (!(l_expr_type == Type.INT && r_expr_type == Type.INT)) {
+					typeMismatch(ErrorCode.OPERANDS_INT, expr, l_expr_type, r_expr_type);
 				}
-				// If contains conditional Ops (and, or) - Check both types are BOOLEAN. 
-				// examples of semantic rule #14 
-				if(expr.bin_op().cond_op() != null) {
-					if (!(l_expr_type.equals("boolean") && r_expr_type.equals("boolean"))) { 
-						System.err.println(typeMismatch + ". Must both be boolean"); 
-					}
-					return "boolean"; 
+				return Type.BOOLEAN;
+			}
+			// If contains conditional Ops (and, or) - Check both types are BOOLEAN.
+			// examples of semantic rule #14
+			if(expr.bin_op().cond_op() != null) {
+				if (!(l_expr_type == Type.BOOLEAN && r_expr_type == Type.BOOLEAN)) {
+					typeMismatch(ErrorCode.OPERANDS_BOOLEAN, expr, l_expr_type, r_expr_type);
 				}
-				// If contains equality (== !=) - Check both types are the SAME. Can be BOOL or INT... 
-				// example of semantic rule #13. 
-				if(expr.bin_op().eq_op() != null) {
-					if (!(l_expr_type.equals(r_expr_type))) {
-						System.err.println(typeMismatch + ". Must both be same type"); 
-					}
-					return "boolean"; 
+				return Type.BOOLEAN;
+			}
+			// If contains equality (== !=) - Check both types are the SAME. Can be BOOL or INT...
+			// example of semantic rule #13.
+			if(expr.bin_op().eq_op() != null) {
+				if (l_expr_type != r_expr_type) {
+					typeMismatch(ErrorCode.OPERANDS_SAME, expr, l_expr_type, r_expr_type);
 				}
+				return Type.BOOLEAN;
 			}
 		}
-		// Unreachable Code. Null is never handled. 
-		return null; 
+		// Only reached on trees the parser had to recover from
+		return Type.UNKNOWN;
+	}
+
+	/**
+	 * Reports a type mismatch in a binary expression, unless an operand could
+	 * not be typed, in which case the cause has already been reported. The text
+	 * of the operands is only gathered if the error is emitted.
+	 */
+	private void typeMismatch(ErrorCode code, DecafParser.ExprContext expr, Type l_expr_type, Type r_expr_type) {
+		if (!(known(l_expr_type) && known(r_expr_type))) return;
+		diagnostics.report(code, expr, expr.expr(0), l_expr_type, expr.expr(1), r_expr_type);
+	}
+
+	/**
+	 * @return boolean False if type is UNKNOWN (or missing), meaning an error
+	 * has already been reported for it
+	 */
+	private static boolean known(Type type) {
+		return type != null && type != Type.UNKNOWN;
 	}
 
 	/**
 	 * Type checking locations
-	 * 
-	 * Type checking called within the type(expr) method 
-	 * if the expr consists of a simple location
-	 * 
-	 * @param loc Context given by location parse rule 
-	 * @return details.getVarType String Type of the location 
+	 *
+	 * Resolves the variable a location names, reporting it if it has not
+	 * been declared, and records the type of the location
+	 *
+	 * @param ctx Context given by location parse rule
 	 */
-	public String type(DecafParser.LocationContext loc) {
-		Scope scope = scopes.peek();
-		String varName = loc.ID().getText();
-		ScopeElement details = scope.get(varName); 
-		// if a "[" is in the location, make the assumption it is an array 
-		// if statement responsible for "unpacking" arrays, to their basic types
-		// type intArray is therefore equivalent to int in this instance, as checking occurs
-		// when determining if an array position holds the correct type for an array
-		if(loc.LSQRBRK() != null) {
-			if(details.getVarType().equals("intArray")) return("int");
-			else return("boolean");
-		} 
-		return(details.getVarType());
+	@Override
+	public void exitLocation(DecafParser.LocationContext ctx) {
+		ScopeElement details = symbols.lookup(ctx.ID().getText());
+		if(details == null) {
+			// example semantic rule #2
+			diagnostics.report(ErrorCode.UNDECLARED_VARIABLE, ctx, ctx.ID().getText());
+			types.put(ctx, Type.UNKNOWN);
+			return;
+		}
+		if(details.isMethod()) {
+			diagnostics.report(ErrorCode.NOT_A_VARIABLE, ctx, ctx.ID().getText());
+			types.put(ctx, Type.UNKNOWN);
+			return;
+		}
+		declarations.put(ctx, details);
+		// if a "[" is in the location, make the assumption it is an array
+		// arrays are "unpacked" to their basic types, as checking occurs when
+		// determining if an array position holds the correct type for an array
+		if(ctx.LSQRBRK() != null) types.put(ctx, details.getVarType().element());
+		else types.put(ctx, details.getVarType());
 	}
 	/**
 	 * Type checking literals
-	 * 
-	 * Type checking called within the type(expr) method 
-	 * if the expr consists of a simple literal
-	 * 
-	 * @param literal Context given by literal parse rule
-	 * @return Type String Type of the literal, either int or Boolean 
+	 *
+	 * Records the type of a literal, either int or Boolean. Character
+	 * literals are ints
+	 *
+	 * @param ctx Context given by literal parse rule
 	 */
-	public String type(DecafParser.LiteralContext literal) {
-		// Literal consists only of int_literal or bool_literal 
-		if(literal.INT_LITERAL() != null) return("int");
-		else return("boolean");
+	@Override
+	public void exitLiteral(DecafParser.LiteralContext ctx) {
+		// Literal consists only of int_literal, char_literal or bool_literal
+		if(ctx.BOOL_LITERAL() != null) types.put(ctx, Type.BOOLEAN);
+		else types.put(ctx, Type.INT);
 	}
+
 	/**
-	 * Type checking Method_calls
-	 * 
-	 * Type checking called within the type(expr) method
-	 * if the expr consists of a simple method call 
-	 * 
-	 * @param mContext Context given by method_call parse rule
-	 * @return details.getVarType() String type of method_call 
+	 * Entering the method_Decl rule
+	 *
+	 * Declares the method, unless it is already declared in a GlobalScope,
+	 * then opens the scope of its body with the parameters in it
+	 *
+	 * @param ctx Context given by Method_decl parse rule
 	 */
-	public String type(DecafParser.Method_callContext mContext) {
-		// example of semantic rule #6
-		if(mContext.CALLOUT() != null) return("int"); 
-		Scope scope = scopes.peek();
-		// When a method is called: .parent is the method_decl, 
-		// .parent.parent is the program contexts (which contain information
-		// on every method declared)
-		ScopeElement details = scope.parent.parent.get(mContext.method_name().getText());
-		return(details.getVarType()); 
+	@Override
+	public void enterMethod_decl(DecafParser.Method_declContext ctx) {
+		if(declaresMethods) declareMethod(ctx);
+		enclosingMethod = ctx;
+
+		// The parameters are local variables of the method body
+		symbols.enterScope();
+		if(ctx.method_params() != null) {
+			DecafParser.Method_paramsContext parameterCollection = ctx.method_params();
+			for(int i = 0; i < parameterCollection.ID().size(); i++) {
+				String param = parameterCollection.ID(i).getText();
+				ScopeElement var = new ScopeElement(param, Type.of(parameterCollection.type(i).getText()));
+				symbols.declare(param, var);
+				declarations.put(parameterCollection.ID(i), var);
+			}
+		}
 	}
 
 	/**
-	 * Entering the method_Decl rule
-	 * 
+	 * Declares a method and its parameters in the class scope
+	 *
 	 * Determines if a main method is found by altering
 	 * boolean foundMain
-	 * 
-	 * @see foundMain 
+	 *
+	 * @see foundMain
 	 * @param ctx Context given by Method_decl parse rule
 	 */
-	@Override
-	public void enterMethod_decl(DecafParser.Method_declContext ctx) {
+	void declareMethod(DecafParser.Method_declContext ctx) {
 		if((ctx.ID().getText()).equals("main")) foundMain = true;
-		doesReturn = false; 
-		Scope scope = scopes.peek();
-		if(!(varInScope(ctx.ID().getText()))) { 
+		ScopeElement currentMethod = null;
+		if(!(varInScope(ctx.ID().getText()))) {
 			// Checking method TYPE
 			if(ctx.type() != null) {
-				ScopeElement method = new ScopeElement(ctx.ID().getText(), ctx.type().getText()); 
-				scope.put(method.getVarName(), method); 
+				currentMethod = new ScopeElement(ctx.ID().getText(), Type.of(ctx.type().getText()));
 			} else {
-				doesReturn = true; 
-				ScopeElement method = new ScopeElement(ctx.ID().getText(), ctx.VOID().getText()); 
-				scope.put(method.getVarName(), method); 
+				currentMethod = new ScopeElement(ctx.ID().getText(), Type.VOID);
 			}
-			// enter method decl 
+			currentMethod.setMethod(true);
+			symbols.declare(currentMethod.getVarName(), currentMethod);
+			declarations.put(ctx, currentMethod);
+			// enter method decl
 			DecafParser.Method_paramsContext parameterCollection = null;
 			if(ctx.method_params() != null) {
-				parameterCollection = ctx.method_params(); 
-				List<TerminalNode> params = parameterCollection.ID(); 
-				ScopeElement currentMethod = scope.get(ctx.ID().getText());
-				// Store the parameters in a List<ScopeElement> within ScopeElement 
-				// so "Main" has .getParams return an empty list. 
-				for(int i = 0; i < params.size(); i++) { 
-					ScopeElement var = new ScopeElement(parameterCollection.ID().get(i).getText(), parameterCollection.type().get(i).getText());
+				parameterCollection = ctx.method_params();
+				List<TerminalNode> params = parameterCollection.ID();
+				// Store the parameters in an array within ScopeElement
+				// so "Main" has .getParams return an empty list.
+				for(int i = 0; i < params.size(); i++) {
+					ScopeElement var = new ScopeElement(parameterCollection.ID().get(i).getText(), Type.of(parameterCollection.type().get(i).getText()));
 					currentMethod.setParams(var);
 				}
 			}
-		} else System.err.println("Error line: " + ctx.getStart().getLine() + ". Method name already in use"); 
-
-		scopes.push(new Scope(scopes.peek()));
+		} else diagnostics.report(ErrorCode.METHOD_EXISTS, ctx);
 	}
 
+	/**
+	 * Exiting the method_Decl rule
+	 *
+	 * Builds the control flow graph of the method, and uses it to check
+	 * that every path through a method with a return type returns, that
+	 * there is no code that can never run, and that BREAK and CONTINUE
+	 * are only used within FOR loops
+	 *
+	 * @param ctx Context given by Method_decl parse rule
+	 */
 	@Override
 	public void exitMethod_decl(DecafParser.Method_declContext ctx) {
-		scopes.pop(); 
-		if(doesReturn == false && ctx.type() != null) System.err.println("Error line: " + ctx.getStop().getLine() +". Method name: \"" + ctx.ID().getText() +  "\" must have a return statement"); 
+		symbols.exitScope();
+		enclosingMethod = null;
+		ControlFlowGraph cfg = ControlFlowGraph.build(ctx);
+		graphs.put(ctx, cfg);
+		for(DecafParser.StatementContext jump : cfg.getStrayJumps()) diagnostics.report(ErrorCode.JUMP_OUTSIDE_LOOP, jump);
+		for(DecafParser.StatementContext statement : cfg.getUnreachable()) diagnostics.report(ErrorCode.UNREACHABLE_CODE, statement);
+		if(ctx.type() != null && !cfg.returnsOnAllPaths()) diagnostics.report(ErrorCode.MISSING_RETURN, ctx.getStop(), ctx, ctx.ID().getText());
 	}
 
 	/**
-	 * Entering the method_call rule
-	 * 
+	 * Exiting the method_call rule
+	 *
 	 * Ensuring the parameters and typing is correct for
-	 * calling a method 
-	 * 
-	 * @param ctx Context given by method_call parse rule 
+	 * calling a method, then recording the type it returns
+	 *
+	 * @param ctx Context given by method_call parse rule
 	 */
 	@Override
-	public void enterMethod_call(DecafParser.Method_callContext ctx) {
-		// Rules for a CALLOUT are not relevant for standard method calling 
-		if(!(ctx.CALLOUT() != null)) { 
-			Scope scope = scopes.peek();
-			List<ScopeElement> parametersExpected = new ArrayList<ScopeElement>(); 
-			ScopeElement currentMethod = scope.get(ctx.method_name().ID().getText()); 
-			if(currentMethod == null) {
-				System.err.println("Error line: " + ctx.getStart().getLine() + ". Method used and not declared");  
-			} else {
-				parametersExpected = currentMethod.getParams(); 
-				// example of semantic rule #5 
-				if(!(parametersExpected.isEmpty())) {
-					// paramsExpected holds method_decl's params. methodName.getParams is this list
-					// paramsGiven is the Method_call_params given in the call return 
-					DecafParser.Method_call_paramsContext paramsGiven = ctx.method_call_params();
-					if(!(parametersExpected.size() == paramsGiven.expr().size())) System.err.println("Error line: " + ctx.getStart().getLine() + ". Incorrect number of parameters in method call"); 
-					else for(int i = 0; i < paramsGiven.expr().size(); i++) { 
-						if(!(parametersExpected.get(i).getVarType().equals(type(paramsGiven.expr(i))))) {
-							System.err.println("Error line: " + ctx.getStart().getLine() + ". Parameter types given do not match expected types"); 
-						}
-					}
+	public void exitMethod_call(DecafParser.Method_callContext ctx) {
+		// Rules for a CALLOUT are not relevant for standard method calling
+		// example of semantic rule #6
+		if(ctx.CALLOUT() != null) {
+			types.put(ctx, Type.INT);
+			return;
+		}
+		// Methods are only ever declared in the class scope, so a parameter
+		// or local of the same name does not hide one from a call
+		ScopeElement currentMethod = symbols.lookupGlobal(ctx.method_name().ID().getText());
+		if(currentMethod == null) {
+			diagnostics.report(ErrorCode.UNDECLARED_METHOD, ctx, ctx.method_name().getText());
+			types.put(ctx, Type.UNKNOWN);
+			return;
+		}
+		if(!currentMethod.isMethod()) {
+			diagnostics.report(ErrorCode.NOT_A_METHOD, ctx, ctx.method_name().getText());
+			types.put(ctx, Type.UNKNOWN);
+			return;
+		}
+		declarations.put(ctx.method_name(), currentMethod);
+		types.put(ctx, currentMethod.getVarType());
+
+		List<ScopeElement> parametersExpected = currentMethod.getParams();
+		// example of semantic rule #5
+		if(!(parametersExpected.isEmpty())) {
+			// paramsExpected holds method_decl's params. methodName.getParams is this list
+			// paramsGiven is the Method_call_params given in the call return
+			List<DecafParser.ExprContext> paramsGiven = new ArrayList<DecafParser.ExprContext>();
+			if(ctx.method_call_params() != null) paramsGiven = ctx.method_call_params().expr();
+			if(!(parametersExpected.size() == paramsGiven.size())) diagnostics.report(ErrorCode.PARAMETER_COUNT, ctx);
+			else for(int i = 0; i < paramsGiven.size(); i++) {
+				if(known(typeOf(paramsGiven.get(i))) && parametersExpected.get(i).getVarType() != typeOf(paramsGiven.get(i))) {
+					diagnostics.report(ErrorCode.PARAMETER_TYPES, ctx);
 				}
 			}
 		}
 	}
 
-	// Blocks can have their own scopes. Push and pop them respectively! 
+	// Blocks can have their own scopes. Push and pop them respectively!
 	@Override
 	public void enterBlock(DecafParser.BlockContext ctx) {
-		scopes.push(new Scope(scopes.peek()));
+		symbols.enterScope();
+		// The variable of a FOR loop is an int local to the loop body,
+		// unless it names a variable that is already visible
+		if(ctx.getParent() instanceof DecafParser.StatementContext) {
+			DecafParser.StatementContext loop = (DecafParser.StatementContext) ctx.getParent();
+			if(loop.FOR() != null && loop.ID() != null) {
+				String loopVar = loop.ID().getText();
+				ScopeElement visible = symbols.lookup(loopVar);
+				if(visible == null || visible.isMethod()) symbols.declare(loopVar, new ScopeElement(loopVar, Type.INT));
+				declarations.put(loop, symbols.lookup(loopVar));
+			}
+		}
 	}
 	@Override
 	public void exitBlock(DecafParser.BlockContext ctx) {
-		scopes.pop(); 
+		symbols.exitScope();
 	}
 
-	/** 
+	/**
 	 * Exiting the program rule
-	 * 
+	 *
 	 * Returns an error informing a main method does not exist
-	 * 
-	 * @see foundMain 
+	 *
+	 * @see foundMain
 	 * @param ctx Context given by the program rule
 	 */
 	@Override
 	public void exitProgram(DecafParser.ProgramContext ctx) {
-		// example of semantic rule #3 
-		if(foundMain == false) System.err.println("Error line: " + (ctx.getStop().getLine() + ". No Main Method")); 
+		// example of semantic rule #3
+		if(foundMain == false) diagnostics.report(ErrorCode.NO_MAIN, ctx.getStop(), ctx);
 	}
 
-	/** 
-	 * Method to determine if variable exists 
-	 * 
-	 * @see Scope.inScope 
+	/**
+	 * Method to determine if variable exists
+	 *
+	 * @see SymbolTable.lookup
 	 * @param varName String the identifier of the variable
-	 * @return doesExist Boolean True or false depending on presence of variable 
+	 * @return doesExist Boolean True or false depending on presence of variable
 	 */
 	private boolean varInScope(String varName) {
-		Scope scope = scopes.peek();
-		boolean doesExist = false; 
-		if(scope.inScope(varName)) doesExist = true;
-		return doesExist; 
+		return symbols.lookup(varName) != null;
 	}
 }
-
-/**
- * 
- * @author Miles Schofield
- *
- *	Scope class developed with reference to structure provided by Emma Norling
- *	(Norling, 2017. Labs, week 8. Available on Moodle. Last accessed: 18/03/2017)
- */
-class Scope extends Hashtable<String, ScopeElement> {
-	final Scope parent;
-
-	public Scope(Scope parent) {
-		this.parent = parent;
-	}
-
-	@Override
-	public synchronized ScopeElement get(Object key) {
-		// TODO Auto-generated method stub
-		ScopeElement tempElement = super.get(key);
-		if(tempElement != null) {
-			return tempElement;
-		} else {
-			if (parent == null) {
-				return null; 
-			} else {
-				return parent.get(key);
-			}
-		}
-
-	}
-	@Override
-	public synchronized ScopeElement put(String key, ScopeElement value) {
-		// TODO Auto-generated method stub
-		return super.put(key, value);
-	}
-
-	/** 
-	 * Method to determine if varName is in Scope
-	 * 
-	 * Recursively called to check parent scopes if not in local scope 
-	 * 
-	 * @param varName String variable name to check
-	 * @return boolean True if exists, false if not
-	 */
-	boolean inScope(String varName) {
-		if(super.containsKey(varName)){
-			return true;
-		}
-		return parent == null ? false : parent.inScope(varName); 
-	}
-}
\ No newline at end of file
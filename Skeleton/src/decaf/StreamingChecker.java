@@ -0,0 +1,135 @@
+/**
+ * Single pass parsing and semantic checking
+ *
+ * Attached to the parser with Parser.addParseListener, so the semantic checks
+ * run while the input is being parsed. Each field_decl and method_decl is walked
+ * with the ScopeListener as soon as the parser reduces it, and is then pruned
+ * from the program context along with its tokens. The full parse tree is never
+ * built, so peak memory is bounded by the largest single method rather than
+ * by the whole file.
+ *
+ * @author Miles Schofield
+ */
+package decaf;
+
+import java.util.List;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.*;
+
+public class StreamingChecker implements ParseTreeListener {
+
+	/**
+	 * Token factory for lexing from an UnbufferedCharStream. The text of each
+	 * token has to be copied, as the characters are not kept; EOF is given the
+	 * text a buffered stream would report for it, so error messages match.
+	 */
+	public static final CommonTokenFactory TOKEN_FACTORY = new CommonTokenFactory(true) {
+		@Override
+		public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text,
+				int channel, int start, int stop, int line, int charPositionInLine) {
+			CommonToken token = super.create(source, type, text, channel, start, stop, line, charPositionInLine);
+			if (type == Token.EOF) token.setText("<EOF>");
+			return token;
+		}
+	};
+
+	/**
+	 * Syntax and semantic errors are collected together and emitted once
+	 * parsing has finished, in source order as when walking a complete tree.
+	 */
+	private final Diagnostics diagnostics;
+	private final ScopeListener checker;
+	private final ReleasingTokenStream tokens;
+	/**
+	 * The first exception thrown by the checker. Once the checker has failed
+	 * no more subtrees are checked, but parsing carries on so that every
+	 * syntax error is still reported before the failure is rethrown.
+	 */
+	private RuntimeException failure;
+
+	public StreamingChecker(ReleasingTokenStream tokens, Diagnostics diagnostics) {
+		this.tokens = tokens;
+		this.diagnostics = diagnostics;
+		this.checker = new ScopeListener(diagnostics);
+	}
+
+	@Override
+	public void enterEveryRule(ParserRuleContext ctx) {
+		if (ctx instanceof DecafParser.ProgramContext) check(ctx, false);
+	}
+
+	@Override
+	public void exitEveryRule(ParserRuleContext ctx) {
+		if (ctx instanceof DecafParser.ProgramContext) {
+			check(ctx, true);
+			return;
+		}
+		// Only the top level declarations are checked and pruned. Anything
+		// nested inside them is still needed until its declaration is reduced
+		if (!(ctx.getParent() instanceof DecafParser.ProgramContext)) return;
+		if (!(ctx instanceof DecafParser.Field_declContext || ctx instanceof DecafParser.Method_declContext)) return;
+
+		if (failure == null) {
+			try {
+				IterativeParseTreeWalker.DEFAULT.walk(checker, ctx);
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+		// Nothing is lowered, so what the checker recorded for the declaration is done with
+		checker.forget();
+		prune(ctx);
+	}
+
+	@Override
+	public void visitTerminal(TerminalNode node) {
+	}
+
+	@Override
+	public void visitErrorNode(ErrorNode node) {
+	}
+
+	/**
+	 * Reports the errors found, and rethrows any failure of the checker,
+	 * once the parser has returned.
+	 */
+	public void finish() {
+		diagnostics.emit(System.err);
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Runs the enter or exit event of the program rule itself. The program
+	 * context never holds more than the declaration currently being parsed.
+	 */
+	private void check(ParserRuleContext ctx, boolean exit) {
+		if (failure != null) return;
+		try {
+			if (exit) ctx.exitRule(checker);
+			else ctx.enterRule(checker);
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Removes a checked declaration from the program context and releases its
+	 * tokens. The stop token is kept, as the parser reads it back (LT(-1)) when
+	 * the enclosing rule exits.
+	 */
+	private void prune(ParserRuleContext ctx) {
+		List<ParseTree> siblings = ctx.getParent().children;
+		if (siblings != null) {
+			int last = siblings.size() - 1;
+			if (last >= 0 && siblings.get(last) == ctx) siblings.remove(last);
+			else siblings.remove(ctx);
+		}
+		if (ctx.getStop() != null) tokens.releaseBefore(ctx.getStop().getTokenIndex());
+	}
+}
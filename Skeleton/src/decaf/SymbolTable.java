@@ -0,0 +1,124 @@
+package decaf;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Flat, single-threaded symbol table
+ *
+ * Replaces the chain of Hashtable scopes. Every name is interned to a small
+ * integer id, and for each id the table holds the innermost visible
+ * declaration; declarations it hides are linked through ScopeElement.shadowed.
+ * Looking a name up is a single hash and array access however deeply scopes
+ * are nested. Each declaration is also recorded in an undo log, and leaving a
+ * scope pops the log back to where the scope began, restoring whatever the
+ * popped declarations had hidden. Entering a scope only records the log
+ * position, so blocks that declare nothing allocate nothing.
+ *
+ * A table checking a single method body holds only its local scopes, and
+ * looks up any other name in a shared, read-only GlobalScope.
+ *
+ * @author Miles Schofield
+ */
+public class SymbolTable {
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	/** Innermost visible declaration for each symbol id, null if none */
+	private ScopeElement[] visible = new ScopeElement[64];
+	/** Symbol ids in the order they were declared in the open scopes */
+	private int[] undo = new int[64];
+	private int undoSize = 0;
+	/** The undo log size when each open scope was entered */
+	private int[] marks = new int[16];
+	private int depth = 0;
+	/** The class scope, when checking a single method body, otherwise null */
+	private final GlobalScope globals;
+	/** Position of the method being checked, limiting which methods in globals are visible */
+	private final int method;
+
+	public SymbolTable() {
+		this(null, 0);
+	}
+
+	/**
+	 * @param globals GlobalScope names not declared in this table are looked up in
+	 * @param method int position of the method being checked among the method_decls
+	 */
+	public SymbolTable(GlobalScope globals, int method) {
+		this.globals = globals;
+		this.method = method;
+	}
+
+	/**
+	 * Gives the id of a name, assigning the next free id if it is new.
+	 *
+	 * @param name String identifier
+	 * @return int the symbol id of the name
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if (id != null) return id;
+		int next = ids.size();
+		ids.put(name, next);
+		if (next == visible.length) visible = Arrays.copyOf(visible, next * 2);
+		return next;
+	}
+
+	/**
+	 * @param name String identifier
+	 * @return ScopeElement the innermost visible declaration of name, or null
+	 */
+	public ScopeElement lookup(String name) {
+		ScopeElement element = local(name);
+		if (element == null && globals != null) element = globals.lookup(name, method);
+		return element;
+	}
+
+	/**
+	 * @param name String identifier
+	 * @return ScopeElement the declaration of name in the outermost (class) scope, or null
+	 */
+	public ScopeElement lookupGlobal(String name) {
+		ScopeElement element = local(name);
+		while (element != null && element.depth > 0) element = element.shadowed;
+		if (element == null && globals != null) element = globals.lookup(name, method);
+		return element;
+	}
+
+	/**
+	 * Declares a name in the current scope, hiding any outer declaration of it.
+	 *
+	 * @param name String identifier
+	 * @param element ScopeElement describing the declaration
+	 */
+	public void declare(String name, ScopeElement element) {
+		int id = intern(name);
+		element.shadowed = visible[id];
+		element.depth = depth;
+		visible[id] = element;
+		if (undoSize == undo.length) undo = Arrays.copyOf(undo, undoSize * 2);
+		undo[undoSize++] = id;
+	}
+
+	public void enterScope() {
+		if (depth == marks.length) marks = Arrays.copyOf(marks, depth * 2);
+		marks[depth++] = undoSize;
+	}
+
+	public void exitScope() {
+		int mark = marks[--depth];
+		while (undoSize > mark) {
+			int id = undo[--undoSize];
+			visible[id] = visible[id].shadowed;
+		}
+	}
+
+	/**
+	 * @param name String identifier
+	 * @return ScopeElement the innermost declaration of name in this table itself, or null
+	 */
+	private ScopeElement local(String name) {
+		Integer id = ids.get(name);
+		return id == null ? null : visible[id];
+	}
+}
@@ -0,0 +1,63 @@
+package decaf;
+
+/**
+ * The types of Decaf
+ *
+ * Interned as an enum so that type checks compare references rather than
+ * strings. toString gives the names used in error messages.
+ *
+ * @author Miles Schofield
+ */
+public enum Type {
+	INT("int"),
+	BOOLEAN("boolean"),
+	INT_ARRAY("intArray"),
+	BOOLEAN_ARRAY("booleanArray"),
+	VOID("void"),
+	/** The type of anything that could not be typed, such as an undeclared variable */
+	UNKNOWN("unknown");
+
+	private final String name;
+
+	private Type(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param name String the text of a type or VOID token
+	 * @return Type the type named, UNKNOWN if it is not a Decaf type
+	 */
+	public static Type of(String name) {
+		if (name.equals("int")) return INT;
+		if (name.equals("boolean")) return BOOLEAN;
+		if (name.equals("void")) return VOID;
+		return UNKNOWN;
+	}
+
+	/**
+	 * @return Type the type of an array with elements of this type
+	 */
+	public Type arrayOf() {
+		if (this == INT) return INT_ARRAY;
+		if (this == BOOLEAN) return BOOLEAN_ARRAY;
+		return UNKNOWN;
+	}
+
+	/**
+	 * @return Type the type of an element of this array type, or this type if it is not an array
+	 */
+	public Type element() {
+		if (this == INT_ARRAY) return INT;
+		if (this == BOOLEAN_ARRAY) return BOOLEAN;
+		return this;
+	}
+
+	public boolean isArray() {
+		return this == INT_ARRAY || this == BOOLEAN_ARRAY;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
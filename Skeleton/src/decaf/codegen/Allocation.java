@@ -0,0 +1,105 @@
+package decaf.codegen;
+
+import decaf.ir.IntList;
+
+/**
+ * Where each register of a method is kept, as a register allocator decides
+ *
+ * A register's interval is cut into pieces, each from a position on, in a
+ * machine register or in memory. A register with any piece in memory is
+ * given a stack slot, which every assignment to it writes as well as its
+ * machine register, so the slot always holds its value and moving a piece
+ * into memory needs no store. Moving one back into a register needs a
+ * reload, which the code generator makes wherever a piece in a register
+ * follows one in memory, and where a block is entered from one with the
+ * register somewhere else.
+ *
+ * @author Miles Schofield
+ */
+public class Allocation {
+
+	/** Each register's pieces, as pairs of first position and location */
+	private final IntList[] pieces;
+	private final int[] slots;
+	private int slotCount;
+	private int coalesced;
+
+	public Allocation(int regs) {
+		pieces = new IntList[regs];
+		slots = new int[regs];
+		for (int reg = 0; reg < regs; reg++) slots[reg] = -1;
+	}
+
+	/**
+	 * Puts a register in a location from a position on, replacing a piece
+	 * that starts at the same position
+	 *
+	 * @param location int machine register, or X86.MEMORY
+	 */
+	public void assign(int reg, int position, int location) {
+		if (pieces[reg] == null) pieces[reg] = new IntList(2);
+		IntList list = pieces[reg];
+		if (!list.isEmpty() && list.get(list.size() - 2) == position) list.truncate(list.size() - 2);
+		if (!list.isEmpty() && list.last() == location) return;
+		list.add(position);
+		list.add(location);
+		if (location == X86.MEMORY && slots[reg] < 0) slots[reg] = slotCount++;
+	}
+
+	/**
+	 * @return int the machine register a register is in at a position, or
+	 * X86.MEMORY if it is in its slot
+	 */
+	public int location(int reg, int position) {
+		IntList list = pieces[reg];
+		if (list == null) return X86.MEMORY;
+		// The last piece starting at or before the position
+		int low = 0;
+		int high = list.size() / 2 - 1;
+		while (low < high) {
+			int middle = (low + high + 1) / 2;
+			if (list.get(2 * middle) <= position) low = middle;
+			else high = middle - 1;
+		}
+		return list.get(2 * low + 1);
+	}
+
+	/**
+	 * @return int the number of pieces of a register's interval
+	 */
+	public int pieceCount(int reg) {
+		return pieces[reg] == null ? 0 : pieces[reg].size() / 2;
+	}
+
+	public int pieceStart(int reg, int k) {
+		return pieces[reg].get(2 * k);
+	}
+
+	public int pieceLocation(int reg, int k) {
+		return pieces[reg].get(2 * k + 1);
+	}
+
+	/**
+	 * @return int a register's stack slot, numbered from 0, or -1 if it never
+	 * needs one
+	 */
+	public int slot(int reg) {
+		return slots[reg];
+	}
+
+	public int slotCount() {
+		return slotCount;
+	}
+
+	/**
+	 * @return int the number of copies made needless by giving their source
+	 * and destination the same location
+	 */
+	public int coalesced() {
+		return coalesced;
+	}
+
+	public void setCoalesced(int coalesced) {
+		this.coalesced = coalesced;
+	}
+}
@@ -0,0 +1,793 @@
+package decaf.codegen;
+
+import java.io.PrintStream;
+
+import decaf.ir.BasicBlocks;
+import decaf.ir.IntList;
+import decaf.ir.IrMethod;
+import decaf.ir.IrProgram;
+import decaf.ir.Op;
+import decaf.ir.TailCalls;
+
+/**
+ * Writes a program out of SSA form as x86-64 assembly for the GNU
+ * assembler, to be linked with the C library as gcc does
+ *
+ * Each method is put into normal form, its registers given locations by a
+ * register allocator, and its instructions translated one by one, using
+ * rax, rdx and r11 for whatever an instruction needs beyond its operands'
+ * locations. main is the program's entry point; the other methods are
+ * named decaf_ and their names, so they cannot clash with the functions
+ * called out to. Ints are 32 bits, but registers are moved, pushed and
+ * kept in their stack slots whole, as they may hold the address of a
+ * string.
+ *
+ * The frame holds the callee saved registers the method uses and then a
+ * slot for each register the allocator put in memory anywhere. A register
+ * in a piece after one in memory is reloaded from its slot before the
+ * instruction that starts the piece, and where the allocator has a
+ * register live into a block somewhere other than where the block's
+ * predecessor leaves it, the moves between are made on the edge: before
+ * the jump for a block ending in one, and in a block of their own after
+ * the method's code for an edge out of a branch. A failed bounds check and
+ * the end of a method that must return a value reached print the runtime
+ * error and exit with -1 and -2 respectively. A comparison read only by
+ * the branch after it is not made 0 or 1: the branch jumps on the flags
+ * it leaves.
+ *
+ * With tail calls on, a call whose result is returned straight away, and
+ * whose arguments all go in registers, is made a jump once the frame is
+ * taken down, so the method called returns to the caller's caller. main is
+ * left alone, as what it returns is the program's exit status.
+ *
+ * With divisions by constants on, dividing by a constant that is assigned
+ * once, before any use, multiplies by a fixed point reciprocal instead and
+ * takes the high half, shifted, with one added for a negative dividend so
+ * the quotient rounds toward zero as idiv does; a power of two is a shift
+ * of the dividend biased the same way. The remainder is the dividend less
+ * the quotient times the divisor. Dividing by 0 or -1 is left to idiv, so
+ * it still traps where it would.
+ *
+ * @author Miles Schofield
+ */
+public class CodeGenerator {
+
+	private final IrProgram program;
+	private final RegisterAllocator allocator;
+	private final boolean tailCalls;
+	private final boolean divisions;
+	private final StringBuilder out = new StringBuilder();
+
+	// The method being written
+	private int m;
+	private IrMethod method;
+	private LiveIntervals intervals;
+	private BasicBlocks blocks;
+	private Allocation allocation;
+	/** The callee saved registers the method uses, saved at the top of its frame */
+	private IntList saved;
+	/** The code of the edges out of branches, written after the method */
+	private StringBuilder edges;
+	private int edgeCount;
+	/** The methods the failed bounds checks and traps of the method report */
+	private IntList boundsReported;
+	private IntList trapReported;
+	/** The calls of the method made jumps, or null */
+	private boolean[] tail;
+	/** The comparisons whose flags the branch after them jumps on */
+	private boolean[] fused;
+	/** The value of each register that is a constant wherever it is read */
+	private int[] constants;
+	private boolean[] isConstant;
+	private int reloads;
+	private int stores;
+
+	/**
+	 * @param tailCalls boolean True to make calls in tail position jumps
+	 * @param divisions boolean True to divide by constants without idiv
+	 */
+	public CodeGenerator(IrProgram program, RegisterAllocator allocator, boolean tailCalls, boolean divisions) {
+		this.program = program;
+		this.allocator = allocator;
+		this.tailCalls = tailCalls;
+		this.divisions = divisions;
+	}
+
+	/**
+	 * @param report PrintStream to report how many registers each method
+	 * spilled, how many times they are read from and written to their
+	 * slots, and how many copies the allocator coalesced, or null
+	 * @return String the assembly for the whole program
+	 */
+	public String generate(PrintStream report) {
+		out.append("\t.text\n");
+		for (m = 0; m < program.methodCount(); m++) {
+			method = program.method(m);
+			BasicBlocks.normalize(method);
+			intervals = new LiveIntervals(method);
+			blocks = intervals.getBlocks();
+			allocation = allocator.allocate(intervals);
+			writeMethod();
+			if (report != null) {
+				int spilled = 0;
+				for (int reg = 0; reg < method.regCount(); reg++) {
+					if (allocation.slot(reg) >= 0) spilled++;
+				}
+				report.println(allocator.getName() + ": " + method.getName() + ": " + spilled + " spilled, " + reloads
+						+ " reload(s), " + stores + " store(s), " + allocation.coalesced() + " move(s) coalesced");
+			}
+		}
+		writeData();
+		out.append("\t.section .note.GNU-stack,\"\",@progbits\n");
+		return out.toString();
+	}
+
+	private String symbol(IrMethod callee) {
+		return callee.getName().equals("main") ? "main" : "decaf_" + callee.getName();
+	}
+
+	private String label(int label) {
+		return ".L" + m + "_" + label;
+	}
+
+	private void emit(String instruction) {
+		emit(out, instruction);
+	}
+
+	private static void emit(StringBuilder code, String instruction) {
+		code.append('\t').append(instruction).append('\n');
+	}
+
+	private void writeMethod() {
+		saved = new IntList();
+		boolean[] used = new boolean[16];
+		IntList[] reloadsAt = new IntList[method.size()];
+		for (int reg = 0; reg < method.regCount(); reg++) {
+			for (int k = 0; k < allocation.pieceCount(reg); k++) {
+				int location = allocation.pieceLocation(reg, k);
+				if (location == X86.MEMORY) continue;
+				used[location] = true;
+				int start = allocation.pieceStart(reg, k);
+				// Pieces starting at an assignment need no reload
+				if (k > 0 && allocation.pieceLocation(reg, k - 1) == X86.MEMORY && start % 2 == 0) {
+					if (reloadsAt[start / 2] == null) reloadsAt[start / 2] = new IntList(2);
+					reloadsAt[start / 2].add(reg);
+				}
+			}
+		}
+		for (int machine : X86.ALLOCATABLE) {
+			if (used[machine] && X86.isCalleeSaved(machine)) saved.add(machine);
+		}
+		edges = new StringBuilder();
+		edgeCount = 0;
+		boundsReported = new IntList(1);
+		trapReported = new IntList(1);
+		tail = null;
+		if (tailCalls && !method.getName().equals("main")) {
+			tail = TailCalls.find(method);
+			for (int i = 0; i < method.size(); i++) {
+				if (tail[i] && method.callArgs(i).length > X86.ARGUMENTS.length) tail[i] = false;
+			}
+		}
+		findConstants();
+		findFused();
+		reloads = 0;
+		stores = 0;
+
+		String name = symbol(method);
+		out.append('\n');
+		if (name.equals("main")) out.append("\t.globl main\n");
+		out.append("\t.type ").append(name).append(", @function\n");
+		out.append(name).append(":\n");
+		emit("pushq %rbp");
+		emit("movq %rsp, %rbp");
+		int frame = 8 * (saved.size() + allocation.slotCount());
+		if (frame % 16 != 0) frame += 8;
+		if (frame > 0) emit("subq $" + frame + ", %rsp");
+		for (int k = 0; k < saved.size(); k++) emit("movq " + X86.name(saved.get(k)) + ", " + (-8 * (k + 1)) + "(%rbp)");
+		writeParameters();
+
+		for (int i = 0; i < method.size(); i++) {
+			if (reloadsAt[i] != null) {
+				for (int k = 0; k < reloadsAt[i].size(); k++) {
+					int reg = reloadsAt[i].get(k);
+					emit("movq " + slotAddress(reg) + ", " + X86.name(allocation.location(reg, 2 * i)));
+					reloads++;
+				}
+			}
+			writeInstruction(i);
+			if (tail != null && tail[i]) {
+				// The rest of the block, up to the return, is never reached
+				while (i + 1 < method.size() && method.op(i + 1) != Op.LABEL) i++;
+			}
+		}
+		out.append(edges);
+		for (int k = 0; k < boundsReported.size(); k++) writeError(".Lbounds", "_bounds", boundsReported.get(k), -1);
+		for (int k = 0; k < trapReported.size(); k++) writeError(".Lnoreturn", "_noreturn", trapReported.get(k), -2);
+		out.append("\t.size ").append(name).append(", .-").append(name).append('\n');
+	}
+
+	/**
+	 * Finds the comparisons assigning a register only the branch straight
+	 * after them reads
+	 */
+	private void findFused() {
+		int[] defs = new int[method.regCount()];
+		int[] uses = new int[method.regCount()];
+		for (int i = 0; i < method.size(); i++) {
+			if (method.dst(i) >= 0) defs[method.dst(i)]++;
+			for (int k = 0; k < method.useCount(i); k++) uses[method.use(i, k)]++;
+		}
+		fused = new boolean[method.size()];
+		for (int i = 1; i < method.size(); i++) {
+			int compare = i - 1;
+			int op = method.op(compare);
+			if (method.op(i) != Op.BRANCH || op < Op.LT || op > Op.NE) continue;
+			int result = method.dst(compare);
+			fused[compare] = method.a(i) == result && defs[result] == 1 && uses[result] == 1;
+		}
+	}
+
+	/**
+	 * Finds the registers assigned a constant and nothing else, and never
+	 * read before then, so that whatever reads one reads the constant
+	 */
+	private void findConstants() {
+		constants = null;
+		isConstant = null;
+		if (!divisions) return;
+		int[] defs = new int[method.regCount()];
+		for (int i = 0; i < method.size(); i++) {
+			if (method.dst(i) >= 0) defs[method.dst(i)]++;
+		}
+		boolean[] readFirst = new boolean[method.regCount()];
+		for (int reg : intervals.getLiveness().liveIn(0)) readFirst[reg] = true;
+		constants = new int[method.regCount()];
+		isConstant = new boolean[method.regCount()];
+		for (int i = 0; i < method.size(); i++) {
+			int dst = method.dst(i);
+			if (method.op(i) != Op.CONST || defs[dst] != 1 || readFirst[dst] || dst < method.getParams()) continue;
+			constants[dst] = method.a(i);
+			isConstant[dst] = true;
+		}
+	}
+
+	/**
+	 * Moves the parameters read before they are assigned from where the
+	 * caller passed them to where the allocator put them, and gives any
+	 * other register read before it is assigned the zero Decaf starts
+	 * locals at
+	 */
+	private void writeParameters() {
+		int[] live = intervals.getLiveness().liveIn(0);
+		Moves moves = new Moves();
+		for (int param : live) {
+			if (param >= method.getParams()) continue;
+			int from = param < X86.ARGUMENTS.length ? X86.ARGUMENTS[param] : X86.MEMORY;
+			String address = 16 + 8 * (param - X86.ARGUMENTS.length) + "(%rbp)";
+			if (allocation.slot(param) >= 0) {
+				if (from == X86.MEMORY) {
+					emit("movq " + address + ", %rax");
+					emit("movq %rax, " + slotAddress(param));
+				} else {
+					emit("movq " + X86.name(from) + ", " + slotAddress(param));
+				}
+				stores++;
+			}
+			int to = allocation.location(param, 0);
+			if (to == X86.MEMORY) continue;
+			if (from == X86.MEMORY) moves.load(to, address);
+			else moves.move(to, from);
+		}
+		moves.write(out);
+		for (int reg : live) {
+			if (reg < method.getParams()) continue;
+			int to = allocation.location(reg, 0);
+			if (to != X86.MEMORY) emit("xorl " + X86.name32(to) + ", " + X86.name32(to));
+			if (allocation.slot(reg) >= 0) emit("movq $0, " + slotAddress(reg));
+		}
+	}
+
+	/**
+	 * @return String the label of the code reporting a runtime error in a
+	 * method, or in the method being written if it is -1
+	 */
+	private String errorLabel(String suffix, int reported, IntList used) {
+		if (reported < 0) reported = m;
+		boolean found = false;
+		for (int k = 0; k < used.size(); k++) found |= used.get(k) == reported;
+		if (!found) used.add(reported);
+		return ".L" + m + suffix + reported;
+	}
+
+	private void writeError(String message, String suffix, int reported, int status) {
+		out.append(".L").append(m).append(suffix).append(reported).append(":\n");
+		emit("leaq " + message + "(%rip), %rdi");
+		emit("leaq .Lname" + reported + "(%rip), %rsi");
+		emit("xorl %eax, %eax");
+		emit("call printf");
+		emit("movl $" + status + ", %edi");
+		emit("call exit");
+	}
+
+	private String slotAddress(int reg) {
+		return -8 * (saved.size() + allocation.slot(reg) + 1) + "(%rbp)";
+	}
+
+	/**
+	 * @return String where an operand read by instruction i is, 32 bits of it
+	 */
+	private String operand(int reg, int i) {
+		int location = allocation.location(reg, 2 * i);
+		if (location != X86.MEMORY) return X86.name32(location);
+		reloads++;
+		return slotAddress(reg);
+	}
+
+	private String operand64(int reg, int i) {
+		int location = allocation.location(reg, 2 * i);
+		if (location != X86.MEMORY) return X86.name(location);
+		reloads++;
+		return slotAddress(reg);
+	}
+
+	private boolean isIn(int reg, int i, int machine) {
+		return allocation.location(reg, 2 * i) == machine;
+	}
+
+	/**
+	 * @return int the machine register to compute the result of instruction
+	 * i in: its destination's, or rax if that is in memory
+	 */
+	private int target(int i) {
+		int location = allocation.location(method.dst(i), 2 * i + 1);
+		return location == X86.MEMORY ? X86.RAX : location;
+	}
+
+	/**
+	 * Puts the result of instruction i, computed in a machine register,
+	 * where its destination is, and in its slot if it has one
+	 */
+	private void define(int i, int result) {
+		int dst = method.dst(i);
+		int location = allocation.location(dst, 2 * i + 1);
+		if (location != X86.MEMORY && location != result) emit("movq " + X86.name(result) + ", " + X86.name(location));
+		if (allocation.slot(dst) >= 0) {
+			emit("movq " + X86.name(result) + ", " + slotAddress(dst));
+			stores++;
+		}
+	}
+
+	private void writeInstruction(int i) {
+		int op = method.op(i);
+		int dst = method.dst(i);
+		int a = method.a(i);
+		int b = method.b(i);
+		int t;
+		switch (op) {
+		case Op.NOP:
+			break;
+		case Op.LABEL:
+			out.append(label(a)).append(":\n");
+			break;
+		case Op.CONST:
+			t = target(i);
+			if (a == 0) emit("xorl " + X86.name32(t) + ", " + X86.name32(t));
+			else emit("movl $" + a + ", " + X86.name32(t));
+			define(i, t);
+			break;
+		case Op.STR:
+			t = target(i);
+			emit("leaq .Lstr" + a + "(%rip), " + X86.name(t));
+			define(i, t);
+			break;
+		case Op.COPY:
+			t = target(i);
+			if (!isIn(a, i, t)) emit("movq " + operand64(a, i) + ", " + X86.name(t));
+			define(i, t);
+			break;
+		case Op.NEG:
+		case Op.NOT:
+			t = target(i);
+			if (!isIn(a, i, t)) emit("movl " + operand(a, i) + ", " + X86.name32(t));
+			emit(op == Op.NEG ? "negl " + X86.name32(t) : "xorl $1, " + X86.name32(t));
+			define(i, t);
+			break;
+		case Op.ADD:
+		case Op.SUB:
+		case Op.MUL:
+			t = target(i);
+			int left = a;
+			int right = b;
+			if (isIn(right, i, t) && !isIn(left, i, t)) {
+				if (op == Op.SUB) {
+					t = X86.RAX;
+				} else {
+					left = b;
+					right = a;
+				}
+			}
+			if (!isIn(left, i, t)) emit("movl " + operand(left, i) + ", " + X86.name32(t));
+			String mnemonic = op == Op.ADD ? "addl " : op == Op.SUB ? "subl " : "imull ";
+			emit(mnemonic + operand(right, i) + ", " + X86.name32(t));
+			define(i, t);
+			break;
+		case Op.DIV:
+		case Op.MOD:
+			if (isConstant != null && isConstant[b] && writeDivision(i, constants[b])) break;
+			emit("movl " + operand(a, i) + ", %eax");
+			emit("cltd");
+			emit("idivl " + operand(b, i));
+			define(i, op == Op.DIV ? X86.RAX : X86.RDX);
+			break;
+		case Op.LT:
+		case Op.LE:
+		case Op.GT:
+		case Op.GE:
+		case Op.EQ:
+		case Op.NE:
+			if (allocation.location(a, 2 * i) == X86.MEMORY && allocation.location(b, 2 * i) == X86.MEMORY) {
+				emit("movl " + operand(a, i) + ", %eax");
+				emit("cmpl " + operand(b, i) + ", %eax");
+			} else {
+				emit("cmpl " + operand(b, i) + ", " + operand(a, i));
+			}
+			if (fused[i]) break;
+			t = target(i);
+			emit("set" + condition(op, false) + " %al");
+			emit("movzbl %al, " + X86.name32(t));
+			define(i, t);
+			break;
+		case Op.LOADG:
+			t = target(i);
+			emit("movl " + global(a) + "(%rip), " + X86.name32(t));
+			define(i, t);
+			break;
+		case Op.STOREG:
+			if (allocation.location(b, 2 * i) == X86.MEMORY) {
+				emit("movl " + operand(b, i) + ", %eax");
+				emit("movl %eax, " + global(a) + "(%rip)");
+			} else {
+				emit("movl " + operand(b, i) + ", " + global(a) + "(%rip)");
+			}
+			break;
+		case Op.ALOAD:
+			emit("movslq " + operand(b, i) + ", %r11");
+			emit("leaq " + global(a) + "(%rip), %rax");
+			t = target(i);
+			emit("movl (%rax,%r11,4), " + X86.name32(t));
+			define(i, t);
+			break;
+		case Op.ASTORE:
+			emit("movslq " + operand(b, i) + ", %r11");
+			emit("leaq " + global(a) + "(%rip), %rax");
+			int c = method.c(i);
+			if (allocation.location(c, 2 * i) == X86.MEMORY) {
+				emit("movl " + operand(c, i) + ", %edx");
+				emit("movl %edx, (%rax,%r11,4)");
+			} else {
+				emit("movl " + operand(c, i) + ", (%rax,%r11,4)");
+			}
+			break;
+		case Op.BOUNDS:
+			emit("cmpl $" + program.globalLength(a) + ", " + operand(b, i));
+			emit("jae " + errorLabel("_bounds", method.c(i), boundsReported));
+			break;
+		case Op.JUMP:
+			writeEdge(i, a, true);
+			break;
+		case Op.BRANCH:
+			// Jump on the comparison made just before, or on the condition not being 0
+			boolean flags = i > 0 && fused[i - 1];
+			int test = flags ? method.op(i - 1) : Op.NE;
+			if (!flags) emit("cmpl $0, " + operand(a, i));
+			String onTrue = writeEdge(i, b, false);
+			String onFalse = writeEdge(i, method.c(i), false);
+			if (onFalse.equals(next(i))) {
+				emit("j" + condition(test, false) + " " + onTrue);
+			} else if (onTrue.equals(next(i))) {
+				emit("j" + condition(test, true) + " " + onFalse);
+			} else {
+				emit("j" + condition(test, false) + " " + onTrue);
+				emit("jmp " + onFalse);
+			}
+			break;
+		case Op.CALL:
+		case Op.CALLOUT:
+			writeCall(i);
+			break;
+		case Op.RET:
+			if (a >= 0) emit("movl " + operand(a, i) + ", %eax");
+			else if (method.getName().equals("main")) emit("xorl %eax, %eax");
+			writeLeave();
+			emit("ret");
+			break;
+		case Op.TRAP:
+			emit("jmp " + errorLabel("_noreturn", a, trapReported));
+			break;
+		default:
+			throw new IllegalStateException("cannot generate code for " + Op.name(op) + " in " + method.getName());
+		}
+	}
+
+	/**
+	 * Writes DIV or MOD instruction i, by a constant divisor, without idiv
+	 *
+	 * @return boolean False if the divisor is left to idiv
+	 */
+	private boolean writeDivision(int i, int divisor) {
+		if (divisor == 0 || divisor == -1 || divisor == Integer.MIN_VALUE) return false;
+		boolean quotient = method.op(i) == Op.DIV;
+		String dividend = operand(method.a(i), i);
+		int magnitude = Math.abs(divisor);
+		if (magnitude == 1) {
+			if (quotient) emit("movl " + dividend + ", %eax");
+			else emit("xorl %eax, %eax");
+			define(i, X86.RAX);
+			return true;
+		}
+		if ((magnitude & (magnitude - 1)) == 0) {
+			// A negative dividend is biased up by one less than the divisor
+			emit("movl " + dividend + ", %eax");
+			emit("leal " + (magnitude - 1) + "(%rax), %edx");
+			emit("testl %eax, %eax");
+			emit("cmovns %eax, %edx");
+			// The quotient shifts it down; the quotient times the divisor rounds it down instead
+			if (quotient) emit("sarl $" + Integer.numberOfTrailingZeros(magnitude) + ", %edx");
+			else emit("andl $" + -magnitude + ", %edx");
+		} else {
+			int[] reciprocal = reciprocal(magnitude);
+			emit("movl $" + reciprocal[0] + ", %eax");
+			emit("imull " + dividend);
+			if (reciprocal[0] < 0) emit("addl " + dividend + ", %edx");
+			if (reciprocal[1] > 0) emit("sarl $" + reciprocal[1] + ", %edx");
+			emit("movl " + dividend + ", %eax");
+			emit("shrl $31, %eax");
+			emit("addl %eax, %edx");
+			if (!quotient) {
+				emit("imull $" + magnitude + ", %edx, %edx");
+				emit("movl " + dividend + ", %eax");
+			}
+		}
+		if (quotient) {
+			if (divisor < 0) emit("negl %edx");
+			define(i, X86.RDX);
+		} else {
+			// The remainder takes the dividend's sign, whatever the divisor's
+			emit("subl %edx, %eax");
+			define(i, X86.RAX);
+		}
+		return true;
+	}
+
+	/**
+	 * Works out the multiplier and shift giving the quotient by a divisor
+	 * from the high half of a product, as in Hacker's Delight: the
+	 * smallest power of two 2^p past 2^32 for which a multiple of the
+	 * divisor lies close enough above it
+	 *
+	 * @param divisor int from 3 up, not a power of two
+	 * @return int[] the multiplier, as a signed int, and the shift p - 32
+	 */
+	static int[] reciprocal(int divisor) {
+		long two31 = 1L << 31;
+		// The largest dividend whose remainder is divisor - 1
+		long limit = two31 - 1 - two31 % divisor;
+		int p = 31;
+		long q1 = two31 / limit;
+		long r1 = two31 - q1 * limit;
+		long q2 = two31 / divisor;
+		long r2 = two31 - q2 * divisor;
+		long delta;
+		do {
+			p++;
+			q1 *= 2;
+			r1 *= 2;
+			if (r1 >= limit) {
+				q1++;
+				r1 -= limit;
+			}
+			q2 *= 2;
+			r2 *= 2;
+			if (r2 >= divisor) {
+				q2++;
+				r2 -= divisor;
+			}
+			delta = divisor - r2;
+		} while (q1 < delta || (q1 == delta && r1 == 0));
+		return new int[] { (int) (q2 + 1), p - 32 };
+	}
+
+	/**
+	 * @param negated boolean True for the condition code of the opposite comparison
+	 * @return String the condition code of a comparison, for set and j
+	 */
+	private static String condition(int op, boolean negated) {
+		switch (op) {
+		case Op.LT:
+			return negated ? "ge" : "l";
+		case Op.LE:
+			return negated ? "g" : "le";
+		case Op.GT:
+			return negated ? "le" : "g";
+		case Op.GE:
+			return negated ? "l" : "ge";
+		case Op.EQ:
+			return negated ? "ne" : "e";
+		default:
+			return negated ? "e" : "ne";
+		}
+	}
+
+	private String global(int global) {
+		return ".Lg_" + program.globalName(global);
+	}
+
+	/**
+	 * @return String the label of the block after instruction i, a terminator, or null for the last
+	 */
+	private String next(int i) {
+		return i + 1 < method.size() ? label(method.a(i + 1)) : null;
+	}
+
+	/**
+	 * Makes the moves the edge from terminator i to a label needs. For a
+	 * jump they are written, with the jump unless it is to the next block;
+	 * for a branch they are put in a block of their own
+	 *
+	 * @return String the label to go to for the edge
+	 */
+	private String writeEdge(int i, int target, boolean jump) {
+		int from = blocks.blockOf(labelOfBlockAt(i));
+		int to = blocks.blockOf(target);
+		Moves moves = new Moves();
+		for (int reg : intervals.getLiveness().liveIn(to)) {
+			int location = allocation.location(reg, intervals.blockStart(to));
+			if (location == X86.MEMORY) continue;
+			int current = allocation.location(reg, intervals.blockEnd(from));
+			if (current == X86.MEMORY) {
+				moves.load(location, slotAddress(reg));
+				reloads++;
+			} else if (current != location) moves.move(location, current);
+		}
+		if (jump) {
+			moves.write(out);
+			if (!label(target).equals(next(i))) emit("jmp " + label(target));
+			return label(target);
+		}
+		if (moves.isEmpty()) return label(target);
+		String edge = ".L" + m + "_e" + edgeCount++;
+		edges.append(edge).append(":\n");
+		moves.write(edges);
+		emit(edges, "jmp " + label(target));
+		return edge;
+	}
+
+	/**
+	 * @return int the label of the block instruction i is in
+	 */
+	private int labelOfBlockAt(int i) {
+		while (method.op(i) != Op.LABEL) i--;
+		return method.a(i);
+	}
+
+	/**
+	 * Restores the callee saved registers and takes down the frame
+	 */
+	private void writeLeave() {
+		for (int k = 0; k < saved.size(); k++) emit("movq " + (-8 * (k + 1)) + "(%rbp), " + X86.name(saved.get(k)));
+		emit("leave");
+	}
+
+	private void writeCall(int i) {
+		int[] args = method.callArgs(i);
+		int onStack = Math.max(0, args.length - X86.ARGUMENTS.length);
+		int padding = onStack % 2 == 1 ? 8 : 0;
+		if (padding > 0) emit("subq $8, %rsp");
+		for (int k = args.length - 1; k >= 0; k--) emit("pushq " + operand64(args[k], i));
+		for (int k = 0; k < Math.min(args.length, X86.ARGUMENTS.length); k++) emit("popq " + X86.name(X86.ARGUMENTS[k]));
+		if (tail != null && tail[i]) {
+			writeLeave();
+			emit("jmp " + symbol(program.method(method.a(i))));
+			return;
+		}
+		if (method.op(i) == Op.CALLOUT) {
+			emit("xorl %eax, %eax");
+			emit("call " + program.string(method.a(i)));
+		} else {
+			emit("call " + symbol(program.method(method.a(i))));
+		}
+		if (8 * onStack + padding > 0) emit("addq $" + (8 * onStack + padding) + ", %rsp");
+		if (method.dst(i) >= 0) {
+			int t = target(i);
+			if (t != X86.RAX) emit("movl %eax, " + X86.name32(t));
+			define(i, t);
+		}
+	}
+
+	private void writeData() {
+		out.append("\n\t.bss\n\t.align 8\n");
+		for (int global = 0; global < program.globalCount(); global++) {
+			out.append(global(global)).append(":\n");
+			out.append("\t.zero ").append(4 * Math.max(1, program.globalLength(global))).append('\n');
+		}
+		out.append("\n\t.section .rodata\n");
+		for (int string = 0; string < program.stringCount(); string++) {
+			// The assembler knows the source's escapes but for the quote
+			out.append(".Lstr").append(string).append(":\n");
+			out.append("\t.string \"").append(program.string(string).replace("\\'", "'")).append("\"\n");
+		}
+		for (int method = 0; method < program.methodCount(); method++) {
+			out.append(".Lname").append(method).append(":\n");
+			out.append("\t.string \"").append(program.method(method).getName()).append("\"\n");
+		}
+		out.append(".Lbounds:\n\t.string \"*** RUNTIME ERROR ***: Array out of Bounds access in method \\\"%s\\\"\\n\"\n");
+		out.append(".Lnoreturn:\n\t.string \"*** RUNTIME ERROR ***: No return value from non-void method \\\"%s\\\"\\n\"\n");
+	}
+
+	/**
+	 * Moves between machine registers that all happen at once, and loads
+	 * from memory after them, written as a sequence: a move is made once
+	 * no other reads the register it writes, and a cycle of moves is broken
+	 * by saving one register of it in rax
+	 */
+	private class Moves {
+
+		private final IntList to = new IntList();
+		private final IntList from = new IntList();
+		private final IntList loads = new IntList();
+		private final java.util.List<String> addresses = new java.util.ArrayList<String>();
+
+		void move(int destination, int source) {
+			if (destination == source) return;
+			to.add(destination);
+			from.add(source);
+		}
+
+		void load(int destination, String address) {
+			loads.add(destination);
+			addresses.add(address);
+		}
+
+		boolean isEmpty() {
+			return to.isEmpty() && loads.isEmpty();
+		}
+
+		void write(StringBuilder code) {
+			while (!to.isEmpty()) {
+				boolean progress = false;
+				for (int k = 0; k < to.size(); k++) {
+					if (isRead(to.get(k))) continue;
+					emit(code, "movq " + X86.name(from.get(k)) + ", " + X86.name(to.get(k)));
+					remove(k--);
+					progress = true;
+				}
+				if (!progress) {
+					int blocked = to.get(0);
+					emit(code, "movq " + X86.name(blocked) + ", %rax");
+					for (int k = 0; k < from.size(); k++) {
+						if (from.get(k) == blocked) from.set(k, X86.RAX);
+					}
+				}
+			}
+			for (int k = 0; k < loads.size(); k++) {
+				emit(code, "movq " + addresses.get(k) + ", " + X86.name(loads.get(k)));
+			}
+		}
+
+		private boolean isRead(int reg) {
+			for (int k = 0; k < from.size(); k++) {
+				if (from.get(k) == reg) return true;
+			}
+			return false;
+		}
+
+		private void remove(int k) {
+			int last = to.size() - 1;
+			to.set(k, to.get(last));
+			from.set(k, from.get(last));
+			to.truncate(last);
+			from.truncate(last);
+		}
+	}
+}
@@ -0,0 +1,463 @@
+package decaf.codegen;
+
+import decaf.ir.BasicBlocks;
+import decaf.ir.IntList;
+import decaf.ir.IrMethod;
+import decaf.ir.Liveness;
+import decaf.ir.Op;
+
+/**
+ * A graph coloring register allocator, after Chaitin and Briggs with the
+ * iterated coalescing of George and Appel
+ *
+ * Two registers interfere when one is assigned where the other is live,
+ * but for a copy and its source, which can share a machine register. The
+ * graph is kept both as a bit matrix, for asking whether two registers
+ * interfere, and as lists of neighbours, for walking them. A register
+ * live across a call or callout can only have a callee saved machine
+ * register, so each has its own number of colors, k, and is trivially
+ * colorable when it has fewer than k neighbours.
+ *
+ * The graph is simplified by taking out the trivially colorable registers
+ * not joined by a copy, and the copies, including those Ssa.destruct put
+ * in for phis, coalesced by merging their source and destination when
+ * Briggs's test says the merged register could still be colored. When
+ * neither is possible a copy is frozen, given up on, and when no copy is
+ * left the register whose uses cost least for each neighbour, weighted by
+ * loop depth as for linear scan, is taken out as a possible spill. The
+ * registers are then colored in the reverse of the order they were taken
+ * out, the caller saved colors first, and a possible spill that finds no
+ * color left is spilled.
+ *
+ * A spilled register is kept in memory everywhere, rather than in short
+ * lived temporaries as Chaitin's rewriting would have it, as the code
+ * generator reads and writes it there through its scratch registers
+ * without needing another color, so one round of coloring is enough.
+ *
+ * The bit matrix grows with the square of a method's registers, so a
+ * method with too many for it, as lowering a very long main can give, is
+ * left to linear scan.
+ *
+ * @author Miles Schofield
+ */
+public class GraphColoring implements RegisterAllocator {
+
+	// Where each register is in the algorithm
+	private static final int INITIAL = 0;
+	private static final int SIMPLIFY = 1;
+	private static final int FREEZE = 2;
+	private static final int SPILL = 3;
+	private static final int COALESCED = 4;
+	private static final int STACK = 5;
+	private static final int COLORED = 6;
+	private static final int SPILLED = 7;
+
+	/** The most bits the interference matrix may have, 32 megabytes of them */
+	private static final long MAX_MATRIX = 1L << 28;
+
+	// Where each copy is in the algorithm
+	private static final int WORKLIST = 0;
+	private static final int ACTIVE = 1;
+	private static final int MERGED = 2;
+	private static final int CONSTRAINED = 3;
+	private static final int FROZEN = 4;
+
+	private IrMethod method;
+	private int regs;
+	/** The lower triangle of the interference matrix, a bit for each pair */
+	private long[] matrix;
+	private IntList[] neighbours;
+	private int[] degree;
+	/** The machine registers each register may be given, a bit for each */
+	private int[] allowed;
+	private int[] state;
+	private int[] alias;
+	private int[] color;
+	private double[] cost;
+
+	// The copies, by the registers they copy between
+	private IntList moveSource;
+	private IntList moveDestination;
+	private IntList moveState;
+	/** The copies each register is copied to or from */
+	private IntList[] moves;
+
+	private IntList simplifyWorklist;
+	private IntList freezeWorklist;
+	private IntList spillWorklist;
+	private IntList moveWorklist;
+	private IntList stack;
+
+	@Override
+	public String getName() {
+		return "graph coloring";
+	}
+
+	@Override
+	public Allocation allocate(LiveIntervals intervals) {
+		method = intervals.getMethod();
+		regs = method.regCount();
+		if ((long) regs * (regs - 1) / 2 > MAX_MATRIX) return new LinearScan().allocate(intervals);
+		matrix = new long[(int) (((long) regs * (regs - 1) / 2 + 63) / 64)];
+		neighbours = new IntList[regs];
+		degree = new int[regs];
+		allowed = new int[regs];
+		state = new int[regs];
+		alias = new int[regs];
+		color = new int[regs];
+		cost = new double[regs];
+		moveSource = new IntList();
+		moveDestination = new IntList();
+		moveState = new IntList();
+		moves = new IntList[regs];
+		simplifyWorklist = new IntList();
+		freezeWorklist = new IntList();
+		spillWorklist = new IntList();
+		moveWorklist = new IntList();
+		stack = new IntList();
+
+		int all = 0;
+		int calleeSaved = 0;
+		for (int machine : X86.ALLOCATABLE) {
+			all |= 1 << machine;
+			if (X86.isCalleeSaved(machine)) calleeSaved |= 1 << machine;
+		}
+		for (int reg = 0; reg < regs; reg++) {
+			allowed[reg] = all;
+			alias[reg] = reg;
+			color[reg] = X86.MEMORY;
+			for (int k = 0; k < intervals.useCount(reg); k++) cost[reg] += intervals.useWeight(reg, k);
+		}
+		build(intervals.getLiveness(), calleeSaved);
+
+		for (int reg = 0; reg < regs; reg++) {
+			if (!intervals.isLive(reg)) continue;
+			if (degree[reg] >= k(reg)) setState(reg, SPILL);
+			else setState(reg, isMoveRelated(reg) ? FREEZE : SIMPLIFY);
+		}
+		while (true) {
+			if (!simplifyWorklist.isEmpty()) simplify();
+			else if (!moveWorklist.isEmpty()) coalesce();
+			else if (!freezeWorklist.isEmpty()) freeze();
+			else if (!spillWorklist.isEmpty()) selectSpill();
+			else break;
+		}
+		assignColors();
+
+		Allocation allocation = new Allocation(regs);
+		for (int reg = 0; reg < regs; reg++) {
+			if (intervals.isLive(reg)) allocation.assign(reg, intervals.start(reg), color[find(reg)]);
+		}
+		int coalesced = 0;
+		for (int move = 0; move < moveState.size(); move++) {
+			if (moveState.get(move) == MERGED) coalesced++;
+		}
+		allocation.setCoalesced(coalesced);
+		return allocation;
+	}
+
+	/**
+	 * Builds the interference graph and finds the copies, walking back
+	 * through each block from the registers live out of it
+	 */
+	private void build(Liveness liveness, int calleeSaved) {
+		BasicBlocks blocks = liveness.getBlocks();
+		// The live registers, as a sparse set: members in order, and the index of each
+		int[] members = new int[regs];
+		int[] index = new int[regs];
+		int size = 0;
+		for (int block = 0; block < blocks.size(); block++) {
+			size = 0;
+			for (int reg : liveness.liveOut(block)) {
+				index[reg] = size;
+				members[size++] = reg;
+			}
+			for (int i = blocks.end(block) - 1; i >= blocks.start(block); i--) {
+				int op = method.op(i);
+				int dst = method.dst(i);
+				boolean copy = op == Op.COPY;
+				if (copy) {
+					int move = moveSource.size();
+					moveSource.add(method.a(i));
+					moveDestination.add(dst);
+					moveState.add(WORKLIST);
+					addMove(method.a(i), move);
+					addMove(dst, move);
+				}
+				if (dst >= 0) {
+					for (int k = 0; k < size; k++) {
+						if (members[k] != dst && !(copy && members[k] == method.a(i))) addEdge(dst, members[k]);
+					}
+					if (isMember(dst, members, index, size)) {
+						int last = members[--size];
+						members[index[dst]] = last;
+						index[last] = index[dst];
+					}
+				}
+				// What is still live after a call must survive it
+				if (op == Op.CALL || op == Op.CALLOUT) {
+					for (int k = 0; k < size; k++) allowed[members[k]] &= calleeSaved;
+				}
+				for (int k = 0; k < method.useCount(i); k++) {
+					int use = method.use(i, k);
+					if (isMember(use, members, index, size)) continue;
+					index[use] = size;
+					members[size++] = use;
+				}
+			}
+			// The parameters, and anything read before it is assigned, are all there on entry
+			if (block == 0) {
+				for (int k = 0; k < size; k++) {
+					for (int l = 0; l < k; l++) addEdge(members[k], members[l]);
+				}
+			}
+		}
+		for (int move = 0; move < moveState.size(); move++) moveWorklist.add(move);
+	}
+
+	private static boolean isMember(int reg, int[] members, int[] index, int size) {
+		return index[reg] < size && members[index[reg]] == reg;
+	}
+
+	private void addMove(int reg, int move) {
+		if (moves[reg] == null) moves[reg] = new IntList(2);
+		moves[reg].add(move);
+	}
+
+	private long bit(int u, int v) {
+		return u > v ? (long) u * (u - 1) / 2 + v : (long) v * (v - 1) / 2 + u;
+	}
+
+	private boolean interferes(int u, int v) {
+		long bit = bit(u, v);
+		return (matrix[(int) (bit >>> 6)] & 1L << bit) != 0;
+	}
+
+	private void addEdge(int u, int v) {
+		if (u == v || interferes(u, v)) return;
+		long bit = bit(u, v);
+		matrix[(int) (bit >>> 6)] |= 1L << bit;
+		if (neighbours[u] == null) neighbours[u] = new IntList(4);
+		if (neighbours[v] == null) neighbours[v] = new IntList(4);
+		neighbours[u].add(v);
+		neighbours[v].add(u);
+		degree[u]++;
+		degree[v]++;
+	}
+
+	/**
+	 * @return int the number of colors a register may have
+	 */
+	private int k(int reg) {
+		return Integer.bitCount(allowed[reg]);
+	}
+
+	/**
+	 * Lets a register waiting on its copies be simplified once none is left
+	 */
+	private void addWorklist(int reg) {
+		if (state[reg] == FREEZE && !isMoveRelated(reg) && degree[reg] < k(reg)) setState(reg, SIMPLIFY);
+	}
+
+	private void setState(int reg, int to) {
+		state[reg] = to;
+		if (to == SIMPLIFY) simplifyWorklist.add(reg);
+		else if (to == FREEZE) freezeWorklist.add(reg);
+		else if (to == SPILL) spillWorklist.add(reg);
+	}
+
+	/**
+	 * @return int the next register on a worklist still in the state it
+	 * was put there in, or -1. Registers are left on a worklist when they
+	 * move to another, and skipped here.
+	 */
+	private int take(IntList worklist, int wanted) {
+		while (!worklist.isEmpty()) {
+			int reg = worklist.pop();
+			if (state[reg] == wanted) return reg;
+		}
+		return -1;
+	}
+
+	private boolean isMoveRelated(int reg) {
+		if (moves[reg] == null) return false;
+		for (int k = 0; k < moves[reg].size(); k++) {
+			int status = moveState.get(moves[reg].get(k));
+			if (status == WORKLIST || status == ACTIVE) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return boolean True for a register still in the graph
+	 */
+	private boolean isPresent(int reg) {
+		return state[reg] != STACK && state[reg] != COALESCED;
+	}
+
+	private void simplify() {
+		int reg = take(simplifyWorklist, SIMPLIFY);
+		if (reg < 0) return;
+		state[reg] = STACK;
+		stack.add(reg);
+		if (neighbours[reg] == null) return;
+		for (int k = 0; k < neighbours[reg].size(); k++) {
+			int neighbour = neighbours[reg].get(k);
+			if (isPresent(neighbour)) decrementDegree(neighbour);
+		}
+	}
+
+	private void decrementDegree(int reg) {
+		if (degree[reg]-- != k(reg)) return;
+		// Just become trivially colorable: copies into it, and its neighbours, may now coalesce
+		enableMoves(reg);
+		if (neighbours[reg] != null) {
+			for (int k = 0; k < neighbours[reg].size(); k++) {
+				if (isPresent(neighbours[reg].get(k))) enableMoves(neighbours[reg].get(k));
+			}
+		}
+		if (state[reg] == SPILL) setState(reg, isMoveRelated(reg) ? FREEZE : SIMPLIFY);
+	}
+
+	private void enableMoves(int reg) {
+		if (moves[reg] == null) return;
+		for (int k = 0; k < moves[reg].size(); k++) {
+			int move = moves[reg].get(k);
+			if (moveState.get(move) == ACTIVE) {
+				moveState.set(move, WORKLIST);
+				moveWorklist.add(move);
+			}
+		}
+	}
+
+	private int find(int reg) {
+		while (state[reg] == COALESCED) reg = alias[reg];
+		return reg;
+	}
+
+	private void coalesce() {
+		int move = moveWorklist.pop();
+		if (moveState.get(move) != WORKLIST) return;
+		int u = find(moveSource.get(move));
+		int v = find(moveDestination.get(move));
+		if (u == v) {
+			moveState.set(move, MERGED);
+			addWorklist(u);
+		} else if (interferes(u, v)) {
+			moveState.set(move, CONSTRAINED);
+			addWorklist(u);
+			addWorklist(v);
+		} else if (isConservative(u, v)) {
+			moveState.set(move, MERGED);
+			combine(u, v);
+			addWorklist(u);
+		} else {
+			moveState.set(move, ACTIVE);
+		}
+	}
+
+	/**
+	 * Briggs's test: merging two registers cannot make the graph harder
+	 * to color if the merged register would have fewer neighbours of
+	 * significant degree than it would have colors
+	 */
+	private boolean isConservative(int u, int v) {
+		int colors = Integer.bitCount(allowed[u] & allowed[v]);
+		int significant = 0;
+		for (int reg = u; ; reg = v) {
+			if (neighbours[reg] != null) {
+				for (int k = 0; k < neighbours[reg].size(); k++) {
+					int neighbour = neighbours[reg].get(k);
+					if (!isPresent(neighbour)) continue;
+					// A neighbour of both is counted once, from u
+					if (reg == v && interferes(neighbour, u)) continue;
+					if (degree[neighbour] >= k(neighbour) && ++significant >= colors) return false;
+				}
+			}
+			if (reg == v) return true;
+		}
+	}
+
+	private void combine(int u, int v) {
+		state[v] = COALESCED;
+		alias[v] = u;
+		if (moves[v] != null) {
+			for (int k = 0; k < moves[v].size(); k++) addMove(u, moves[v].get(k));
+		}
+		enableMoves(v);
+		allowed[u] &= allowed[v];
+		cost[u] += cost[v];
+		if (neighbours[v] != null) {
+			for (int k = 0; k < neighbours[v].size(); k++) {
+				int neighbour = neighbours[v].get(k);
+				if (!isPresent(neighbour)) continue;
+				addEdge(neighbour, u);
+				decrementDegree(neighbour);
+			}
+		}
+		if (degree[u] >= k(u) && state[u] == FREEZE) setState(u, SPILL);
+	}
+
+	private void freeze() {
+		int reg = take(freezeWorklist, FREEZE);
+		if (reg < 0) return;
+		setState(reg, SIMPLIFY);
+		freezeMoves(reg);
+	}
+
+	private void freezeMoves(int reg) {
+		if (moves[reg] == null) return;
+		for (int k = 0; k < moves[reg].size(); k++) {
+			int move = moves[reg].get(k);
+			int status = moveState.get(move);
+			if (status != WORKLIST && status != ACTIVE) continue;
+			moveState.set(move, FROZEN);
+			int other = find(moveSource.get(move)) == find(reg) ? moveDestination.get(move) : moveSource.get(move);
+			addWorklist(find(other));
+		}
+	}
+
+	/**
+	 * Takes out the register on the spill worklist whose uses cost least
+	 * for each of its neighbours
+	 */
+	private void selectSpill() {
+		int best = -1;
+		for (int k = 0; k < spillWorklist.size(); k++) {
+			int reg = spillWorklist.get(k);
+			if (state[reg] != SPILL) continue;
+			if (best < 0 || cost[reg] / degree[reg] < cost[best] / degree[best]) best = reg;
+		}
+		// Drop the registers that have left the worklist, and the one chosen
+		IntList kept = new IntList(spillWorklist.size());
+		for (int k = 0; k < spillWorklist.size(); k++) {
+			int reg = spillWorklist.get(k);
+			if (state[reg] == SPILL && reg != best) kept.add(reg);
+		}
+		spillWorklist = kept;
+		if (best < 0) return;
+		setState(best, SIMPLIFY);
+		freezeMoves(best);
+	}
+
+	private void assignColors() {
+		while (!stack.isEmpty()) {
+			int reg = stack.pop();
+			int free = allowed[reg];
+			if (neighbours[reg] != null) {
+				for (int k = 0; k < neighbours[reg].size(); k++) {
+					int neighbour = find(neighbours[reg].get(k));
+					if (state[neighbour] == COLORED) free &= ~(1 << color[neighbour]);
+				}
+			}
+			state[reg] = SPILLED;
+			for (int machine : X86.ALLOCATABLE) {
+				if ((free & 1 << machine) != 0) {
+					state[reg] = COLORED;
+					color[reg] = machine;
+					break;
+				}
+			}
+		}
+	}
+}
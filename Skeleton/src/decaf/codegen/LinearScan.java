@@ -0,0 +1,149 @@
+package decaf.codegen;
+
+import decaf.ir.IntList;
+
+/**
+ * A linear scan register allocator with interval splitting
+ *
+ * Follows Poletto and Sarkar, with the splitting of Wimmer and Moessenboeck
+ * cut down to what needs no search. Intervals are taken in order of their
+ * starts, kept in a bucket for each position rather than sorted, and each
+ * is given a free machine register if there is one: a callee saved one if
+ * the interval is live across a call, otherwise a caller saved one, so the
+ * callee saved registers, which cost a save and restore, are kept for the
+ * values that need them.
+ *
+ * A value in a caller saved register that is live across a call is split
+ * there, going to memory for the call, with what is left of its interval
+ * starting again from its next use after the call. When no register is
+ * free, the interval whose next use is cheapest to reload from memory is
+ * split, by the weight of that use, which grows tenfold with each loop it
+ * is in; between equal weights, the one used furthest away goes. It stays
+ * in memory until its next use, where it is allocated again. Every piece
+ * made starts at a use of its register, so there are at most as many as
+ * uses, and at each position the allocator looks at no more than the
+ * machine registers, so allocation takes time linear in the size of the
+ * method.
+ *
+ * @author Miles Schofield
+ */
+public class LinearScan implements RegisterAllocator {
+
+	private LiveIntervals intervals;
+	private Allocation allocation;
+	/** The registers whose pieces start at each position */
+	private IntList[] buckets;
+	/** The register each machine register holds, -1 for none */
+	private int[] owners;
+	/** How far through its uses each register's allocation has got */
+	private int[] cursors;
+
+	@Override
+	public String getName() {
+		return "linear scan";
+	}
+
+	@Override
+	public Allocation allocate(LiveIntervals intervals) {
+		this.intervals = intervals;
+		int regs = intervals.getMethod().regCount();
+		int positions = intervals.positions();
+		allocation = new Allocation(regs);
+		buckets = new IntList[positions + 1];
+		owners = new int[16];
+		java.util.Arrays.fill(owners, -1);
+		cursors = new int[regs];
+		for (int reg = 0; reg < regs; reg++) {
+			if (intervals.isLive(reg)) add(reg, intervals.start(reg));
+		}
+
+		for (int position = 0; position < positions; position++) {
+			// Free the registers of intervals that have ended
+			for (int machine : X86.ALLOCATABLE) {
+				if (owners[machine] >= 0 && intervals.end(owners[machine]) < position) owners[machine] = -1;
+			}
+			if (buckets[position] != null) {
+				IntList bucket = buckets[position];
+				for (int k = 0; k < bucket.size(); k++) allocate(bucket.get(k), position);
+				buckets[position] = null;
+			}
+			if (intervals.nextCall(position) == position) {
+				for (int machine : X86.ALLOCATABLE) {
+					int owner = owners[machine];
+					if (owner >= 0 && !X86.isCalleeSaved(machine) && intervals.end(owner) > position) {
+						owners[machine] = -1;
+						spill(owner, position + 1, position);
+					}
+				}
+			}
+		}
+		return allocation;
+	}
+
+	private void add(int reg, int position) {
+		if (buckets[position] == null) buckets[position] = new IntList(2);
+		buckets[position].add(reg);
+	}
+
+	private void allocate(int reg, int position) {
+		boolean acrossCall = intervals.nextCall(position) < intervals.end(reg);
+		int free = -1;
+		for (int machine : X86.ALLOCATABLE) {
+			if (owners[machine] >= 0) continue;
+			if (free < 0 || X86.isCalleeSaved(machine) == acrossCall && X86.isCalleeSaved(free) != acrossCall) free = machine;
+		}
+		if (free >= 0) {
+			owners[free] = reg;
+			allocation.assign(reg, position, free);
+			return;
+		}
+
+		// No register is free: the cheapest to reload, of this one and those in registers, goes to memory
+		int victim = -1;
+		for (int machine : X86.ALLOCATABLE) {
+			if (victim < 0 || isCheaper(owners[machine], owners[victim], position)) victim = machine;
+		}
+		if (!isCheaper(owners[victim], reg, position)) {
+			spill(reg, position, position);
+			return;
+		}
+		int spilled = owners[victim];
+		owners[victim] = reg;
+		allocation.assign(reg, position, victim);
+		spill(spilled, position, position);
+	}
+
+	/**
+	 * Puts a register in memory from a position on, until its first use after another
+	 */
+	private void spill(int reg, int position, int after) {
+		allocation.assign(reg, position, X86.MEMORY);
+		int next = nextUse(reg, after + 1);
+		if (next >= 0) add(reg, intervals.usePosition(reg, next));
+	}
+
+	/**
+	 * @return boolean True if a is cheaper to have in memory from a position than b
+	 */
+	private boolean isCheaper(int a, int b, int position) {
+		int nextA = nextUse(a, position);
+		int nextB = nextUse(b, position);
+		if (nextA < 0 || nextB < 0) return nextA < 0 && nextB >= 0;
+		int weightA = intervals.useWeight(a, nextA);
+		int weightB = intervals.useWeight(b, nextB);
+		if (weightA != weightB) return weightA < weightB;
+		return intervals.usePosition(a, nextA) > intervals.usePosition(b, nextB);
+	}
+
+	/**
+	 * @return int the index of a register's first use at or after a
+	 * position, or -1 if there is none. Positions only ever grow, so the
+	 * search carries on from where it last stopped.
+	 */
+	private int nextUse(int reg, int position) {
+		int k = cursors[reg];
+		while (k < intervals.useCount(reg) && intervals.usePosition(reg, k) < position) k++;
+		cursors[reg] = k;
+		return k < intervals.useCount(reg) ? k : -1;
+	}
+}
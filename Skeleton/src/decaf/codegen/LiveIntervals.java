@@ -0,0 +1,169 @@
+package decaf.codegen;
+
+import java.util.Arrays;
+
+import decaf.ir.BasicBlocks;
+import decaf.ir.Dominators;
+import decaf.ir.IntList;
+import decaf.ir.IrMethod;
+import decaf.ir.Liveness;
+import decaf.ir.Loops;
+import decaf.ir.Op;
+
+/**
+ * The live interval of each register of a method out of SSA form
+ *
+ * Instructions are numbered in the order they are laid out, each taking
+ * two positions: its operands are read at the even one, 2i, and its
+ * result written at the odd one after, so a register last read by an
+ * instruction can hold that instruction's result. A register's interval
+ * runs from the first position it is live at to the last, over the blocks
+ * it is live into or out of as Liveness finds and the instructions reading
+ * and assigning it, ignoring the holes between. Each read and assignment
+ * is kept with a weight of ten to the power of how many loops it is in,
+ * which the allocators use as the cost of keeping the register in memory
+ * there.
+ *
+ * @author Miles Schofield
+ */
+public class LiveIntervals {
+
+	/** Loops nested deeper than this weigh no more, so weights stay ints */
+	private static final int MAX_DEPTH = 6;
+
+	private final IrMethod method;
+	private final BasicBlocks blocks;
+	private final Liveness liveness;
+	private final int[] starts;
+	private final int[] ends;
+	/** The positions each register is read or assigned at, in order, and their weights */
+	private final IntList[] uses;
+	private final IntList[] weights;
+	/** The first position of a call at or after each position, or Integer.MAX_VALUE */
+	private final int[] nextCall;
+
+	/**
+	 * @param method IrMethod out of SSA form and in normal form
+	 */
+	public LiveIntervals(IrMethod method) {
+		this.method = method;
+		blocks = new BasicBlocks(method);
+		liveness = new Liveness(blocks);
+		Loops loops = new Loops(new Dominators(blocks));
+		int regs = method.regCount();
+		starts = new int[regs];
+		ends = new int[regs];
+		Arrays.fill(starts, -1);
+		Arrays.fill(ends, -1);
+		uses = new IntList[regs];
+		weights = new IntList[regs];
+
+		for (int block = 0; block < blocks.size(); block++) {
+			int loop = loops.loopOf(block);
+			int weight = 1;
+			for (int depth = loop < 0 ? 0 : Math.min(loops.depth(loop), MAX_DEPTH); depth > 0; depth--) weight *= 10;
+			for (int reg : liveness.liveIn(block)) extend(reg, blockStart(block));
+			for (int reg : liveness.liveOut(block)) extend(reg, blockEnd(block));
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				for (int k = 0; k < method.useCount(i); k++) use(method.use(i, k), 2 * i, weight);
+				if (method.dst(i) >= 0) use(method.dst(i), 2 * i + 1, weight);
+			}
+		}
+
+		nextCall = new int[positions() + 1];
+		nextCall[positions()] = Integer.MAX_VALUE;
+		for (int position = positions() - 1; position >= 0; position--) {
+			int op = method.op(position / 2);
+			boolean call = position % 2 == 0 && (op == Op.CALL || op == Op.CALLOUT);
+			nextCall[position] = call ? position : nextCall[position + 1];
+		}
+	}
+
+	private void extend(int reg, int position) {
+		if (starts[reg] < 0 || position < starts[reg]) starts[reg] = position;
+		if (position > ends[reg]) ends[reg] = position;
+	}
+
+	private void use(int reg, int position, int weight) {
+		extend(reg, position);
+		if (uses[reg] == null) {
+			uses[reg] = new IntList(4);
+			weights[reg] = new IntList(4);
+		}
+		// A register read twice by one instruction is one use
+		if (!uses[reg].isEmpty() && uses[reg].last() == position) return;
+		uses[reg].add(position);
+		weights[reg].add(weight);
+	}
+
+	public IrMethod getMethod() {
+		return method;
+	}
+
+	public BasicBlocks getBlocks() {
+		return blocks;
+	}
+
+	public Liveness getLiveness() {
+		return liveness;
+	}
+
+	/**
+	 * @return int the number of positions, two for each instruction
+	 */
+	public int positions() {
+		return 2 * method.size();
+	}
+
+	/**
+	 * @return int the position of a block's label
+	 */
+	public int blockStart(int block) {
+		return 2 * blocks.start(block);
+	}
+
+	/**
+	 * @return int the last position of a block, after its terminator
+	 */
+	public int blockEnd(int block) {
+		return 2 * blocks.end(block) - 1;
+	}
+
+	/**
+	 * @return boolean True if a register is ever live, so needs a location
+	 */
+	public boolean isLive(int reg) {
+		return starts[reg] >= 0;
+	}
+
+	public int start(int reg) {
+		return starts[reg];
+	}
+
+	public int end(int reg) {
+		return ends[reg];
+	}
+
+	/**
+	 * @return int the number of positions a register is read or assigned at
+	 */
+	public int useCount(int reg) {
+		return uses[reg] == null ? 0 : uses[reg].size();
+	}
+
+	public int usePosition(int reg, int k) {
+		return uses[reg].get(k);
+	}
+
+	public int useWeight(int reg, int k) {
+		return weights[reg].get(k);
+	}
+
+	/**
+	 * @return int the position of the first call at or after a position, or
+	 * Integer.MAX_VALUE if there is none
+	 */
+	public int nextCall(int position) {
+		return nextCall[Math.min(position, nextCall.length - 1)];
+	}
+}
@@ -0,0 +1,450 @@
+package decaf.codegen;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import decaf.ir.IntList;
+
+/**
+ * Rewrites the assembly the code generator writes a few instructions at a
+ * time, where an instruction or two written for one IR instruction is
+ * wasted next to those written for the next
+ *
+ * The patterns are a table, each looking at a window of at most three
+ * instructions starting at a line and rewriting them if it matches: a
+ * register moved to itself, an argument pushed and popped straight into
+ * its register, or a push moved past the moves after it until it meets
+ * its pop, a slot reloaded just after it was stored, a comparison with 0
+ * made a test, or dropped where the instruction before left the flags the
+ * branch after reads, a jump to the next line or over one, a jump to a
+ * jump sent on to where that one goes, code after a jump that nothing
+ * reaches and labels that nothing jumps to. The labels between a jump and
+ * its target are looked through, as they add no instructions.
+ *
+ * A line is looked at again whenever a line after it in its window changes,
+ * as are the jumps to a label whose first instruction changes, so the
+ * rewriting carries on from a worklist until no pattern matches anywhere.
+ * Every rewrite removes an instruction but moving a push, which only ever
+ * goes down, and sending a jump on, which only ever goes further along the
+ * jumps, so each line is looked at a bounded number of times and the whole
+ * takes time linear in the size of the code. How many times each pattern
+ * matched is kept for -debug.
+ *
+ * @author Miles Schofield
+ */
+public class Peephole {
+
+	private static final int INSTRUCTION = 0;
+	private static final int LABEL = 1;
+	private static final int OTHER = 2;
+
+	/** The conditional jumps and the ones jumping when they do not */
+	private static final String[][] NEGATED = { { "je", "jne" }, { "jl", "jge" }, { "jle", "jg" }, { "jb", "jae" },
+			{ "jbe", "ja" }, { "js", "jns" } };
+
+	/** A rewrite of the instructions starting at a line */
+	private abstract static class Pattern {
+
+		private final String name;
+
+		Pattern(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return boolean True if the pattern matched at the line, which is
+		 *         then rewritten
+		 */
+		abstract boolean apply(Peephole code, int line);
+	}
+
+	private static final Pattern[] PATTERNS = {
+		new Pattern("unused label") {
+			boolean apply(Peephole code, int line) {
+				if (code.kind[line] != LABEL || !isLocal(code.label[line])) return false;
+				if (code.references(code.label[line]) > 0) return false;
+				code.delete(line);
+				return true;
+			}
+		},
+		new Pattern("unreachable code") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "jmp") && !code.is(line, "ret")) return false;
+				int next = code.next[line];
+				if (next < 0 || code.kind[next] != INSTRUCTION) return false;
+				code.delete(next);
+				return true;
+			}
+		},
+		new Pattern("jump to next") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "jmp") && negate(code.mnemonic(line)) == null) return false;
+				if (!code.labelled(code.next[line], code.operand(line, 0))) return false;
+				code.delete(line);
+				return true;
+			}
+		},
+		new Pattern("jump to jump") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "jmp") && negate(code.mnemonic(line)) == null) return false;
+				String target = code.operand(line, 0);
+				Integer at = code.labelAt.get(target);
+				if (at == null) return false;
+				int first = code.skipLabels(at.intValue());
+				if (!code.is(first, "jmp")) return false;
+				String onward = code.operand(first, 0);
+				if (onward.equals(target) || !code.labelAt.containsKey(onward)) return false;
+				code.replace(line, code.mnemonic(line), onward);
+				return true;
+			}
+		},
+		new Pattern("branch over jump") {
+			boolean apply(Peephole code, int line) {
+				String negated = negate(code.mnemonic(line));
+				if (negated == null) return false;
+				int jump = code.next[line];
+				if (!code.is(jump, "jmp") || !code.labelled(code.next[jump], code.operand(line, 0))) return false;
+				code.replace(line, negated, code.operand(jump, 0));
+				code.delete(jump);
+				return true;
+			}
+		},
+		new Pattern("push and pop") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "pushq")) return false;
+				int pop = code.next[line];
+				if (!code.is(pop, "popq")) return false;
+				String from = code.operand(line, 0);
+				String to = code.operand(pop, 0);
+				if (register(from) < 0 && register(to) < 0) return false;
+				if (from.equals(to)) code.delete(line);
+				else code.replace(line, "movq", from, to);
+				code.delete(pop);
+				return true;
+			}
+		},
+		new Pattern("push past move") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "pushq")) return false;
+				int move = code.next[line];
+				if (!code.is(move, "movq") && !code.is(move, "movl")) return false;
+				String pushed = code.operand(line, 0);
+				String from = code.operand(move, 0);
+				int to = register(code.operand(move, 1));
+				if (to < 0 || mentions(pushed, to) || mentions(pushed, X86.RSP) || mentions(from, X86.RSP)
+						|| to == X86.RSP) {
+					return false;
+				}
+				code.replace(line, code.mnemonic(move), from, code.operand(move, 1));
+				code.replace(move, "pushq", pushed);
+				return true;
+			}
+		},
+		new Pattern("store and load") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "movq") && !code.is(line, "movl")) return false;
+				int load = code.next[line];
+				if (!code.is(load, "movq") && !code.is(load, "movl")) return false;
+				String slot = code.operand(line, 1);
+				int stored = register(code.operand(line, 0));
+				int to = register(code.operand(load, 1));
+				if (stored < 0 || to < 0 || slot.indexOf('(') < 0 || !slot.equals(code.operand(load, 0))) return false;
+				boolean whole = code.is(load, "movq");
+				// A 32 bit store leaves the upper half of the slot as it was
+				if (whole && !code.is(line, "movq")) return false;
+				if (whole && stored == to) code.delete(load);
+				else if (whole) code.replace(load, "movq", X86.name(stored), X86.name(to));
+				else code.replace(load, "movl", X86.name32(stored), X86.name32(to));
+				return true;
+			}
+		},
+		new Pattern("move to itself") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "movq") || !code.operand(line, 0).equals(code.operand(line, 1))) return false;
+				// A movl to itself is kept, as it clears the upper half
+				code.delete(line);
+				return true;
+			}
+		},
+		new Pattern("compare with zero") {
+			boolean apply(Peephole code, int line) {
+				if (!code.is(line, "cmpl") || !code.operand(line, 0).equals("$0")) return false;
+				String value = code.operand(line, 1);
+				if (register(value) < 0) return false;
+				code.replace(line, "testl", value, value);
+				return true;
+			}
+		},
+		new Pattern("flags kept") {
+			boolean apply(Peephole code, int line) {
+				String mnemonic = code.mnemonic(line);
+				if (mnemonic == null || !(mnemonic.equals("addl") || mnemonic.equals("subl") || mnemonic.equals("andl")
+						|| mnemonic.equals("orl") || mnemonic.equals("xorl"))) {
+					return false;
+				}
+				String result = code.operand(line, 1);
+				int test = code.next[line];
+				if (!code.is(test, "testl") || !code.operand(test, 0).equals(result)
+						|| !code.operand(test, 1).equals(result)) {
+					return false;
+				}
+				// The arithmetic sets the zero flag as the test would, but not the others
+				int branch = code.next[test];
+				if (!code.is(branch, "je") && !code.is(branch, "jne")) return false;
+				code.delete(test);
+				return true;
+			}
+		},
+	};
+
+	private static final int WINDOW = 3;
+
+	private final String[] text;
+	private final int[] kind;
+	private final String[] mnemonic;
+	private final String[][] operands;
+	private final String[] label;
+	private final int[] next;
+	private final int[] previous;
+	private final Map<String, Integer> labelAt = new HashMap<String, Integer>();
+	private final Map<String, int[]> references = new HashMap<String, int[]>();
+	/** The lines jumping to each label, some of which may since jump elsewhere */
+	private final Map<String, IntList> jumps = new HashMap<String, IntList>();
+	private final IntList work = new IntList();
+	private final boolean[] queued;
+	private final int[] hits = new int[PATTERNS.length];
+
+	/**
+	 * Splits assembly into its lines, finding each instruction's mnemonic
+	 * and operands and each label's name
+	 */
+	public Peephole(String assembly) {
+		text = assembly.split("\n", -1);
+		int n = text.length;
+		kind = new int[n];
+		mnemonic = new String[n];
+		operands = new String[n][];
+		label = new String[n];
+		next = new int[n];
+		previous = new int[n];
+		queued = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			String line = text[i];
+			next[i] = i + 1 < n ? i + 1 : -1;
+			previous[i] = i - 1;
+			if (line.length() > 1 && line.charAt(0) == '\t' && line.charAt(1) != '.') {
+				kind[i] = INSTRUCTION;
+				int space = line.indexOf(' ');
+				mnemonic[i] = space < 0 ? line.substring(1) : line.substring(1, space);
+				operands[i] = space < 0 ? new String[0] : line.substring(space + 1).split(", ");
+			} else if (line.length() > 0 && line.charAt(0) != '\t' && line.endsWith(":")) {
+				kind[i] = LABEL;
+				label[i] = line.substring(0, line.length() - 1);
+				labelAt.put(label[i], Integer.valueOf(i));
+			} else {
+				kind[i] = OTHER;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (kind[i] == INSTRUCTION) count(i, 1);
+		}
+	}
+
+	/**
+	 * Rewrites the code until no pattern matches
+	 *
+	 * @return String the assembly rewritten
+	 */
+	public String run() {
+		for (int i = text.length - 1; i >= 0; i--) queue(i);
+		while (!work.isEmpty()) {
+			int line = work.pop();
+			queued[line] = false;
+			if (kind[line] < 0) continue;
+			for (int p = 0; p < PATTERNS.length; p++) {
+				if (PATTERNS[p].apply(this, line)) {
+					hits[p]++;
+					if (kind[line] >= 0) changed(line);
+					break;
+				}
+			}
+		}
+		StringBuilder out = new StringBuilder();
+		boolean first = true;
+		for (int i = 0; i < text.length; i++) {
+			if (kind[i] < 0) continue;
+			if (!first) out.append('\n');
+			out.append(text[i]);
+			first = false;
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return int How many rewrites were made
+	 */
+	public int rewrites() {
+		int total = 0;
+		for (int hit : hits) total += hit;
+		return total;
+	}
+
+	/**
+	 * Reports how many times each pattern matched
+	 */
+	public void report(PrintStream report) {
+		for (int p = 0; p < PATTERNS.length; p++) {
+			if (hits[p] > 0) report.println("peephole: " + PATTERNS[p].name + ": " + hits[p]);
+		}
+	}
+
+	private boolean is(int line, String name) {
+		return line >= 0 && kind[line] == INSTRUCTION && mnemonic[line].equals(name);
+	}
+
+	private String mnemonic(int line) {
+		return line >= 0 && kind[line] == INSTRUCTION ? mnemonic[line] : null;
+	}
+
+	/**
+	 * @return String an instruction's operand, or "" if it has no such operand
+	 */
+	private String operand(int line, int index) {
+		return index < operands[line].length ? operands[line][index] : "";
+	}
+
+	private int references(String name) {
+		int[] count = references.get(name);
+		return count == null ? 0 : count[0];
+	}
+
+	/**
+	 * @return int the first line from a line on that is not a label, or -1
+	 */
+	private int skipLabels(int line) {
+		while (line >= 0 && kind[line] == LABEL) line = next[line];
+		return line;
+	}
+
+	/**
+	 * @return boolean True if the label is among those starting at a line
+	 */
+	private boolean labelled(int line, String name) {
+		for (; line >= 0 && kind[line] == LABEL; line = next[line]) {
+			if (label[line].equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Counts the labels an instruction's operands name, as references or,
+	 * with -1, no longer
+	 */
+	private void count(int line, int by) {
+		for (String operand : operands[line]) {
+			if (!labelAt.containsKey(operand)) continue;
+			int[] count = references.get(operand);
+			if (count == null) references.put(operand, count = new int[1]);
+			count[0] += by;
+			if (by > 0) {
+				IntList from = jumps.get(operand);
+				if (from == null) jumps.put(operand, from = new IntList());
+				from.add(line);
+			} else if (count[0] == 0) {
+				queue(labelAt.get(operand).intValue());
+			}
+		}
+	}
+
+	/**
+	 * Makes a line a new instruction
+	 */
+	private void replace(int line, String name, String... values) {
+		count(line, -1);
+		mnemonic[line] = name;
+		operands[line] = values;
+		StringBuilder instruction = new StringBuilder("\t").append(name);
+		for (int i = 0; i < values.length; i++) instruction.append(i == 0 ? " " : ", ").append(values[i]);
+		text[line] = instruction.toString();
+		count(line, 1);
+		changed(line);
+	}
+
+	/**
+	 * Takes a line out of the code, looking again at those it was between
+	 */
+	private void delete(int line) {
+		if (kind[line] == INSTRUCTION) count(line, -1);
+		if (kind[line] == LABEL) labelAt.remove(label[line]);
+		kind[line] = -1;
+		int before = previous[line];
+		int after = next[line];
+		if (before >= 0) next[before] = after;
+		if (after >= 0) previous[after] = before;
+		if (after >= 0) changed(after);
+		else if (before >= 0) changed(before);
+	}
+
+	/**
+	 * Queues a line that changed, with the lines whose windows reach it
+	 * and the jumps to the labels right before it
+	 */
+	private void changed(int line) {
+		queue(line);
+		int instructions = 0;
+		for (int i = previous[line]; i >= 0 && instructions < WINDOW - 1; i = previous[i]) {
+			queue(i);
+			if (kind[i] != LABEL) instructions++;
+		}
+		for (int i = previous[line]; i >= 0 && kind[i] == LABEL; i = previous[i]) {
+			IntList from = jumps.get(label[i]);
+			if (from == null) continue;
+			for (int k = 0; k < from.size(); k++) queue(from.get(k));
+		}
+	}
+
+	private void queue(int line) {
+		if (queued[line] || kind[line] < 0) return;
+		queued[line] = true;
+		work.add(line);
+	}
+
+	/**
+	 * @return boolean True for the labels the code generator makes inside
+	 *         methods, rather than those of methods and data
+	 */
+	private static boolean isLocal(String name) {
+		return name.length() > 2 && name.startsWith(".L") && Character.isDigit(name.charAt(2));
+	}
+
+	/**
+	 * @return String the conditional jump taken when one is not, or null if
+	 *         the mnemonic is not a conditional jump
+	 */
+	private static String negate(String jump) {
+		if (jump == null) return null;
+		for (String[] pair : NEGATED) {
+			if (pair[0].equals(jump)) return pair[1];
+			if (pair[1].equals(jump)) return pair[0];
+		}
+		return null;
+	}
+
+	/**
+	 * @return int the register an operand is, or -1 if it is not a register
+	 */
+	private static int register(String operand) {
+		for (int reg = 0; reg < 16; reg++) {
+			if (operand.equals(X86.name(reg)) || operand.equals(X86.name32(reg))) return reg;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return boolean True if an operand reads or is a register, whole or in part
+	 */
+	private static boolean mentions(String operand, int reg) {
+		return operand.contains(X86.name(reg)) || operand.contains(X86.name32(reg));
+	}
+}
@@ -0,0 +1,21 @@
+package decaf.codegen;
+
+/**
+ * Decides where the registers of a method are kept
+ *
+ * @author Miles Schofield
+ */
+public interface RegisterAllocator {
+
+	/**
+	 * @param intervals LiveIntervals of a method out of SSA form
+	 * @return Allocation giving every live register a location at every
+	 * position of its interval
+	 */
+	Allocation allocate(LiveIntervals intervals);
+
+	/**
+	 * @return String the allocator's name, for reports
+	 */
+	String getName();
+}
@@ -0,0 +1,72 @@
+package decaf.codegen;
+
+/**
+ * The x86-64 registers, numbered as the processor encodes them, and how
+ * the System V calling convention and the code generator use them
+ *
+ * rax, rdx and r11 are never allocated: the code generator keeps them as
+ * scratch registers for operands in memory, results of division and
+ * addressing, and every one is clobbered by calls anyway. rsp and rbp hold
+ * the stack and frame. The rest are allocated, the callee saved ones being
+ * kept for values live across calls, as the caller saved ones are not
+ * preserved by the methods and callouts called.
+ *
+ * @author Miles Schofield
+ */
+public final class X86 {
+
+	public static final int RAX = 0;
+	public static final int RCX = 1;
+	public static final int RDX = 2;
+	public static final int RBX = 3;
+	public static final int RSP = 4;
+	public static final int RBP = 5;
+	public static final int RSI = 6;
+	public static final int RDI = 7;
+	public static final int R8 = 8;
+	public static final int R9 = 9;
+	public static final int R10 = 10;
+	public static final int R11 = 11;
+	public static final int R12 = 12;
+	public static final int R13 = 13;
+	public static final int R14 = 14;
+	public static final int R15 = 15;
+
+	/** A location that is not a register: the value is in its stack slot */
+	public static final int MEMORY = -1;
+
+	/** The registers given to values, the caller saved ones first */
+	public static final int[] ALLOCATABLE = { RCX, RSI, RDI, R8, R9, R10, RBX, R12, R13, R14, R15 };
+
+	/** The registers the first six arguments of a call are passed in */
+	public static final int[] ARGUMENTS = { RDI, RSI, RDX, RCX, R8, R9 };
+
+	private static final String[] NAMES = { "rax", "rcx", "rdx", "rbx", "rsp", "rbp", "rsi", "rdi", "r8", "r9", "r10",
+			"r11", "r12", "r13", "r14", "r15" };
+	private static final String[] NAMES32 = { "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi", "r8d", "r9d",
+			"r10d", "r11d", "r12d", "r13d", "r14d", "r15d" };
+
+	private X86() {
+	}
+
+	/**
+	 * @return boolean True for the registers a method must give back as it found them
+	 */
+	public static boolean isCalleeSaved(int reg) {
+		return reg == RBX || reg == RBP || reg >= R12;
+	}
+
+	/**
+	 * @return String the assembler name of a whole register
+	 */
+	public static String name(int reg) {
+		return "%" + NAMES[reg];
+	}
+
+	/**
+	 * @return String the assembler name of a register's low 32 bits, which Decaf's ints use
+	 */
+	public static String name32(int reg) {
+		return "%" + NAMES32[reg];
+	}
+}
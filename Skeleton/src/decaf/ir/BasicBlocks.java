@@ -0,0 +1,219 @@
+package decaf.ir;
+
+import java.util.Arrays;
+
+/**
+ * The basic blocks of a method's IR and the edges between them
+ *
+ * Works on methods in normal form, in which every block starts with a LABEL
+ * and ends with its only terminator, every block can be reached and the
+ * first block, the entry, is never jumped to. Lowering gives methods in
+ * very nearly this form; normalize puts any method into it. Blocks are
+ * numbered in the order they appear in the method, so the entry is block 0.
+ *
+ * The graph is a view of the method's instructions as they stand, so a
+ * pass that adds or removes blocks or changes a terminator must build it
+ * again.
+ *
+ * @author Miles Schofield
+ */
+public class BasicBlocks {
+
+	private final IrMethod method;
+	/** Index of the LABEL starting each block, then the method's size */
+	private final int[] starts;
+	private final int[] labels;
+	/** Block each label starts, -1 for labels that start none */
+	private final int[] blockOfLabel;
+	private final int[][] successors;
+	private final int[][] predecessors;
+
+	/**
+	 * @param method IrMethod in normal form
+	 * @throws IllegalStateException if it is not
+	 */
+	public BasicBlocks(IrMethod method) {
+		this.method = method;
+		int count = 0;
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) == Op.LABEL) count++;
+		}
+		if (method.size() == 0 || method.op(0) != Op.LABEL) {
+			throw new IllegalStateException(method.getName() + " does not start with a label");
+		}
+		starts = new int[count + 1];
+		labels = new int[count];
+		blockOfLabel = new int[method.labelCount()];
+		Arrays.fill(blockOfLabel, -1);
+		int block = 0;
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) != Op.LABEL) continue;
+			starts[block] = i;
+			labels[block] = method.a(i);
+			blockOfLabel[method.a(i)] = block;
+			block++;
+		}
+		starts[count] = method.size();
+
+		successors = new int[count][];
+		int[] predecessorCounts = new int[count];
+		for (block = 0; block < count; block++) {
+			int last = starts[block + 1] - 1;
+			switch (method.op(last)) {
+			case Op.JUMP:
+				successors[block] = new int[] { blockOfLabel[method.a(last)] };
+				break;
+			case Op.BRANCH:
+				if (method.b(last) == method.c(last)) successors[block] = new int[] { blockOfLabel[method.b(last)] };
+				else successors[block] = new int[] { blockOfLabel[method.b(last)], blockOfLabel[method.c(last)] };
+				break;
+			case Op.RET:
+			case Op.TRAP:
+				successors[block] = new int[0];
+				break;
+			default:
+				throw new IllegalStateException(method.getName() + ": L" + labels[block] + " does not end in a terminator");
+			}
+			for (int successor : successors[block]) {
+				if (successor < 0) throw new IllegalStateException(method.getName() + ": jump to a missing label");
+				predecessorCounts[successor]++;
+			}
+		}
+		predecessors = new int[count][];
+		for (block = 0; block < count; block++) predecessors[block] = new int[predecessorCounts[block]];
+		Arrays.fill(predecessorCounts, 0);
+		for (block = 0; block < count; block++) {
+			for (int successor : successors[block]) predecessors[successor][predecessorCounts[successor]++] = block;
+		}
+	}
+
+	public IrMethod getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return int the number of blocks
+	 */
+	public int size() {
+		return labels.length;
+	}
+
+	/**
+	 * @return int the index of the LABEL starting a block
+	 */
+	public int start(int block) {
+		return starts[block];
+	}
+
+	/**
+	 * @return int the index after the block's last instruction, its terminator
+	 */
+	public int end(int block) {
+		return starts[block + 1];
+	}
+
+	public int label(int block) {
+		return labels[block];
+	}
+
+	/**
+	 * @return int the block a label starts, or -1 if it starts none
+	 */
+	public int blockOf(int label) {
+		return label < blockOfLabel.length ? blockOfLabel[label] : -1;
+	}
+
+	/**
+	 * @return int[] the blocks control can go to next, each once; for a BRANCH, the true block first
+	 */
+	public int[] successors(int block) {
+		return successors[block];
+	}
+
+	/**
+	 * @return int[] the blocks that can go to this one, each once
+	 */
+	public int[] predecessors(int block) {
+		return predecessors[block];
+	}
+
+	/**
+	 * Puts a method into normal form. Blocks that fall into the next are
+	 * given a JUMP, code after a terminator is given a label, a BRANCH to
+	 * the same label both ways becomes a JUMP, and the end of a method that
+	 * can be fallen off returns or traps as lowering would. Unreachable
+	 * blocks are dropped, along with the phi pairs that came from them,
+	 * and a new entry is added if the first block is jumped to.
+	 *
+	 * @param method IrMethod to rewrite
+	 */
+	public static void normalize(IrMethod method) {
+		IrMethod labelled = method.withoutCode();
+		boolean open = false;
+		for (int i = 0; i < method.size(); i++) {
+			int op = method.op(i);
+			if (op == Op.NOP) continue;
+			labelled.setLine(method.line(i));
+			if (op == Op.LABEL) {
+				if (open) labelled.emit(Op.JUMP, -1, method.a(i));
+				open = false;
+			} else if (!open) {
+				labelled.emit(Op.LABEL, -1, labelled.newLabel());
+			}
+			if (op == Op.BRANCH && method.b(i) == method.c(i)) labelled.emit(Op.JUMP, -1, method.b(i));
+			else labelled.emit(method, i);
+			open = !Op.isTerminator(op);
+		}
+		if (open || labelled.size() == 0) {
+			if (labelled.size() == 0) labelled.emit(Op.LABEL, -1, labelled.newLabel());
+			if (method.returnsValue()) labelled.emit(Op.TRAP, -1, -1);
+			else labelled.emit(Op.RET, -1, -1);
+		}
+
+		BasicBlocks blocks = new BasicBlocks(labelled);
+		boolean[] reachable = new boolean[blocks.size()];
+		IntList work = new IntList();
+		reachable[0] = true;
+		work.add(0);
+		while (!work.isEmpty()) {
+			for (int successor : blocks.successors(work.pop())) {
+				if (!reachable[successor]) {
+					reachable[successor] = true;
+					work.add(successor);
+				}
+			}
+		}
+
+		IrMethod normal = labelled.withoutCode();
+		if (blocks.predecessors(0).length > 0) {
+			normal.setLine(labelled.line(0));
+			normal.emit(Op.LABEL, -1, normal.newLabel());
+			normal.emit(Op.JUMP, -1, blocks.label(0));
+		}
+		// Marks the predecessors of the block being copied
+		int[] predecessorOf = new int[blocks.size()];
+		Arrays.fill(predecessorOf, -1);
+		IntList pairs = new IntList();
+		for (int block = 0; block < blocks.size(); block++) {
+			if (!reachable[block]) continue;
+			for (int predecessor : blocks.predecessors(block)) predecessorOf[predecessor] = block;
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				if (labelled.op(i) != Op.PHI) {
+					normal.emit(labelled, i);
+					continue;
+				}
+				pairs.clear();
+				for (int k = 0; k < labelled.b(i); k++) {
+					int from = blocks.blockOf(labelled.phiLabel(i, k));
+					if (from >= 0 && reachable[from] && predecessorOf[from] == block) {
+						pairs.add(labelled.phiLabel(i, k));
+						pairs.add(labelled.use(i, k));
+					}
+				}
+				normal.setLine(labelled.line(i));
+				normal.emit(Op.PHI, labelled.dst(i), normal.addArgs(pairs.toArray()), pairs.size() / 2);
+			}
+		}
+		method.replaceWith(normal);
+	}
+}
@@ -0,0 +1,358 @@
+package decaf.ir;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Removes the bounds checks that cannot fail, and moves those of simple
+ * counting loops out of them, over methods in SSA form
+ *
+ * A check goes when the value range of its index, where it is checked, is
+ * within the array, as it is for j in array[j] inside for j = 0, 10 over
+ * an array of ten, or array[9 - j] there. It also goes when a check of the
+ * same index against an array no longer than this one dominates it.
+ *
+ * A check left in an innermost loop is moved out when the loop counts a
+ * register i up by one from a start s while it is below (or not above) an
+ * end n set outside the loop, and the index is i plus a constant k: the
+ * indexes the loop checks then run from s + k to n - 1 + k, so checking
+ * those two once, before the loop, when it will run at all, does for every
+ * trip. That is only the same program if the check would be made on every
+ * trip, so its block must be on every path round the loop, and the loop
+ * must leave only by its test and have no effect that shows before the
+ * check fails: no calls, callouts or returns, and no division that could
+ * trap. A failing check stops the program, so whatever the loop stored
+ * before it failed is never seen. The checks of one array move together,
+ * to one of its lowest index and one of its highest, and those the ranges
+ * already show to be safe are left out. The constant is kept small, so
+ * an index that wraps round is far outside any array, at either end.
+ *
+ * @author Miles Schofield
+ */
+public final class BoundsCheckElimination {
+
+	/** The largest constant added to a counter an index moved out of a loop can have */
+	private static final int MAX_OFFSET = 1 << 20;
+	/** The most checks of one index a check is compared with, to find one dominating it */
+	private static final int MAX_COMPARED = 32;
+
+	private final IrProgram program;
+	private final IrMethod method;
+	private final BasicBlocks blocks;
+	private final Dominators dominators;
+	private final Loops loops;
+	private final Ranges ranges;
+	private final int[] onlyDef;
+	/** The block each instruction is in */
+	private final int[] blockOf;
+	/** The block each register is assigned in, -1 if none */
+	private final int[] defBlock;
+	private final boolean[] removed;
+	/** The checks to make at the end of each block, a preheader, as a global, a register and a constant added to it */
+	private final IntList[] hoisted;
+	/** The method the checks made at the end of each preheader report */
+	private final int[] reportedBy;
+	/** The test guarding the checks at the end of each preheader, as a comparison and its operands, or null for none */
+	private final int[][] guards;
+	private int proved;
+	private int moved;
+
+	private BoundsCheckElimination(IrProgram program, IrMethod method) {
+		this.program = program;
+		this.method = method;
+		blocks = new BasicBlocks(method);
+		dominators = new Dominators(blocks);
+		loops = new Loops(dominators);
+		ranges = new Ranges(dominators);
+		int regs = method.regCount();
+		IntList[] defs = new IntList[regs];
+		defBlock = new int[regs];
+		Arrays.fill(defBlock, -1);
+		blockOf = new int[method.size()];
+		for (int block = 0; block < blocks.size(); block++) {
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				blockOf[i] = block;
+				int dst = method.dst(i);
+				if (dst < 0) continue;
+				if (defs[dst] == null) defs[dst] = new IntList(1);
+				defs[dst].add(i);
+				defBlock[dst] = block;
+			}
+		}
+		onlyDef = DeadCodeElimination.onlyDefs(method, defs);
+		removed = new boolean[method.size()];
+		hoisted = new IntList[blocks.size()];
+		reportedBy = new int[blocks.size()];
+		guards = new int[blocks.size()][];
+	}
+
+	/**
+	 * @return int the number of bounds checks in a program
+	 */
+	public static int count(IrProgram program) {
+		int count = 0;
+		for (int m = 0; m < program.methodCount(); m++) {
+			IrMethod method = program.method(m);
+			for (int i = 0; i < method.size(); i++) {
+				if (method.op(i) == Op.BOUNDS) count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes and moves the bounds checks of every method of a program in SSA form
+	 *
+	 * @param report PrintStream to report how many checks of each method
+	 * went and were moved out of loops, or null
+	 * @return int the number of checks removed, not counting those moved
+	 */
+	public static int run(IrProgram program, PrintStream report) {
+		int total = 0;
+		for (int m = 0; m < program.methodCount(); m++) {
+			IrMethod method = program.method(m);
+			BasicBlocks.normalize(method);
+			int checks = 0;
+			for (int i = 0; i < method.size(); i++) {
+				if (method.op(i) == Op.BOUNDS) checks++;
+			}
+			if (checks == 0) continue;
+			LoopInvariantCodeMotion.addPreheaders(method);
+			BoundsCheckElimination elimination = new BoundsCheckElimination(program, method);
+			elimination.prove();
+			for (int loop = 0; loop < elimination.loops.size(); loop++) elimination.hoist(loop);
+			if (elimination.proved + elimination.moved > 0) elimination.rewrite();
+			total += elimination.proved;
+			if (report != null) {
+				report.println("bce: " + method.getName() + ": " + elimination.proved + " of " + checks
+						+ " bounds check(s) removed, " + elimination.moved + " moved out of loops");
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Marks the checks that cannot fail removed
+	 */
+	private void prove() {
+		// The checks of each index register, to find those dominated by another
+		IntList[] checksOf = new IntList[method.regCount()];
+		for (int block = 0; block < blocks.size(); block++) {
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				if (method.op(i) != Op.BOUNDS) continue;
+				int index = method.b(i);
+				long length = program.globalLength(method.a(i));
+				if (ranges.isKnown(index) && ranges.low(index, block) >= 0 && ranges.high(index, block) < length) {
+					removed[i] = true;
+					proved++;
+					continue;
+				}
+				if (checksOf[index] == null) checksOf[index] = new IntList(2);
+				checksOf[index].add(i);
+			}
+		}
+		for (int index = 0; index < checksOf.length; index++) {
+			IntList checks = checksOf[index];
+			if (checks == null || checks.size() < 2) continue;
+			for (int k = 0; k < checks.size(); k++) {
+				int i = checks.get(k);
+				for (int other = 0; other < Math.min(checks.size(), MAX_COMPARED); other++) {
+					int j = checks.get(other);
+					if (j == i || removed[j] || !precedes(j, i)) continue;
+					if (program.globalLength(method.a(j)) <= program.globalLength(method.a(i))) {
+						removed[i] = true;
+						proved++;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return boolean True if instruction j is run before instruction i on every path to i
+	 */
+	private boolean precedes(int j, int i) {
+		return blockOf[j] == blockOf[i] ? j < i : dominators.dominates(blockOf[j], blockOf[i]);
+	}
+
+	/**
+	 * Moves the checks of an innermost counting loop that are left out of it
+	 */
+	private void hoist(int loop) {
+		for (int inner = 0; inner < loops.size(); inner++) {
+			if (loops.parent(inner) == loop) return;
+		}
+		int header = loops.header(loop);
+		int[] predecessors = blocks.predecessors(header);
+		int preheader = -1;
+		int latch = -1;
+		for (int predecessor : predecessors) {
+			if (!loops.contains(loop, predecessor)) preheader = predecessor;
+			else if (latch < 0) latch = predecessor;
+			else return;
+		}
+		if (preheader < 0 || latch < 0 || predecessors.length != 2 || blocks.successors(preheader).length != 1) return;
+
+		// The header tests i < n, or i <= n, going into the loop when it holds
+		int branch = blocks.end(header) - 1;
+		if (method.op(branch) != Op.BRANCH) return;
+		int test = onlyDef[method.a(branch)];
+		if (test < 0 || (method.op(test) != Op.LT && method.op(test) != Op.LE)) return;
+		int body = blocks.blockOf(method.b(branch));
+		int exit = blocks.blockOf(method.c(branch));
+		if (!loops.contains(loop, body) || loops.contains(loop, exit)) return;
+		if (blocks.predecessors(body).length != 1) return;
+		int counter = method.a(test);
+		int end = method.b(test);
+		if (end == counter || (defBlock[end] >= 0 && loops.contains(loop, defBlock[end]))) return;
+
+		// i is a phi of the start s and i + 1
+		int phi = onlyDef[counter];
+		if (phi < 0 || method.op(phi) != Op.PHI || blockOf[phi] != header || method.b(phi) != 2) return;
+		int start = -1;
+		int step = -1;
+		for (int k = 0; k < 2; k++) {
+			if (blocks.blockOf(method.phiLabel(phi, k)) == preheader) start = method.use(phi, k);
+			else step = method.use(phi, k);
+		}
+		if (start < 0 || step < 0 || offset(step, counter) != 1) return;
+
+		// Only the test leaves the loop, and nothing shows before a check fails
+		int reported = Integer.MIN_VALUE;
+		for (int block : loops.blocks(loop)) {
+			for (int successor : blocks.successors(block)) {
+				if (!loops.contains(loop, successor) && (block != header || successor != exit)) return;
+			}
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				int op = method.op(i);
+				if (op == Op.CALL || op == Op.CALLOUT || op == Op.RET || op == Op.TRAP) return;
+				if ((op == Op.DIV || op == Op.MOD) && !DeadCodeElimination.isRemovable(method, i, onlyDef)) return;
+				if (op == Op.BOUNDS && !removed[i]) {
+					if (reported != Integer.MIN_VALUE && reported != method.c(i)) return;
+					reported = method.c(i);
+				}
+			}
+		}
+
+		// The lowest and highest constant added to the counter for each array checked on every trip
+		int globals = program.globalCount();
+		long[] lowest = new long[globals];
+		long[] highest = new long[globals];
+		boolean[] checked = new boolean[globals];
+		IntList checks = new IntList();
+		for (int block : loops.blocks(loop)) {
+			if (!dominators.dominates(body, block) || !dominators.dominates(block, latch)) continue;
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				if (method.op(i) != Op.BOUNDS || removed[i]) continue;
+				long k = offset(method.b(i), counter);
+				if (k == Long.MIN_VALUE) continue;
+				int global = method.a(i);
+				lowest[global] = checked[global] ? Math.min(lowest[global], k) : k;
+				highest[global] = checked[global] ? Math.max(highest[global], k) : k;
+				checked[global] = true;
+				checks.add(i);
+			}
+		}
+		if (checks.isEmpty()) return;
+
+		// The checks made before the loop, of the lowest index s + k and highest n - 1 + k
+		IntList made = new IntList();
+		long last = method.op(test) == Op.LT ? -1 : 0;
+		for (int global = 0; global < globals; global++) {
+			if (!checked[global]) continue;
+			long length = program.globalLength(global);
+			if (ranges.low(start, preheader) + lowest[global] < 0) {
+				made.add(global);
+				made.add(start);
+				made.add((int) lowest[global]);
+			}
+			if (ranges.high(end, preheader) + last + highest[global] >= length) {
+				made.add(global);
+				made.add(end);
+				made.add((int) (last + highest[global]));
+			}
+		}
+		for (int k = 0; k < checks.size(); k++) removed[checks.get(k)] = true;
+		moved += checks.size();
+		if (made.isEmpty()) return;
+		hoisted[preheader] = made;
+		reportedBy[preheader] = reported;
+		// No guard is needed when the loop is sure to run
+		boolean runs = ranges.high(start, preheader) - last <= ranges.low(end, preheader);
+		if (!runs) guards[preheader] = new int[] { method.op(test), start, end };
+	}
+
+	/**
+	 * @return long the constant k that register reg is counter plus, or
+	 * Long.MIN_VALUE if it is not one, or k is too big
+	 */
+	private long offset(int reg, int counter) {
+		if (reg == counter) return 0;
+		int i = onlyDef[reg];
+		if (i < 0) return Long.MIN_VALUE;
+		int op = method.op(i);
+		if (op != Op.ADD && op != Op.SUB) return Long.MIN_VALUE;
+		int other;
+		if (method.a(i) == counter) other = method.b(i);
+		else if (op == Op.ADD && method.b(i) == counter) other = method.a(i);
+		else return Long.MIN_VALUE;
+		int constant = onlyDef[other];
+		if (constant < 0 || method.op(constant) != Op.CONST) return Long.MIN_VALUE;
+		long k = op == Op.ADD ? method.a(constant) : -(long) method.a(constant);
+		return Math.abs(k) <= MAX_OFFSET ? k : Long.MIN_VALUE;
+	}
+
+	/**
+	 * Rebuilds the method without the checks removed, with those moved
+	 * at the ends of the preheaders of the loops they came from. A guarded
+	 * preheader is split, its jump to the header given a label of its own,
+	 * which the header's phis then name.
+	 */
+	private void rewrite() {
+		IrMethod out = method.withoutCode();
+		int[] rest = new int[blocks.size()];
+		for (int block = 0; block < blocks.size(); block++) rest[block] = guards[block] == null ? -1 : out.newLabel();
+		for (int block = 0; block < blocks.size(); block++) {
+			int end = blocks.end(block);
+			for (int i = blocks.start(block); i < end - 1; i++) {
+				if (removed[i]) continue;
+				int copy = out.emit(method, i);
+				if (method.op(i) != Op.PHI) continue;
+				for (int k = 0; k < method.b(i); k++) {
+					int from = blocks.blockOf(method.phiLabel(i, k));
+					if (rest[from] >= 0) out.setArg(out.a(copy) + 2 * k, rest[from]);
+				}
+			}
+			IntList made = hoisted[block];
+			if (made != null) {
+				out.setLine(method.line(end - 1));
+				int[] guard = guards[block];
+				if (guard != null) {
+					int runs = out.newReg();
+					out.emit(guard[0], runs, guard[1], guard[2]);
+					int checks = out.newLabel();
+					out.emit(Op.BRANCH, -1, runs, checks, rest[block]);
+					out.emit(Op.LABEL, -1, checks);
+				}
+				for (int k = 0; k < made.size(); k += 3) {
+					int index = made.get(k + 1);
+					if (made.get(k + 2) != 0) {
+						int constant = out.newReg();
+						out.emit(Op.CONST, constant, made.get(k + 2));
+						index = out.newReg();
+						out.emit(Op.ADD, index, made.get(k + 1), constant);
+					}
+					out.emit(Op.BOUNDS, -1, made.get(k), index, reportedBy[block]);
+				}
+				if (guard != null) {
+					out.emit(Op.JUMP, -1, rest[block]);
+					out.emit(Op.LABEL, -1, rest[block]);
+				}
+			}
+			out.emit(method, end - 1);
+		}
+		method.replaceWith(out);
+		BasicBlocks.normalize(method);
+	}
+}
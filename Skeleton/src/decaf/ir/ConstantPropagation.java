@@ -0,0 +1,307 @@
+package decaf.ir;
+
+/**
+ * Sparse conditional constant propagation over a method in SSA form
+ *
+ * Follows Wegman and Zadeck: each register starts unknown (top) and can
+ * only fall, to a single constant and then to overdefined (bottom), while
+ * blocks are only looked at once an edge into them is found to be
+ * executable. A phi only meets the values on its executable edges, so a
+ * constant that would be lost at a join with a branch that is never taken
+ * survives. Instructions are revisited only when a register they read
+ * falls, through def-use chains, so each is visited at most a few times.
+ *
+ * Folding follows Decaf's 32 bit int semantics, which Java's int
+ * arithmetic shares, wrapping on overflow. A division or remainder by zero,
+ * or of the most negative int by -1, is left to trap at run time. Literals
+ * reach the IR already decoded, decimal and hex alike, so both fold.
+ *
+ * Afterwards every register found constant is loaded by a CONST, every
+ * BRANCH on a constant becomes a JUMP, and the blocks no longer reached are
+ * dropped. The instructions that computed the constants are left for dead
+ * code elimination to remove.
+ *
+ * @author Miles Schofield
+ */
+public class ConstantPropagation {
+
+	// Lattice states
+	private static final int TOP = 0;
+	private static final int CONSTANT = 1;
+	private static final int BOTTOM = 2;
+
+	private final IrMethod method;
+	private final BasicBlocks blocks;
+	/** The block each instruction is in */
+	private final int[] blockOf;
+	/** The instructions reading each register */
+	private final IntList[] users;
+	private final int[] state;
+	private final int[] value;
+	private final boolean[] executable;
+	/** Whether the edge to each successor of each block is executable, in the order of successors */
+	private final boolean[][] executableEdges;
+	/** Edges found executable, as pairs of block and successor position */
+	private final IntList flowWork = new IntList();
+	private final IntList ssaWork = new IntList();
+
+	private ConstantPropagation(IrMethod method) {
+		this.method = method;
+		blocks = new BasicBlocks(method);
+		blockOf = new int[method.size()];
+		executable = new boolean[blocks.size()];
+		executableEdges = new boolean[blocks.size()][];
+		for (int block = 0; block < blocks.size(); block++) {
+			for (int i = blocks.start(block); i < blocks.end(block); i++) blockOf[i] = block;
+			executableEdges[block] = new boolean[blocks.successors(block).length];
+		}
+
+		int regs = method.regCount();
+		users = new IntList[regs];
+		state = new int[regs];
+		value = new int[regs];
+		boolean[] defined = new boolean[regs];
+		for (int i = 0; i < method.size(); i++) {
+			for (int k = 0; k < method.useCount(i); k++) {
+				int use = method.use(i, k);
+				if (users[use] == null) users[use] = new IntList(2);
+				users[use].add(i);
+			}
+			if (method.dst(i) >= 0) defined[method.dst(i)] = true;
+		}
+		// Parameters, and registers read before being given any value, could hold anything
+		for (int reg = 0; reg < regs; reg++) {
+			if (!defined[reg]) state[reg] = BOTTOM;
+		}
+	}
+
+	/**
+	 * Propagates and folds the constants of a method in SSA form
+	 *
+	 * @param method IrMethod to rewrite
+	 * @return int the number of instructions folded to constants, branches
+	 * folded and instructions in blocks removed
+	 */
+	public static int run(IrMethod method) {
+		BasicBlocks.normalize(method);
+		ConstantPropagation propagation = new ConstantPropagation(method);
+		propagation.propagate();
+		return propagation.rewrite();
+	}
+
+	private void propagate() {
+		executable[0] = true;
+		visitBlock(0);
+		do drain(); while (resolveUndefinedBranches());
+	}
+
+	private void drain() {
+		while (!flowWork.isEmpty() || !ssaWork.isEmpty()) {
+			while (!flowWork.isEmpty()) {
+				int successor = flowWork.pop();
+				int block = flowWork.pop();
+				if (executableEdges[block][successor]) continue;
+				executableEdges[block][successor] = true;
+				int target = blocks.successors(block)[successor];
+				if (!executable[target]) {
+					executable[target] = true;
+					visitBlock(target);
+				} else {
+					// Only the phis can change by a new edge in
+					for (int i = blocks.start(target) + 1; i < blocks.end(target) && method.op(i) == Op.PHI; i++) visit(i);
+				}
+			}
+			while (!ssaWork.isEmpty()) {
+				int i = ssaWork.pop();
+				if (executable[blockOf[i]]) visit(i);
+			}
+		}
+	}
+
+	/**
+	 * A branch on a register that is still top once nothing else changes
+	 * reads a value no executed path gives it. Such a branch could go
+	 * either way, so its condition is made overdefined.
+	 *
+	 * @return boolean True if any was found, so propagation must go on
+	 */
+	private boolean resolveUndefinedBranches() {
+		boolean found = false;
+		for (int block = 0; block < blocks.size(); block++) {
+			int last = blocks.end(block) - 1;
+			if (executable[block] && method.op(last) == Op.BRANCH && state[method.a(last)] == TOP) {
+				lower(method.a(last), BOTTOM, 0);
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	private void visitBlock(int block) {
+		for (int i = blocks.start(block) + 1; i < blocks.end(block); i++) visit(i);
+	}
+
+	private void markEdge(int block, int target) {
+		int[] successors = blocks.successors(block);
+		for (int k = 0; k < successors.length; k++) {
+			if (successors[k] == target && !executableEdges[block][k]) {
+				flowWork.add(block);
+				flowWork.add(k);
+			}
+		}
+	}
+
+	private void visit(int i) {
+		int op = method.op(i);
+		int block = blockOf[i];
+		switch (op) {
+		case Op.JUMP:
+			markEdge(block, blocks.blockOf(method.a(i)));
+			return;
+		case Op.BRANCH: {
+			int condition = method.a(i);
+			if (state[condition] == CONSTANT) {
+				markEdge(block, blocks.blockOf(value[condition] != 0 ? method.b(i) : method.c(i)));
+			} else if (state[condition] == BOTTOM) {
+				markEdge(block, blocks.blockOf(method.b(i)));
+				markEdge(block, blocks.blockOf(method.c(i)));
+			}
+			return;
+		}
+		case Op.PHI: {
+			int newState = TOP;
+			int newValue = 0;
+			for (int k = 0; k < method.b(i) && newState != BOTTOM; k++) {
+				int from = blocks.blockOf(method.phiLabel(i, k));
+				if (!isExecutable(from, block)) continue;
+				int arg = method.use(i, k);
+				if (state[arg] == TOP) continue;
+				if (state[arg] == BOTTOM || (newState == CONSTANT && value[arg] != newValue)) newState = BOTTOM;
+				else {
+					newState = CONSTANT;
+					newValue = value[arg];
+				}
+			}
+			lower(method.dst(i), newState, newValue);
+			return;
+		}
+		case Op.CONST:
+			lower(method.dst(i), CONSTANT, method.a(i));
+			return;
+		case Op.COPY:
+			lower(method.dst(i), state[method.a(i)], value[method.a(i)]);
+			return;
+		case Op.NEG:
+		case Op.NOT: {
+			int operand = method.a(i);
+			if (state[operand] != CONSTANT) lower(method.dst(i), state[operand], 0);
+			else lower(method.dst(i), CONSTANT, op == Op.NEG ? -value[operand] : (value[operand] == 0 ? 1 : 0));
+			return;
+		}
+		default:
+			if (Op.isBinary(op)) visitBinary(i, op);
+			else if (method.dst(i) >= 0) lower(method.dst(i), BOTTOM, 0); // Loads and calls
+		}
+	}
+
+	private void visitBinary(int i, int op) {
+		int left = method.a(i);
+		int right = method.b(i);
+		// Anything times zero is zero
+		if (op == Op.MUL && ((state[left] == CONSTANT && value[left] == 0) || (state[right] == CONSTANT && value[right] == 0))) {
+			lower(method.dst(i), CONSTANT, 0);
+			return;
+		}
+		if (state[left] == BOTTOM || state[right] == BOTTOM) lower(method.dst(i), BOTTOM, 0);
+		else if (state[left] == CONSTANT && state[right] == CONSTANT) {
+			int a = value[left];
+			int b = value[right];
+			if ((op == Op.DIV || op == Op.MOD) && (b == 0 || (a == Integer.MIN_VALUE && b == -1))) {
+				lower(method.dst(i), BOTTOM, 0);
+			} else lower(method.dst(i), CONSTANT, fold(op, a, b));
+		}
+	}
+
+	/**
+	 * @return int the result of a binary operator on two ints, as Decaf gives it
+	 */
+	static int fold(int op, int a, int b) {
+		switch (op) {
+		case Op.ADD: return a + b;
+		case Op.SUB: return a - b;
+		case Op.MUL: return a * b;
+		case Op.DIV: return a / b;
+		case Op.MOD: return a % b;
+		case Op.LT: return a < b ? 1 : 0;
+		case Op.LE: return a <= b ? 1 : 0;
+		case Op.GT: return a > b ? 1 : 0;
+		case Op.GE: return a >= b ? 1 : 0;
+		case Op.EQ: return a == b ? 1 : 0;
+		default: return a != b ? 1 : 0; // NE
+		}
+	}
+
+	private boolean isExecutable(int from, int to) {
+		int[] successors = blocks.successors(from);
+		for (int k = 0; k < successors.length; k++) {
+			if (successors[k] == to && executableEdges[from][k]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Lowers a register's state, revisiting the instructions that read it
+	 * if it changed
+	 */
+	private void lower(int reg, int newState, int newValue) {
+		if (newState < state[reg] || (newState == state[reg] && (newState != CONSTANT || newValue == value[reg]))) return;
+		if (state[reg] == CONSTANT && newState == CONSTANT) newState = BOTTOM; // A second constant
+		state[reg] = newState;
+		value[reg] = newValue;
+		if (users[reg] == null) return;
+		for (int k = 0; k < users[reg].size(); k++) ssaWork.add(users[reg].get(k));
+	}
+
+	/**
+	 * @return int the number of instructions folded or removed
+	 */
+	private int rewrite() {
+		int changed = 0;
+		IrMethod out = method.withoutCode();
+		for (int block = 0; block < blocks.size(); block++) {
+			int start = blocks.start(block);
+			int end = blocks.end(block);
+			if (!executable[block]) {
+				changed += end - start;
+				continue;
+			}
+			out.emit(method, start);
+			int body = start + 1;
+			while (body < end && method.op(body) == Op.PHI) body++;
+			// Phis that are not constant stay first, then those that are become CONSTs
+			for (int i = start + 1; i < body; i++) {
+				if (state[method.dst(i)] != CONSTANT) out.emit(method, i);
+			}
+			for (int i = start + 1; i < end; i++) {
+				int op = method.op(i);
+				int dst = method.dst(i);
+				if (i < body && state[dst] != CONSTANT) continue;
+				if (dst >= 0 && state[dst] == CONSTANT && op != Op.CONST) {
+					out.setLine(method.line(i));
+					out.emit(Op.CONST, dst, value[dst]);
+					changed++;
+				} else if (op == Op.BRANCH && state[method.a(i)] == CONSTANT) {
+					out.setLine(method.line(i));
+					out.emit(Op.JUMP, -1, value[method.a(i)] != 0 ? method.b(i) : method.c(i));
+					changed++;
+				} else out.emit(method, i);
+			}
+		}
+		// Dropping the blocks never executed leaves no jumps to them, as
+		// every branch that could reach one was folded. Normalizing drops
+		// the phi pairs from them, and from the branches folded away
+		BasicBlocks.normalize(out);
+		method.replaceWith(out);
+		return changed;
+	}
+}
@@ -0,0 +1,121 @@
+package decaf.ir;
+
+/**
+ * Removes the instructions whose results are never used, by mark and sweep
+ *
+ * Every instruction with an effect beyond its result is marked live to
+ * begin with: stores, bounds checks, calls and callouts, labels and
+ * terminators. Marking an instruction marks the instructions that assign
+ * the registers it reads, through a worklist, and whatever is left
+ * unmarked is swept away. Each register's assignments are marked at most
+ * once, so the pass takes time linear in the size of the method. A chain
+ * of computations leading only to an unused result, or a cycle of phis
+ * feeding only each other, goes all at once, which removing instructions
+ * with no uses one at a time would not manage for the cycle.
+ *
+ * In SSA form each register has one assignment, so marking is exact. The
+ * pass is still correct outside it, where reading a register marks every
+ * assignment to it; dead store elimination does better there.
+ *
+ * @author Miles Schofield
+ */
+public final class DeadCodeElimination {
+
+	private DeadCodeElimination() {
+	}
+
+	/**
+	 * Removes the dead code of every method of a program
+	 *
+	 * @return int the number of instructions removed
+	 */
+	public static int run(IrProgram program) {
+		int removed = 0;
+		for (int m = 0; m < program.methodCount(); m++) removed += run(program.method(m));
+		return removed;
+	}
+
+	/**
+	 * @param method IrMethod to rewrite
+	 * @return int the number of instructions removed
+	 */
+	public static int run(IrMethod method) {
+		int regs = method.regCount();
+		IntList[] defs = new IntList[regs];
+		for (int i = 0; i < method.size(); i++) {
+			int def = method.dst(i);
+			if (def < 0) continue;
+			if (defs[def] == null) defs[def] = new IntList(2);
+			defs[def].add(i);
+		}
+		int[] onlyDef = onlyDefs(method, defs);
+
+		boolean[] live = new boolean[method.size()];
+		boolean[] marked = new boolean[regs];
+		IntList work = new IntList();
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) != Op.NOP && !isRemovable(method, i, onlyDef)) {
+				live[i] = true;
+				work.add(i);
+			}
+		}
+		while (!work.isEmpty()) {
+			int i = work.pop();
+			for (int k = 0; k < method.useCount(i); k++) {
+				int use = method.use(i, k);
+				if (marked[use]) continue;
+				marked[use] = true;
+				if (defs[use] == null) continue;
+				for (int d = 0; d < defs[use].size(); d++) {
+					int def = defs[use].get(d);
+					if (!live[def]) {
+						live[def] = true;
+						work.add(def);
+					}
+				}
+			}
+		}
+
+		int removed = 0;
+		for (int i = 0; i < method.size(); i++) {
+			if (live[i] || method.op(i) == Op.NOP) continue;
+			method.remove(i);
+			removed++;
+		}
+		// A call whose result is unused still happens, but assigns nothing
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) == Op.CALL && method.dst(i) >= 0 && !marked[method.dst(i)]) method.setDst(i, -1);
+		}
+		method.compact();
+		return removed;
+	}
+
+	/**
+	 * @return int[] the instruction that is each register's only assignment,
+	 * or -1 if it has none or more than one, counting a parameter's value
+	 * on entry as an assignment
+	 */
+	static int[] onlyDefs(IrMethod method, IntList[] defs) {
+		int[] onlyDef = new int[defs.length];
+		for (int reg = 0; reg < defs.length; reg++) {
+			boolean single = defs[reg] != null && defs[reg].size() == 1 && reg >= method.getParams();
+			onlyDef[reg] = single ? defs[reg].get(0) : -1;
+		}
+		return onlyDef;
+	}
+
+	/**
+	 * Whether instruction i could go if its result were unused. A division
+	 * or remainder only can if its divisor is a constant it cannot trap on,
+	 * as removing it would otherwise remove the trap.
+	 *
+	 * @param onlyDef int[] from onlyDefs
+	 */
+	static boolean isRemovable(IrMethod method, int i, int[] onlyDef) {
+		int op = method.op(i);
+		if (Op.hasSideEffects(op)) return false;
+		if (op != Op.DIV && op != Op.MOD) return true;
+		int divisor = onlyDef[method.b(i)];
+		return divisor >= 0 && method.op(divisor) == Op.CONST && method.a(divisor) != 0 && method.a(divisor) != -1;
+	}
+}
@@ -0,0 +1,102 @@
+package decaf.ir;
+
+/**
+ * Removes the assignments that are overwritten, or never read, before
+ * anything reads them
+ *
+ * Each block is scanned backwards from the registers Liveness finds live
+ * out of it, and an assignment to a register that is not live after it is
+ * removed, unless the instruction has another effect; a call keeps being
+ * made but stops assigning its result. The same scan removes a store to a
+ * global that is stored to again later in the block, as long as nothing in
+ * between could read it: a load of that global, or a call.
+ *
+ * The pass works in and out of SSA form. In SSA form a register is never
+ * overwritten, so only the stores to globals and the registers never read
+ * are found; out of it, every local assigned and then assigned again
+ * before being read is.
+ *
+ * @author Miles Schofield
+ */
+public final class DeadStoreElimination {
+
+	private DeadStoreElimination() {
+	}
+
+	/**
+	 * Removes the dead stores of every method of a program
+	 *
+	 * @return int the number of instructions removed
+	 */
+	public static int run(IrProgram program) {
+		int removed = 0;
+		for (int m = 0; m < program.methodCount(); m++) removed += run(program.method(m));
+		return removed;
+	}
+
+	/**
+	 * @param method IrMethod to rewrite
+	 * @return int the number of instructions removed
+	 */
+	public static int run(IrMethod method) {
+		BasicBlocks.normalize(method);
+		BasicBlocks blocks = new BasicBlocks(method);
+		Liveness liveness = new Liveness(blocks);
+
+		int regs = method.regCount();
+		IntList[] defs = new IntList[regs];
+		for (int i = 0; i < method.size(); i++) {
+			int def = method.dst(i);
+			if (def < 0) continue;
+			if (defs[def] == null) defs[def] = new IntList(2);
+			defs[def].add(i);
+		}
+		int[] onlyDef = DeadCodeElimination.onlyDefs(method, defs);
+		int globals = 0;
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) == Op.STOREG || method.op(i) == Op.LOADG) globals = Math.max(globals, method.a(i) + 1);
+		}
+
+		// A register is live while its stamp is the block's, and a global
+		// has a later store while its stamp is the current generation
+		int[] liveStamp = new int[regs];
+		int[] storedStamp = new int[globals];
+		int generation = 0;
+		int removed = 0;
+		for (int block = 0; block < blocks.size(); block++) {
+			int stamp = block + 1;
+			generation++;
+			for (int reg : liveness.liveOut(block)) liveStamp[reg] = stamp;
+			for (int i = blocks.end(block) - 1; i > blocks.start(block); i--) {
+				int op = method.op(i);
+				int def = method.dst(i);
+				if (op == Op.STOREG) {
+					if (storedStamp[method.a(i)] == generation) {
+						method.remove(i);
+						removed++;
+						continue;
+					}
+					storedStamp[method.a(i)] = generation;
+				} else if (op == Op.LOADG) {
+					storedStamp[method.a(i)] = 0;
+				} else if (op == Op.CALL || op == Op.CALLOUT) {
+					generation++;
+				}
+				if (def >= 0 && liveStamp[def] != stamp) {
+					if (DeadCodeElimination.isRemovable(method, i, onlyDef)) {
+						method.remove(i);
+						removed++;
+						continue;
+					}
+					if (op == Op.CALL) method.setDst(i, -1);
+				}
+				if (def >= 0) liveStamp[def] = 0;
+				// A phi's arguments are read on the way in, not here
+				if (op == Op.PHI) continue;
+				for (int k = 0; k < method.useCount(i); k++) liveStamp[method.use(i, k)] = stamp;
+			}
+		}
+		method.compact();
+		return removed;
+	}
+}
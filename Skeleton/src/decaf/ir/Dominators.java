@@ -0,0 +1,198 @@
+package decaf.ir;
+
+import java.util.Arrays;
+
+/**
+ * The dominator tree and dominance frontiers of a method's blocks
+ *
+ * Immediate dominators are found with the iterative algorithm of Cooper,
+ * Harvey and Kennedy ("A Simple, Fast Dominance Algorithm", 2001), which
+ * walks the blocks in reverse postorder, intersecting the dominators of
+ * each block's predecessors by climbing the partial tree, until nothing
+ * changes. On the reducible graphs Decaf's structured control flow gives,
+ * that takes two passes. Dominance is then answered in constant time from
+ * the preorder and postorder numbers of the tree.
+ *
+ * @author Miles Schofield
+ */
+public class Dominators {
+
+	private final BasicBlocks blocks;
+	private final int[] idom;
+	private final int[] reversePostorder;
+	/** Position of each block in reversePostorder */
+	private final int[] rpoIndex;
+	private final int[][] children;
+	private final int[] preorder;
+	private final int[] postorder;
+	private int[][] frontiers;
+
+	/**
+	 * @param blocks BasicBlocks of a method in normal form
+	 */
+	public Dominators(BasicBlocks blocks) {
+		this.blocks = blocks;
+		int count = blocks.size();
+		reversePostorder = reversePostorder(blocks);
+		rpoIndex = new int[count];
+		for (int i = 0; i < count; i++) rpoIndex[reversePostorder[i]] = i;
+
+		idom = new int[count];
+		Arrays.fill(idom, -1);
+		idom[0] = 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < count; i++) {
+				int block = reversePostorder[i];
+				int dominator = -1;
+				for (int predecessor : blocks.predecessors(block)) {
+					if (idom[predecessor] < 0) continue; // Not yet reached this pass
+					dominator = dominator < 0 ? predecessor : intersect(predecessor, dominator);
+				}
+				if (idom[block] != dominator) {
+					idom[block] = dominator;
+					changed = true;
+				}
+			}
+		}
+
+		int[] childCounts = new int[count];
+		for (int block = 1; block < count; block++) childCounts[idom[block]]++;
+		children = new int[count][];
+		for (int block = 0; block < count; block++) children[block] = new int[childCounts[block]];
+		Arrays.fill(childCounts, 0);
+		for (int i = 1; i < count; i++) {
+			// Children in reverse postorder, so walking the tree visits blocks in a sensible order
+			int block = reversePostorder[i];
+			children[idom[block]][childCounts[idom[block]]++] = block;
+		}
+
+		preorder = new int[count];
+		postorder = new int[count];
+		int[] stack = new int[count];
+		int[] next = new int[count];
+		int depth = 0;
+		int pre = 0;
+		int post = 0;
+		stack[0] = 0;
+		preorder[0] = pre++;
+		while (depth >= 0) {
+			int block = stack[depth];
+			if (next[block] < children[block].length) {
+				int child = children[block][next[block]++];
+				preorder[child] = pre++;
+				stack[++depth] = child;
+			} else {
+				postorder[block] = post++;
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * @return int[] the blocks in reverse postorder of a depth first walk from the entry
+	 */
+	static int[] reversePostorder(BasicBlocks blocks) {
+		int count = blocks.size();
+		int[] order = new int[count];
+		int filled = count;
+		boolean[] seen = new boolean[count];
+		int[] stack = new int[count];
+		int[] next = new int[count];
+		int depth = 0;
+		stack[0] = 0;
+		seen[0] = true;
+		while (depth >= 0) {
+			int block = stack[depth];
+			int[] successors = blocks.successors(block);
+			if (next[block] < successors.length) {
+				int successor = successors[next[block]++];
+				if (!seen[successor]) {
+					seen[successor] = true;
+					stack[++depth] = successor;
+				}
+			} else {
+				order[--filled] = block;
+				depth--;
+			}
+		}
+		return order;
+	}
+
+	private int intersect(int a, int b) {
+		while (a != b) {
+			while (rpoIndex[a] > rpoIndex[b]) a = idom[a];
+			while (rpoIndex[b] > rpoIndex[a]) b = idom[b];
+		}
+		return a;
+	}
+
+	public BasicBlocks getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return int the immediate dominator of a block, the entry for the entry itself
+	 */
+	public int idom(int block) {
+		return idom[block];
+	}
+
+	/**
+	 * @return int[] the blocks a block immediately dominates
+	 */
+	public int[] children(int block) {
+		return children[block];
+	}
+
+	public int[] reversePostorder() {
+		return reversePostorder;
+	}
+
+	/**
+	 * @return boolean True if every path from the entry to b passes through a,
+	 * including when they are the same block
+	 */
+	public boolean dominates(int a, int b) {
+		return preorder[a] <= preorder[b] && postorder[b] <= postorder[a];
+	}
+
+	/**
+	 * @return int[] the blocks of the dominator tree in preorder, parents before children
+	 */
+	public int[] preorder() {
+		int[] order = new int[idom.length];
+		for (int block = 0; block < idom.length; block++) order[preorder[block]] = block;
+		return order;
+	}
+
+	/**
+	 * The dominance frontier of each block: the blocks where its dominance
+	 * ends, which it does not strictly dominate but one of whose
+	 * predecessors it does. Only join points can be in a frontier, so each
+	 * join's predecessors walk up the tree to the join's immediate
+	 * dominator, adding the join to the frontier of every block passed.
+	 *
+	 * @return int[][] the frontier of each block, worked out once
+	 */
+	public int[][] frontiers() {
+		if (frontiers != null) return frontiers;
+		int count = idom.length;
+		IntList[] lists = new IntList[count];
+		for (int join = 0; join < count; join++) {
+			int[] predecessors = blocks.predecessors(join);
+			if (predecessors.length < 2) continue;
+			for (int predecessor : predecessors) {
+				for (int runner = predecessor; runner != idom[join]; runner = idom[runner]) {
+					if (lists[runner] == null) lists[runner] = new IntList(2);
+					else if (lists[runner].last() == join) break; // Already walked from another predecessor
+					lists[runner].add(join);
+				}
+			}
+		}
+		frontiers = new int[count][];
+		for (int block = 0; block < count; block++) frontiers[block] = lists[block] == null ? new int[0] : lists[block].toArray();
+		return frontiers;
+	}
+}
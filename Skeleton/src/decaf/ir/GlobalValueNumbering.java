@@ -0,0 +1,383 @@
+package decaf.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dominator based global value numbering over methods in SSA form
+ *
+ * The dominator tree is walked with a scoped table from each pure
+ * operation, keyed by its opcode and the value numbers of its operands, to
+ * the register holding its result. An operation already in the table
+ * dominates the one being looked at and computed the same value, so the
+ * later one is removed and its register replaced by the earlier one.
+ * Leaving a block drops what it added, as nothing it computed is
+ * available to the blocks it does not dominate. Copies are propagated and
+ * phis whose arguments all have one value become that value. Commutative
+ * operators have their operands put in order first, and a greater than
+ * becomes a less than with the operands swapped, so a + b and b + a, or
+ * a > b and b < a, are found to be the same.
+ *
+ * Loads of globals and array elements are numbered too, with the
+ * version of the global's memory in the key. A store to a global gives it
+ * a new version, keyed to the value stored so a load after it is
+ * forwarded, and a call gives every global a new version unless the
+ * method called, and everything it calls, never stores to a global. A
+ * block joining several paths keeps the versions of its immediate
+ * dominator only for the globals nothing on those paths stores to, which
+ * is found by walking back from its predecessors to the dominator.
+ * Callouts cannot name Decaf's globals, so do not touch them.
+ *
+ * @author Miles Schofield
+ */
+public final class GlobalValueNumbering {
+
+	private final IrMethod method;
+	private final BasicBlocks blocks;
+	private final Dominators dominators;
+	/** Whether each method of the program may store to a global, by index */
+	private final boolean[] storesMemory;
+	/** The register holding each register's value, -1 until its assignment is reached */
+	private final int[] number;
+	private final boolean[] assigned;
+	private final Map<Key, Integer> table = new HashMap<Key, Integer>();
+	private final List<Key> tableLog = new ArrayList<Key>();
+	/** The version of each global's memory, changed by every store that could reach it */
+	private final int[] memory;
+	/** The version of every global's memory at once, changed by calls */
+	private int calls;
+	private int versions;
+	/** Changes to memory, as pairs of global and old version, -1 for calls */
+	private final IntList memoryLog = new IntList();
+	/** Whether each block calls a method that could store, and the globals each stores to */
+	private final boolean[] blockCalls;
+	private final IntList[] blockStores;
+	private int removed;
+
+	private GlobalValueNumbering(IrMethod method, boolean[] storesMemory, int globals) {
+		this.method = method;
+		this.storesMemory = storesMemory;
+		blocks = new BasicBlocks(method);
+		dominators = new Dominators(blocks);
+		number = new int[method.regCount()];
+		Arrays.fill(number, -1);
+		assigned = new boolean[method.regCount()];
+		for (int i = 0; i < method.size(); i++) {
+			if (method.dst(i) >= 0) assigned[method.dst(i)] = true;
+		}
+		memory = new int[globals];
+		blockCalls = new boolean[blocks.size()];
+		blockStores = new IntList[blocks.size()];
+		for (int block = 0; block < blocks.size(); block++) {
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				int op = method.op(i);
+				if (op == Op.CALL && storesMemory[method.a(i)]) blockCalls[block] = true;
+				if (op == Op.STOREG || op == Op.ASTORE) {
+					if (blockStores[block] == null) blockStores[block] = new IntList(2);
+					blockStores[block].add(method.a(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Numbers the values of every method of a program in SSA form
+	 *
+	 * @return int the number of instructions removed
+	 */
+	public static int run(IrProgram program) {
+		boolean[] storesMemory = storesMemory(program);
+		int removed = 0;
+		for (int m = 0; m < program.methodCount(); m++) {
+			IrMethod method = program.method(m);
+			BasicBlocks.normalize(method);
+			GlobalValueNumbering numbering = new GlobalValueNumbering(method, storesMemory, program.globalCount());
+			numbering.walk();
+			removed += numbering.rewrite();
+		}
+		return removed;
+	}
+
+	/**
+	 * @return boolean[] whether each method could store to a global, itself
+	 * or through the methods it calls, found by spreading from the methods
+	 * that store back to their callers until nothing changes
+	 */
+	static boolean[] storesMemory(IrProgram program) {
+		int count = program.methodCount();
+		boolean[] stores = new boolean[count];
+		IntList[] callers = new IntList[count];
+		IntList work = new IntList();
+		for (int m = 0; m < count; m++) {
+			IrMethod method = program.method(m);
+			for (int i = 0; i < method.size(); i++) {
+				int op = method.op(i);
+				if (op == Op.STOREG || op == Op.ASTORE) {
+					if (!stores[m]) work.add(m);
+					stores[m] = true;
+				} else if (op == Op.CALL) {
+					int callee = method.a(i);
+					if (callers[callee] == null) callers[callee] = new IntList(2);
+					callers[callee].add(m);
+				}
+			}
+		}
+		while (!work.isEmpty()) {
+			int callee = work.pop();
+			if (callers[callee] == null) continue;
+			for (int k = 0; k < callers[callee].size(); k++) {
+				int caller = callers[callee].get(k);
+				if (!stores[caller]) {
+					stores[caller] = true;
+					work.add(caller);
+				}
+			}
+		}
+		return stores;
+	}
+
+	private void walk() {
+		int count = blocks.size();
+		int[] tableMarks = new int[count];
+		int[] memoryMarks = new int[count];
+		int[] stack = new int[count];
+		int[] next = new int[count];
+		int[] regionStamp = new int[count];
+		int[] storeStamp = new int[memory.length];
+		int depth = 0;
+		stack[0] = 0;
+		visitBlock(0);
+		while (depth >= 0) {
+			int block = stack[depth];
+			int[] children = dominators.children(block);
+			if (next[block] < children.length) {
+				int child = children[next[block]++];
+				tableMarks[child] = tableLog.size();
+				memoryMarks[child] = memoryLog.size();
+				stack[++depth] = child;
+				if (blocks.predecessors(child).length > 1) join(child, block, regionStamp, storeStamp);
+				visitBlock(child);
+			} else {
+				while (tableLog.size() > tableMarks[block]) table.remove(tableLog.remove(tableLog.size() - 1));
+				while (memoryLog.size() > memoryMarks[block]) {
+					int version = memoryLog.pop();
+					int global = memoryLog.pop();
+					if (global < 0) calls = version;
+					else memory[global] = version;
+				}
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Gives new versions to the memory stored to on any path from a join's
+	 * immediate dominator to it
+	 */
+	private void join(int block, int dominator, int[] regionStamp, int[] storeStamp) {
+		int stamp = block + 1;
+		IntList work = new IntList();
+		for (int predecessor : blocks.predecessors(block)) {
+			if (predecessor != dominator && regionStamp[predecessor] != stamp) {
+				regionStamp[predecessor] = stamp;
+				work.add(predecessor);
+			}
+		}
+		boolean clobbered = false;
+		while (!work.isEmpty()) {
+			int region = work.pop();
+			if (blockCalls[region]) clobbered = true;
+			if (blockStores[region] != null) {
+				for (int k = 0; k < blockStores[region].size(); k++) {
+					int global = blockStores[region].get(k);
+					if (storeStamp[global] == stamp) continue;
+					storeStamp[global] = stamp;
+					if (!clobbered) store(global);
+				}
+			}
+			for (int predecessor : blocks.predecessors(region)) {
+				if (predecessor != dominator && regionStamp[predecessor] != stamp) {
+					regionStamp[predecessor] = stamp;
+					work.add(predecessor);
+				}
+			}
+		}
+		if (clobbered) call();
+	}
+
+	private void store(int global) {
+		memoryLog.add(global);
+		memoryLog.add(memory[global]);
+		memory[global] = ++versions;
+	}
+
+	private void call() {
+		memoryLog.add(-1);
+		memoryLog.add(calls);
+		calls = ++versions;
+	}
+
+	private int find(int reg) {
+		return number[reg] < 0 ? reg : number[reg];
+	}
+
+	private void visitBlock(int block) {
+		for (int i = blocks.start(block) + 1; i < blocks.end(block); i++) {
+			int op = method.op(i);
+			int dst = method.dst(i);
+			Key key = null;
+			switch (op) {
+			case Op.PHI: {
+				int value = phiValue(i);
+				if (value >= 0) {
+					number[dst] = value;
+					method.remove(i);
+					removed++;
+					continue;
+				}
+				key = phi(i, block);
+				break;
+			}
+			case Op.COPY:
+				number[dst] = find(method.a(i));
+				method.remove(i);
+				removed++;
+				continue;
+			case Op.CONST:
+			case Op.STR:
+				key = new Key(op, method.a(i));
+				break;
+			case Op.NEG:
+			case Op.NOT:
+				key = new Key(op, find(method.a(i)));
+				break;
+			case Op.LOADG:
+				key = new Key(Op.LOADG, method.a(i), memory[method.a(i)], calls);
+				break;
+			case Op.ALOAD:
+				key = new Key(Op.ALOAD, method.a(i), find(method.b(i)), memory[method.a(i)], calls);
+				break;
+			case Op.STOREG:
+				store(method.a(i));
+				// A load from it now gives the value stored
+				insert(new Key(Op.LOADG, method.a(i), memory[method.a(i)], calls), find(method.b(i)));
+				break;
+			case Op.ASTORE:
+				store(method.a(i));
+				insert(new Key(Op.ALOAD, method.a(i), find(method.b(i)), memory[method.a(i)], calls), find(method.c(i)));
+				break;
+			case Op.CALL:
+				if (storesMemory[method.a(i)]) call();
+				break;
+			default:
+				if (Op.isBinary(op)) key = binary(op, find(method.a(i)), find(method.b(i)));
+			}
+			if (dst < 0) continue;
+			if (key == null) {
+				number[dst] = dst;
+				continue;
+			}
+			Integer found = table.get(key);
+			if (found != null) {
+				number[dst] = found;
+				method.remove(i);
+				removed++;
+			} else {
+				number[dst] = dst;
+				insert(key, dst);
+			}
+		}
+	}
+
+	/**
+	 * @return int the value every argument of a phi, other than itself, has,
+	 * or -1 if they differ. Arguments along back edges are not numbered yet,
+	 * so only match if they are the same register.
+	 */
+	private int phiValue(int i) {
+		int dst = method.dst(i);
+		int only = -1;
+		for (int k = 0; k < method.b(i); k++) {
+			int arg = find(method.use(i, k));
+			if (arg == dst) continue;
+			if (only >= 0 && arg != only) return -1;
+			only = arg;
+		}
+		// The value must be available here, not assigned later in a loop
+		return only >= 0 && (number[only] >= 0 || !assigned[only]) ? only : -1;
+	}
+
+	/**
+	 * @return Key for a phi, by its block and the values along each edge
+	 */
+	private Key phi(int i, int block) {
+		int[] values = new int[2 + 2 * method.b(i)];
+		values[0] = Op.PHI;
+		values[1] = block;
+		for (int k = 0; k < method.b(i); k++) {
+			values[2 + 2 * k] = method.phiLabel(i, k);
+			values[3 + 2 * k] = find(method.use(i, k));
+		}
+		return new Key(values);
+	}
+
+	private static Key binary(int op, int left, int right) {
+		switch (op) {
+		case Op.ADD:
+		case Op.MUL:
+		case Op.EQ:
+		case Op.NE:
+			return left <= right ? new Key(op, left, right) : new Key(op, right, left);
+		case Op.GT:
+			return new Key(Op.LT, right, left);
+		case Op.GE:
+			return new Key(Op.LE, right, left);
+		default:
+			return new Key(op, left, right);
+		}
+	}
+
+	private void insert(Key key, int reg) {
+		if (table.put(key, reg) == null) tableLog.add(key);
+	}
+
+	/**
+	 * Replaces every register read with the one holding its value
+	 *
+	 * @return int the number of instructions removed
+	 */
+	private int rewrite() {
+		for (int i = 0; i < method.size(); i++) {
+			for (int k = 0; k < method.useCount(i); k++) method.setUse(i, k, find(method.use(i, k)));
+		}
+		method.compact();
+		return removed;
+	}
+
+	/**
+	 * An operation as the table knows it: its opcode and the value
+	 * numbers, or other values, it was given
+	 */
+	private static final class Key {
+		final int[] values;
+		private final int hash;
+
+		Key(int... values) {
+			this.values = values;
+			hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key && Arrays.equals(values, ((Key) other).values);
+		}
+	}
+}
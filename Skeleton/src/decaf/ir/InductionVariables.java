@@ -0,0 +1,551 @@
+package decaf.ir;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Finds the registers of each loop that step by a fixed amount on every
+ * trip round it, and makes the multiplications among them additions, over
+ * methods in SSA form
+ *
+ * A basic induction variable is a phi of a loop's header taking a start
+ * from the preheader and, from the loop's one latch, itself plus or minus
+ * a step that does not change in the loop, as the counter of a for loop
+ * does. Anything worked out from one by adding, subtracting, negating or
+ * multiplying by a loop invariant, or copying, steps by a fixed amount
+ * too, and so has a start and a step of its own, found from its
+ * operand's. The registers of a loop's blocks are gone over in reverse
+ * postorder, so an operand is seen before what is worked out from it.
+ *
+ * A multiplication stepping so, such as i * 3 or (i + 1) * n, is replaced
+ * by a new phi of the header, starting at the multiplication's start,
+ * worked out in the preheader, and adding its step at the end of the
+ * latch. Ints wrap, so this is exact even where the product overflows.
+ *
+ * Two basic induction variables with the same start and step are the same
+ * register, and one is replaced by the other. A counter left only stepping
+ * itself and being compared with a loop invariant, once its product with
+ * a constant has been made a phi, is compared through that instead, the
+ * invariant multiplied by the same constant before the loop; the counter
+ * is then dead. That is only the same test when neither product can
+ * overflow, which the ranges of the counter and the invariant must show.
+ *
+ * @author Miles Schofield
+ */
+public final class InductionVariables {
+
+	private final IrMethod method;
+	private final BasicBlocks blocks;
+	private final Dominators dominators;
+	private final Loops loops;
+	private Ranges ranges;
+	/** The number of registers before the pass made any */
+	private final int regs;
+	/** The instruction assigning each register, -1 if none */
+	private final int[] def;
+	/** The block each register is assigned in, -1 if none */
+	private final int[] defBlock;
+	/** The block each instruction is in */
+	private final int[] blockOf;
+	/** The instructions reading each register */
+	private final IntList[] uses;
+	private final boolean[] removed;
+	/** The register each register is replaced by, itself if none */
+	private final int[] replacement;
+	/** The instructions to add at the end of each block, before its terminator, as op, dst, a and b */
+	private final IntList[] added;
+	/** The phis to add to each block, as dst and then two labels with their values */
+	private final IntList[] phis;
+
+	// The loop being worked on
+	private int loop;
+	private int preheader;
+	private int latch;
+	/** The loop each register was last found to step in, -1 for none */
+	private final int[] ivOf;
+	/** For a basic induction variable, the register its step is added or subtracted from */
+	private final int[] init;
+	private final int[] next;
+	/** The start and step of each induction variable, made in the preheader, for the loop they were made for */
+	private final int[] starts;
+	private final int[] steps;
+	private final int[] madeFor;
+	/** A loop invariant's copy in the preheader, for the loop it was made for */
+	private final int[] invariants;
+	private final int[] invariantFor;
+	/** The value of each register that is a constant, new ones included */
+	private int[] values;
+	private boolean[] isValue;
+
+	private int reduced;
+	private int eliminated;
+
+	private InductionVariables(IrMethod method) {
+		this.method = method;
+		blocks = new BasicBlocks(method);
+		dominators = new Dominators(blocks);
+		loops = new Loops(dominators);
+		regs = method.regCount();
+		def = new int[regs];
+		defBlock = new int[regs];
+		Arrays.fill(def, -1);
+		Arrays.fill(defBlock, -1);
+		blockOf = new int[method.size()];
+		uses = new IntList[regs];
+		values = new int[regs];
+		isValue = new boolean[regs];
+		for (int block = 0; block < blocks.size(); block++) {
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				blockOf[i] = block;
+				int dst = method.dst(i);
+				if (dst >= 0) {
+					def[dst] = i;
+					defBlock[dst] = block;
+					if (method.op(i) == Op.CONST) {
+						values[dst] = method.a(i);
+						isValue[dst] = true;
+					}
+				}
+				for (int k = 0; k < method.useCount(i); k++) {
+					int use = method.use(i, k);
+					if (uses[use] == null) uses[use] = new IntList(2);
+					uses[use].add(i);
+				}
+			}
+		}
+		removed = new boolean[method.size()];
+		replacement = new int[regs];
+		for (int reg = 0; reg < regs; reg++) replacement[reg] = reg;
+		added = new IntList[blocks.size()];
+		phis = new IntList[blocks.size()];
+		ivOf = new int[regs];
+		Arrays.fill(ivOf, -1);
+		init = new int[regs];
+		next = new int[regs];
+		starts = new int[regs];
+		steps = new int[regs];
+		madeFor = new int[regs];
+		Arrays.fill(madeFor, -1);
+		invariants = new int[regs];
+		invariantFor = new int[regs];
+		Arrays.fill(invariantFor, -1);
+	}
+
+	/**
+	 * Reduces the induction variables of every method of a program in SSA form
+	 *
+	 * @param report PrintStream to report how many multiplications of each
+	 * method were made additions and induction variables removed, or null
+	 * @return int the number of multiplications made additions and
+	 * induction variables removed
+	 */
+	public static int run(IrProgram program, PrintStream report) {
+		int count = 0;
+		for (int m = 0; m < program.methodCount(); m++) {
+			IrMethod method = program.method(m);
+			BasicBlocks.normalize(method);
+			if (!LoopInvariantCodeMotion.addPreheaders(method)) continue;
+			InductionVariables variables = new InductionVariables(method);
+			// Inner loops are numbered first
+			for (int loop = 0; loop < variables.loops.size(); loop++) variables.reduce(loop);
+			if (variables.reduced + variables.eliminated == 0) continue;
+			variables.rewrite();
+			if (report != null) {
+				report.println("iv: " + method.getName() + ": " + variables.reduced + " multiplication(s) made additions, "
+						+ variables.eliminated + " induction variable(s) removed");
+			}
+			count += variables.reduced + variables.eliminated;
+		}
+		return count;
+	}
+
+	private void reduce(int loop) {
+		int header = loops.header(loop);
+		preheader = -1;
+		latch = -1;
+		for (int predecessor : blocks.predecessors(header)) {
+			if (!dominators.dominates(header, predecessor)) preheader = predecessor;
+			else if (latch >= 0) return;
+			else latch = predecessor;
+		}
+		this.loop = loop;
+
+		IntList basics = new IntList();
+		for (int i = blocks.start(header) + 1; method.op(i) == Op.PHI; i++) {
+			if (method.b(i) != 2) continue;
+			int phi = method.dst(i);
+			init[phi] = -1;
+			next[phi] = -1;
+			for (int k = 0; k < 2; k++) {
+				int from = blocks.blockOf(method.phiLabel(i, k));
+				if (from == preheader) init[phi] = method.use(i, k);
+				else if (from == latch) next[phi] = method.use(i, k);
+			}
+			if (init[phi] < 0 || next[phi] < 0 || def[next[phi]] < 0) continue;
+			int step = def[next[phi]];
+			int op = method.op(step);
+			boolean stepping = op == Op.ADD && (method.a(step) == phi ? isInvariant(method.b(step))
+					: method.b(step) == phi && isInvariant(method.a(step)));
+			stepping |= op == Op.SUB && method.a(step) == phi && isInvariant(method.b(step));
+			if (!stepping) continue;
+			ivOf[phi] = loop;
+			basics.add(phi);
+		}
+		if (basics.isEmpty()) return;
+		// Those another was merged into are read where they were not before
+		boolean[] merged = new boolean[basics.size()];
+		basics = merge(basics, merged);
+
+		int[] members = loops.blocks(loop);
+		for (int block : members) {
+			for (int i = blocks.start(block) + 1; i < blocks.end(block) - 1; i++) {
+				if (!removed[i] && method.op(i) != Op.PHI && operand(i) >= 0) ivOf[method.dst(i)] = loop;
+			}
+		}
+
+		// The product with a constant each basic induction variable was made, and its phi
+		int[] scale = new int[basics.size()];
+		int[] scaled = new int[basics.size()];
+		Arrays.fill(scaled, -1);
+		for (int block : members) {
+			for (int i = blocks.start(block) + 1; i < blocks.end(block) - 1; i++) {
+				if (removed[i] || method.op(i) != Op.MUL || ivOf[method.dst(i)] != loop) continue;
+				int product = method.dst(i);
+				int step = step(product);
+				if (isValue[step] && values[step] == 0) continue;
+				int phi = method.newReg();
+				int stepped = method.newReg();
+				add(phis, header, phi, blocks.label(preheader), start(product), blocks.label(latch), stepped);
+				add(added, latch, Op.ADD, stepped, phi, step);
+				replacement[product] = phi;
+				removed[i] = true;
+				reduced++;
+
+				int counter = operand(i);
+				int factor = method.a(i) == counter ? method.b(i) : method.a(i);
+				for (int k = 0; k < basics.size(); k++) {
+					if (basics.get(k) != counter || scaled[k] >= 0 || !isValue[factor] || values[factor] == 0) continue;
+					scaled[k] = phi;
+					scale[k] = values[factor];
+				}
+			}
+		}
+		for (int k = 0; k < basics.size(); k++) {
+			if (scaled[k] >= 0 && !merged[k]) replaceTests(basics.get(k), scaled[k], scale[k]);
+		}
+	}
+
+	/**
+	 * Replaces each basic induction variable with the same start and step
+	 * as one before it with that one. The one replaced still steps, so
+	 * what is worked out from it can still be reduced.
+	 *
+	 * @param merged boolean[] set for each of those left that another was merged into
+	 * @return IntList the basic induction variables left
+	 */
+	private IntList merge(IntList basics, boolean[] merged) {
+		IntList kept = new IntList(basics.size());
+		for (int k = 0; k < basics.size(); k++) {
+			int phi = basics.get(k);
+			int step = def[next[phi]];
+			int by = method.a(step) == phi ? method.b(step) : method.a(step);
+			boolean replaced = false;
+			for (int earlier = 0; earlier < kept.size() && !replaced; earlier++) {
+				int other = kept.get(earlier);
+				int otherStep = def[next[other]];
+				int otherBy = method.a(otherStep) == other ? method.b(otherStep) : method.a(otherStep);
+				if (!same(init[phi], init[other]) || method.op(step) != method.op(otherStep) || !same(by, otherBy)) continue;
+				replacement[phi] = other;
+				removed[def[phi]] = true;
+				// Its step goes too, if the other's is made first wherever it is read
+				if (precedes(otherStep, step)) {
+					replacement[next[phi]] = next[other];
+					removed[step] = true;
+				}
+				merged[earlier] = true;
+				replaced = true;
+				eliminated++;
+			}
+			if (!replaced) kept.add(phi);
+		}
+		return kept;
+	}
+
+	/**
+	 * Compares through the phi holding a basic induction variable times a
+	 * constant, where the variable is only read to step it and be compared
+	 * with loop invariants, and neither product can overflow
+	 */
+	private void replaceTests(int counter, int product, int factor) {
+		if (replacement[counter] != counter || uses[next[counter]] == null || uses[next[counter]].size() != 1) return;
+		IntList tests = new IntList();
+		for (int k = 0; k < uses[counter].size(); k++) {
+			int i = uses[counter].get(k);
+			if (removed[i] || i == def[next[counter]]) continue;
+			int op = method.op(i);
+			if (op < Op.LT || op > Op.NE) return;
+			int other = method.a(i) == counter ? method.b(i) : method.a(i);
+			if (other == counter || !isInvariant(other)) return;
+			tests.add(i);
+		}
+		if (tests.isEmpty()) return;
+		if (ranges == null) ranges = new Ranges(dominators);
+		for (int k = 0; k < tests.size(); k++) {
+			int i = tests.get(k);
+			int other = method.a(i) == counter ? method.b(i) : method.a(i);
+			if (!fits(counter, blockOf[i], factor) || !fits(other, blockOf[i], factor)) return;
+		}
+		for (int k = 0; k < tests.size(); k++) {
+			int i = tests.get(k);
+			boolean left = method.a(i) == counter;
+			int bound = binary(Op.MUL, invariant(left ? method.b(i) : method.a(i)), constant(factor));
+			method.setA(i, left ? product : bound);
+			method.setB(i, left ? bound : product);
+			if (factor < 0) method.setOp(i, Ranges.swapped(method.op(i)));
+		}
+		eliminated++;
+	}
+
+	/**
+	 * @return boolean True if a register read in a block is known to stay
+	 * within the ints when multiplied by a factor
+	 */
+	private boolean fits(int reg, int block, int factor) {
+		if (reg >= regs || !ranges.isKnown(reg)) return false;
+		long low = ranges.low(reg, block) * factor;
+		long high = ranges.high(reg, block) * factor;
+		return Math.min(low, high) >= Integer.MIN_VALUE && Math.max(low, high) <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return int the operand of instruction i that steps in the loop, if
+	 * the instruction steps with it, otherwise -1
+	 */
+	private int operand(int i) {
+		int op = method.op(i);
+		int a = method.a(i);
+		int b = method.b(i);
+		switch (op) {
+		case Op.COPY:
+		case Op.NEG:
+			return ivOf[a] == loop ? a : -1;
+		case Op.ADD:
+		case Op.SUB:
+		case Op.MUL:
+			if (ivOf[a] == loop && ivOf[b] != loop && isInvariant(b)) return a;
+			return ivOf[b] == loop && ivOf[a] != loop && isInvariant(a) ? b : -1;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return int the register holding the start of an induction variable,
+	 * made in the preheader along with those it is worked out from
+	 */
+	private int start(int reg) {
+		make(reg);
+		return starts[reg];
+	}
+
+	private int step(int reg) {
+		make(reg);
+		return steps[reg];
+	}
+
+	/**
+	 * Makes the start and step of an induction variable, and of those it is
+	 * worked out from first, without recursion, as chains can be long
+	 */
+	private void make(int reg) {
+		IntList work = new IntList();
+		work.add(reg);
+		while (!work.isEmpty()) {
+			int r = work.get(work.size() - 1);
+			if (madeFor[r] == loop) {
+				work.pop();
+				continue;
+			}
+			int i = def[r];
+			if (method.op(i) == Op.PHI) {
+				int step = def[next[r]];
+				int by = invariant(method.a(step) == r ? method.b(step) : method.a(step));
+				starts[r] = init[r];
+				steps[r] = method.op(step) == Op.SUB ? negate(by) : by;
+				madeFor[r] = loop;
+				work.pop();
+				continue;
+			}
+			int from = operand(i);
+			if (madeFor[from] != loop) {
+				work.add(from);
+				continue;
+			}
+			int other = method.a(i) == from ? method.b(i) : method.a(i);
+			switch (method.op(i)) {
+			case Op.COPY:
+				starts[r] = starts[from];
+				steps[r] = steps[from];
+				break;
+			case Op.NEG:
+				starts[r] = negate(starts[from]);
+				steps[r] = negate(steps[from]);
+				break;
+			case Op.ADD:
+				starts[r] = binary(Op.ADD, starts[from], invariant(other));
+				steps[r] = steps[from];
+				break;
+			case Op.MUL:
+				starts[r] = binary(Op.MUL, starts[from], invariant(other));
+				steps[r] = binary(Op.MUL, steps[from], invariant(other));
+				break;
+			default:
+				if (method.a(i) == from) {
+					starts[r] = binary(Op.SUB, starts[from], invariant(other));
+					steps[r] = steps[from];
+				} else {
+					starts[r] = binary(Op.SUB, invariant(other), starts[from]);
+					steps[r] = negate(steps[from]);
+				}
+			}
+			madeFor[r] = loop;
+			work.pop();
+		}
+	}
+
+	/**
+	 * @return boolean True if a register has the same value all round the loop
+	 */
+	private boolean isInvariant(int reg) {
+		return defBlock[reg] < 0 || !loops.contains(loop, defBlock[reg]) || method.op(def[reg]) == Op.CONST;
+	}
+
+	/**
+	 * @return int a loop invariant register that can be read in the
+	 * preheader, a constant assigned in the loop being made again there
+	 */
+	private int invariant(int reg) {
+		if (defBlock[reg] < 0 || !loops.contains(loop, defBlock[reg])) return reg;
+		if (invariantFor[reg] != loop) {
+			invariants[reg] = constant(values[reg]);
+			invariantFor[reg] = loop;
+		}
+		return invariants[reg];
+	}
+
+	private int constant(int value) {
+		int reg = newReg();
+		add(added, preheader, Op.CONST, reg, value, -1);
+		values[reg] = value;
+		isValue[reg] = true;
+		return reg;
+	}
+
+	private int negate(int reg) {
+		if (isValue[reg]) return constant(-values[reg]);
+		int negated = newReg();
+		add(added, preheader, Op.NEG, negated, reg, -1);
+		return negated;
+	}
+
+	/**
+	 * @return int a register holding the result of arithmetic in the
+	 * preheader, folded where its operands are constants
+	 */
+	private int binary(int op, int a, int b) {
+		if (isValue[a] && isValue[b]) {
+			int x = values[a];
+			int y = values[b];
+			return constant(op == Op.ADD ? x + y : op == Op.SUB ? x - y : x * y);
+		}
+		if (op == Op.MUL && ((isValue[a] && values[a] == 1) || (isValue[b] && values[b] == 0))) return b;
+		if (op == Op.MUL && isValue[a] && values[a] == 0) return a;
+		if ((op == Op.MUL && isValue[b] && values[b] == 1) || (op != Op.MUL && isValue[b] && values[b] == 0)) return a;
+		if (op == Op.ADD && isValue[a] && values[a] == 0) return b;
+		int result = newReg();
+		add(added, preheader, op, result, a, b);
+		return result;
+	}
+
+	private int newReg() {
+		int reg = method.newReg();
+		if (reg >= values.length) {
+			values = Arrays.copyOf(values, 2 * reg + 1);
+			isValue = Arrays.copyOf(isValue, 2 * reg + 1);
+		}
+		return reg;
+	}
+
+	private static void add(IntList[] lists, int block, int... values) {
+		if (lists[block] == null) lists[block] = new IntList();
+		for (int value : values) lists[block].add(value);
+	}
+
+	/**
+	 * @return boolean True if two registers hold the same value, being one
+	 * register or assigned the same constant
+	 */
+	private boolean same(int a, int b) {
+		return a == b || (a < regs && b < regs && isValue[a] && isValue[b] && values[a] == values[b]);
+	}
+
+	/**
+	 * @return boolean True if instruction i runs before instruction j on every path to j
+	 */
+	private boolean precedes(int i, int j) {
+		if (blockOf[i] == blockOf[j]) return i < j;
+		return dominators.dominates(blockOf[i], blockOf[j]);
+	}
+
+	/**
+	 * @return int the register a register is finally replaced by
+	 */
+	private int resolve(int reg) {
+		while (reg >= 0 && reg < regs && replacement[reg] != reg) reg = replacement[reg];
+		return reg;
+	}
+
+	private void rewrite() {
+		IrMethod out = method.withoutCode();
+		for (int block = 0; block < blocks.size(); block++) {
+			int end = blocks.end(block);
+			int i = blocks.start(block);
+			out.emit(method, i++);
+			for (; method.op(i) == Op.PHI; i++) {
+				if (!removed[i]) emit(out, i);
+			}
+			IntList made = phis[block];
+			if (made != null) {
+				out.setLine(method.line(blocks.start(block)));
+				for (int k = 0; k < made.size(); k += 5) {
+					int pairs = out.addArgs(made.get(k + 1), resolve(made.get(k + 2)), made.get(k + 3), made.get(k + 4));
+					out.emit(Op.PHI, made.get(k), pairs, 2);
+				}
+			}
+			for (; i < end - 1; i++) {
+				if (!removed[i]) emit(out, i);
+			}
+			made = added[block];
+			if (made != null) {
+				out.setLine(method.line(end - 1));
+				for (int k = 0; k < made.size(); k += 4) {
+					int op = made.get(k);
+					int a = op == Op.CONST ? made.get(k + 2) : resolve(made.get(k + 2));
+					out.emit(op, made.get(k + 1), a, resolve(made.get(k + 3)));
+				}
+			}
+			emit(out, end - 1);
+		}
+		method.replaceWith(out);
+		BasicBlocks.normalize(method);
+	}
+
+	/**
+	 * Copies instruction i into the rebuilt method, reading the registers it
+	 * reads are replaced by
+	 */
+	private void emit(IrMethod out, int i) {
+		int copy = out.emit(method, i);
+		for (int k = 0; k < out.useCount(copy); k++) out.setUse(copy, k, resolve(out.use(copy, k)));
+	}
+}
@@ -0,0 +1,304 @@
+package decaf.ir;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Replaces calls with the bodies of the methods called, over a program out
+ * of SSA form
+ *
+ * The call graph is split into its strongly connected components, which
+ * Tarjan's algorithm finds callees first, so every method is inlined into
+ * after the methods it calls have had their own calls inlined. A call to a
+ * method in the caller's own component, a recursive one, is never inlined,
+ * as that could go on forever.
+ *
+ * Whether a call is inlined depends on the size of the method called,
+ * counted in instructions: it must be no bigger than a limit that grows
+ * with each argument that is a constant, which folding can then spread
+ * through the body, and doubles for each loop the call is in, up to three,
+ * as the call is made that many more times. The calls in a method are
+ * taken innermost loop first, then smallest first, and inlining stops for
+ * good once the program has grown by half, or by a minimum for small
+ * programs.
+ *
+ * An inlined body gets fresh registers and labels. Its parameters are
+ * copied from the arguments, its returns become copies to the call's
+ * result and jumps past it, and its bounds checks and traps keep the name
+ * of the method they came from for their runtime errors.
+ *
+ * @author Miles Schofield
+ */
+public final class Inliner {
+
+	/** The biggest method inlined at a call with no constant arguments outside loops */
+	private static final int SIZE = 12;
+	/** How much bigger each constant argument lets it be */
+	private static final int CONSTANT_ARGUMENT = 6;
+	/** The deepest loop nesting that still doubles the limit */
+	private static final int MAX_DEPTH = 3;
+	/** How much the program may grow, as a percentage of its size */
+	private static final int GROWTH = 50;
+	private static final int MIN_GROWTH = 200;
+
+	private final IrProgram program;
+	private final PrintStream report;
+	private final int[] sizes;
+	private int budget;
+	private int inlined;
+
+	private Inliner(IrProgram program, PrintStream report) {
+		this.program = program;
+		this.report = report;
+		sizes = new int[program.methodCount()];
+	}
+
+	/**
+	 * @param changed boolean[] set for each method that had calls inlined, or null
+	 * @param report PrintStream to report each call inlined, or null
+	 * @return int the number of calls inlined
+	 */
+	public static int run(IrProgram program, boolean[] changed, PrintStream report) {
+		Inliner inliner = new Inliner(program, report);
+		int total = 0;
+		for (int m = 0; m < program.methodCount(); m++) {
+			BasicBlocks.normalize(program.method(m));
+			inliner.sizes[m] = size(program.method(m));
+			total += inliner.sizes[m];
+		}
+		inliner.budget = Math.max(total * GROWTH / 100, MIN_GROWTH);
+		int[] components = components(program);
+		int[] order = new int[program.methodCount()];
+		for (int m = 0; m < order.length; m++) order[m] = m;
+		sortBy(order, components);
+		for (int m : order) {
+			if (inliner.inline(m, components) && changed != null) changed[m] = true;
+		}
+		return inliner.inlined;
+	}
+
+	/**
+	 * @return int the number of instructions in a method but for its labels
+	 */
+	private static int size(IrMethod method) {
+		int size = 0;
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) != Op.LABEL && method.op(i) != Op.NOP) size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Sorts methods, or instructions, by a key for each, keeping the order
+	 * of those with the same key
+	 */
+	private static void sortBy(int[] methods, int[] keys) {
+		Integer[] boxed = new Integer[methods.length];
+		for (int k = 0; k < methods.length; k++) boxed[k] = methods[k];
+		final int[] by = keys;
+		Arrays.sort(boxed, new java.util.Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(by[a], by[b]);
+			}
+		});
+		for (int k = 0; k < methods.length; k++) methods[k] = boxed[k];
+	}
+
+	/**
+	 * Numbers the strongly connected components of the call graph by
+	 * Tarjan's algorithm, without recursion, so a component is numbered
+	 * after those of every method it calls
+	 *
+	 * @return int[] the component of each method
+	 */
+	private static int[] components(IrProgram program) {
+		int count = program.methodCount();
+		IntList[] callees = new IntList[count];
+		for (int m = 0; m < count; m++) {
+			callees[m] = new IntList(4);
+			IrMethod method = program.method(m);
+			for (int i = 0; i < method.size(); i++) {
+				if (method.op(i) == Op.CALL) callees[m].add(method.a(i));
+			}
+		}
+		int[] component = new int[count];
+		int[] index = new int[count];
+		int[] low = new int[count];
+		boolean[] onStack = new boolean[count];
+		Arrays.fill(index, -1);
+		IntList stack = new IntList();
+		// The methods being visited, and how far through its callees each is
+		IntList path = new IntList();
+		IntList next = new IntList();
+		int visited = 0;
+		int components = 0;
+		for (int root = 0; root < count; root++) {
+			if (index[root] >= 0) continue;
+			index[root] = low[root] = visited++;
+			stack.add(root);
+			onStack[root] = true;
+			path.add(root);
+			next.add(0);
+			while (!path.isEmpty()) {
+				int m = path.last();
+				int k = next.last();
+				if (k < callees[m].size()) {
+					next.set(next.size() - 1, k + 1);
+					int callee = callees[m].get(k);
+					if (index[callee] < 0) {
+						index[callee] = low[callee] = visited++;
+						stack.add(callee);
+						onStack[callee] = true;
+						path.add(callee);
+						next.add(0);
+					} else if (onStack[callee]) {
+						low[m] = Math.min(low[m], index[callee]);
+					}
+					continue;
+				}
+				path.pop();
+				next.pop();
+				if (!path.isEmpty()) low[path.last()] = Math.min(low[path.last()], low[m]);
+				if (low[m] != index[m]) continue;
+				int member;
+				do {
+					member = stack.pop();
+					onStack[member] = false;
+					component[member] = components;
+				} while (member != m);
+				components++;
+			}
+		}
+		return component;
+	}
+
+	/**
+	 * Inlines what calls it can in a method
+	 *
+	 * @return boolean True if any were
+	 */
+	private boolean inline(int m, int[] components) {
+		IrMethod method = program.method(m);
+		BasicBlocks blocks = new BasicBlocks(method);
+		Loops loops = new Loops(new Dominators(blocks));
+		IntList[] defs = new IntList[method.regCount()];
+		for (int i = 0; i < method.size(); i++) {
+			int dst = method.dst(i);
+			if (dst < 0) continue;
+			if (defs[dst] == null) defs[dst] = new IntList(1);
+			defs[dst].add(i);
+		}
+		int[] onlyDef = DeadCodeElimination.onlyDefs(method, defs);
+
+		// The calls that could be inlined, and how deep in loops each is
+		IntList calls = new IntList();
+		int[] depths = new int[method.size()];
+		for (int block = 0; block < blocks.size(); block++) {
+			int loop = loops.loopOf(block);
+			int depth = loop < 0 ? 0 : Math.min(loops.depth(loop), MAX_DEPTH);
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				if (method.op(i) != Op.CALL || components[method.a(i)] == components[m]) continue;
+				int limit = SIZE;
+				for (int arg : method.callArgs(i)) {
+					if (onlyDef[arg] >= 0 && method.op(onlyDef[arg]) == Op.CONST) limit += CONSTANT_ARGUMENT;
+				}
+				if (sizes[method.a(i)] > limit << depth) continue;
+				calls.add(i);
+				depths[i] = depth;
+			}
+		}
+		if (calls.isEmpty()) return false;
+		// Deepest in loops first, then smallest
+		int[] keys = new int[method.size()];
+		for (int k = 0; k < calls.size(); k++) keys[calls.get(k)] = sizes[method.a(calls.get(k))];
+		int[] sorted = calls.toArray();
+		sortBy(sorted, keys);
+		for (int k = 0; k < sorted.length; k++) keys[sorted[k]] = -depths[sorted[k]];
+		sortBy(sorted, keys);
+
+		boolean[] chosen = new boolean[method.size()];
+		boolean any = false;
+		for (int i : sorted) {
+			int size = sizes[method.a(i)];
+			if (size > budget) continue;
+			budget -= size;
+			chosen[i] = true;
+			any = true;
+		}
+		if (!any) return false;
+
+		IrMethod rebuilt = method.withoutCode();
+		for (int i = 0; i < method.size(); i++) {
+			if (!chosen[i]) {
+				rebuilt.emit(method, i);
+				continue;
+			}
+			IrMethod callee = program.method(method.a(i));
+			if (report != null) {
+				report.println("inline: " + method.getName() + ": inlined " + callee.getName() + " (line " + method.line(i) + ")");
+			}
+			copyBody(method, i, rebuilt);
+			inlined++;
+		}
+		method.replaceWith(rebuilt);
+		BasicBlocks.normalize(method);
+		sizes[m] = size(method);
+		return true;
+	}
+
+	/**
+	 * Appends the body of the method called by call i of a method, in its
+	 * place
+	 */
+	private void copyBody(IrMethod method, int i, IrMethod rebuilt) {
+		int calleeIndex = method.a(i);
+		IrMethod callee = program.method(calleeIndex);
+		int[] regs = new int[callee.regCount()];
+		for (int reg = 0; reg < regs.length; reg++) regs[reg] = rebuilt.newReg(callee.regName(reg));
+		int[] labels = new int[callee.labelCount()];
+		for (int label = 0; label < labels.length; label++) labels[label] = rebuilt.newLabel();
+		int after = rebuilt.newLabel();
+		int result = method.dst(i);
+
+		rebuilt.setLine(method.line(i));
+		int[] args = method.callArgs(i);
+		for (int param = 0; param < args.length; param++) rebuilt.emit(Op.COPY, regs[param], args[param]);
+		rebuilt.emit(Op.JUMP, -1, labels[callee.a(0)]);
+		for (int j = 0; j < callee.size(); j++) {
+			int op = callee.op(j);
+			if (op == Op.NOP) continue;
+			if (op == Op.RET) {
+				rebuilt.setLine(callee.line(j));
+				if (result >= 0 && callee.a(j) >= 0) rebuilt.emit(Op.COPY, result, regs[callee.a(j)]);
+				rebuilt.emit(Op.JUMP, -1, after);
+				continue;
+			}
+			int copy = rebuilt.emit(callee, j);
+			if (callee.dst(j) >= 0) rebuilt.setDst(copy, regs[callee.dst(j)]);
+			for (int k = 0; k < callee.useCount(j); k++) rebuilt.setUse(copy, k, regs[callee.use(j, k)]);
+			switch (op) {
+			case Op.LABEL:
+			case Op.JUMP:
+				rebuilt.setA(copy, labels[callee.a(j)]);
+				break;
+			case Op.BRANCH:
+				rebuilt.setB(copy, labels[callee.b(j)]);
+				rebuilt.setC(copy, labels[callee.c(j)]);
+				break;
+			case Op.BOUNDS:
+				if (callee.c(j) < 0) rebuilt.setC(copy, calleeIndex);
+				break;
+			case Op.TRAP:
+				if (callee.a(j) < 0) rebuilt.setA(copy, calleeIndex);
+				break;
+			case Op.PHI:
+				throw new IllegalStateException(callee.getName() + " is in SSA form");
+			default:
+				break;
+			}
+		}
+		rebuilt.setLine(method.line(i));
+		rebuilt.emit(Op.LABEL, -1, after);
+	}
+}
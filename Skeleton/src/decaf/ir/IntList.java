@@ -0,0 +1,70 @@
+package decaf.ir;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, for the block lists and worklists of the passes
+ * and the code generator, which would otherwise box every entry
+ *
+ * @author Miles Schofield
+ */
+public class IntList {
+
+	private int[] values;
+	private int size = 0;
+
+	public IntList() {
+		this(8);
+	}
+
+	public IntList(int capacity) {
+		values = new int[Math.max(1, capacity)];
+	}
+
+	public void add(int value) {
+		if (size == values.length) values = Arrays.copyOf(values, size * 2);
+		values[size++] = value;
+	}
+
+	public int get(int index) {
+		return values[index];
+	}
+
+	public void set(int index, int value) {
+		values[index] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return int the last value, which is removed
+	 */
+	public int pop() {
+		return values[--size];
+	}
+
+	public int last() {
+		return values[size - 1];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Drops values from the end until size are left
+	 */
+	public void truncate(int size) {
+		this.size = size;
+	}
+
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
@@ -0,0 +1,391 @@
+package decaf.ir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The binary form of the IR, for passing a program between stages without
+ * compiling it from source again
+ *
+ * Every name and string in the program is held once, in a constant pool,
+ * and referred to by its position there. Instructions are written as
+ * varints, only with the operands their opcode uses, so most take two to
+ * four bytes. A method index at the front gives where each method starts,
+ * so a single method can be read from the mapped file without reading the
+ * others. Reading a program back gives the same program as was written,
+ * as the text form does.
+ *
+ * Layout, ints big-endian:
+ * header    magic, version, pool size, globals, strings, methods
+ * index     per method: name, offset from the start of the file, length in bytes
+ * pool      per constant: varint length, then the UTF-8 bytes
+ * globals   per global: varint name, varint length
+ * strings   per string: varint constant
+ * methods   per method: varint params, returns value, registers, labels,
+ *           instructions; then the constant + 1 naming each register, 0 for
+ *           temporaries; then per instruction: varint opcode, dst + 1 and
+ *           line change, then its operands, with call arguments and phi
+ *           pairs inline after their count, and the method + 1 a bounds
+ *           check or trap reports, 0 for its own
+ *
+ * Values that can be negative, constants and line changes, are zigzag
+ * encoded so small negative numbers stay short.
+ *
+ * @author Miles Schofield
+ */
+public class IrBinary {
+
+	private static final int MAGIC = 0x44434952; // "DCIR"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	private static final int INDEX_SIZE = 12;
+
+	private final ByteBuffer buffer;
+	private final String[] pool;
+	private final int methods;
+	private final IrProgram header = new IrProgram();
+
+	private IrBinary(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IOException("not a binary IR file");
+		if (buffer.getInt(4) != VERSION) throw new IOException("unsupported binary IR version " + buffer.getInt(4));
+		pool = new String[buffer.getInt(8)];
+		int globals = buffer.getInt(12);
+		int strings = buffer.getInt(16);
+		methods = buffer.getInt(20);
+
+		buffer.position(HEADER_SIZE + methods * INDEX_SIZE);
+		for (int i = 0; i < pool.length; i++) {
+			byte[] bytes = new byte[readVarint(buffer)];
+			buffer.get(bytes);
+			pool[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		for (int i = 0; i < globals; i++) {
+			String name = pool[readVarint(buffer)];
+			header.addGlobal(name, readVarint(buffer));
+		}
+		for (int i = 0; i < strings; i++) header.addString(pool[readVarint(buffer)]);
+	}
+
+	/**
+	 * Maps a binary IR file, reading only its header, constants, globals and strings
+	 *
+	 * @param file File written by write
+	 * @return IrBinary reading from the mapped file
+	 * @throws IOException if it cannot be read or is not binary IR
+	 */
+	public static IrBinary open(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			// The mapping stays valid once the file is closed
+			MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			return new IrBinary(buffer);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a whole program
+	 *
+	 * @param file File written by write
+	 * @return IrProgram the program
+	 * @throws IOException if it cannot be read or is not binary IR
+	 */
+	public static IrProgram read(File file) throws IOException {
+		return open(file).readProgram();
+	}
+
+	/**
+	 * @return int the number of methods in the file
+	 */
+	public int methodCount() {
+		return methods;
+	}
+
+	public String methodName(int index) {
+		return pool[buffer.getInt(HEADER_SIZE + index * INDEX_SIZE)];
+	}
+
+	/**
+	 * @return int the index of a method, or -1 if there is none by that name
+	 */
+	public int methodIndex(String name) {
+		for (int i = 0; i < methods; i++) {
+			if (methodName(i).equals(name)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads a single method. CALL instructions refer to methods by their
+	 * index in the file, and globals and strings by their index in the
+	 * program readProgram would give.
+	 *
+	 * @param index int index of the method
+	 * @return IrMethod the method
+	 */
+	public IrMethod readMethod(int index) {
+		int at = HEADER_SIZE + index * INDEX_SIZE;
+		ByteBuffer in = buffer.duplicate();
+		in.position(buffer.getInt(at + 4));
+		in.limit(buffer.getInt(at + 4) + buffer.getInt(at + 8));
+
+		IrMethod method = new IrMethod(pool[buffer.getInt(at)], readVarint(in), readVarint(in) != 0);
+		int regs = readVarint(in);
+		int labels = readVarint(in);
+		int size = readVarint(in);
+		for (int reg = 0; reg < regs; reg++) {
+			int name = readVarint(in);
+			method.newReg(name == 0 ? null : pool[name - 1]);
+		}
+		for (int label = 0; label < labels; label++) method.newLabel();
+
+		int line = 0;
+		for (int i = 0; i < size; i++) {
+			int op = readVarint(in);
+			int dst = readVarint(in) - 1;
+			line += unzigzag(readVarint(in));
+			method.setLine(line);
+			int a = -1;
+			int b = -1;
+			int c = -1;
+			switch (op) {
+			case Op.CONST:
+				a = unzigzag(readVarint(in));
+				break;
+			case Op.CALL:
+			case Op.CALLOUT:
+				a = readVarint(in);
+				c = readVarint(in);
+				b = method.addArgs(readVarints(in, c));
+				break;
+			case Op.PHI:
+				b = readVarint(in);
+				a = method.addArgs(readVarints(in, 2 * b));
+				break;
+			case Op.RET:
+			case Op.TRAP:
+				a = readVarint(in) - 1;
+				break;
+			case Op.BOUNDS:
+				a = readVarint(in);
+				b = readVarint(in);
+				c = readVarint(in) - 1;
+				break;
+			default:
+				int operands = operands(op);
+				if (operands > 0) a = readVarint(in);
+				if (operands > 1) b = readVarint(in);
+				if (operands > 2) c = readVarint(in);
+			}
+			method.emit(op, dst, a, b, c);
+		}
+		return method;
+	}
+
+	/**
+	 * @return IrProgram every global, string and method in the file
+	 */
+	public IrProgram readProgram() {
+		IrProgram program = new IrProgram();
+		for (int global = 0; global < header.globalCount(); global++) {
+			program.addGlobal(header.globalName(global), header.globalLength(global));
+		}
+		for (int string = 0; string < header.stringCount(); string++) program.addString(header.string(string));
+		for (int method = 0; method < methods; method++) program.addMethod(readMethod(method));
+		return program;
+	}
+
+	/**
+	 * Writes a program in the binary form
+	 *
+	 * @param program IrProgram to write
+	 * @param out OutputStream to write it to, left open
+	 * @throws IOException if it cannot be written
+	 */
+	public static void write(IrProgram program, OutputStream out) throws IOException {
+		Pool pool = new Pool();
+		ByteArrayOutputStream tables = new ByteArrayOutputStream();
+		for (int global = 0; global < program.globalCount(); global++) {
+			writeVarint(tables, pool.add(program.globalName(global)));
+			writeVarint(tables, program.globalLength(global));
+		}
+		for (int string = 0; string < program.stringCount(); string++) {
+			writeVarint(tables, pool.add(program.string(string)));
+		}
+		ByteArrayOutputStream bodies = new ByteArrayOutputStream();
+		int[] names = new int[program.methodCount()];
+		int[] offsets = new int[program.methodCount() + 1];
+		for (int m = 0; m < program.methodCount(); m++) {
+			names[m] = pool.add(program.method(m).getName());
+			offsets[m] = bodies.size();
+			writeMethod(program.method(m), pool, bodies);
+		}
+		offsets[program.methodCount()] = bodies.size();
+
+		ByteArrayOutputStream constants = new ByteArrayOutputStream();
+		for (String constant : pool.constants) {
+			byte[] bytes = constant.getBytes(StandardCharsets.UTF_8);
+			writeVarint(constants, bytes.length);
+			constants.write(bytes);
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(pool.constants.size());
+		data.writeInt(program.globalCount());
+		data.writeInt(program.stringCount());
+		data.writeInt(program.methodCount());
+		int start = HEADER_SIZE + program.methodCount() * INDEX_SIZE + constants.size() + tables.size();
+		for (int m = 0; m < program.methodCount(); m++) {
+			data.writeInt(names[m]);
+			data.writeInt(start + offsets[m]);
+			data.writeInt(offsets[m + 1] - offsets[m]);
+		}
+		constants.writeTo(data);
+		tables.writeTo(data);
+		bodies.writeTo(data);
+		data.flush();
+	}
+
+	private static void writeMethod(IrMethod method, Pool pool, ByteArrayOutputStream out) {
+		writeVarint(out, method.getParams());
+		writeVarint(out, method.returnsValue() ? 1 : 0);
+		writeVarint(out, method.regCount());
+		writeVarint(out, method.labelCount());
+		writeVarint(out, method.size());
+		for (int reg = 0; reg < method.regCount(); reg++) {
+			String name = method.regName(reg);
+			writeVarint(out, name == null ? 0 : pool.add(name) + 1);
+		}
+		int line = 0;
+		for (int i = 0; i < method.size(); i++) {
+			int op = method.op(i);
+			writeVarint(out, op);
+			writeVarint(out, method.dst(i) + 1);
+			writeVarint(out, zigzag(method.line(i) - line));
+			line = method.line(i);
+			switch (op) {
+			case Op.CONST:
+				writeVarint(out, zigzag(method.a(i)));
+				break;
+			case Op.CALL:
+			case Op.CALLOUT:
+				writeVarint(out, method.a(i));
+				writeVarint(out, method.c(i));
+				for (int arg = 0; arg < method.c(i); arg++) writeVarint(out, method.arg(method.b(i) + arg));
+				break;
+			case Op.PHI:
+				writeVarint(out, method.b(i));
+				for (int arg = 0; arg < 2 * method.b(i); arg++) writeVarint(out, method.arg(method.a(i) + arg));
+				break;
+			case Op.RET:
+			case Op.TRAP:
+				writeVarint(out, method.a(i) + 1);
+				break;
+			case Op.BOUNDS:
+				writeVarint(out, method.a(i));
+				writeVarint(out, method.b(i));
+				writeVarint(out, method.c(i) + 1);
+				break;
+			default:
+				int operands = operands(op);
+				if (operands > 0) writeVarint(out, method.a(i));
+				if (operands > 1) writeVarint(out, method.b(i));
+				if (operands > 2) writeVarint(out, method.c(i));
+			}
+		}
+	}
+
+	/**
+	 * @return int how many of the operands a, b and c an opcode uses, for
+	 * those whose operands are all registers, labels, globals or strings
+	 */
+	private static int operands(int op) {
+		if (Op.isBinary(op)) return 2;
+		switch (op) {
+		case Op.NOP:
+			return 0;
+		case Op.STR:
+		case Op.COPY:
+		case Op.NEG:
+		case Op.NOT:
+		case Op.LOADG:
+		case Op.LABEL:
+		case Op.JUMP:
+			return 1;
+		case Op.STOREG:
+		case Op.ALOAD:
+			return 2;
+		default:
+			// ASTORE and BRANCH
+			return 3;
+		}
+	}
+
+	/**
+	 * The constants of a program being written, each held once
+	 */
+	private static class Pool {
+		final List<String> constants = new ArrayList<String>();
+		final HashMap<String, Integer> positions = new HashMap<String, Integer>();
+
+		int add(String constant) {
+			Integer position = positions.get(constant);
+			if (position == null) {
+				position = constants.size();
+				constants.add(constant);
+				positions.put(constant, position);
+			}
+			return position;
+		}
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes an unsigned int seven bits at a time, low bits first, with the
+	 * top bit of each byte set while more follow
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte next = in.get();
+			value |= (next & 0x7F) << shift;
+			if (next >= 0) return value;
+		}
+	}
+
+	private static int[] readVarints(ByteBuffer in, int count) {
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) values[i] = readVarint(in);
+		return values;
+	}
+}
@@ -0,0 +1,421 @@
+package decaf.ir;
+
+import java.util.Arrays;
+
+/**
+ * The three-address code of one method
+ *
+ * Instructions are held in parallel int arrays, one entry per instruction,
+ * rather than as an object each: the opcode, the destination register and
+ * the operands a, b and c, as described in Op, and the source line the
+ * instruction came from. Call arguments and phi operands, which have no
+ * fixed number, live in a separate argument pool that instructions refer
+ * to by position and count.
+ *
+ * Registers are numbered from 0. The parameters are the first registers, in
+ * order; the method's locals and temporaries follow. Labels are numbered
+ * separately from 0. Passes edit instructions in place, turning removed ones
+ * into NOPs, and call compact once they are done.
+ *
+ * @author Miles Schofield
+ */
+public class IrMethod {
+
+	private final String name;
+	private final int params;
+	private final boolean returnsValue;
+
+	private int size = 0;
+	private int[] ops = new int[64];
+	private int[] dsts = new int[64];
+	private int[] as = new int[64];
+	private int[] bs = new int[64];
+	private int[] cs = new int[64];
+	private int[] lines = new int[64];
+
+	private int[] args = new int[16];
+	private int argsSize = 0;
+
+	private int regs = 0;
+	private int labels = 0;
+	/** Source name of each register that holds a parameter or local, null for temporaries */
+	private String[] regNames = new String[16];
+	/** The line given to instructions as they are emitted */
+	private int line = 0;
+
+	/**
+	 * @param name String name of the method
+	 * @param params int number of parameters, which take registers 0 to params - 1
+	 * @param returnsValue boolean False for VOID methods
+	 */
+	public IrMethod(String name, int params, boolean returnsValue) {
+		this.name = name;
+		this.params = params;
+		this.returnsValue = returnsValue;
+	}
+
+	/**
+	 * @return IrMethod an independent copy of this method
+	 */
+	public IrMethod copy() {
+		IrMethod copy = new IrMethod(name, params, returnsValue);
+		copy.size = size;
+		copy.ops = ops.clone();
+		copy.dsts = dsts.clone();
+		copy.as = as.clone();
+		copy.bs = bs.clone();
+		copy.cs = cs.clone();
+		copy.lines = lines.clone();
+		copy.args = args.clone();
+		copy.argsSize = argsSize;
+		copy.regs = regs;
+		copy.labels = labels;
+		copy.regNames = regNames.clone();
+		copy.line = line;
+		return copy;
+	}
+
+	/**
+	 * @return IrMethod a method with the same signature, registers and
+	 * labels as this one, but no instructions
+	 */
+	public IrMethod withoutCode() {
+		IrMethod empty = new IrMethod(name, params, returnsValue);
+		empty.regs = regs;
+		empty.labels = labels;
+		empty.regNames = regNames.clone();
+		return empty;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getParams() {
+		return params;
+	}
+
+	public boolean returnsValue() {
+		return returnsValue;
+	}
+
+	/**
+	 * @return int the number of instructions
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int op(int i) {
+		return ops[i];
+	}
+
+	public int dst(int i) {
+		return dsts[i];
+	}
+
+	public int a(int i) {
+		return as[i];
+	}
+
+	public int b(int i) {
+		return bs[i];
+	}
+
+	public int c(int i) {
+		return cs[i];
+	}
+
+	/**
+	 * @return int the source line instruction i came from, 0 if unknown
+	 */
+	public int line(int i) {
+		return lines[i];
+	}
+
+	/**
+	 * Sets the source line given to the instructions emitted from now on
+	 */
+	public void setLine(int line) {
+		this.line = line;
+	}
+
+	/**
+	 * Appends an instruction
+	 *
+	 * @return int the index of the instruction
+	 */
+	public int emit(int op, int dst, int a, int b, int c) {
+		if (size == ops.length) {
+			int capacity = size * 2;
+			ops = Arrays.copyOf(ops, capacity);
+			dsts = Arrays.copyOf(dsts, capacity);
+			as = Arrays.copyOf(as, capacity);
+			bs = Arrays.copyOf(bs, capacity);
+			cs = Arrays.copyOf(cs, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+		}
+		ops[size] = op;
+		dsts[size] = dst;
+		as[size] = a;
+		bs[size] = b;
+		cs[size] = c;
+		lines[size] = line;
+		return size++;
+	}
+
+	/**
+	 * Appends a copy of instruction i of another method, with its line and
+	 * its own copy of any arguments
+	 *
+	 * @return int the index of the instruction
+	 */
+	public int emit(IrMethod from, int i) {
+		int op = from.ops[i];
+		int a = from.as[i];
+		int b = from.bs[i];
+		if (op == Op.CALL || op == Op.CALLOUT) b = addArgs(from.callArgs(i));
+		else if (op == Op.PHI) a = addArgs(Arrays.copyOfRange(from.args, a, a + 2 * b));
+		int copy = emit(op, from.dsts[i], a, b, from.cs[i]);
+		lines[copy] = from.lines[i];
+		return copy;
+	}
+
+	public int emit(int op, int dst, int a, int b) {
+		return emit(op, dst, a, b, -1);
+	}
+
+	public int emit(int op, int dst, int a) {
+		return emit(op, dst, a, -1, -1);
+	}
+
+	/**
+	 * Replaces instruction i, keeping its line
+	 */
+	public void set(int i, int op, int dst, int a, int b, int c) {
+		ops[i] = op;
+		dsts[i] = dst;
+		as[i] = a;
+		bs[i] = b;
+		cs[i] = c;
+	}
+
+	public void setOp(int i, int op) {
+		ops[i] = op;
+	}
+
+	public void setDst(int i, int dst) {
+		dsts[i] = dst;
+	}
+
+	public void setA(int i, int a) {
+		as[i] = a;
+	}
+
+	public void setB(int i, int b) {
+		bs[i] = b;
+	}
+
+	public void setC(int i, int c) {
+		cs[i] = c;
+	}
+
+	/**
+	 * Turns instruction i into a NOP, to be dropped by compact
+	 */
+	public void remove(int i) {
+		set(i, Op.NOP, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Drops every NOP, closing up the instructions that remain
+	 */
+	public void compact() {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (ops[i] == Op.NOP) continue;
+			ops[kept] = ops[i];
+			dsts[kept] = dsts[i];
+			as[kept] = as[i];
+			bs[kept] = bs[i];
+			cs[kept] = cs[i];
+			lines[kept] = lines[i];
+			kept++;
+		}
+		size = kept;
+	}
+
+	/**
+	 * Replaces every instruction with those of another method, such as one a
+	 * pass has rebuilt. Registers, labels and arguments are taken from it too.
+	 */
+	public void replaceWith(IrMethod rebuilt) {
+		size = rebuilt.size;
+		ops = rebuilt.ops.clone();
+		dsts = rebuilt.dsts.clone();
+		as = rebuilt.as.clone();
+		bs = rebuilt.bs.clone();
+		cs = rebuilt.cs.clone();
+		lines = rebuilt.lines.clone();
+		args = rebuilt.args.clone();
+		argsSize = rebuilt.argsSize;
+		regs = rebuilt.regs;
+		labels = rebuilt.labels;
+		regNames = rebuilt.regNames.clone();
+	}
+
+	/**
+	 * @return int the number of registers
+	 */
+	public int regCount() {
+		return regs;
+	}
+
+	public int newReg() {
+		return newReg(null);
+	}
+
+	/**
+	 * @param name String source name of the parameter or local the register holds
+	 * @return int a new register
+	 */
+	public int newReg(String name) {
+		if (regs == regNames.length) regNames = Arrays.copyOf(regNames, regs * 2);
+		regNames[regs] = name;
+		return regs++;
+	}
+
+	/**
+	 * @return String the source name of a register, null for a temporary
+	 */
+	public String regName(int reg) {
+		return reg < regs ? regNames[reg] : null;
+	}
+
+	/**
+	 * @return int the number of labels
+	 */
+	public int labelCount() {
+		return labels;
+	}
+
+	public int newLabel() {
+		return labels++;
+	}
+
+	/**
+	 * Adds values to the argument pool
+	 *
+	 * @return int the position of the first value added
+	 */
+	public int addArgs(int... values) {
+		while (argsSize + values.length > args.length) args = Arrays.copyOf(args, args.length * 2);
+		System.arraycopy(values, 0, args, argsSize, values.length);
+		int start = argsSize;
+		argsSize += values.length;
+		return start;
+	}
+
+	/**
+	 * @param position int position in the argument pool
+	 * @return int the value there
+	 */
+	public int arg(int position) {
+		return args[position];
+	}
+
+	public void setArg(int position, int value) {
+		args[position] = value;
+	}
+
+	/**
+	 * @return int the number of registers instruction i reads
+	 */
+	public int useCount(int i) {
+		switch (ops[i]) {
+		case Op.COPY:
+		case Op.NEG:
+		case Op.NOT:
+		case Op.STOREG:
+		case Op.ALOAD:
+		case Op.BOUNDS:
+		case Op.BRANCH:
+			return 1;
+		case Op.ASTORE:
+			return 2;
+		case Op.CALL:
+		case Op.CALLOUT:
+			return cs[i];
+		case Op.PHI:
+			return bs[i];
+		case Op.RET:
+			return as[i] >= 0 ? 1 : 0;
+		default:
+			return Op.isBinary(ops[i]) ? 2 : 0;
+		}
+	}
+
+	/**
+	 * @param i int instruction
+	 * @param k int which of the registers it reads, from 0 to useCount(i) - 1
+	 * @return int the register
+	 */
+	public int use(int i, int k) {
+		switch (ops[i]) {
+		case Op.STOREG:
+		case Op.ALOAD:
+		case Op.BOUNDS:
+			return bs[i];
+		case Op.ASTORE:
+			return k == 0 ? bs[i] : cs[i];
+		case Op.CALL:
+		case Op.CALLOUT:
+			return args[bs[i] + k];
+		case Op.PHI:
+			return args[as[i] + 2 * k + 1];
+		default:
+			return k == 0 ? as[i] : bs[i];
+		}
+	}
+
+	/**
+	 * Replaces one of the registers instruction i reads, numbered as for use
+	 */
+	public void setUse(int i, int k, int reg) {
+		switch (ops[i]) {
+		case Op.STOREG:
+		case Op.ALOAD:
+		case Op.BOUNDS:
+			bs[i] = reg;
+			break;
+		case Op.ASTORE:
+			if (k == 0) bs[i] = reg;
+			else cs[i] = reg;
+			break;
+		case Op.CALL:
+		case Op.CALLOUT:
+			args[bs[i] + k] = reg;
+			break;
+		case Op.PHI:
+			args[as[i] + 2 * k + 1] = reg;
+			break;
+		default:
+			if (k == 0) as[i] = reg;
+			else bs[i] = reg;
+		}
+	}
+
+	/**
+	 * @return int the label of pair k of PHI instruction i, the block its value comes from
+	 */
+	public int phiLabel(int i, int k) {
+		return args[as[i] + 2 * k];
+	}
+
+	/**
+	 * @return int[] the arguments of CALL or CALLOUT instruction i
+	 */
+	public int[] callArgs(int i) {
+		return Arrays.copyOfRange(args, bs[i], bs[i] + cs[i]);
+	}
+}
@@ -0,0 +1,110 @@
+package decaf.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The IR of a whole program
+ *
+ * Holds the fields of the class as globals, the string literals used by
+ * callouts, and the code of each method. Instructions refer to globals,
+ * strings and methods by their index here.
+ *
+ * @author Miles Schofield
+ */
+public class IrProgram {
+
+	private final List<String> globalNames = new ArrayList<String>();
+	/** Length of each global array, 0 for scalars */
+	private final List<Integer> globalLengths = new ArrayList<Integer>();
+	/** Callout names and string literals, as written in the source without the quotes */
+	private final List<String> strings = new ArrayList<String>();
+	private final HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+	private final List<IrMethod> methods = new ArrayList<IrMethod>();
+
+	/**
+	 * @param name String name of the field
+	 * @param length int number of elements if the field is an array, otherwise 0
+	 * @return int the index of the global
+	 */
+	public int addGlobal(String name, int length) {
+		globalNames.add(name);
+		globalLengths.add(length);
+		return globalNames.size() - 1;
+	}
+
+	public int globalCount() {
+		return globalNames.size();
+	}
+
+	public String globalName(int global) {
+		return globalNames.get(global);
+	}
+
+	/**
+	 * @return int the length of a global array, 0 if the global is a scalar
+	 */
+	public int globalLength(int global) {
+		return globalLengths.get(global);
+	}
+
+	/**
+	 * @return int the index of a global, or -1 if there is none by that name
+	 */
+	public int globalIndex(String name) {
+		return globalNames.indexOf(name);
+	}
+
+	/**
+	 * Adds a string, unless it is already held
+	 *
+	 * @return int the index of the string
+	 */
+	public int addString(String text) {
+		Integer index = stringIndex.get(text);
+		if (index != null) return index;
+		strings.add(text);
+		stringIndex.put(text, strings.size() - 1);
+		return strings.size() - 1;
+	}
+
+	public int stringCount() {
+		return strings.size();
+	}
+
+	public String string(int index) {
+		return strings.get(index);
+	}
+
+	/**
+	 * @return int the index of the method
+	 */
+	public int addMethod(IrMethod method) {
+		methods.add(method);
+		return methods.size() - 1;
+	}
+
+	public int methodCount() {
+		return methods.size();
+	}
+
+	public IrMethod method(int index) {
+		return methods.get(index);
+	}
+
+	/**
+	 * @return int the index of a method, or -1 if there is none by that name
+	 */
+	public int methodIndex(String name) {
+		for (int i = 0; i < methods.size(); i++) {
+			if (methods.get(i).getName().equals(name)) return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return IrText.write(this);
+	}
+}
@@ -0,0 +1,520 @@
+package decaf.ir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The text form of the IR, as written for -target inter, and read back
+ *
+ * <pre>
+ * global g
+ * global A[100]
+ * string 0 "printf"
+ *
+ * method int get(r0 i) regs 4 labels 1
+ * 	local r1 x
+ * 	line 4
+ * L0:
+ * 	bounds @A, r0
+ * 	r2 = aload @A, r0
+ * 	ret r2
+ * end
+ * </pre>
+ *
+ * Registers are written rN, labels LN, globals @name, strings $N and
+ * methods by name. A line directive gives the source line of the
+ * instructions after it. A bounds check or trap inlined from another
+ * method is followed by in and that method's name, which its runtime
+ * error reports. Reading the text back gives the same program,
+ * down to the numbering of its registers and labels.
+ *
+ * @author Miles Schofield
+ */
+public final class IrText {
+
+	private IrText() {
+	}
+
+	/**
+	 * @param program IrProgram to write
+	 * @return String the text of the whole program
+	 */
+	public static String write(IrProgram program) {
+		StringBuilder text = new StringBuilder();
+		for (int global = 0; global < program.globalCount(); global++) {
+			text.append("global ").append(program.globalName(global));
+			if (program.globalLength(global) > 0) text.append('[').append(program.globalLength(global)).append(']');
+			text.append('\n');
+		}
+		for (int string = 0; string < program.stringCount(); string++) {
+			text.append("string ").append(string).append(" \"").append(program.string(string)).append("\"\n");
+		}
+		for (int m = 0; m < program.methodCount(); m++) {
+			text.append('\n');
+			write(program, program.method(m), text);
+		}
+		return text.toString();
+	}
+
+	private static void write(IrProgram program, IrMethod method, StringBuilder text) {
+		text.append("method ").append(method.returnsValue() ? "int " : "void ").append(method.getName()).append('(');
+		for (int param = 0; param < method.getParams(); param++) {
+			if (param > 0) text.append(", ");
+			text.append('r').append(param).append(' ').append(method.regName(param));
+		}
+		text.append(") regs ").append(method.regCount()).append(" labels ").append(method.labelCount()).append('\n');
+		for (int reg = method.getParams(); reg < method.regCount(); reg++) {
+			if (method.regName(reg) != null) text.append("\tlocal r").append(reg).append(' ').append(method.regName(reg)).append('\n');
+		}
+		int line = 0;
+		for (int i = 0; i < method.size(); i++) {
+			if (method.line(i) != line) {
+				line = method.line(i);
+				text.append("\tline ").append(line).append('\n');
+			}
+			if (method.op(i) == Op.LABEL) text.append('L').append(method.a(i)).append(":\n");
+			else text.append('\t').append(instruction(program, method, i)).append('\n');
+		}
+		text.append("end\n");
+	}
+
+	/**
+	 * @return String the text of instruction i of a method
+	 */
+	public static String instruction(IrProgram program, IrMethod method, int i) {
+		StringBuilder text = new StringBuilder();
+		int op = method.op(i);
+		if (method.dst(i) >= 0) text.append('r').append(method.dst(i)).append(" = ");
+		text.append(Op.name(op));
+		switch (op) {
+		case Op.CONST:
+			text.append(' ').append(method.a(i));
+			break;
+		case Op.STR:
+			text.append(" $").append(method.a(i));
+			break;
+		case Op.COPY:
+		case Op.NEG:
+		case Op.NOT:
+			text.append(" r").append(method.a(i));
+			break;
+		case Op.LOADG:
+			text.append(" @").append(program.globalName(method.a(i)));
+			break;
+		case Op.STOREG:
+			text.append(" @").append(program.globalName(method.a(i))).append(", r").append(method.b(i));
+			break;
+		case Op.ALOAD:
+			text.append(" @").append(program.globalName(method.a(i))).append(", r").append(method.b(i));
+			break;
+		case Op.BOUNDS:
+			text.append(" @").append(program.globalName(method.a(i))).append(", r").append(method.b(i));
+			if (method.c(i) >= 0) text.append(" in ").append(program.method(method.c(i)).getName());
+			break;
+		case Op.ASTORE:
+			text.append(" @").append(program.globalName(method.a(i))).append(", r").append(method.b(i))
+				.append(", r").append(method.c(i));
+			break;
+		case Op.LABEL:
+		case Op.JUMP:
+			text.append(" L").append(method.a(i));
+			break;
+		case Op.BRANCH:
+			text.append(" r").append(method.a(i)).append(", L").append(method.b(i)).append(", L").append(method.c(i));
+			break;
+		case Op.CALL:
+		case Op.CALLOUT:
+			if (op == Op.CALL) text.append(' ').append(program.method(method.a(i)).getName());
+			else text.append(" $").append(method.a(i));
+			text.append('(');
+			for (int arg = 0; arg < method.c(i); arg++) {
+				if (arg > 0) text.append(", ");
+				text.append('r').append(method.arg(method.b(i) + arg));
+			}
+			text.append(')');
+			break;
+		case Op.RET:
+			if (method.a(i) >= 0) text.append(" r").append(method.a(i));
+			break;
+		case Op.PHI:
+			for (int pair = 0; pair < method.b(i); pair++) {
+				text.append(pair > 0 ? ", [L" : " [L").append(method.arg(method.a(i) + 2 * pair))
+					.append(": r").append(method.arg(method.a(i) + 2 * pair + 1)).append(']');
+			}
+			break;
+		case Op.TRAP:
+			if (method.a(i) >= 0) text.append(" in ").append(program.method(method.a(i)).getName());
+			break;
+		case Op.NOP:
+			break;
+		default:
+			// Binary operators
+			text.append(" r").append(method.a(i)).append(", r").append(method.b(i));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Reads a program written by write
+	 *
+	 * @param file File holding the text
+	 * @return IrProgram the program
+	 * @throws IOException if the file cannot be read or is not IR text
+	 */
+	public static IrProgram read(File file) throws IOException {
+		Reader reader = new FileReader(file);
+		try {
+			return read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a program written by write
+	 *
+	 * @param reader Reader giving the text
+	 * @return IrProgram the program
+	 * @throws IOException if the text cannot be read or is not IR text
+	 */
+	public static IrProgram read(Reader reader) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(reader);
+		for (String line = in.readLine(); line != null; line = in.readLine()) lines.add(line);
+
+		// Every method is declared first, as calls can name methods defined after them
+		IrProgram program = new IrProgram();
+		HashMap<String, Integer> methods = new HashMap<String, Integer>();
+		for (int n = 0; n < lines.size(); n++) {
+			if (!lines.get(n).startsWith("method ")) continue;
+			Cursor header = new Cursor(lines.get(n), n);
+			header.expect("method");
+			boolean returnsValue = header.word().equals("int");
+			String name = header.word();
+			List<String> params = header.params();
+			methods.put(name, program.addMethod(new IrMethod(name, params.size(), returnsValue)));
+		}
+
+		int method = 0;
+		for (int n = 0; n < lines.size(); n++) {
+			if (lines.get(n).isEmpty()) continue;
+			Cursor cursor = new Cursor(lines.get(n), n);
+			String keyword = cursor.word();
+			if (keyword.equals("global")) {
+				String name = cursor.word();
+				int length = 0;
+				if (cursor.peek("[")) {
+					length = cursor.number();
+					cursor.expect("]");
+				}
+				cursor.end();
+				program.addGlobal(name, length);
+			} else if (keyword.equals("string")) {
+				if (cursor.number() != program.stringCount()) throw cursor.error("string out of order");
+				program.addString(cursor.quoted());
+			} else if (keyword.equals("method")) {
+				n = readMethod(program, program.method(method++), methods, lines, n);
+			} else throw cursor.error("expected global, string or method");
+		}
+		return program;
+	}
+
+	/**
+	 * Reads a method, from its header to its end
+	 *
+	 * @return int the index of the line holding the end
+	 */
+	private static int readMethod(IrProgram program, IrMethod method, HashMap<String, Integer> methods,
+			List<String> lines, int n) throws IOException {
+		Cursor header = new Cursor(lines.get(n), n);
+		header.expect("method");
+		header.word();
+		header.word();
+		List<String> params = header.params();
+		header.expect("regs");
+		String[] names = new String[header.number()];
+		header.expect("labels");
+		int labels = header.number();
+		header.end();
+		if (names.length < params.size()) throw header.error("fewer registers than parameters");
+		for (int param = 0; param < params.size(); param++) names[param] = params.get(param);
+		for (n++; n < lines.size() && lines.get(n).startsWith("\tlocal "); n++) {
+			Cursor local = new Cursor(lines.get(n), n);
+			local.expect("local");
+			int reg = local.register();
+			if (reg >= names.length) throw local.error("register out of range");
+			names[reg] = local.word();
+		}
+		for (String name : names) method.newReg(name);
+		for (int label = 0; label < labels; label++) method.newLabel();
+
+		for (; n < lines.size(); n++) {
+			String line = lines.get(n);
+			if (line.equals("end")) return n;
+			Cursor cursor = new Cursor(line, n);
+			if (!line.startsWith("\t")) {
+				int label = cursor.label();
+				cursor.expect(":");
+				cursor.end();
+				method.emit(Op.LABEL, -1, label);
+				continue;
+			}
+			if (cursor.peek("line")) {
+				method.setLine(cursor.number());
+				continue;
+			}
+			int dst = -1;
+			if (cursor.atRegister()) {
+				dst = cursor.register();
+				cursor.expect("=");
+			}
+			int op = Op.of(cursor.word());
+			int a = -1;
+			int b = -1;
+			int c = -1;
+			switch (op) {
+			case Op.CONST:
+				a = cursor.number();
+				break;
+			case Op.STR:
+				a = cursor.string();
+				break;
+			case Op.COPY:
+			case Op.NEG:
+			case Op.NOT:
+				a = cursor.register();
+				break;
+			case Op.LOADG:
+				a = cursor.global(program);
+				break;
+			case Op.STOREG:
+			case Op.ALOAD:
+			case Op.BOUNDS:
+				a = cursor.global(program);
+				cursor.expect(",");
+				b = cursor.register();
+				if (op == Op.BOUNDS && cursor.peek("in")) c = method(cursor, methods);
+				break;
+			case Op.ASTORE:
+				a = cursor.global(program);
+				cursor.expect(",");
+				b = cursor.register();
+				cursor.expect(",");
+				c = cursor.register();
+				break;
+			case Op.JUMP:
+				a = cursor.label();
+				break;
+			case Op.BRANCH:
+				a = cursor.register();
+				cursor.expect(",");
+				b = cursor.label();
+				cursor.expect(",");
+				c = cursor.label();
+				break;
+			case Op.CALL:
+			case Op.CALLOUT: {
+				if (op == Op.CALLOUT) a = cursor.string();
+				else a = method(cursor, methods);
+				cursor.expect("(");
+				List<Integer> args = new ArrayList<Integer>();
+				while (!cursor.peek(")")) {
+					if (!args.isEmpty()) cursor.expect(",");
+					args.add(cursor.register());
+				}
+				b = method.addArgs(toArray(args));
+				c = args.size();
+				break;
+			}
+			case Op.RET:
+				if (cursor.atRegister()) a = cursor.register();
+				break;
+			case Op.PHI: {
+				List<Integer> pairs = new ArrayList<Integer>();
+				do {
+					cursor.expect("[");
+					pairs.add(cursor.label());
+					cursor.expect(":");
+					pairs.add(cursor.register());
+					cursor.expect("]");
+				} while (cursor.peek(","));
+				a = method.addArgs(toArray(pairs));
+				b = pairs.size() / 2;
+				break;
+			}
+			case Op.TRAP:
+				if (cursor.peek("in")) a = method(cursor, methods);
+				break;
+			case Op.NOP:
+				break;
+			default:
+				if (!Op.isBinary(op)) throw cursor.error("unknown instruction");
+				a = cursor.register();
+				cursor.expect(",");
+				b = cursor.register();
+			}
+			cursor.end();
+			method.emit(op, dst, a, b, c);
+		}
+		throw new IOException("method " + method.getName() + " has no end");
+	}
+
+	/**
+	 * @return int the index of the method named next
+	 */
+	private static int method(Cursor cursor, HashMap<String, Integer> methods) throws IOException {
+		Integer method = methods.get(cursor.word());
+		if (method == null) throw cursor.error("no such method");
+		return method;
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++) array[i] = values.get(i);
+		return array;
+	}
+
+	/**
+	 * Reads the names, numbers and punctuation of one line of text
+	 */
+	private static class Cursor {
+		private final String line;
+		/** Index of the line, from 0 */
+		private final int number;
+		private int at = 0;
+
+		Cursor(String line, int number) {
+			this.line = line;
+			this.number = number;
+		}
+
+		IOException error(String message) {
+			return new IOException("line " + (number + 1) + ": " + message + ": " + line.trim());
+		}
+
+		private void skipSpace() {
+			while (at < line.length() && (line.charAt(at) == ' ' || line.charAt(at) == '\t')) at++;
+		}
+
+		private static boolean isNameChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '_';
+		}
+
+		/**
+		 * @return boolean True if the next character is c
+		 */
+		boolean at(char c) {
+			skipSpace();
+			return at < line.length() && line.charAt(at) == c;
+		}
+
+		/**
+		 * @return boolean True if a register comes next, rather than a name starting with r
+		 */
+		boolean atRegister() {
+			return at('r') && at + 1 < line.length() && Character.isDigit(line.charAt(at + 1));
+		}
+
+		/**
+		 * Reads the given text if it comes next, as a whole name if it is one
+		 *
+		 * @return boolean True if it did
+		 */
+		boolean peek(String text) {
+			skipSpace();
+			if (!line.startsWith(text, at)) return false;
+			int end = at + text.length();
+			if (isNameChar(text.charAt(0)) && end < line.length() && isNameChar(line.charAt(end))) return false;
+			at = end;
+			return true;
+		}
+
+		void expect(String text) throws IOException {
+			if (!peek(text)) throw error("expected " + text);
+		}
+
+		void end() throws IOException {
+			skipSpace();
+			if (at != line.length()) throw error("unexpected " + line.substring(at));
+		}
+
+		String word() throws IOException {
+			skipSpace();
+			int start = at;
+			while (at < line.length() && isNameChar(line.charAt(at))) at++;
+			if (start == at) throw error("expected a name");
+			return line.substring(start, at);
+		}
+
+		int number() throws IOException {
+			skipSpace();
+			int start = at;
+			if (at < line.length() && line.charAt(at) == '-') at++;
+			while (at < line.length() && Character.isDigit(line.charAt(at))) at++;
+			try {
+				return Integer.parseInt(line.substring(start, at));
+			} catch (NumberFormatException e) {
+				throw error("expected a number");
+			}
+		}
+
+		private int prefixed(char prefix) throws IOException {
+			if (!at(prefix)) throw error("expected " + prefix);
+			at++;
+			return number();
+		}
+
+		int register() throws IOException {
+			return prefixed('r');
+		}
+
+		int label() throws IOException {
+			return prefixed('L');
+		}
+
+		int string() throws IOException {
+			return prefixed('$');
+		}
+
+		int global(IrProgram program) throws IOException {
+			if (!at('@')) throw error("expected @");
+			at++;
+			int global = program.globalIndex(word());
+			if (global < 0) throw error("no such global");
+			return global;
+		}
+
+		/**
+		 * @return List the names of the parameters in a method header, (r0 a, r1 b)
+		 */
+		List<String> params() throws IOException {
+			List<String> params = new ArrayList<String>();
+			expect("(");
+			while (!peek(")")) {
+				if (!params.isEmpty()) expect(",");
+				if (register() != params.size()) throw error("parameters out of order");
+				params.add(word());
+			}
+			return params;
+		}
+
+		/**
+		 * @return String the text between the quotes that end the line, which
+		 * is written as it was in the source, escapes and all
+		 */
+		String quoted() throws IOException {
+			skipSpace();
+			int last = line.lastIndexOf('"');
+			if (!at('"') || last <= at || last != line.length() - 1) throw error("expected a string");
+			String text = line.substring(at + 1, last);
+			at = line.length();
+			return text;
+		}
+	}
+}
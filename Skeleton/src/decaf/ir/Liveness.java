@@ -0,0 +1,134 @@
+package decaf.ir;
+
+import java.util.Arrays;
+
+/**
+ * The registers live into and out of each of a method's blocks
+ *
+ * Worked out a register at a time, as for placing phis, by walking back
+ * from the blocks reading it to those assigning it, which only visits the
+ * blocks the register is live in. A phi's arguments are live out of the
+ * predecessors they come from rather than into the phi's block, so this
+ * works in and out of SSA form.
+ *
+ * @author Miles Schofield
+ */
+public class Liveness {
+
+	private final BasicBlocks blocks;
+	private final IntList[] liveIn;
+	private final IntList[] liveOut;
+
+	/**
+	 * @param blocks BasicBlocks of a method in normal form
+	 */
+	public Liveness(BasicBlocks blocks) {
+		this.blocks = blocks;
+		IrMethod method = blocks.getMethod();
+		int count = blocks.size();
+		int regs = method.regCount();
+
+		// The blocks reading each register before any assignment in them,
+		// the blocks giving it to a phi, and the blocks assigning it
+		IntList[] useBlocks = new IntList[regs];
+		IntList[] phiBlocks = new IntList[regs];
+		IntList[] defBlocks = new IntList[regs];
+		int[] lastDef = new int[regs];
+		int[] lastUse = new int[regs];
+		Arrays.fill(lastDef, -1);
+		Arrays.fill(lastUse, -1);
+		for (int block = 0; block < count; block++) {
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				if (method.op(i) == Op.PHI) {
+					for (int k = 0; k < method.b(i); k++) {
+						int use = method.use(i, k);
+						if (phiBlocks[use] == null) phiBlocks[use] = new IntList(2);
+						phiBlocks[use].add(blocks.blockOf(method.phiLabel(i, k)));
+					}
+				} else {
+					for (int k = 0; k < method.useCount(i); k++) {
+						int use = method.use(i, k);
+						if (lastDef[use] != block && lastUse[use] != block) {
+							if (useBlocks[use] == null) useBlocks[use] = new IntList(2);
+							useBlocks[use].add(block);
+							lastUse[use] = block;
+						}
+					}
+				}
+				int def = method.dst(i);
+				if (def >= 0 && lastDef[def] != block) {
+					if (defBlocks[def] == null) defBlocks[def] = new IntList(2);
+					defBlocks[def].add(block);
+					lastDef[def] = block;
+				}
+			}
+		}
+
+		// The stamp arrays mark the blocks for the current register without
+		// clearing them between registers
+		liveIn = new IntList[count];
+		liveOut = new IntList[count];
+		int[] defStamp = new int[count];
+		int[] inStamp = new int[count];
+		int[] outStamp = new int[count];
+		IntList work = new IntList();
+		for (int reg = 0; reg < regs; reg++) {
+			if (useBlocks[reg] == null && phiBlocks[reg] == null) continue;
+			int stamp = reg + 1;
+			if (defBlocks[reg] != null) {
+				for (int i = 0; i < defBlocks[reg].size(); i++) defStamp[defBlocks[reg].get(i)] = stamp;
+			}
+			work.clear();
+			if (useBlocks[reg] != null) {
+				for (int i = 0; i < useBlocks[reg].size(); i++) markIn(useBlocks[reg].get(i), reg, stamp, inStamp, work);
+			}
+			// Given to a phi: live out of that predecessor, and into it unless assigned there
+			if (phiBlocks[reg] != null) {
+				for (int i = 0; i < phiBlocks[reg].size(); i++) {
+					markOut(phiBlocks[reg].get(i), reg, stamp, outStamp, defStamp, inStamp, work);
+				}
+			}
+			while (!work.isEmpty()) {
+				for (int predecessor : blocks.predecessors(work.pop())) {
+					markOut(predecessor, reg, stamp, outStamp, defStamp, inStamp, work);
+				}
+			}
+		}
+	}
+
+	private void markIn(int block, int reg, int stamp, int[] inStamp, IntList work) {
+		if (inStamp[block] == stamp) return;
+		inStamp[block] = stamp;
+		if (liveIn[block] == null) liveIn[block] = new IntList(4);
+		liveIn[block].add(reg);
+		work.add(block);
+	}
+
+	private void markOut(int block, int reg, int stamp, int[] outStamp, int[] defStamp, int[] inStamp, IntList work) {
+		if (outStamp[block] == stamp) return;
+		outStamp[block] = stamp;
+		if (liveOut[block] == null) liveOut[block] = new IntList(4);
+		liveOut[block].add(reg);
+		if (defStamp[block] != stamp) markIn(block, reg, stamp, inStamp, work);
+	}
+
+	public BasicBlocks getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return int[] the registers live on entry to a block, not counting
+	 * those its phis assign
+	 */
+	public int[] liveIn(int block) {
+		return liveIn[block] == null ? new int[0] : liveIn[block].toArray();
+	}
+
+	/**
+	 * @return int[] the registers live on leaving a block, including those
+	 * given to the phis of its successors
+	 */
+	public int[] liveOut(int block) {
+		return liveOut[block] == null ? new int[0] : liveOut[block].toArray();
+	}
+}
@@ -0,0 +1,346 @@
+package decaf.ir;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Moves the work that gives the same result on every trip round a loop
+ * out of it, over methods in SSA form
+ *
+ * Every loop is first given a preheader, a block that only jumps to the
+ * header and that every entry into the loop passes through, merging the
+ * header's phis from outside the loop when it is entered from several
+ * places. Loops are then taken inner first, and the instructions of each
+ * looked at in reverse postorder, so the assignment of a register is seen
+ * before its uses. An instruction whose operands are all assigned outside
+ * the loop, or by instructions already hoisted, is moved to the end of the
+ * preheader if it is safe to run whether or not the loop would have run
+ * it. Arithmetic is, but a division only when its divisor is a constant it
+ * cannot trap on. A load of a global is safe when nothing in the loop
+ * stores to it or calls a method that could, and a load of an array
+ * element also needs an index that is a constant within the array, as the
+ * bounds check guarding it stays in the loop. Something hoisted from an
+ * inner loop lands in the outer one, which can hoist it further.
+ *
+ * A store to a global of a value from outside the loop is sunk to the
+ * loop's exits, to run once, when that is the last store to it the loop
+ * makes on every path out: the store's block must dominate every block
+ * leaving the loop, the loop must not read the global, call a method, or
+ * return, and its exits must only be entered from the loop.
+ *
+ * @author Miles Schofield
+ */
+public final class LoopInvariantCodeMotion {
+
+	private final IrProgram program;
+	private final IrMethod method;
+	private final BasicBlocks blocks;
+	private final Dominators dominators;
+	private final Loops loops;
+	private final boolean[] storesMemory;
+	private final int[] onlyDef;
+	/** The instructions in each block, between its label and terminator, as they are moved */
+	private final IntList[] code;
+	/** The block each register is assigned in, -1 if none */
+	private final int[] defBlock;
+	private final PrintStream report;
+	private int moved;
+
+	private LoopInvariantCodeMotion(IrProgram program, IrMethod method, boolean[] storesMemory, PrintStream report) {
+		this.program = program;
+		this.method = method;
+		this.storesMemory = storesMemory;
+		this.report = report;
+		blocks = new BasicBlocks(method);
+		dominators = new Dominators(blocks);
+		loops = new Loops(dominators);
+
+		int regs = method.regCount();
+		IntList[] defs = new IntList[regs];
+		defBlock = new int[regs];
+		Arrays.fill(defBlock, -1);
+		code = new IntList[blocks.size()];
+		for (int block = 0; block < blocks.size(); block++) {
+			code[block] = new IntList(blocks.end(block) - blocks.start(block));
+			for (int i = blocks.start(block) + 1; i < blocks.end(block) - 1; i++) code[block].add(i);
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				int def = method.dst(i);
+				if (def < 0) continue;
+				if (defs[def] == null) defs[def] = new IntList(2);
+				defs[def].add(i);
+				defBlock[def] = block;
+			}
+		}
+		onlyDef = DeadCodeElimination.onlyDefs(method, defs);
+	}
+
+	/**
+	 * Moves the loop invariant code of every method of a program in SSA form
+	 *
+	 * @param report PrintStream to report each instruction moved to, or null
+	 * @return int the number of instructions moved
+	 */
+	public static int run(IrProgram program, PrintStream report) {
+		boolean[] storesMemory = GlobalValueNumbering.storesMemory(program);
+		int moved = 0;
+		for (int m = 0; m < program.methodCount(); m++) {
+			IrMethod method = program.method(m);
+			BasicBlocks.normalize(method);
+			if (!addPreheaders(method)) continue;
+			LoopInvariantCodeMotion motion = new LoopInvariantCodeMotion(program, method, storesMemory, report);
+			for (int loop = 0; loop < motion.loops.size(); loop++) {
+				motion.hoist(loop);
+				motion.sink(loop);
+			}
+			motion.rewrite();
+			moved += motion.moved;
+		}
+		return moved;
+	}
+
+	/**
+	 * Gives every loop of a method a preheader it does not already have
+	 *
+	 * @return boolean True if the method has any loops
+	 */
+	static boolean addPreheaders(IrMethod method) {
+		BasicBlocks blocks = new BasicBlocks(method);
+		Dominators dominators = new Dominators(blocks);
+		Loops loops = new Loops(dominators);
+		if (loops.size() == 0) return false;
+
+		// The preheader label each block's jumps to a header go to instead
+		int[] preheaderOf = new int[blocks.size()];
+		Arrays.fill(preheaderOf, -1);
+		boolean needed = false;
+		for (int loop = 0; loop < loops.size(); loop++) {
+			int header = loops.header(loop);
+			int[] outside = outside(blocks, dominators, header);
+			if (outside.length == 1 && blocks.successors(outside[0]).length == 1) continue;
+			preheaderOf[header] = method.newLabel();
+			needed = true;
+		}
+		if (!needed) return true;
+
+		IrMethod out = method.withoutCode();
+		for (int block = 0; block < blocks.size(); block++) {
+			int start = blocks.start(block);
+			int end = blocks.end(block);
+			int preheader = preheaderOf[block];
+			int body = start + 1;
+			while (body < end && method.op(body) == Op.PHI) body++;
+			if (preheader >= 0) {
+				// The phis' values from outside the loop are merged in the
+				// preheader, if it is entered from more than one place
+				out.setLine(method.line(start));
+				out.emit(Op.LABEL, -1, preheader);
+				int[] merged = new int[body - start - 1];
+				for (int i = start + 1; i < body; i++) {
+					IntList pairs = new IntList();
+					for (int k = 0; k < method.b(i); k++) {
+						if (dominators.dominates(block, blocks.blockOf(method.phiLabel(i, k)))) continue;
+						pairs.add(method.phiLabel(i, k));
+						pairs.add(method.use(i, k));
+					}
+					if (pairs.size() == 2) {
+						merged[i - start - 1] = pairs.get(1);
+						continue;
+					}
+					merged[i - start - 1] = out.newReg(method.regName(method.dst(i)));
+					out.setLine(method.line(i));
+					out.emit(Op.PHI, merged[i - start - 1], out.addArgs(pairs.toArray()), pairs.size() / 2);
+				}
+				out.emit(Op.JUMP, -1, blocks.label(block));
+				out.emit(method, start);
+				for (int i = start + 1; i < body; i++) {
+					IntList pairs = new IntList();
+					for (int k = 0; k < method.b(i); k++) {
+						if (!dominators.dominates(block, blocks.blockOf(method.phiLabel(i, k)))) continue;
+						pairs.add(method.phiLabel(i, k));
+						pairs.add(method.use(i, k));
+					}
+					pairs.add(preheader);
+					pairs.add(merged[i - start - 1]);
+					out.setLine(method.line(i));
+					out.emit(Op.PHI, method.dst(i), out.addArgs(pairs.toArray()), pairs.size() / 2);
+				}
+			} else {
+				for (int i = start; i < body; i++) out.emit(method, i);
+			}
+			for (int i = body; i < end; i++) out.emit(method, i);
+			// Jumps into a loop from outside go to its preheader
+			int last = out.size() - 1;
+			for (int successor : blocks.successors(block)) {
+				if (preheaderOf[successor] < 0 || dominators.dominates(successor, block)) continue;
+				if (out.op(last) == Op.JUMP) out.setA(last, preheaderOf[successor]);
+				else {
+					if (out.b(last) == blocks.label(successor)) out.setB(last, preheaderOf[successor]);
+					if (out.c(last) == blocks.label(successor)) out.setC(last, preheaderOf[successor]);
+				}
+			}
+		}
+		method.replaceWith(out);
+		BasicBlocks.normalize(method);
+		return true;
+	}
+
+	/**
+	 * @return int[] the predecessors of a loop header from outside the loop
+	 */
+	private static int[] outside(BasicBlocks blocks, Dominators dominators, int header) {
+		IntList outside = new IntList();
+		for (int predecessor : blocks.predecessors(header)) {
+			if (!dominators.dominates(header, predecessor)) outside.add(predecessor);
+		}
+		return outside.toArray();
+	}
+
+	private void hoist(int loop) {
+		int preheader = outside(blocks, dominators, loops.header(loop))[0];
+		boolean calls = false;
+		boolean[] stored = new boolean[program.globalCount()];
+		for (int block : loops.blocks(loop)) {
+			for (int k = 0; k < code[block].size(); k++) {
+				int i = code[block].get(k);
+				int op = method.op(i);
+				if (op == Op.CALL && storesMemory[method.a(i)]) calls = true;
+				if (op == Op.STOREG || op == Op.ASTORE) stored[method.a(i)] = true;
+			}
+		}
+
+		for (int block : loops.blocks(loop)) {
+			IntList list = code[block];
+			int kept = 0;
+			for (int k = 0; k < list.size(); k++) {
+				int i = list.get(k);
+				if (!isInvariant(loop, i) || !isSafe(i, calls, stored)) {
+					list.set(kept++, i);
+					continue;
+				}
+				code[preheader].add(i);
+				defBlock[method.dst(i)] = preheader;
+				moved++;
+				if (report != null) {
+					report.println("licm: " + method.getName() + ": hoisted " + IrText.instruction(program, method, i)
+							+ " (line " + method.line(i) + ") out of the loop at line " + method.line(blocks.start(loops.header(loop))));
+				}
+			}
+			list.truncate(kept);
+		}
+	}
+
+	private boolean isInvariant(int loop, int i) {
+		if (method.dst(i) < 0 || method.op(i) == Op.PHI) return false;
+		for (int k = 0; k < method.useCount(i); k++) {
+			int block = defBlock[method.use(i, k)];
+			if (block >= 0 && loops.contains(loop, block)) return false;
+		}
+		return true;
+	}
+
+	private boolean isSafe(int i, boolean calls, boolean[] stored) {
+		int op = method.op(i);
+		if (!DeadCodeElimination.isRemovable(method, i, onlyDef)) return false;
+		if (op != Op.LOADG && op != Op.ALOAD) return true;
+		if (calls || stored[method.a(i)]) return false;
+		if (op == Op.LOADG) return true;
+		int index = onlyDef[method.b(i)];
+		return index >= 0 && method.op(index) == Op.CONST && method.a(index) >= 0
+				&& method.a(index) < program.globalLength(method.a(i));
+	}
+
+	private void sink(int loop) {
+		int[] members = loops.blocks(loop);
+		IntList exiting = new IntList();
+		IntList exits = new IntList();
+		for (int block : members) {
+			int last = blocks.end(block) - 1;
+			if (method.op(last) == Op.RET) return;
+			boolean leaves = false;
+			for (int successor : blocks.successors(block)) {
+				if (loops.contains(loop, successor)) continue;
+				leaves = true;
+				for (int predecessor : blocks.predecessors(successor)) {
+					if (!loops.contains(loop, predecessor)) return; // Not only entered from the loop
+				}
+				if (!contains(exits, successor)) exits.add(successor);
+			}
+			if (leaves) exiting.add(block);
+		}
+		if (exits.isEmpty()) return;
+		int globals = program.globalCount();
+		int[] stores = new int[globals];
+		boolean[] read = new boolean[globals];
+		for (int block : members) {
+			for (int k = 0; k < code[block].size(); k++) {
+				int i = code[block].get(k);
+				switch (method.op(i)) {
+				case Op.CALL:
+					return;
+				case Op.LOADG:
+					read[method.a(i)] = true;
+					break;
+				case Op.STOREG:
+					stores[method.a(i)]++;
+					break;
+				}
+			}
+		}
+
+		for (int block : members) {
+			IntList list = code[block];
+			int kept = 0;
+			for (int k = 0; k < list.size(); k++) {
+				int i = list.get(k);
+				if (method.op(i) != Op.STOREG || !canSink(loop, block, i, stores, read, exiting)) {
+					list.set(kept++, i);
+					continue;
+				}
+				for (int e = 0; e < exits.size(); e++) {
+					// After the exit's phis, which come first
+					IntList exit = code[exits.get(e)];
+					int at = 0;
+					while (at < exit.size() && method.op(exit.get(at)) == Op.PHI) at++;
+					exit.add(0);
+					for (int j = exit.size() - 1; j > at; j--) exit.set(j, exit.get(j - 1));
+					exit.set(at, i);
+				}
+				moved++;
+				if (report != null) {
+					report.println("licm: " + method.getName() + ": sunk " + IrText.instruction(program, method, i)
+							+ " (line " + method.line(i) + ") to the exits of the loop at line " + method.line(blocks.start(loops.header(loop))));
+				}
+			}
+			list.truncate(kept);
+		}
+	}
+
+	private boolean canSink(int loop, int block, int i, int[] stores, boolean[] read, IntList exiting) {
+		int global = method.a(i);
+		if (stores[global] != 1 || read[global]) return false;
+		int value = defBlock[method.b(i)];
+		if (value >= 0 && loops.contains(loop, value)) return false;
+		for (int e = 0; e < exiting.size(); e++) {
+			if (!dominators.dominates(block, exiting.get(e))) return false;
+		}
+		return true;
+	}
+
+	private static boolean contains(IntList list, int value) {
+		for (int k = 0; k < list.size(); k++) {
+			if (list.get(k) == value) return true;
+		}
+		return false;
+	}
+
+	private void rewrite() {
+		if (moved == 0) return;
+		IrMethod out = method.withoutCode();
+		for (int block = 0; block < blocks.size(); block++) {
+			out.emit(method, blocks.start(block));
+			for (int k = 0; k < code[block].size(); k++) out.emit(method, code[block].get(k));
+			out.emit(method, blocks.end(block) - 1);
+		}
+		method.replaceWith(out);
+	}
+}
@@ -0,0 +1,164 @@
+package decaf.ir;
+
+import java.util.Arrays;
+
+/**
+ * The natural loops of a method's blocks and how they nest
+ *
+ * A back edge goes from a block to one dominating it, its loop's header.
+ * The loop is the header and every block that reaches the back edge's
+ * source without passing through the header, found by walking back from
+ * it; all the back edges to one header make one loop. Headers are taken
+ * from last to first in reverse postorder, so an inner loop is found
+ * before the loop around it. When the walk for a loop meets a block
+ * already in one, the outermost loop found so far around that block is
+ * made a child of the new one, and the walk skips to that loop's header,
+ * so each block is walked once for the innermost loop it is in.
+ *
+ * Decaf's structured control flow only makes reducible graphs, in which
+ * every cycle is a natural loop. Elsewhere, a cycle entered other than by
+ * one dominating block is not taken for a loop.
+ *
+ * @author Miles Schofield
+ */
+public class Loops {
+
+	private final Dominators dominators;
+	private final int[] headers;
+	private final int[] parents;
+	private final int[] depths;
+	/** The innermost loop each block is in, -1 for none */
+	private final int[] loopOf;
+	private final int[][] blocks;
+
+	/**
+	 * @param dominators Dominators of a method in normal form
+	 */
+	public Loops(Dominators dominators) {
+		this.dominators = dominators;
+		BasicBlocks graph = dominators.getBlocks();
+		int count = graph.size();
+		int[] order = dominators.reversePostorder();
+		loopOf = new int[count];
+		Arrays.fill(loopOf, -1);
+		IntList headerList = new IntList();
+		IntList parentList = new IntList();
+		IntList[] own = new IntList[count];
+		IntList work = new IntList();
+		for (int o = count - 1; o >= 0; o--) {
+			int header = order[o];
+			work.clear();
+			for (int predecessor : graph.predecessors(header)) {
+				if (dominators.dominates(header, predecessor)) work.add(predecessor);
+			}
+			if (work.isEmpty()) continue;
+			int loop = headerList.size();
+			headerList.add(header);
+			parentList.add(-1);
+			own[loop] = new IntList(4);
+			if (loopOf[header] < 0) {
+				loopOf[header] = loop;
+				own[loop].add(header);
+			}
+			while (!work.isEmpty()) {
+				int block = work.pop();
+				if (block == header) continue;
+				if (loopOf[block] < 0) {
+					loopOf[block] = loop;
+					own[loop].add(block);
+					for (int predecessor : graph.predecessors(block)) work.add(predecessor);
+					continue;
+				}
+				// In a loop found already: take in the outermost one around it
+				int inner = loopOf[block];
+				while (parentList.get(inner) >= 0) inner = parentList.get(inner);
+				if (inner == loop) continue;
+				parentList.set(inner, loop);
+				for (int predecessor : graph.predecessors(headerList.get(inner))) {
+					if (!dominators.dominates(headerList.get(inner), predecessor)) work.add(predecessor);
+				}
+			}
+		}
+
+		headers = headerList.toArray();
+		parents = parentList.toArray();
+		int loops = headers.length;
+		depths = new int[loops];
+		// Parents are found after their children, so are numbered after them
+		for (int loop = loops - 1; loop >= 0; loop--) depths[loop] = parents[loop] < 0 ? 1 : depths[parents[loop]] + 1;
+
+		// Each loop's blocks are its own and its children's, in reverse postorder
+		IntList[] all = new IntList[loops];
+		for (int loop = 0; loop < loops; loop++) {
+			all[loop] = own[loop];
+		}
+		for (int loop = 0; loop < loops; loop++) {
+			if (parents[loop] < 0) continue;
+			IntList list = all[loop];
+			for (int k = 0; k < list.size(); k++) all[parents[loop]].add(list.get(k));
+		}
+		int[] rpoIndex = new int[count];
+		for (int i = 0; i < count; i++) rpoIndex[order[i]] = i;
+		blocks = new int[loops][];
+		for (int loop = 0; loop < loops; loop++) {
+			int[] members = all[loop].toArray();
+			for (int k = 0; k < members.length; k++) members[k] = rpoIndex[members[k]];
+			Arrays.sort(members);
+			for (int k = 0; k < members.length; k++) members[k] = order[members[k]];
+			blocks[loop] = members;
+		}
+	}
+
+	public Dominators getDominators() {
+		return dominators;
+	}
+
+	/**
+	 * @return int the number of loops, each numbered before the loops around it
+	 */
+	public int size() {
+		return headers.length;
+	}
+
+	public int header(int loop) {
+		return headers[loop];
+	}
+
+	/**
+	 * @return int the loop immediately around a loop, -1 for an outermost loop
+	 */
+	public int parent(int loop) {
+		return parents[loop];
+	}
+
+	/**
+	 * @return int how many loops a loop is inside, counting itself
+	 */
+	public int depth(int loop) {
+		return depths[loop];
+	}
+
+	/**
+	 * @return int the innermost loop a block is in, -1 if it is in none
+	 */
+	public int loopOf(int block) {
+		return loopOf[block];
+	}
+
+	/**
+	 * @return int[] the blocks in a loop and the loops inside it, in reverse postorder
+	 */
+	public int[] blocks(int loop) {
+		return blocks[loop];
+	}
+
+	/**
+	 * @return boolean True if a block is in a loop, or a loop inside it
+	 */
+	public boolean contains(int loop, int block) {
+		for (int inner = loopOf[block]; inner >= 0; inner = parents[inner]) {
+			if (inner == loop) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,473 @@
+package decaf.ir;
+
+import decaf.ControlFlowGraph;
+import decaf.DecafParser;
+import decaf.DecafParserBaseListener;
+import decaf.IterativeParseTreeWalker;
+import decaf.ScopeElement;
+import decaf.ScopeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Lowers a checked program to three-address code
+ *
+ * Each method is lowered a basic block at a time from the ControlFlowGraph
+ * the ScopeListener built for it, so statements are never walked again to
+ * find the control flow. The expressions within each block are lowered as
+ * they are exited by the iterative walker, leaving the register holding
+ * each one's value in a side table; however deep they nest, no recursion
+ * is needed.
+ *
+ * Parameters, locals and FOR loop variables live in registers, fields in
+ * globals. Every array access is preceded by an explicit BOUNDS check, and
+ * && and || only evaluate their right operand when needed.
+ *
+ * The condition of an IF is lowered into branches to its two targets
+ * rather than into a register holding true or false: ! swaps the targets
+ * its operand goes to, && goes on to its right operand only from where
+ * its left one is true, and || only from where it is false, so however
+ * they nest, each comparison at the bottom branches straight to where the
+ * whole condition takes it.
+ *
+ * @author Miles Schofield
+ */
+public class Lowering {
+
+	private final IrProgram program = new IrProgram();
+	private final IdentityHashMap<ScopeElement, Integer> globals = new IdentityHashMap<ScopeElement, Integer>();
+	private final IdentityHashMap<ScopeElement, Integer> methods = new IdentityHashMap<ScopeElement, Integer>();
+
+	private Lowering() {
+	}
+
+	/**
+	 * Lowers a program checked by a single ScopeListener
+	 *
+	 * @param tree ProgramContext of the program, checked without errors
+	 * @param resolver ScopeListener that checked it
+	 * @return IrProgram the program's IR
+	 */
+	public static IrProgram lower(DecafParser.ProgramContext tree, ScopeListener resolver) {
+		ScopeListener[] bodies = new ScopeListener[tree.method_decl().size()];
+		Arrays.fill(bodies, resolver);
+		return lower(tree, resolver, bodies);
+	}
+
+	/**
+	 * Lowers a program whose method bodies may have been checked by
+	 * separate listeners, as by the ParallelChecker
+	 *
+	 * @param tree ProgramContext of the program, checked without errors
+	 * @param classScope ScopeListener that declared the fields and methods
+	 * @param bodies ScopeListener that checked each method_decl, in order
+	 * @return IrProgram the program's IR
+	 */
+	public static IrProgram lower(DecafParser.ProgramContext tree, ScopeListener classScope, ScopeListener[] bodies) {
+		Lowering lowering = new Lowering();
+		IrProgram program = lowering.program;
+		for (DecafParser.Field_declContext field : tree.field_decl()) {
+			for (DecafParser.Field_nameContext name : field.field_name()) {
+				int length = name.INT_LITERAL() == null ? 0 : Integer.decode(name.INT_LITERAL().getText());
+				lowering.globals.put(classScope.declarationOf(name), program.addGlobal(name.ID().getText(), length));
+			}
+		}
+		List<DecafParser.Method_declContext> methods = tree.method_decl();
+		for (DecafParser.Method_declContext method : methods) {
+			int params = method.method_params() == null ? 0 : method.method_params().ID().size();
+			IrMethod ir = new IrMethod(method.ID().getText(), params, method.type() != null);
+			lowering.methods.put(classScope.declarationOf(method), program.addMethod(ir));
+		}
+		for (int m = 0; m < methods.size(); m++) {
+			lowering.new MethodLowering(program.method(m), bodies[m]).lower(methods.get(m));
+		}
+		return program;
+	}
+
+	/**
+	 * @return String a string or character literal without its quotes
+	 */
+	private static String unquote(String literal) {
+		return literal.substring(1, literal.length() - 1);
+	}
+
+	/**
+	 * @return int the value of a character literal, such as 'a' or '\n'
+	 */
+	private static int charValue(String literal) {
+		String text = unquote(literal);
+		if (text.charAt(0) != '\\') return text.charAt(0);
+		switch (text.charAt(1)) {
+		case 'n': return '\n';
+		case 't': return '\t';
+		default: return text.charAt(1); // \" \' \\
+		}
+	}
+
+	/**
+	 * Lowers the blocks and expressions of one method
+	 */
+	private class MethodLowering extends DecafParserBaseListener {
+		private final IrMethod ir;
+		private final ScopeListener resolver;
+		/** Register of each parameter, local and FOR loop variable */
+		private final IdentityHashMap<ScopeElement, Integer> locals = new IdentityHashMap<ScopeElement, Integer>();
+		/** Register holding the value of each lowered expression, location, literal, call and callout argument */
+		private final ParseTreeProperty<Integer> values = new ParseTreeProperty<Integer>();
+		/** For each && and || whose left operand is lowered: the result register and the label after it */
+		private final ParseTreeProperty<int[]> shortCircuits = new ParseTreeProperty<int[]>();
+		/** The && and || lowered into branches, whose operands are not lowered into values */
+		private final ParseTreeProperty<Boolean> branched = new ParseTreeProperty<Boolean>();
+		/** Register holding the end value of each FOR loop, evaluated once on entry */
+		private final IdentityHashMap<DecafParser.StatementContext, Integer> loopEnds = new IdentityHashMap<DecafParser.StatementContext, Integer>();
+
+		MethodLowering(IrMethod ir, ScopeListener resolver) {
+			this.ir = ir;
+			this.resolver = resolver;
+		}
+
+		void lower(DecafParser.Method_declContext method) {
+			ir.setLine(method.getStart().getLine());
+			if (method.method_params() != null) {
+				for (TerminalNode param : method.method_params().ID()) {
+					locals.put(resolver.declarationOf(param), ir.newReg(param.getText()));
+				}
+			}
+			ControlFlowGraph cfg = resolver.cfgOf(method);
+			int[] labels = new int[cfg.size()];
+			for (int block = 0; block < cfg.size(); block++) {
+				if (cfg.isReachable(block)) labels[block] = ir.newLabel();
+			}
+			// Blocks in the order they were built, which follows the source, with the exit last
+			for (int block = 0; block < cfg.size(); block++) {
+				if (block != ControlFlowGraph.EXIT && cfg.isReachable(block)) lowerBlock(cfg, block, labels);
+			}
+			if (fallsOffEnd(cfg)) lowerBlock(cfg, ControlFlowGraph.EXIT, labels);
+		}
+
+		/**
+		 * @return boolean True if control can reach the exit other than by a RETURN
+		 */
+		private boolean fallsOffEnd(ControlFlowGraph cfg) {
+			for (int block : cfg.predecessors(ControlFlowGraph.EXIT)) {
+				if (cfg.isReachable(block) && cfg.kind(block) != ControlFlowGraph.RETURN) return true;
+			}
+			return false;
+		}
+
+		private void lowerBlock(ControlFlowGraph cfg, int block, int[] labels) {
+			ir.emit(Op.LABEL, -1, labels[block]);
+			for (ParserRuleContext item : cfg.contents(block)) {
+				ir.setLine(item.getStart().getLine());
+				if (item instanceof DecafParser.Var_declContext) {
+					// Locals start as 0 or false each time they are declared
+					for (TerminalNode variable : ((DecafParser.Var_declContext) item).ID()) {
+						int reg = ir.newReg(variable.getText());
+						locals.put(resolver.declarationOf(variable), reg);
+						ir.emit(Op.CONST, reg, 0);
+					}
+				} else statement((DecafParser.StatementContext) item);
+			}
+
+			DecafParser.StatementContext terminator = cfg.terminator(block);
+			if (terminator != null) ir.setLine(terminator.getStart().getLine());
+			int[] successors = cfg.successors(block);
+			switch (cfg.kind(block)) {
+			case ControlFlowGraph.GOTO:
+				ir.emit(Op.JUMP, -1, labels[successors[0]]);
+				break;
+			case ControlFlowGraph.BRANCH:
+				condition(terminator.expr(0), labels[successors[0]], labels[successors[1]]);
+				break;
+			case ControlFlowGraph.FOR_INIT: {
+				int start = expression(terminator.expr(0));
+				int end = expression(terminator.expr(1));
+				ir.emit(Op.COPY, loopEnd(terminator), end);
+				write(loopVariable(terminator), start);
+				ir.emit(Op.JUMP, -1, labels[successors[0]]);
+				break;
+			}
+			case ControlFlowGraph.FOR_TEST: {
+				int more = ir.newReg();
+				ir.emit(Op.LT, more, read(loopVariable(terminator)), loopEnd(terminator));
+				ir.emit(Op.BRANCH, -1, more, labels[successors[0]], labels[successors[1]]);
+				break;
+			}
+			case ControlFlowGraph.FOR_STEP: {
+				int one = ir.newReg();
+				int next = ir.newReg();
+				ir.emit(Op.CONST, one, 1);
+				ir.emit(Op.ADD, next, read(loopVariable(terminator)), one);
+				write(loopVariable(terminator), next);
+				ir.emit(Op.JUMP, -1, labels[successors[0]]);
+				break;
+			}
+			case ControlFlowGraph.RETURN:
+				ir.emit(Op.RET, -1, terminator.expr(0) == null ? -1 : expression(terminator.expr(0)));
+				break;
+			default:
+				// The exit, reached by falling off the end of the method
+				if (ir.returnsValue()) ir.emit(Op.TRAP, -1, -1);
+				else ir.emit(Op.RET, -1, -1);
+			}
+		}
+
+		/**
+		 * Lowers an assignment or method call statement
+		 */
+		private void statement(DecafParser.StatementContext statement) {
+			IterativeParseTreeWalker.DEFAULT.walk(this, statement);
+			if (statement.location() == null || statement.assign_op() == null) return;
+
+			DecafParser.LocationContext location = statement.location();
+			ScopeElement variable = resolver.declarationOf(location);
+			int value = values.get(statement.expr(0));
+			int op = statement.assign_op().ARITHPLUS() != null ? Op.ADD
+					: statement.assign_op().ARITHMINUS() != null ? Op.SUB : Op.NOP;
+			if (location.expr() != null) {
+				int global = globals.get(variable);
+				int index = values.get(location.expr());
+				ir.emit(Op.BOUNDS, -1, global, index);
+				if (op != Op.NOP) {
+					int old = ir.newReg();
+					ir.emit(Op.ALOAD, old, global, index);
+					value = combine(op, old, value);
+				}
+				ir.emit(Op.ASTORE, -1, global, index, value);
+			} else {
+				if (op != Op.NOP) value = combine(op, read(variable), value);
+				write(variable, value);
+			}
+		}
+
+		private int combine(int op, int left, int right) {
+			int result = ir.newReg();
+			ir.emit(op, result, left, right);
+			return result;
+		}
+
+		/**
+		 * @return int the register holding the value of an expression, once lowered
+		 */
+		private int expression(DecafParser.ExprContext expr) {
+			IterativeParseTreeWalker.DEFAULT.walk(this, expr);
+			return values.get(expr);
+		}
+
+		/**
+		 * Lowers a condition into branches to the label for where it is true
+		 * and the label for where it is false. The operands of && and || are
+		 * taken from a stack, the left one first, each with its own targets
+		 * and the label to place before it.
+		 */
+		private void condition(DecafParser.ExprContext condition, int onTrue, int onFalse) {
+			List<DecafParser.ExprContext> pending = new ArrayList<DecafParser.ExprContext>();
+			IntList targets = new IntList();
+			pending.add(condition);
+			targets.add(onTrue);
+			targets.add(onFalse);
+			targets.add(-1);
+			while (!pending.isEmpty()) {
+				DecafParser.ExprContext expr = pending.remove(pending.size() - 1);
+				int before = targets.pop();
+				int ifFalse = targets.pop();
+				int ifTrue = targets.pop();
+				if (before >= 0) ir.emit(Op.LABEL, -1, before);
+				while (expr.expr().size() == 1 && expr.ARITHMINUS() == null) {
+					if (expr.EXCLMRK() != null) {
+						int swap = ifTrue;
+						ifTrue = ifFalse;
+						ifFalse = swap;
+					}
+					expr = expr.expr(0);
+				}
+				if (expr.bin_op() != null && expr.bin_op().cond_op() != null) {
+					int right = ir.newLabel();
+					boolean and = expr.bin_op().cond_op().AND() != null;
+					branched.put(expr, Boolean.TRUE);
+					pending.add(expr.expr(1));
+					targets.add(ifTrue);
+					targets.add(ifFalse);
+					targets.add(right);
+					pending.add(expr.expr(0));
+					targets.add(and ? right : ifTrue);
+					targets.add(and ? ifFalse : right);
+					targets.add(-1);
+				} else if (expr.literal() != null && expr.literal().BOOL_LITERAL() != null) {
+					ir.emit(Op.JUMP, -1, expr.literal().BOOL_LITERAL().getText().equals("true") ? ifTrue : ifFalse);
+				} else {
+					ir.emit(Op.BRANCH, -1, expression(expr), ifTrue, ifFalse);
+				}
+			}
+		}
+
+		/**
+		 * @return int the register holding the current value of a variable
+		 */
+		private int read(ScopeElement variable) {
+			Integer local = locals.get(variable);
+			if (local != null) return local;
+			int value = ir.newReg();
+			ir.emit(Op.LOADG, value, globals.get(variable));
+			return value;
+		}
+
+		private void write(ScopeElement variable, int value) {
+			Integer local = locals.get(variable);
+			if (local != null) ir.emit(Op.COPY, local, value);
+			else ir.emit(Op.STOREG, -1, globals.get(variable), value);
+		}
+
+		/**
+		 * @return ScopeElement the variable of a FOR loop, given a register if the loop declares it
+		 */
+		private ScopeElement loopVariable(DecafParser.StatementContext loop) {
+			ScopeElement variable = resolver.declarationOf(loop);
+			if (!locals.containsKey(variable) && !globals.containsKey(variable)) {
+				locals.put(variable, ir.newReg(loop.ID().getText()));
+			}
+			return variable;
+		}
+
+		private int loopEnd(DecafParser.StatementContext loop) {
+			Integer end = loopEnds.get(loop);
+			if (end == null) {
+				end = ir.newReg();
+				loopEnds.put(loop, end);
+			}
+			return end;
+		}
+
+		@Override
+		public void exitLiteral(DecafParser.LiteralContext ctx) {
+			int value;
+			if (ctx.BOOL_LITERAL() != null) value = ctx.BOOL_LITERAL().getText().equals("true") ? 1 : 0;
+			else if (ctx.CHAR_LITERAL() != null) value = charValue(ctx.CHAR_LITERAL().getText());
+			else value = (int) (long) Long.decode(ctx.INT_LITERAL().getText()); // ints are 32 bits
+			int reg = ir.newReg();
+			ir.emit(Op.CONST, reg, value);
+			values.put(ctx, reg);
+		}
+
+		@Override
+		public void exitLocation(DecafParser.LocationContext ctx) {
+			// Locations assigned to are lowered with their statement
+			if (!(ctx.getParent() instanceof DecafParser.ExprContext)) return;
+			ScopeElement variable = resolver.declarationOf(ctx);
+			if (ctx.expr() == null) {
+				values.put(ctx, read(variable));
+				return;
+			}
+			int global = globals.get(variable);
+			int index = values.get(ctx.expr());
+			int value = ir.newReg();
+			ir.emit(Op.BOUNDS, -1, global, index);
+			ir.emit(Op.ALOAD, value, global, index);
+			values.put(ctx, value);
+		}
+
+		@Override
+		public void exitCallout_arg(DecafParser.Callout_argContext ctx) {
+			if (ctx.expr() != null) {
+				values.put(ctx, values.get(ctx.expr()));
+				return;
+			}
+			int address = ir.newReg();
+			ir.emit(Op.STR, address, program.addString(unquote(ctx.STRING_LITERAL().getText())));
+			values.put(ctx, address);
+		}
+
+		@Override
+		public void exitMethod_call(DecafParser.Method_callContext ctx) {
+			// The value of a call made as a statement is not kept
+			boolean used = !(ctx.getParent() instanceof DecafParser.StatementContext);
+			List<? extends ParseTree> arguments;
+			int op;
+			int target;
+			if (ctx.CALLOUT() != null) {
+				arguments = ctx.callout_arg();
+				op = Op.CALLOUT;
+				target = program.addString(unquote(ctx.STRING_LITERAL().getText()));
+			} else {
+				arguments = ctx.method_call_params() == null ? java.util.Collections.<ParseTree>emptyList() : ctx.method_call_params().expr();
+				op = Op.CALL;
+				target = methods.get(resolver.declarationOf(ctx.method_name()));
+			}
+			int[] registers = new int[arguments.size()];
+			for (int i = 0; i < registers.length; i++) registers[i] = values.get(arguments.get(i));
+			int result = used ? ir.newReg() : -1;
+			ir.emit(op, result, target, ir.addArgs(registers), registers.length);
+			values.put(ctx, result);
+		}
+
+		@Override
+		public void exitExpr(DecafParser.ExprContext ctx) {
+			int value;
+			if (ctx.location() != null) value = values.get(ctx.location());
+			else if (ctx.literal() != null) value = values.get(ctx.literal());
+			else if (ctx.method_call() != null) value = values.get(ctx.method_call());
+			else if (ctx.expr().size() == 1) {
+				int operand = values.get(ctx.expr(0));
+				if (ctx.EXCLMRK() != null) value = unary(Op.NOT, operand);
+				else if (ctx.ARITHMINUS() != null) value = unary(Op.NEG, operand);
+				else value = operand; // Parentheses
+			} else {
+				int[] shortCircuit = shortCircuits.get(ctx);
+				if (shortCircuit != null) {
+					// The right operand was reached, so it gives the value
+					ir.emit(Op.COPY, shortCircuit[0], values.get(ctx.expr(1)));
+					ir.emit(Op.JUMP, -1, shortCircuit[1]);
+					ir.emit(Op.LABEL, -1, shortCircuit[1]);
+					value = shortCircuit[0];
+				} else value = combine(binaryOp(ctx), values.get(ctx.expr(0)), values.get(ctx.expr(1)));
+			}
+			values.put(ctx, value);
+
+			// Once the left operand of && or || is known, skip the right
+			// operand if it cannot change the result
+			if (ctx.getParent() instanceof DecafParser.ExprContext) {
+				DecafParser.ExprContext parent = (DecafParser.ExprContext) ctx.getParent();
+				if (parent.expr().size() == 2 && parent.expr(0) == ctx && parent.bin_op() != null && parent.bin_op().cond_op() != null
+						&& branched.get(parent) == null) {
+					int result = ir.newReg();
+					int right = ir.newLabel();
+					int end = ir.newLabel();
+					ir.emit(Op.COPY, result, value);
+					if (parent.bin_op().cond_op().AND() != null) ir.emit(Op.BRANCH, -1, value, right, end);
+					else ir.emit(Op.BRANCH, -1, value, end, right);
+					ir.emit(Op.LABEL, -1, right);
+					shortCircuits.put(parent, new int[] { result, end });
+				}
+			}
+		}
+
+		private int unary(int op, int operand) {
+			int result = ir.newReg();
+			ir.emit(op, result, operand);
+			return result;
+		}
+
+		private int binaryOp(DecafParser.ExprContext ctx) {
+			if (ctx.strong_arith_op() != null) {
+				if (ctx.strong_arith_op().ARITHMULT() != null) return Op.MUL;
+				if (ctx.strong_arith_op().ARITHDIV() != null) return Op.DIV;
+				return Op.MOD;
+			}
+			if (ctx.weak_arith_op() != null) return ctx.weak_arith_op().ARITHPLUS() != null ? Op.ADD : Op.SUB;
+			DecafParser.Rel_opContext rel = ctx.bin_op().rel_op();
+			if (rel != null) {
+				if (rel.LESTHAN() != null) return Op.LT;
+				if (rel.LESEQUAL() != null) return Op.LE;
+				if (rel.GRTTHAN() != null) return Op.GT;
+				return Op.GE;
+			}
+			return ctx.bin_op().eq_op().EQUALOP() != null ? Op.EQ : Op.NE;
+		}
+	}
+}
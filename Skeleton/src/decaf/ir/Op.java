@@ -0,0 +1,134 @@
+package decaf.ir;
+
+/**
+ * The opcodes of the three-address IR
+ *
+ * Every instruction has an opcode, a destination register (-1 if it defines
+ * none) and up to three operands, a, b and c. Operands are virtual registers
+ * unless noted: constants are only ever loaded by CONST, so every value an
+ * analysis sees lives in a register.
+ *
+ * @author Miles Schofield
+ */
+public final class Op {
+
+	/** Removed instruction, dropped by IrMethod.compact */
+	public static final int NOP = 0;
+	/** dst = a, a constant */
+	public static final int CONST = 1;
+	/** dst = address of string a, an index into the program's strings */
+	public static final int STR = 2;
+	/** dst = a */
+	public static final int COPY = 3;
+	/** dst = -a */
+	public static final int NEG = 4;
+	/** dst = !a, booleans being 0 and 1 */
+	public static final int NOT = 5;
+	// dst = a op b
+	public static final int ADD = 6;
+	public static final int SUB = 7;
+	public static final int MUL = 8;
+	public static final int DIV = 9;
+	public static final int MOD = 10;
+	// dst = a op b ? 1 : 0
+	public static final int LT = 11;
+	public static final int LE = 12;
+	public static final int GT = 13;
+	public static final int GE = 14;
+	public static final int EQ = 15;
+	public static final int NE = 16;
+	/** dst = global a, a scalar field */
+	public static final int LOADG = 17;
+	/** global a = b */
+	public static final int STOREG = 18;
+	/** dst = global array a[b] */
+	public static final int ALOAD = 19;
+	/** global array a[b] = c */
+	public static final int ASTORE = 20;
+	/** Runtime error unless 0 &lt;= b &lt; the length of global array a, reported in method c (an index into the program's methods), or the method it is in if c is -1 */
+	public static final int BOUNDS = 21;
+	/** Defines label a */
+	public static final int LABEL = 22;
+	/** Go to label a */
+	public static final int JUMP = 23;
+	/** Go to label b if a is true, otherwise to label c */
+	public static final int BRANCH = 24;
+	/** dst = method a (an index into the program's methods) called with c arguments, starting at b in the argument pool. dst is -1 if unused */
+	public static final int CALL = 25;
+	/** dst = external function named by string a, called with arguments as for CALL */
+	public static final int CALLOUT = 26;
+	/** Return from the method, with the value in a, or none if a is -1 */
+	public static final int RET = 27;
+	/** Runtime error: control reached the end of method a, or of the method it is in if a is -1, which must return a value */
+	public static final int TRAP = 28;
+	/** dst = the value of the register paired with the label control came from, b pairs of label and register starting at a in the argument pool */
+	public static final int PHI = 29;
+
+	private static final String[] NAMES = {
+		"nop", "const", "str", "copy", "neg", "not",
+		"add", "sub", "mul", "div", "mod",
+		"lt", "le", "gt", "ge", "eq", "ne",
+		"loadg", "storeg", "aload", "astore", "bounds",
+		"label", "jump", "branch", "call", "callout", "ret", "trap", "phi"
+	};
+
+	private Op() {
+	}
+
+	/**
+	 * @param op int opcode
+	 * @return String the name the opcode is written as
+	 */
+	public static String name(int op) {
+		return NAMES[op];
+	}
+
+	/**
+	 * @param name String the name an opcode is written as
+	 * @return int the opcode, or -1 if there is none by that name
+	 */
+	public static int of(String name) {
+		for (int op = 0; op < NAMES.length; op++) {
+			if (NAMES[op].equals(name)) return op;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return boolean True for ADD to NE, which compute dst from registers a and b
+	 */
+	public static boolean isBinary(int op) {
+		return op >= ADD && op <= NE;
+	}
+
+	/**
+	 * @return boolean True for the instructions that end a basic block
+	 */
+	public static boolean isTerminator(int op) {
+		return op == JUMP || op == BRANCH || op == RET || op == TRAP;
+	}
+
+	/**
+	 * @return boolean True for instructions with effects beyond defining dst,
+	 * which cannot be removed even if dst is never used
+	 */
+	public static boolean hasSideEffects(int op) {
+		switch (op) {
+		case STOREG:
+		case ASTORE:
+		case BOUNDS:
+		case LABEL:
+		case JUMP:
+		case BRANCH:
+		case CALL:
+		case CALLOUT:
+		case RET:
+		case TRAP:
+			return true;
+		default:
+			// DIV and MOD by zero trap in the generated code, but Decaf
+			// leaves that undefined, so they are treated as pure
+			return false;
+		}
+	}
+}
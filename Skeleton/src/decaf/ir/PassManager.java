@@ -0,0 +1,109 @@
+package decaf.ir;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs passes over a program in the order they were added, round after
+ * round while any of them changes something, up to a number of rounds
+ *
+ * The passes over SSA form each find more once the others have run:
+ * constant propagation once value numbering has merged two values, dead
+ * code elimination once a loop test has been rewritten. So they are run
+ * as one list until a round in which none of them changes anything, the
+ * fixed point, or until the rounds run out, which bounds how long the
+ * compiler spends for how much better the code gets. A pass that is only
+ * run once is a list with one round. Each pass counts the changes it made,
+ * and with a report stream every run of a pass is reported with its count
+ * and how long it took, and a list of more than one round with its totals.
+ *
+ * @author Miles Schofield
+ */
+public class PassManager {
+
+	/** An optimization over a whole program */
+	public abstract static class Pass {
+
+		private final String name;
+		private final String changes;
+
+		/**
+		 * @param name String the pass's name, as given to -opt
+		 * @param changes String what the pass counts, such as "instruction(s) removed"
+		 */
+		protected Pass(String name, String changes) {
+			this.name = name;
+			this.changes = changes;
+		}
+
+		/**
+		 * @return int how many changes the pass made, 0 if it changed nothing
+		 */
+		public abstract int run(IrProgram program);
+
+		/**
+		 * @return String the changes a run of the pass made, in words
+		 */
+		protected String describe(int count) {
+			return count + " " + changes;
+		}
+	}
+
+	private final List<Pass> passes = new ArrayList<Pass>();
+	private final PrintStream report;
+
+	/**
+	 * @param report PrintStream to report each run of a pass to, or null
+	 */
+	public PassManager(PrintStream report) {
+		this.report = report;
+	}
+
+	public void add(Pass pass) {
+		passes.add(pass);
+	}
+
+	public boolean isEmpty() {
+		return passes.isEmpty();
+	}
+
+	/**
+	 * Runs the passes until a round changes nothing or the rounds run out
+	 *
+	 * @param rounds int the most rounds to run
+	 * @return int the number of changes made
+	 */
+	public int run(IrProgram program, int rounds) {
+		long start = System.nanoTime();
+		int total = 0;
+		int round = 0;
+		boolean changed = true;
+		while (changed && round < rounds && !passes.isEmpty()) {
+			round++;
+			changed = false;
+			for (Pass pass : passes) {
+				long began = System.nanoTime();
+				int count = pass.run(program);
+				changed |= count > 0;
+				total += count;
+				if (report != null) {
+					report.println(pass.name + ": " + pass.describe(count) + " ("
+							+ (rounds > 1 ? "round " + round + ", " : "") + millis(System.nanoTime() - began) + ")");
+				}
+			}
+		}
+		if (report != null && rounds > 1 && round > 0) {
+			report.println("passes: " + total + " change(s) in " + round + " round(s)"
+					+ (changed ? ", stopped before a fixed point" : "") + " (" + millis(System.nanoTime() - start) + ")");
+		}
+		return total;
+	}
+
+	/**
+	 * @return String a time in nanoseconds as milliseconds, for reports
+	 */
+	public static String millis(long nanos) {
+		return String.format("%.2f ms", nanos / 1e6);
+	}
+}
@@ -0,0 +1,390 @@
+package decaf.ir;
+
+/**
+ * The range of values each register of a method in SSA form can hold
+ *
+ * Each register is given an interval of ints, worked out from those of
+ * its operands, which start unknown, but for parameters and registers
+ * read before they are given a value, which could hold anything. The
+ * blocks are gone over in reverse postorder until nothing changes, an
+ * interval only ever growing to take in the new values found. So that a
+ * loop counting up does not take a pass for every value it counts to, a
+ * register that has grown a few times has a bound still moving set to the
+ * end of the ints at once; a couple of passes that only let intervals
+ * shrink then win back what that gave away. Arithmetic that could wrap
+ * gives the whole range of ints.
+ *
+ * The branches a block is reached through also bound a register read
+ * there. A block whose only predecessor branches to it is only entered
+ * when the branch's condition is true, or false, so where the condition
+ * compares a register with another, the blocks it dominates may narrow
+ * the register by the other's range: inside for j = 0, 10 the j read is
+ * below 10. The nearest few such conditions up the dominator tree are
+ * used.
+ *
+ * @author Miles Schofield
+ */
+public final class Ranges {
+
+	/** How many times a register grows before its bounds are widened */
+	private static final int WIDEN_AFTER = 3;
+	/** The most branch conditions looked at for a register in a block */
+	private static final int CONDITIONS = 8;
+	/** The passes made before giving up and taking every range as unknown */
+	private static final int MAX_PASSES = 40;
+	private static final int NARROWING_PASSES = 2;
+
+	private final IrMethod method;
+	private final BasicBlocks blocks;
+	private final Dominators dominators;
+	private final long[] low;
+	private final long[] high;
+	private final boolean[] known;
+	private final int[] grown;
+	/** The instruction assigning each register, -1 if none or several */
+	private final int[] def;
+	/** The branch each block is entered from, if its only predecessor branches to it, or -1 */
+	private final int[] condition;
+	/** Whether each block is entered from its branch when the condition is true */
+	private final boolean[] sense;
+	/** The nearest block dominating each, itself included, that is entered from a branch, or -1 */
+	private final int[] conditioned;
+	/** Whether each register is compared by some condition branched on */
+	private final boolean[] compared;
+
+	// The range refine found
+	private long refinedLow;
+	private long refinedHigh;
+
+	/**
+	 * @param dominators Dominators of a method in normal form
+	 */
+	public Ranges(Dominators dominators) {
+		this.dominators = dominators;
+		blocks = dominators.getBlocks();
+		method = blocks.getMethod();
+		int regs = method.regCount();
+		low = new long[regs];
+		high = new long[regs];
+		known = new boolean[regs];
+		grown = new int[regs];
+
+		IntList[] defs = new IntList[regs];
+		for (int i = 0; i < method.size(); i++) {
+			int dst = method.dst(i);
+			if (dst < 0) continue;
+			if (defs[dst] == null) defs[dst] = new IntList(1);
+			defs[dst].add(i);
+		}
+		def = DeadCodeElimination.onlyDefs(method, defs);
+		for (int reg = 0; reg < regs; reg++) {
+			if (def[reg] < 0) setWhole(reg);
+		}
+
+		int count = blocks.size();
+		condition = new int[count];
+		sense = new boolean[count];
+		conditioned = new int[count];
+		compared = new boolean[regs];
+		for (int block = 0; block < count; block++) {
+			condition[block] = -1;
+			int[] predecessors = blocks.predecessors(block);
+			if (predecessors.length != 1) continue;
+			int last = blocks.end(predecessors[0]) - 1;
+			if (method.op(last) != Op.BRANCH || method.b(last) == method.c(last)) continue;
+			condition[block] = last;
+			sense[block] = method.b(last) == blocks.label(block);
+			int test = comparison(method.a(last));
+			if (test >= 0) {
+				compared[method.a(test)] = true;
+				compared[method.b(test)] = true;
+			}
+		}
+		for (int block : dominators.preorder()) {
+			if (condition[block] >= 0) conditioned[block] = block;
+			else conditioned[block] = block == 0 ? -1 : conditioned[dominators.idom(block)];
+		}
+		solve();
+	}
+
+	public BasicBlocks getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return boolean True if the range of a register is known, false if no
+	 * value reaching it was found, as for a register read only in code that
+	 * is never run
+	 */
+	public boolean isKnown(int reg) {
+		return known[reg];
+	}
+
+	/**
+	 * @return long the least value a register can hold where it is read in a block
+	 */
+	public long low(int reg, int block) {
+		refine(reg, block);
+		return refinedLow;
+	}
+
+	/**
+	 * @return long the greatest value a register can hold where it is read in a block
+	 */
+	public long high(int reg, int block) {
+		refine(reg, block);
+		return refinedHigh;
+	}
+
+	private void setWhole(int reg) {
+		low[reg] = Integer.MIN_VALUE;
+		high[reg] = Integer.MAX_VALUE;
+		known[reg] = true;
+	}
+
+	/**
+	 * @return int the comparison a condition register holds the result of,
+	 * or -1 if it is not one
+	 */
+	private int comparison(int reg) {
+		int i = def[reg];
+		if (i < 0) return -1;
+		int op = method.op(i);
+		return op >= Op.LT && op <= Op.NE ? i : -1;
+	}
+
+	private void solve() {
+		int[] order = dominators.reversePostorder();
+		boolean changed = true;
+		for (int pass = 0; changed; pass++) {
+			if (pass == MAX_PASSES) {
+				for (int reg = 0; reg < low.length; reg++) setWhole(reg);
+				return;
+			}
+			changed = false;
+			for (int block : order) {
+				for (int i = blocks.start(block) + 1; i < blocks.end(block); i++) {
+					if (method.dst(i) >= 0 && def[method.dst(i)] == i) changed |= widen(method.dst(i), block, i);
+				}
+			}
+		}
+		for (int pass = 0; pass < NARROWING_PASSES; pass++) {
+			for (int block : order) {
+				for (int i = blocks.start(block) + 1; i < blocks.end(block); i++) {
+					if (method.dst(i) >= 0 && def[method.dst(i)] == i) narrow(method.dst(i), block, i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grows a register's range to take in what its instruction now gives
+	 *
+	 * @return boolean True if it grew
+	 */
+	private boolean widen(int reg, int block, int i) {
+		if (!evaluate(block, i)) return false;
+		long newLow = refinedLow;
+		long newHigh = refinedHigh;
+		if (!known[reg]) {
+			low[reg] = newLow;
+			high[reg] = newHigh;
+			known[reg] = true;
+			return true;
+		}
+		if (newLow >= low[reg] && newHigh <= high[reg]) return false;
+		boolean widen = ++grown[reg] > WIDEN_AFTER;
+		if (newLow < low[reg]) low[reg] = widen ? Integer.MIN_VALUE : newLow;
+		if (newHigh > high[reg]) high[reg] = widen ? Integer.MAX_VALUE : newHigh;
+		return true;
+	}
+
+	/**
+	 * Shrinks a register's range to what its instruction now gives, if less
+	 */
+	private void narrow(int reg, int block, int i) {
+		if (!evaluate(block, i)) return;
+		low[reg] = Math.max(low[reg], refinedLow);
+		high[reg] = Math.min(high[reg], refinedHigh);
+	}
+
+	/**
+	 * Works out the range of what instruction i, in a block, gives, into
+	 * refinedLow and refinedHigh
+	 *
+	 * @return boolean False if nothing is known of it yet
+	 */
+	private boolean evaluate(int block, int i) {
+		int op = method.op(i);
+		switch (op) {
+		case Op.CONST:
+			return set(method.a(i), method.a(i));
+		case Op.COPY:
+			return refine(method.a(i), block);
+		case Op.PHI: {
+			boolean any = false;
+			long least = 0;
+			long greatest = 0;
+			for (int k = 0; k < method.b(i); k++) {
+				if (!refine(method.use(i, k), blocks.blockOf(method.phiLabel(i, k)))) continue;
+				least = any ? Math.min(least, refinedLow) : refinedLow;
+				greatest = any ? Math.max(greatest, refinedHigh) : refinedHigh;
+				any = true;
+			}
+			return any && set(least, greatest);
+		}
+		case Op.NEG:
+			if (!refine(method.a(i), block)) return false;
+			return set(-refinedHigh, -refinedLow);
+		case Op.NOT:
+		case Op.LT:
+		case Op.LE:
+		case Op.GT:
+		case Op.GE:
+		case Op.EQ:
+		case Op.NE:
+			return set(0, 1);
+		case Op.ADD:
+		case Op.SUB:
+		case Op.MUL:
+		case Op.DIV:
+		case Op.MOD: {
+			if (!refine(method.a(i), block)) return false;
+			long aLow = refinedLow;
+			long aHigh = refinedHigh;
+			if (!refine(method.b(i), block)) return false;
+			return arithmetic(op, aLow, aHigh, refinedLow, refinedHigh);
+		}
+		default:
+			// Loads and calls
+			return set(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		}
+	}
+
+	private boolean arithmetic(int op, long aLow, long aHigh, long bLow, long bHigh) {
+		switch (op) {
+		case Op.ADD:
+			return set(aLow + bLow, aHigh + bHigh);
+		case Op.SUB:
+			return set(aLow - bHigh, aHigh - bLow);
+		case Op.MUL: {
+			long p = aLow * bLow;
+			long q = aLow * bHigh;
+			long r = aHigh * bLow;
+			long s = aHigh * bHigh;
+			return set(Math.min(Math.min(p, q), Math.min(r, s)), Math.max(Math.max(p, q), Math.max(r, s)));
+		}
+		case Op.DIV:
+			// Division is monotonic in each operand while the divisor keeps one sign
+			if (bLow <= 0 && bHigh >= 0) return set(Math.min(aLow, -aHigh), Math.max(aHigh, -aLow));
+			long p = aLow / bLow;
+			long q = aLow / bHigh;
+			long r = aHigh / bLow;
+			long s = aHigh / bHigh;
+			return set(Math.min(Math.min(p, q), Math.min(r, s)), Math.max(Math.max(p, q), Math.max(r, s)));
+		default: {
+			// A remainder is smaller than the divisor and has the sign of the dividend
+			long limit = Math.max(Math.abs(bLow), Math.abs(bHigh)) - 1;
+			if (limit < 0) return set(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			return set(aLow >= 0 ? 0 : Math.max(aLow, -limit), aHigh <= 0 ? 0 : Math.min(aHigh, limit));
+		}
+		}
+	}
+
+	/**
+	 * Sets refinedLow and refinedHigh, to every int if the range goes
+	 * beyond them, as the arithmetic giving it could have wrapped
+	 *
+	 * @return boolean True
+	 */
+	private boolean set(long least, long greatest) {
+		if (least < Integer.MIN_VALUE || greatest > Integer.MAX_VALUE) {
+			least = Integer.MIN_VALUE;
+			greatest = Integer.MAX_VALUE;
+		}
+		refinedLow = least;
+		refinedHigh = greatest;
+		return true;
+	}
+
+	/**
+	 * Works out the range of a register where it is read in a block, into
+	 * refinedLow and refinedHigh, narrowed by the conditions of the
+	 * branches the block is reached through
+	 *
+	 * @return boolean False if nothing is known of it yet
+	 */
+	private boolean refine(int reg, int block) {
+		if (!known[reg]) return false;
+		long least = low[reg];
+		long greatest = high[reg];
+		int seen = 0;
+		for (int runner = compared[reg] ? conditioned[block] : -1; runner >= 0 && seen < CONDITIONS; seen++) {
+			int test = comparison(method.a(condition[runner]));
+			if (test >= 0 && (method.a(test) == reg || method.b(test) == reg)) {
+				int op = method.op(test);
+				int other = method.b(test);
+				if (method.a(test) != reg) {
+					other = method.a(test);
+					op = swapped(op);
+				}
+				if (!sense[runner]) op = negated(op);
+				if (known[other] && other != reg) {
+					switch (op) {
+					case Op.LT:
+						greatest = Math.min(greatest, high[other] - 1);
+						break;
+					case Op.LE:
+						greatest = Math.min(greatest, high[other]);
+						break;
+					case Op.GT:
+						least = Math.max(least, low[other] + 1);
+						break;
+					case Op.GE:
+						least = Math.max(least, low[other]);
+						break;
+					case Op.EQ:
+						least = Math.max(least, low[other]);
+						greatest = Math.min(greatest, high[other]);
+						break;
+					default:
+						break;
+					}
+				}
+			}
+			runner = runner == 0 ? -1 : conditioned[dominators.idom(runner)];
+		}
+		// A path on which the conditions cannot all hold is never taken
+		if (least > greatest) return false;
+		refinedLow = least;
+		refinedHigh = greatest;
+		return true;
+	}
+
+	/**
+	 * @return int the comparison giving the same result with its operands swapped
+	 */
+	static int swapped(int op) {
+		switch (op) {
+		case Op.LT: return Op.GT;
+		case Op.LE: return Op.GE;
+		case Op.GT: return Op.LT;
+		case Op.GE: return Op.LE;
+		default: return op; // EQ, NE
+		}
+	}
+
+	/**
+	 * @return int the comparison giving the opposite result
+	 */
+	private static int negated(int op) {
+		switch (op) {
+		case Op.LT: return Op.GE;
+		case Op.LE: return Op.GT;
+		case Op.GT: return Op.LE;
+		case Op.GE: return Op.LT;
+		case Op.EQ: return Op.NE;
+		default: return Op.EQ; // NE
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package decaf.ir;
+
+import java.util.Arrays;
+
+/**
+ * Puts methods into static single assignment form and takes them out again
+ *
+ * Construction follows Cytron et al.: phis for each register assigned in
+ * more than one place are placed on the iterated dominance frontiers of
+ * the blocks assigning it, but only where the register is live, so no
+ * dead phis are made. Liveness is worked out a register at a time by
+ * walking back from its uses, which only visits the blocks it is live in.
+ * Registers are then renamed in one walk of the dominator tree, kept on an
+ * explicit stack rather than by recursion, so methods of any size can be
+ * converted. Parameters keep their registers on entry, as does any
+ * register assigned only once.
+ *
+ * Destruction replaces each phi with copies at the end of its
+ * predecessors, splitting the edges from blocks that branch both ways. The
+ * copies for an edge happen at once, so they are put in an order that
+ * reads every register before it is overwritten, with a spare register
+ * for the cycles that have no such order.
+ *
+ * @author Miles Schofield
+ */
+public final class Ssa {
+
+	private Ssa() {
+	}
+
+	/**
+	 * Puts every method of a program into SSA form
+	 */
+	public static void construct(IrProgram program) {
+		for (int m = 0; m < program.methodCount(); m++) construct(program.method(m));
+	}
+
+	/**
+	 * Takes every method of a program out of SSA form
+	 */
+	public static void destruct(IrProgram program) {
+		for (int m = 0; m < program.methodCount(); m++) destruct(program.method(m));
+	}
+
+	/**
+	 * Puts a method into SSA form, in normal form as BasicBlocks describes
+	 *
+	 * @param method IrMethod to rewrite
+	 */
+	public static void construct(IrMethod method) {
+		BasicBlocks.normalize(method);
+		BasicBlocks blocks = new BasicBlocks(method);
+		Dominators dominators = new Dominators(blocks);
+		int[][] frontiers = dominators.frontiers();
+		int count = blocks.size();
+		int regs = method.regCount();
+
+		// The blocks assigning each register, and those reading it before any assignment
+		IntList[] defBlocks = new IntList[regs];
+		IntList[] useBlocks = new IntList[regs];
+		int[] defCounts = new int[regs];
+		int[] lastDef = new int[regs];
+		int[] lastUse = new int[regs];
+		Arrays.fill(lastDef, -1);
+		Arrays.fill(lastUse, -1);
+		for (int block = 0; block < count; block++) {
+			for (int i = blocks.start(block); i < blocks.end(block); i++) {
+				for (int k = 0; k < method.useCount(i); k++) {
+					int use = method.use(i, k);
+					if (lastDef[use] != block && lastUse[use] != block) {
+						if (useBlocks[use] == null) useBlocks[use] = new IntList(2);
+						useBlocks[use].add(block);
+						lastUse[use] = block;
+					}
+				}
+				int def = method.dst(i);
+				if (def < 0) continue;
+				defCounts[def]++;
+				if (lastDef[def] != block) {
+					if (defBlocks[def] == null) defBlocks[def] = new IntList(2);
+					defBlocks[def].add(block);
+					lastDef[def] = block;
+				}
+			}
+		}
+
+		// Place the phis, a register at a time. The stamp arrays mark the
+		// blocks for the current register without clearing them between registers
+		boolean[] renamed = new boolean[regs];
+		IntList[] phiRegs = new IntList[count];
+		int[] defStamp = new int[count];
+		int[] liveStamp = new int[count];
+		int[] phiStamp = new int[count];
+		IntList work = new IntList();
+		for (int reg = 0; reg < regs; reg++) {
+			renamed[reg] = defCounts[reg] > 1 || (reg < method.getParams() && defCounts[reg] > 0);
+			if (!renamed[reg] || useBlocks[reg] == null) continue;
+			int stamp = reg + 1;
+			for (int i = 0; i < defBlocks[reg].size(); i++) defStamp[defBlocks[reg].get(i)] = stamp;
+
+			// Live in: blocks reading it first, and those it is live out of but not assigned in
+			work.clear();
+			for (int i = 0; i < useBlocks[reg].size(); i++) {
+				liveStamp[useBlocks[reg].get(i)] = stamp;
+				work.add(useBlocks[reg].get(i));
+			}
+			while (!work.isEmpty()) {
+				for (int predecessor : blocks.predecessors(work.pop())) {
+					if (liveStamp[predecessor] != stamp && defStamp[predecessor] != stamp) {
+						liveStamp[predecessor] = stamp;
+						work.add(predecessor);
+					}
+				}
+			}
+
+			work.clear();
+			for (int i = 0; i < defBlocks[reg].size(); i++) work.add(defBlocks[reg].get(i));
+			while (!work.isEmpty()) {
+				for (int join : frontiers[work.pop()]) {
+					if (phiStamp[join] == stamp || liveStamp[join] != stamp) continue;
+					phiStamp[join] = stamp;
+					if (phiRegs[join] == null) phiRegs[join] = new IntList(2);
+					phiRegs[join].add(reg);
+					if (defStamp[join] != stamp) {
+						defStamp[join] = stamp;
+						work.add(join);
+					}
+				}
+			}
+		}
+
+		// The registers each phi assigns, and the one each predecessor gives it
+		IrMethod ssa = method.withoutCode();
+		int[][] phiDsts = new int[count][];
+		int[][][] phiArgs = new int[count][][];
+		for (int block = 0; block < count; block++) {
+			if (phiRegs[block] == null) continue;
+			phiDsts[block] = new int[phiRegs[block].size()];
+			phiArgs[block] = new int[phiRegs[block].size()][blocks.predecessors(block).length];
+		}
+
+		// Rename, walking the dominator tree. Each register's current name is
+		// kept in current, with the names replaced logged so they can be
+		// restored on leaving the block that replaced them
+		int[] current = new int[regs];
+		for (int reg = 0; reg < regs; reg++) current[reg] = reg;
+		IntList log = new IntList();
+		int[] logMarks = new int[count];
+		int[] stack = new int[count];
+		int[] next = new int[count];
+		int depth = 0;
+		stack[0] = 0;
+		renameBlock(method, ssa, blocks, 0, renamed, current, log, phiRegs, phiDsts, phiArgs);
+		while (depth >= 0) {
+			int block = stack[depth];
+			int[] children = dominators.children(block);
+			if (next[block] < children.length) {
+				int child = children[next[block]++];
+				logMarks[child] = log.size();
+				stack[++depth] = child;
+				renameBlock(method, ssa, blocks, child, renamed, current, log, phiRegs, phiDsts, phiArgs);
+			} else {
+				while (log.size() > logMarks[block]) {
+					int name = log.pop();
+					current[log.pop()] = name;
+				}
+				depth--;
+			}
+		}
+
+		for (int block = 0; block < count; block++) {
+			int start = blocks.start(block);
+			ssa.emit(method, start);
+			if (phiRegs[block] != null) {
+				int[] predecessors = blocks.predecessors(block);
+				ssa.setLine(method.line(start));
+				for (int phi = 0; phi < phiDsts[block].length; phi++) {
+					int[] pairs = new int[2 * predecessors.length];
+					for (int k = 0; k < predecessors.length; k++) {
+						pairs[2 * k] = blocks.label(predecessors[k]);
+						pairs[2 * k + 1] = phiArgs[block][phi][k];
+					}
+					ssa.emit(Op.PHI, phiDsts[block][phi], ssa.addArgs(pairs), predecessors.length);
+				}
+			}
+			for (int i = start + 1; i < blocks.end(block); i++) ssa.emit(method, i);
+		}
+		method.replaceWith(ssa);
+	}
+
+	/**
+	 * Renames the registers of one block in place, giving each assignment
+	 * of a renamed register a new one, then fills in the phi operands of
+	 * its successors
+	 */
+	private static void renameBlock(IrMethod method, IrMethod ssa, BasicBlocks blocks, int block, boolean[] renamed,
+			int[] current, IntList log, IntList[] phiRegs, int[][] phiDsts, int[][][] phiArgs) {
+		if (phiRegs[block] != null) {
+			for (int phi = 0; phi < phiRegs[block].size(); phi++) {
+				int reg = phiRegs[block].get(phi);
+				phiDsts[block][phi] = rename(ssa, reg, current, log);
+			}
+		}
+		for (int i = blocks.start(block) + 1; i < blocks.end(block); i++) {
+			for (int k = 0; k < method.useCount(i); k++) {
+				int use = method.use(i, k);
+				if (renamed[use]) method.setUse(i, k, current[use]);
+			}
+			int def = method.dst(i);
+			if (def >= 0 && renamed[def]) method.setDst(i, rename(ssa, def, current, log));
+		}
+		for (int successor : blocks.successors(block)) {
+			if (phiRegs[successor] == null) continue;
+			int k = indexOf(blocks.predecessors(successor), block);
+			for (int phi = 0; phi < phiRegs[successor].size(); phi++) {
+				phiArgs[successor][phi][k] = current[phiRegs[successor].get(phi)];
+			}
+		}
+	}
+
+	/**
+	 * @return int a new name for a register, now its current one
+	 */
+	private static int rename(IrMethod ssa, int reg, int[] current, IntList log) {
+		log.add(reg);
+		log.add(current[reg]);
+		current[reg] = ssa.newReg(ssa.regName(reg));
+		return current[reg];
+	}
+
+	private static int indexOf(int[] values, int value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == value) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Takes a method out of SSA form, replacing its phis with copies
+	 *
+	 * @param method IrMethod to rewrite
+	 */
+	public static void destruct(IrMethod method) {
+		BasicBlocks.normalize(method);
+		BasicBlocks blocks = new BasicBlocks(method);
+		int count = blocks.size();
+		IrMethod out = method.withoutCode();
+		ParallelCopy copies = new ParallelCopy(out);
+
+		for (int block = 0; block < count; block++) {
+			int last = blocks.end(block) - 1;
+			for (int i = blocks.start(block); i < last; i++) {
+				if (method.op(i) != Op.PHI) out.emit(method, i);
+			}
+			int[] successors = blocks.successors(block);
+			if (successors.length == 1) {
+				// The copies for the one successor go before the JUMP
+				copies.clear();
+				addPhiCopies(method, blocks, block, successors[0], copies);
+				out.setLine(method.line(last));
+				copies.emit();
+				out.emit(method, last);
+				continue;
+			}
+			int terminator = out.emit(method, last);
+			// Each edge to a block with phis gets a block of its own for the copies
+			for (int s = 0; s < successors.length; s++) {
+				copies.clear();
+				addPhiCopies(method, blocks, block, successors[s], copies);
+				if (copies.isEmpty()) continue;
+				int edge = out.newLabel();
+				if (s == 0) out.setB(terminator, edge);
+				else out.setC(terminator, edge);
+				out.setLine(method.line(last));
+				out.emit(Op.LABEL, -1, edge);
+				copies.emit();
+				out.emit(Op.JUMP, -1, blocks.label(successors[s]));
+			}
+		}
+		method.replaceWith(out);
+	}
+
+	/**
+	 * Adds the copies the phis of successor need when reached from block
+	 */
+	private static void addPhiCopies(IrMethod method, BasicBlocks blocks, int block, int successor, ParallelCopy copies) {
+		int label = blocks.label(block);
+		for (int i = blocks.start(successor) + 1; i < blocks.end(successor) && method.op(i) == Op.PHI; i++) {
+			for (int k = 0; k < method.b(i); k++) {
+				if (method.phiLabel(i, k) == label) copies.add(method.dst(i), method.use(i, k));
+			}
+		}
+	}
+
+	/**
+	 * A set of copies that happen at once, emitted as a sequence that gives
+	 * the same result (Boissinot et al., "Revisiting Out-of-SSA Translation",
+	 * 2009). Copies whose destination no other copy reads are emitted
+	 * first; when only cycles are left, one value is saved to a spare
+	 * register to break each.
+	 */
+	private static class ParallelCopy {
+		private final IrMethod out;
+		private final IntList dsts = new IntList();
+		private final IntList srcs = new IntList();
+		/** Where the value first in each register now is, by register, grown as needed */
+		private int[] location = new int[0];
+		/** The register each destination copies from */
+		private int[] source = new int[0];
+
+		ParallelCopy(IrMethod out) {
+			this.out = out;
+		}
+
+		void clear() {
+			dsts.clear();
+			srcs.clear();
+		}
+
+		boolean isEmpty() {
+			return dsts.isEmpty();
+		}
+
+		void add(int dst, int src) {
+			if (dst == src) return;
+			dsts.add(dst);
+			srcs.add(src);
+		}
+
+		void emit() {
+			if (dsts.isEmpty()) return;
+			if (location.length < out.regCount()) {
+				location = new int[out.regCount() * 2];
+				source = new int[out.regCount() * 2];
+				Arrays.fill(location, -1);
+				Arrays.fill(source, -1);
+			}
+			IntList ready = new IntList();
+			IntList todo = new IntList();
+			for (int i = 0; i < dsts.size(); i++) {
+				location[srcs.get(i)] = srcs.get(i);
+				source[dsts.get(i)] = srcs.get(i);
+				todo.add(dsts.get(i));
+			}
+			for (int i = 0; i < dsts.size(); i++) {
+				if (location[dsts.get(i)] < 0) ready.add(dsts.get(i));
+			}
+			while (!todo.isEmpty()) {
+				while (!ready.isEmpty()) {
+					int dst = ready.pop();
+					int src = source[dst];
+					int from = location[src];
+					out.emit(Op.COPY, dst, from);
+					location[src] = dst;
+					if (src == from && source[src] >= 0) ready.add(src);
+				}
+				int dst = todo.pop();
+				if (dst != location[source[dst]]) {
+					// Only cycles remain: save dst so it can be overwritten
+					int spare = out.newReg();
+					out.emit(Op.COPY, spare, dst);
+					location[dst] = spare;
+					ready.add(dst);
+				}
+			}
+			// Leave the tables clear for the next set
+			for (int i = 0; i < dsts.size(); i++) {
+				location[srcs.get(i)] = -1;
+				location[dsts.get(i)] = -1;
+				source[dsts.get(i)] = -1;
+			}
+		}
+	}
+}
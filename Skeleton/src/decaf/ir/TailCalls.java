@@ -0,0 +1,233 @@
+package decaf.ir;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Finds the calls in tail position, and turns those a method makes to
+ * itself into jumps back to its start, over methods out of SSA form
+ *
+ * A call is in tail position when all that is left to do after it is to
+ * return what it returned: the instructions from it to a RET are only
+ * labels and jumps, and the RET gives the call's result, or nothing from a
+ * void method. Such a call to another method can reuse its caller's frame,
+ * which a code generator does by jumping to it rather than calling it.
+ *
+ * A method's own tail calls are made into a loop: the arguments are copied
+ * to the parameters, through temporaries where one is another parameter,
+ * and control jumps to the top of the method, after its entry label, so
+ * the locals are set to zero again as a call would. Any register read
+ * before it is assigned is zeroed there too. A call whose result is added
+ * to or multiplied by something before it is returned, as in
+ * n * factorial(n - 1), is made a loop as well, keeping a sum and a
+ * product of what each trip would have done to the result; every return
+ * then gives the sum plus the product times its value. Both are exact, as
+ * int arithmetic wraps.
+ *
+ * @author Miles Schofield
+ */
+public final class TailCalls {
+
+	private final IrMethod method;
+	/** The index of each label's instruction */
+	private final int[] labelAt;
+
+	private TailCalls(IrMethod method) {
+		this.method = method;
+		labelAt = new int[method.labelCount()];
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) == Op.LABEL) labelAt[method.a(i)] = i;
+		}
+	}
+
+	/**
+	 * @return boolean[] true for each CALL in a method that is in tail position
+	 */
+	public static boolean[] find(IrMethod method) {
+		TailCalls calls = new TailCalls(method);
+		boolean[] tail = new boolean[method.size()];
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) == Op.CALL) tail[i] = calls.chain(i, false) != null;
+		}
+		return tail;
+	}
+
+	/**
+	 * Makes the tail calls each method makes to itself into loops
+	 *
+	 * @param report PrintStream to report each call made a loop, or null
+	 * @return int the number of calls made loops
+	 */
+	public static int run(IrProgram program, PrintStream report) {
+		int count = 0;
+		for (int m = 0; m < program.methodCount(); m++) {
+			IrMethod method = program.method(m);
+			BasicBlocks.normalize(method);
+			count += new TailCalls(method).loop(m, report);
+		}
+		return count;
+	}
+
+	/**
+	 * Follows what happens to the result of call i until it is returned
+	 *
+	 * @param arithmetic boolean True to allow the result to be added to and
+	 * multiplied on the way, by registers the call had or constants
+	 * @return IntList the ADD, MUL and CONST instructions passed, in order,
+	 * or null if the call is not in tail position
+	 */
+	private IntList chain(int i, boolean arithmetic) {
+		IntList passed = new IntList(2);
+		// The registers assigned since the call, whose values it had not got
+		IntList assigned = new IntList(2);
+		IntList read = new IntList(2);
+		int value = method.dst(i);
+		if (value >= 0) assigned.add(value);
+		int at = i + 1;
+		for (int steps = 0; steps < method.size() && at < method.size(); steps++) {
+			int op = method.op(at);
+			if (op == Op.LABEL || op == Op.NOP) {
+				at++;
+			} else if (op == Op.JUMP) {
+				at = labelAt[method.a(at)];
+			} else if (op == Op.RET) {
+				return method.a(at) == value ? passed : null;
+			} else if ((op == Op.ADD || op == Op.MUL) && arithmetic && value >= 0) {
+				int other = method.a(at) == value ? method.b(at) : method.b(at) == value ? method.a(at) : -1;
+				if (other < 0 || contains(assigned, other)) return null;
+				passed.add(at);
+				read.add(other);
+				value = method.dst(at);
+				assigned.add(value);
+				at++;
+			} else if (op == Op.CONST && arithmetic && value >= 0) {
+				// Made before the sum and product, so it must not change what they read
+				int dst = method.dst(at);
+				if (contains(assigned, dst) || contains(read, dst)) return null;
+				passed.add(at);
+				at++;
+			} else {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static boolean contains(IntList list, int value) {
+		for (int k = 0; k < list.size(); k++) {
+			if (list.get(k) == value) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Makes the method's tail calls to itself, method m, into jumps to its top
+	 *
+	 * @return int the number of calls made jumps
+	 */
+	private int loop(int m, PrintStream report) {
+		IntList[] chains = new IntList[method.size()];
+		boolean sums = false;
+		boolean products = false;
+		int count = 0;
+		for (int i = 0; i < method.size(); i++) {
+			if (method.op(i) != Op.CALL || method.a(i) != m) continue;
+			chains[i] = chain(i, true);
+			if (chains[i] == null) continue;
+			for (int k = 0; k < chains[i].size(); k++) {
+				if (method.op(chains[i].get(k)) == Op.ADD) sums = true;
+				else if (method.op(chains[i].get(k)) == Op.MUL) products = true;
+			}
+			count++;
+		}
+		if (count == 0) return 0;
+
+		BasicBlocks blocks = new BasicBlocks(method);
+		int[] unassigned = new Liveness(blocks).liveIn(blocks.blockOf(method.a(0)));
+		IrMethod rebuilt = method.withoutCode();
+		rebuilt.emit(method, 0);
+		rebuilt.setLine(method.line(0));
+		int sum = -1;
+		int product = -1;
+		if (sums) rebuilt.emit(Op.CONST, sum = rebuilt.newReg(), 0);
+		if (products) rebuilt.emit(Op.CONST, product = rebuilt.newReg(), 1);
+		int top = rebuilt.newLabel();
+		rebuilt.emit(Op.JUMP, -1, top);
+		rebuilt.emit(Op.LABEL, -1, top);
+		for (int reg : unassigned) {
+			if (reg >= method.getParams()) rebuilt.emit(Op.CONST, reg, 0);
+		}
+
+		for (int i = 1; i < method.size(); i++) {
+			if (method.op(i) == Op.RET && method.a(i) >= 0 && (sums || products)) {
+				rebuilt.setLine(method.line(i));
+				int value = method.a(i);
+				if (products) {
+					int scaled = rebuilt.newReg();
+					rebuilt.emit(Op.MUL, scaled, product, value);
+					value = scaled;
+				}
+				if (sums) {
+					int total = rebuilt.newReg();
+					rebuilt.emit(Op.ADD, total, sum, value);
+					value = total;
+				}
+				rebuilt.emit(Op.RET, -1, value);
+				continue;
+			}
+			if (chains[i] == null) {
+				rebuilt.emit(method, i);
+				continue;
+			}
+			if (report != null) {
+				report.println("tailcall: " + method.getName() + ": call at line " + method.line(i) + " made a loop");
+			}
+			rebuilt.setLine(method.line(i));
+			IntList chain = chains[i];
+			int[] others = new int[chain.size()];
+			int value = method.dst(i);
+			for (int k = 0; k < chain.size(); k++) {
+				int at = chain.get(k);
+				if (method.op(at) == Op.CONST) {
+					rebuilt.emit(method, at);
+					continue;
+				}
+				others[k] = method.a(at) == value ? method.b(at) : method.a(at);
+				value = method.dst(at);
+			}
+			// What is left to do to the result, outermost first, goes into the sum and product
+			for (int k = chain.size() - 1; k >= 0; k--) {
+				int at = chain.get(k);
+				int other = others[k];
+				if (method.op(at) == Op.CONST) continue;
+				if (method.op(at) == Op.MUL) {
+					rebuilt.emit(Op.MUL, product, product, other);
+				} else {
+					if (products) {
+						int scaled = rebuilt.newReg();
+						rebuilt.emit(Op.MUL, scaled, product, other);
+						other = scaled;
+					}
+					rebuilt.emit(Op.ADD, sum, sum, other);
+				}
+			}
+			int[] args = method.callArgs(i);
+			int[] temps = Arrays.copyOf(args, args.length);
+			for (int param = 0; param < args.length; param++) {
+				if (args[param] != param && args[param] < method.getParams()) {
+					temps[param] = rebuilt.newReg();
+					rebuilt.emit(Op.COPY, temps[param], args[param]);
+				}
+			}
+			for (int param = 0; param < args.length; param++) {
+				if (temps[param] != param) rebuilt.emit(Op.COPY, param, temps[param]);
+			}
+			rebuilt.emit(Op.JUMP, -1, top);
+			// The rest of the block is left unreachable
+			while (i + 1 < method.size() && method.op(i + 1) != Op.LABEL) i++;
+		}
+		method.replaceWith(rebuilt);
+		BasicBlocks.normalize(method);
+		return count;
+	}
+}
@@ -74,6 +74,95 @@ public class CLI
      */
     public static boolean debug;
 
+    /**
+     * The optimizations.  Element i is true if the optimization named
+     * optnames[i] was requested with <tt>-opt <I>name</I></tt>, or with
+     * <tt>-opt all</tt>; <tt>-opt -<I>name</I></tt> turns one off again.
+     * Several names may be given at once, separated by commas.
+     */
+    public static boolean opts[];
+
+    /**
+     * The optimizations named.  Element i is true if the optimization
+     * named optnames[i] was turned on or off with <tt>-opt</tt>, by name
+     * or with <tt>all</tt>, so that the choice overrides the one made by
+     * the optimization level.
+     */
+    public static boolean optsNamed[];
+
+    /**
+     * The optimization level, set by <tt>-O<I>n</I></tt>.  This is 0 if
+     * the option was not given.  From level 2 the assembly target
+     * allocates registers by graph coloring, which takes longer than
+     * linear scan but spills less and removes copies.  Each level also
+     * turns on the optimizations the compiler chooses for it, but for
+     * those in optsNamed[].
+     */
+    public static int level;
+
+    /**
+     * The stream flag.  This is true if <tt>-stream</tt> was passed on
+     * the command line, requesting that semantic checking is done while
+     * the input is parsed, rather than on a completed parse tree.
+     */
+    public static boolean stream;
+
+    /**
+     * The parser profiling flag.  This is true if <tt>-profile-parser</tt>
+     * was passed on the command line, requesting a report of the parser's
+     * prediction decisions over the input file and any further files
+     * named on the command line.
+     */
+    public static boolean profileParser;
+
+    /**
+     * The parallel flag.  This is true if <tt>-parallel</tt> was passed on
+     * the command line, requesting that method bodies are semantically
+     * checked in parallel once the fields and method signatures are known.
+     */
+    public static boolean parallel;
+
+    /**
+     * The SSA flag.  This is true if <tt>-ssa</tt> was passed on the
+     * command line, requesting the intermediate representation in static
+     * single assignment form, with phis where values from different paths
+     * meet.
+     */
+    public static boolean ssa;
+
+    /**
+     * The cross-reference index file, set by <tt>-index <I>file</I></tt>.
+     * The input files are added to the index, or if a query is given,
+     * the index is queried instead.  This is null if no index was given.
+     */
+    public static String index;
+
+    /**
+     * The identifier to look up in the cross-reference index, set by
+     * <tt>-query <I>name</I></tt>.  This is null if no query was given.
+     */
+    public static String query;
+
+    /**
+     * The most errors to report, set by <tt>-max-errors <I>n</I></tt>.
+     * This is 0, meaning no limit, if the option was not given.
+     */
+    public static int maxErrors;
+
+    /**
+     * The JSON diagnostics flag.  This is true if <tt>-diagnostics json</tt>
+     * was passed on the command line, requesting errors as a JSON object
+     * rather than as lines of text (<tt>-diagnostics text</tt>).
+     */
+    public static boolean jsonDiagnostics;
+
+    /**
+     * The binary IR flag.  This is true if <tt>-ir binary</tt> was passed
+     * on the command line, requesting the intermediate representation in
+     * its binary form rather than as text (<tt>-ir text</tt>).
+     */
+    public static boolean binaryIr;
+
     /**
      * Sets up default values for all of the
      * result fields.  Specifically, sets the input and output files
@@ -110,6 +199,8 @@ public class CLI
     {
 	int context = 0;
 	String ext = ".out";
+	opts = new boolean[optnames.length];
+	optsNamed = new boolean[optnames.length];
 
 	for (int i = 0; i < args.length; i++)
 	    {
@@ -118,10 +209,47 @@ public class CLI
 			context = 0;
 			debug = true;
 		    }
+		else if (args[i].equals("-stream"))
+		    {
+			context = 0;
+			stream = true;
+		    }
+		else if (args[i].equals("-profile-parser"))
+		    {
+			context = 0;
+			profileParser = true;
+		    }
+		else if (args[i].equals("-parallel"))
+		    {
+			context = 0;
+			parallel = true;
+		    }
+		else if (args[i].equals("-ssa"))
+		    {
+			context = 0;
+			ssa = true;
+		    }
+		else if (args[i].matches("-O[0-9]"))
+		    {
+			context = 0;
+			level = args[i].charAt(2) - '0';
+		    }
 		else if (args[i].equals("-o"))
 		    context = 1;
 		else if (args[i].equals("-target"))
 		    context = 2;
+		else if (args[i].equals("-max-errors"))
+		    context = 3;
+		else if (args[i].equals("-diagnostics"))
+		    context = 4;
+		else if (args[i].equals("-index"))
+		    context = 5;
+		else if (args[i].equals("-query"))
+		    context = 6;
+		else if (args[i].equals("-ir"))
+		    context = 7;
+		else if (args[i].equals("-opt"))
+		    context = 8;
 		else if (context == 1)
 		    {
 			outfile = args[i];
@@ -144,6 +272,68 @@ public class CLI
 			    target = DEFAULT; // Anything else is just default
 			context = 0;
 		    }
+		else if (context == 3)
+		    {
+			try
+			    {
+				maxErrors = Math.max(0, Integer.parseInt(args[i]));
+			    }
+			catch (NumberFormatException e)
+			    {
+				maxErrors = 0; // Anything else is no limit
+			    }
+			context = 0;
+		    }
+		else if (context == 4)
+		    {
+			jsonDiagnostics = args[i].toLowerCase().equals("json");
+			context = 0;
+		    }
+		else if (context == 5)
+		    {
+			index = args[i];
+			context = 0;
+		    }
+		else if (context == 6)
+		    {
+			query = args[i];
+			context = 0;
+		    }
+		else if (context == 7)
+		    {
+			binaryIr = args[i].toLowerCase().equals("binary");
+			context = 0;
+		    }
+		else if (context == 8)
+		    {
+			// Every list of names after -opt is of optimizations, until one is not
+			String names[] = args[i].split(",");
+			boolean hit = names.length > 0;
+			for (int k = 0; k < names.length && hit; k++)
+			    hit = isOptimization(names[k], optnames);
+			if (hit)
+			    {
+				for (int k = 0; k < names.length; k++)
+				    for (int j = 0; j < optnames.length; j++)
+					{
+					    if (names[k].equals("all") || names[k].equals(optnames[j]))
+						{
+						    opts[j] = true;
+						    optsNamed[j] = true;
+						}
+					    if (names[k].equals("-" + optnames[j]))
+						{
+						    opts[j] = false;
+						    optsNamed[j] = true;
+						}
+					}
+			    }
+			else
+			    {
+				context = 0;
+				extras.addElement(args[i]);
+			    }
+		    }
 		else
 		    extras.addElement(args[i]);
 	    }
@@ -171,7 +361,7 @@ public class CLI
 	    ext = ".parse";
 	    break;
 	case INTER:
-	    ext = ".ir";
+	    ext = binaryIr ? ".irb" : ".ir";
 	    break;
 	case ASSEMBLY:
 	    ext = ".s";
@@ -195,4 +385,18 @@ public class CLI
 		    outfile = infile.substring(0, dot) + ext;
 	    }
     }
+
+    /**
+     * @return true if the name is one of the optimizations, turned on or
+     *   off, or <tt>all</tt>
+     */
+    private static boolean isOptimization(String name, String optnames[])
+    {
+	if (name.equals("all"))
+	    return true;
+	for (int j = 0; j < optnames.length; j++)
+	    if (name.equals(optnames[j]) || name.equals("-" + optnames[j]))
+		return true;
+	return false;
+    }
 }